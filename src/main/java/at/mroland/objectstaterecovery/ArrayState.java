@@ -19,6 +19,7 @@ import at.mroland.logging.Logging;
 import at.mroland.objectstaterecovery.helper.UniqueObjectIdentifier;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlSerializer;
@@ -32,6 +33,48 @@ public class ArrayState extends FieldState {
     protected final ArrayList<FieldState> mElements;
     protected final ArrayList<Long> mElementReferences;
     protected final String mElementType;
+    
+    /**
+     * Minimum number of elements for content deduplication during serialization.
+     */
+    private static final int MIN_DEDUPLICATED_ELEMENTS = 2;
+    
+    /**
+     * Content key of a primitive array used for deduplication during
+     * serialization. Primitive values have value-based identifiers, so equal
+     * element identifiers imply equal array contents.
+     */
+    /* package */ static final class ContentKey {
+        private final String mElementType;
+        private final long[] mElementIdentifiers;
+        private final int mHashCode;
+        
+        ContentKey(String elementType, ArrayList<FieldState> elements) {
+            mElementType = elementType;
+            mElementIdentifiers = new long[elements.size()];
+            int i = 0;
+            for (FieldState element : elements) {
+                mElementIdentifiers[i++] = (element != null) ? element.getHashCode() : UniqueObjectIdentifier.NULL_IDENTIFIER;
+            }
+            mHashCode = 31 * elementType.hashCode() + Arrays.hashCode(mElementIdentifiers);
+        }
+        
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ContentKey)) {
+                return false;
+            }
+            ContentKey other = (ContentKey)obj;
+            return (mHashCode == other.mHashCode) &&
+                   mElementType.equals(other.mElementType) &&
+                   Arrays.equals(mElementIdentifiers, other.mElementIdentifiers);
+        }
+    }
 
     public ArrayState(PersistentMemory memoryManager,
                       Object referencedObject,
@@ -48,7 +91,25 @@ public class ArrayState extends FieldState {
         super(memoryManager, recoveredObjectClass, recoveredIdentityHashCode);
         mElements = new ArrayList();
         mElementReferences = new ArrayList();
-        mElementType = elementType;
+        mElementType = SharedStatePool.internName(elementType);
+    }
+
+    /**
+     * Resolve a de-serialized content reference, i.e. take over the element
+     * references of an array with identical contents that has been
+     * de-serialized before.
+     * 
+     * @param contentReference De-serialized content reference (may be null).
+     */
+    protected void resolveContentReference(String contentReference) {
+        if (contentReference != null) {
+            FieldState fieldState = mMemoryManager.getDeserializedReference(Long.valueOf(contentReference));
+            if (fieldState instanceof ArrayState) {
+                mElementReferences.addAll(((ArrayState)fieldState).mElementReferences);
+            } else {
+                Logging.error(LOG_TAG, "Could not resolve de-serialized content reference #" + contentReference + "!");
+            }
+        }
     }
 
     /**
@@ -98,7 +159,7 @@ public class ArrayState extends FieldState {
             } else if (char.class.getName().equals(mElementType)) {
                 objectClass = char.class;
             } else {
-                objectClass = Class.forName(mElementType);
+                objectClass = mMemoryManager.loadClass(mElementType);
             }
             return objectClass;
         } catch (Exception e) {
@@ -337,8 +398,8 @@ public class ArrayState extends FieldState {
                 if (((Object[])instance).length == numElements) {
                     int i = 0;
                     for (FieldState fieldState : mElements) {
-                        fieldState.revertInstance();
                         ((Object[])instance)[i++] = fieldState.getInstance();
+                        mMemoryManager.revertReference(fieldState);
                     }
                 } else {
                     Logging.error(LOG_TAG, "Unexpected array length");
@@ -375,7 +436,7 @@ public class ArrayState extends FieldState {
                                 fieldState = mMemoryManager.storeObject(array[i], (array[i] == null) ? componentClass : array[i].getClass(), noDeepRefresh);
                                 mElements.set(i, fieldState);
                             } else if (!noDeepRefresh) {
-                                fieldState.refreshInstance(false);
+                                mMemoryManager.refreshReference(fieldState);
                             }
                         }
                     } else {
@@ -396,7 +457,7 @@ public class ArrayState extends FieldState {
                                 fieldState = mMemoryManager.storeObject(array[i], componentClass, noDeepRefresh);
                                 mElements.set(i, fieldState);
                             } else if (!noDeepRefresh) {
-                                fieldState.refreshInstance(false);
+                                mMemoryManager.refreshReference(fieldState);
                             }
                         }
                     } else {
@@ -417,7 +478,7 @@ public class ArrayState extends FieldState {
                                 fieldState = mMemoryManager.storeObject(array[i], componentClass, noDeepRefresh);
                                 mElements.set(i, fieldState);
                             } else if (!noDeepRefresh) {
-                                fieldState.refreshInstance(false);
+                                mMemoryManager.refreshReference(fieldState);
                             }
                         }
                     } else {
@@ -438,7 +499,7 @@ public class ArrayState extends FieldState {
                                 fieldState = mMemoryManager.storeObject(array[i], componentClass, noDeepRefresh);
                                 mElements.set(i, fieldState);
                             } else if (!noDeepRefresh) {
-                                fieldState.refreshInstance(false);
+                                mMemoryManager.refreshReference(fieldState);
                             }
                         }
                     } else {
@@ -459,7 +520,7 @@ public class ArrayState extends FieldState {
                                 fieldState = mMemoryManager.storeObject(array[i], componentClass, noDeepRefresh);
                                 mElements.set(i, fieldState);
                             } else if (!noDeepRefresh) {
-                                fieldState.refreshInstance(false);
+                                mMemoryManager.refreshReference(fieldState);
                             }
                         }
                     } else {
@@ -480,7 +541,7 @@ public class ArrayState extends FieldState {
                                 fieldState = mMemoryManager.storeObject(array[i], componentClass, noDeepRefresh);
                                 mElements.set(i, fieldState);
                             } else if (!noDeepRefresh) {
-                                fieldState.refreshInstance(false);
+                                mMemoryManager.refreshReference(fieldState);
                             }
                         }
                     } else {
@@ -501,7 +562,7 @@ public class ArrayState extends FieldState {
                                 fieldState = mMemoryManager.storeObject(array[i], componentClass, noDeepRefresh);
                                 mElements.set(i, fieldState);
                             } else if (!noDeepRefresh) {
-                                fieldState.refreshInstance(false);
+                                mMemoryManager.refreshReference(fieldState);
                             }
                         }
                     } else {
@@ -522,7 +583,7 @@ public class ArrayState extends FieldState {
                                 fieldState = mMemoryManager.storeObject(array[i], componentClass, noDeepRefresh);
                                 mElements.set(i, fieldState);
                             } else if (!noDeepRefresh) {
-                                fieldState.refreshInstance(false);
+                                mMemoryManager.refreshReference(fieldState);
                             }
                         }
                     } else {
@@ -543,7 +604,7 @@ public class ArrayState extends FieldState {
                                 fieldState = mMemoryManager.storeObject(array[i], componentClass, noDeepRefresh);
                                 mElements.set(i, fieldState);
                             } else if (!noDeepRefresh) {
-                                fieldState.refreshInstance(false);
+                                mMemoryManager.refreshReference(fieldState);
                             }
                         }
                     } else {
@@ -562,13 +623,33 @@ public class ArrayState extends FieldState {
         }
     }
     
+    @Override
+    /* package */ Object getImage() {
+        return new ArrayList(mElements);
+    }
+    
+    @Override
+    /* package */ void setImage(Object image) {
+        mElements.clear();
+        mElements.addAll((ArrayList<FieldState>)image);
+    }
+    
+    @Override
+    /* package */ void pingImage(Object image) {
+        for (FieldState fieldState : (ArrayList<FieldState>)image) {
+            if (fieldState != null) {
+                mMemoryManager.pingReference(fieldState);
+            }
+        }
+    }
+    
     /**
      * Ping ArrayState to prevent garbage collection.
      */
     protected void internalPingInstance() {
         for (FieldState fieldState : mElements) {
             if (fieldState != null) {
-                fieldState.pingInstance();
+                mMemoryManager.pingReference(fieldState);
             }
         }
     }
@@ -596,12 +677,24 @@ public class ArrayState extends FieldState {
             
             xml.attribute(null, XmlSchemaPersistentMemory.ATTRIBUTE_ARRAY_ELEMENT_TYPE, mElementType);
 
+            Long contentReference = null;
+            final Class elementClass = getElementClass();
+            if ((mElements.size() >= MIN_DEDUPLICATED_ELEMENTS) && (elementClass != null) && elementClass.isPrimitive()) {
+                contentReference = mMemoryManager.registerSerializedArrayContent(new ContentKey(mElementType, mElements), getHashCode());
+            }
+            if (contentReference != null) {
+                // identical contents have already been serialized for another array
+                xml.attribute(null, XmlSchemaPersistentMemory.ATTRIBUTE_ARRAY_CONTENT_REFERENCE, contentReference.toString());
+            }
+
             serializeBoundClassesToXml(xml);
             
-            for (FieldState element : mElements) {
-                xml.startTag(null, XmlSchemaPersistentMemory.TAG_ARRAY_ELEMENT);
-                xml.attribute(null, XmlSchemaPersistentMemory.ATTRIBUTE_HASH_CODE, Long.toString((element != null) ? element.getHashCode() : UniqueObjectIdentifier.NULL_IDENTIFIER));
-                xml.endTag(null, XmlSchemaPersistentMemory.TAG_ARRAY_ELEMENT);
+            if (contentReference == null) {
+                for (FieldState element : mElements) {
+                    xml.startTag(null, XmlSchemaPersistentMemory.TAG_ARRAY_ELEMENT);
+                    xml.attribute(null, XmlSchemaPersistentMemory.ATTRIBUTE_HASH_CODE, Long.toString((element != null) ? element.getHashCode() : UniqueObjectIdentifier.NULL_IDENTIFIER));
+                    xml.endTag(null, XmlSchemaPersistentMemory.TAG_ARRAY_ELEMENT);
+                }
             }
 
             xml.endTag(null, enclosingTag);
@@ -629,6 +722,8 @@ public class ArrayState extends FieldState {
             String elementType = xml.getAttributeValue(null, XmlSchemaPersistentMemory.ATTRIBUTE_ARRAY_ELEMENT_TYPE);
             deserializationResult.hashCode = Long.valueOf(hashCode);
             deserializationResult.fieldState = new ArrayState(memoryManager, fieldType, deserializationResult.hashCode, elementType);
+            ((ArrayState)deserializationResult.fieldState).resolveContentReference(
+                    xml.getAttributeValue(null, XmlSchemaPersistentMemory.ATTRIBUTE_ARRAY_CONTENT_REFERENCE));
 
             int eventType;
             String subTag = tag;
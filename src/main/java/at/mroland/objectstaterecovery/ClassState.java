@@ -18,7 +18,6 @@ package at.mroland.objectstaterecovery;
 import at.mroland.logging.Logging;
 import at.mroland.objectstaterecovery.helper.UniqueObjectIdentifier;
 import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
 import java.util.HashMap;
 import java.util.Map;
 import org.xmlpull.v1.XmlPullParser;
@@ -38,7 +37,11 @@ public class ClassState {
     private final Map<String, Long> mFieldReferences;
     private boolean mInitializeAfterCreation;  // indicates if class instance has never been refreshed after creation of ClassState (i.e. if no state information has been collected yet)
     private int mRefreshTag;
+    private boolean mRemembered;  // indicates if this ClassState is contained in the remembered set of persistent memory
+    private int mSavepointSerial;  // serial number of the newest savepoint that does not need to record the image of this ClassState
     private int mReachableTag;
+    private int mSavedRefreshTag;  // refresh tag at the time this ClassState was last written to a snapshot
+    private int mDirtyId = -1;  // dense identifier of this ClassState in dirty sets (assigned when it is first flagged as dirty)
 
     /**
      * Create ClassState instance for a given class.
@@ -49,6 +52,7 @@ public class ClassState {
     public ClassState(PersistentMemory memoryManager,
                       Class classObject) {
         mMemoryManager = memoryManager;
+        mSavepointSerial = mMemoryManager.getSavepointSerial();
         mRefreshTag = mMemoryManager.getCurrentRefreshTag();
         mReachableTag = mRefreshTag;
         mInitializeAfterCreation = true;
@@ -58,6 +62,7 @@ public class ClassState {
         } else {
             mClassName = "";
         }
+        mSavedRefreshTag = -1;
         mFields = new HashMap();
         mFieldReferences = new HashMap();
     }
@@ -71,11 +76,13 @@ public class ClassState {
     protected ClassState(PersistentMemory memoryManager,
                          String className) {
         mMemoryManager = memoryManager;
+        mSavepointSerial = mMemoryManager.getSavepointSerial();
         mRefreshTag = 0;
         mReachableTag = 0;
         mInitializeAfterCreation = false;
         mClassObject = null;
-        mClassName = className;
+        mClassName = SharedStatePool.internName(className);
+        mSavedRefreshTag = -1;
         mFields = new HashMap();
         mFieldReferences = new HashMap();
     }
@@ -105,7 +112,7 @@ public class ClassState {
             if (fieldState == null) {
                 Logging.error(LOG_TAG, "Could not resolve de-serialized reference!");
             }
-            mFields.put(fieldReference.getKey(), fieldState);
+            mFields.put(SharedStatePool.internName(fieldReference.getKey()), fieldState);
         }
         mFieldReferences.clear();
     }
@@ -127,7 +134,7 @@ public class ClassState {
     protected Class getClassObject() {
         if (mClassObject == null) {
             try {
-                mClassObject = Class.forName(mClassName);
+                mClassObject = mMemoryManager.loadClass(mClassName);
             } catch (Exception e) {
                 Logging.error(LOG_TAG, "Could not get class by name " + mClassName, e);
             }
@@ -140,38 +147,17 @@ public class ClassState {
      * Restore {@link Class} object static member fields based on stored ClassState.
      */
     /* package */ void restoreClass() {
-        Class classObject = getClassObject();
-
         for (Map.Entry<String, FieldState> entry : mFields.entrySet()) {
             final String fieldQualifiedName = entry.getKey();
             final FieldState fieldState = entry.getValue();
-            final String[] qnParts = fieldQualifiedName.split("#", 2);
-            if (qnParts.length == 2) {
-                final String className = qnParts[0];
-                final String fieldName = qnParts[1];
-
-                Logging.debug(LOG_TAG, "Restoring static field " + fieldName + " from " + className + ":");
 
-                try {
-                    if (className.equals(mClassName)) {
-                        Field field = classObject.getDeclaredField(fieldName);
-
-                        field.setAccessible(true);
-                        fieldState.restoreInstanceToField(field, null);
-                    } else {
-                        // this case can only occur if this ClassState contains fields of other
-                        // classes than this class and should, therefore, normally not happen
-                        Class declaringClass = Class.forName(className);
-                        if (declaringClass != null) {
-                            Field field = declaringClass.getDeclaredField(fieldName);
+            Logging.debug(LOG_TAG, "Restoring static field " + fieldQualifiedName + ":");
 
-                            field.setAccessible(true);
-                            fieldState.restoreInstanceToField(field, null);
-                        }
-                    }
-                } catch (Exception e) {
-                    Logging.error(LOG_TAG, "Failed to restore " + fieldQualifiedName + ": " + e.toString(), e);
-                }
+            try {
+                // fields of other classes than this class should normally not occur
+                fieldState.restoreInstanceToField(mMemoryManager.getField(fieldQualifiedName), null);
+            } catch (Exception e) {
+                Logging.error(LOG_TAG, "Failed to restore " + fieldQualifiedName + ": " + e.toString(), e);
             }
         }
         
@@ -194,6 +180,8 @@ public class ClassState {
         } else if (mRefreshTag != currentRefreshTag) {
             mRefreshTag = currentRefreshTag;  // update refresh tag to prevent multiple (or infinite recusrive) updates within one reversal cycle
             mReachableTag = currentRefreshTag;
+            mMemoryManager.countVisit();
+            remember();
             internalRevertClass();
         }
         return this;
@@ -203,38 +191,17 @@ public class ClassState {
      * Revert class to reflect image stored in ClassState.
      */
     protected void internalRevertClass() {
-        Class classObject = getClassObject();
-
         for (Map.Entry<String, FieldState> entry : mFields.entrySet()) {
             final String fieldQualifiedName = entry.getKey();
             final FieldState fieldState = entry.getValue();
-            final String[] qnParts = fieldQualifiedName.split("#", 2);
-            if (qnParts.length == 2) {
-                final String className = qnParts[0];
-                final String fieldName = qnParts[1];
-
-                Logging.debug(LOG_TAG, "Reverting static field " + fieldName + " from " + className + ":");
-
-                try {
-                    if (className.equals(mClassName)) {
-                        Field field = classObject.getDeclaredField(fieldName);
 
-                        field.setAccessible(true);
-                        fieldState.revertInstanceToField(field, null);
-                    } else {
-                        // this case can only occur if this ClassState contains fields of other
-                        // classes than this class and should, therefore, normally not happen
-                        Class declaringClass = Class.forName(className);
-                        if (declaringClass != null) {
-                            Field field = declaringClass.getDeclaredField(fieldName);
+            Logging.debug(LOG_TAG, "Reverting static field " + fieldQualifiedName + ":");
 
-                            field.setAccessible(true);
-                            fieldState.revertInstanceToField(field, null);
-                        }
-                    }
-                } catch (Exception e) {
-                    Logging.error(LOG_TAG, "Failed to revert " + fieldQualifiedName + ": " + e.toString(), e);
-                }
+            try {
+                // fields of other classes than this class should normally not occur
+                fieldState.revertInstanceToField(mMemoryManager.getField(fieldQualifiedName), null);
+            } catch (Exception e) {
+                Logging.error(LOG_TAG, "Failed to revert " + fieldQualifiedName + ": " + e.toString(), e);
             }
         }
     }
@@ -249,13 +216,115 @@ public class ClassState {
      */
     public final ClassState refreshClass(boolean noDeepRefresh) {
         final int currentRefreshTag = mMemoryManager.getCurrentRefreshTag();
+        if (claimRefresh(currentRefreshTag, noDeepRefresh)) {
+            mMemoryManager.countVisit();
+            remember();
+            mMemoryManager.recordSavepointImage(this);
+            internalRefreshClass(noDeepRefresh);
+        }
+        return this;
+    }
+    
+    /**
+     * Add this ClassState to the remembered set, as refreshing or reverting
+     * it may link young FieldStates. (ClassStates are never collected, so
+     * they always belong to the old generation.)
+     */
+    private void remember() {
+        if (!mRemembered) {
+            mRemembered = true;
+            mMemoryManager.rememberClass(this);
+        }
+    }
+    
+    /**
+     * Mark this ClassState as removed from the remembered set.
+     */
+    /* package */ void clearRemembered() {
+        mRemembered = false;
+    }
+    
+    /**
+     * Get the serial number of the newest savepoint that already holds (or
+     * does not need) the image of this ClassState.
+     * 
+     * @return Savepoint serial number.
+     */
+    /* package */ int getSavepointSerial() {
+        return mSavepointSerial;
+    }
+    
+    /**
+     * Set the serial number of the newest savepoint that already holds the
+     * image of this ClassState.
+     * 
+     * @param savepointSerial Savepoint serial number.
+     */
+    /* package */ void setSavepointSerial(int savepointSerial) {
+        mSavepointSerial = savepointSerial;
+    }
+    
+    /**
+     * Get a copy of the image stored in this ClassState (i.e. the links to
+     * the FieldStates of its static fields) for a savepoint.
+     * 
+     * @return Image.
+     */
+    /* package */ Object getImage() {
+        return new HashMap(mFields);
+    }
+    
+    /**
+     * Replace the image stored in this ClassState with an image previously
+     * obtained from {@link #getImage()}.
+     * 
+     * @param image Image.
+     */
+    /* package */ void setImage(Object image) {
+        mFields.clear();
+        mFields.putAll((Map<String, FieldState>)image);
+    }
+    
+    /**
+     * Ping the FieldStates of an image previously obtained from
+     * {@link #getImage()} to prevent their garbage collection.
+     * 
+     * @param image Image.
+     */
+    /* package */ void pingImage(Object image) {
+        for (FieldState fieldState : ((Map<String, FieldState>)image).values()) {
+            if (fieldState != null) {
+                mMemoryManager.pingReference(fieldState);
+            }
+        }
+    }
+    
+    /**
+     * Claim the refresh of this ClassState for the current refresh cycle.
+     * During a parallel refresh, the refresh tag is tested and updated
+     * atomically so that only one thread refreshes this ClassState.
+     * 
+     * @param currentRefreshTag Current refresh tag.
+     * @param noDeepRefresh Do not recursively refresh the state of existing objects.
+     * @return true if the caller must refresh this ClassState.
+     */
+    private boolean claimRefresh(int currentRefreshTag, boolean noDeepRefresh) {
+        if (mMemoryManager.isConcurrentRefresh()) {
+            synchronized (this) {
+                return internalClaimRefresh(currentRefreshTag, noDeepRefresh);
+            }
+        }
+        return internalClaimRefresh(currentRefreshTag, noDeepRefresh);
+    }
+    
+    private boolean internalClaimRefresh(int currentRefreshTag, boolean noDeepRefresh) {
         if (mInitializeAfterCreation || (mRefreshTag != currentRefreshTag)) {
             mRefreshTag = currentRefreshTag;  // update refresh tag to prevent multiple (or infinite recusrive) updates within one refresh cycle
             if (!noDeepRefresh) mReachableTag = currentRefreshTag;
             mInitializeAfterCreation = false;
-            internalRefreshClass(noDeepRefresh);
+            return true;
         }
-        return this;
+        return false;
     }
     
     /**
@@ -275,38 +344,27 @@ public class ClassState {
 
             //while (classObject != null) {  // don't iterate through class hierarchy, only persist fields of _this_ class
             Logging.debug(LOG_TAG, "Fields from " + classObject.getName() + ":");
-            final Field[] instanceClassFields = classObject.getDeclaredFields();
-            for (Field field : instanceClassFields) {
+            final ReflectionCache.StaticFields staticFields = ReflectionCache.getStaticFields(classObject);
+            final Field[] fields = staticFields.fields;
+            final String[] qualifiedNames = staticFields.qualifiedNames;
+            for (int i = 0; i < fields.length; ++i) {
+                final Field field = fields[i];
                 try {
-                    field.setAccessible(true);
+                    final String fieldQualifiedName = qualifiedNames[i];
+                    Logging.debug(LOG_TAG, "" + fieldQualifiedName + " (" + field.toGenericString() + ")");
 
-                    final int fieldModifiers = field.getModifiers();
-                    final boolean isStatic = Modifier.isStatic(fieldModifiers);
-                    final boolean isFinal = Modifier.isFinal(fieldModifiers);
+                    final Object fieldValue = field.get(null);
+                    Class fieldType = field.getType();
 
-                    if (isStatic) {
-                        Logging.debug(LOG_TAG, "" + classObject.getName() + "::" + field.getName() + " (" + field.toGenericString() + ")");
-
-                        final Object fieldValue = field.get(null);
-                        Class fieldType = field.getType();
-                        final String fieldQualifiedName = classObject.getName() + "#" + field.getName();
-
-                        if (isFinal && PrimitiveValueState.isPrimitiveValueType(fieldType)) {
-                            // skip static constants of primitive types
-                        } else if (isFinal && fieldType.isArray() && PrimitiveValueState.isPrimitiveValueType(fieldType.getComponentType())) {
-                            // skip static constants of primitive array types
-                        } else {
-                            FieldState fieldState = mFields.get(fieldQualifiedName);
-                            if ((fieldState == null) || (!fieldState.isIdentityMatch(fieldValue))) {
-                                if (!fieldType.isPrimitive() && (fieldValue != null)) {
-                                    fieldType = fieldValue.getClass();
-                                }
-                                fieldState = mMemoryManager.storeObject(fieldValue, fieldType, noDeepRefresh);
-                                mFields.put(fieldQualifiedName, fieldState);
-                            } else if (!noDeepRefresh) {
-                                fieldState.refreshInstance(false);
-                            }
+                    FieldState fieldState = mFields.get(fieldQualifiedName);
+                    if ((fieldState == null) || (!fieldState.isIdentityMatch(fieldValue))) {
+                        if (!fieldType.isPrimitive() && (fieldValue != null)) {
+                            fieldType = fieldValue.getClass();
                         }
+                        fieldState = mMemoryManager.storeObject(fieldValue, fieldType, noDeepRefresh);
+                        mFields.put(fieldQualifiedName, fieldState);
+                    } else if (!noDeepRefresh) {
+                        mMemoryManager.refreshReference(fieldState);
                     }
                 } catch (Exception e) {
                     Logging.error(LOG_TAG, "Exception while accessing field: " + e.toString(), e);
@@ -324,6 +382,7 @@ public class ClassState {
         final int currentRefreshTag = mMemoryManager.getCurrentRefreshTag();
         if (!mInitializeAfterCreation && (mReachableTag != currentRefreshTag)) {
             mReachableTag = currentRefreshTag;
+            mMemoryManager.countVisit();
             internalPingClass();
         } else if (mInitializeAfterCreation) {
             Logging.error(LOG_TAG, "ClassState has not been initialized yet. Can't ping without state information!");
@@ -336,11 +395,47 @@ public class ClassState {
     protected void internalPingClass() {
         for (FieldState fieldState : mFields.values()) {
             if (fieldState != null) {
-                fieldState.pingInstance();
+                mMemoryManager.pingReference(fieldState);
             }
         }
     }
     
+    /**
+     * Check if the image stored in this ClassState has been refreshed or
+     * reverted since it was last written to a snapshot.
+     * 
+     * @return true if ClassState needs to be included in an incremental snapshot.
+     */
+    /* package */ final boolean isModifiedSinceSave() {
+        return mInitializeAfterCreation || (mRefreshTag != mSavedRefreshTag);
+    }
+    
+    /**
+     * Record that the image stored in this ClassState has been written to a
+     * snapshot.
+     */
+    /* package */ final void markSaved() {
+        mSavedRefreshTag = mRefreshTag;
+    }
+    
+    /**
+     * Get the identifier of this ClassState in dirty sets.
+     * 
+     * @return Dirty set identifier, or -1 if none has been assigned yet.
+     */
+    /* package */ final int getDirtyId() {
+        return mDirtyId;
+    }
+    
+    /**
+     * Assign the identifier of this ClassState in dirty sets.
+     * 
+     * @param dirtyId Dirty set identifier.
+     */
+    /* package */ final void setDirtyId(int dirtyId) {
+        mDirtyId = dirtyId;
+    }
+    
     /**
      * Check if ClassState has been marked as reachable.
      * 
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.mroland.objectstaterecovery;
+
+import java.util.BitSet;
+
+/**
+ * Set of FieldStates and ClassStates that have been flagged as dirty.
+ *
+ * Membership is tracked in a bit set over the dense dirty set identifiers
+ * of the states, so each state is contained at most once. States are kept
+ * in the order in which they have been flagged. Objects whose state has not
+ * been recorded when they are flagged are kept as objects (and looked up
+ * upon the next memory barrier). Dirty sets are reused
+ * after they have been cleared, so adding states does not allocate memory
+ * once the set has grown to its working size.
+ *
+ * @author mroland
+ */
+final class DirtySet {
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final BitSet mMembers = new BitSet();
+    private FieldState[] mReferences = new FieldState[INITIAL_CAPACITY];
+    private int mReferenceCount = 0;
+    private ClassState[] mClasses = new ClassState[INITIAL_CAPACITY];
+    private int mClassCount = 0;
+    private Object[] mUnrecordedObjects = new Object[INITIAL_CAPACITY];
+    private int mUnrecordedObjectCount = 0;
+
+    /**
+     * Add a FieldState to this set (unless it is already contained).
+     *
+     * @param fieldState FieldState with assigned dirty set identifier.
+     */
+    void addReference(FieldState fieldState) {
+        final int dirtyId = fieldState.getDirtyId();
+        if (mMembers.get(dirtyId)) {
+            return;
+        }
+        mMembers.set(dirtyId);
+
+        if (mReferenceCount >= mReferences.length) {
+            FieldState[] references = new FieldState[mReferences.length * 2];
+            System.arraycopy(mReferences, 0, references, 0, mReferenceCount);
+            mReferences = references;
+        }
+        mReferences[mReferenceCount++] = fieldState;
+    }
+
+    /**
+     * Add a ClassState to this set (unless it is already contained).
+     *
+     * @param classState ClassState with assigned dirty set identifier.
+     */
+    void addClass(ClassState classState) {
+        final int dirtyId = classState.getDirtyId();
+        if (mMembers.get(dirtyId)) {
+            return;
+        }
+        mMembers.set(dirtyId);
+
+        if (mClassCount >= mClasses.length) {
+            ClassState[] classes = new ClassState[mClasses.length * 2];
+            System.arraycopy(mClasses, 0, classes, 0, mClassCount);
+            mClasses = classes;
+        }
+        mClasses[mClassCount++] = classState;
+    }
+
+    /**
+     * Add an object whose state has not been recorded yet to this set.
+     *
+     * @param object Object instance.
+     */
+    void addUnrecordedObject(Object object) {
+        if (mUnrecordedObjectCount >= mUnrecordedObjects.length) {
+            Object[] objects = new Object[mUnrecordedObjects.length * 2];
+            System.arraycopy(mUnrecordedObjects, 0, objects, 0, mUnrecordedObjectCount);
+            mUnrecordedObjects = objects;
+        }
+        mUnrecordedObjects[mUnrecordedObjectCount++] = object;
+    }
+
+    /**
+     * Get the number of FieldStates in this set.
+     *
+     * @return Number of FieldStates.
+     */
+    int getReferenceCount() {
+        return mReferenceCount;
+    }
+
+    /**
+     * Get a FieldState of this set.
+     *
+     * @param index Index (in the order in which FieldStates have been added).
+     * @return FieldState.
+     */
+    FieldState getReference(int index) {
+        return mReferences[index];
+    }
+
+    /**
+     * Get the number of ClassStates in this set.
+     *
+     * @return Number of ClassStates.
+     */
+    int getClassCount() {
+        return mClassCount;
+    }
+
+    /**
+     * Get a ClassState of this set.
+     *
+     * @param index Index (in the order in which ClassStates have been added).
+     * @return ClassState.
+     */
+    ClassState getClass(int index) {
+        return mClasses[index];
+    }
+
+    /**
+     * Get the number of unrecorded objects in this set.
+     *
+     * @return Number of unrecorded objects.
+     */
+    int getUnrecordedObjectCount() {
+        return mUnrecordedObjectCount;
+    }
+
+    /**
+     * Get an unrecorded object of this set.
+     *
+     * @param index Index (in the order in which objects have been added).
+     * @return Object instance.
+     */
+    Object getUnrecordedObject(int index) {
+        return mUnrecordedObjects[index];
+    }
+
+    /**
+     * Remove all states from this set.
+     */
+    void clear() {
+        for (int i = 0; i < mReferenceCount; ++i) {
+            mMembers.clear(mReferences[i].getDirtyId());
+            mReferences[i] = null;
+        }
+        mReferenceCount = 0;
+        for (int i = 0; i < mClassCount; ++i) {
+            mMembers.clear(mClasses[i].getDirtyId());
+            mClasses[i] = null;
+        }
+        mClassCount = 0;
+        for (int i = 0; i < mUnrecordedObjectCount; ++i) {
+            mUnrecordedObjects[i] = null;
+        }
+        mUnrecordedObjectCount = 0;
+    }
+}
@@ -21,6 +21,7 @@ import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlSerializer;
 
@@ -36,10 +37,16 @@ public abstract class FieldState {
     private Class mReferencedObjectClass;
     private final String mFieldType;
     private Long mIdentityHashCode;
-    private boolean mRecreateAfterDeserialization;  // indicates if object instance still needs to be recreated as part of the de-serialization procedure
+    private volatile boolean mRecreateAfterDeserialization;  // indicates if object instance still needs to be recreated as part of the de-serialization procedure
     private boolean mInitializeAfterCreation;  // indicates if object instance has never been refreshed after creation of FieldState (i.e. if no state information has been collected yet)
     private int mRefreshTag;
     private int mReachableTag;
+    private int mSavedRefreshTag;  // refresh tag at the time this FieldState was last written to a snapshot
+    private int mDirtyId = -1;  // dense identifier of this FieldState in dirty sets (assigned when it is first flagged as dirty)
+    private final int mCreationEpoch;  // collection epoch in which this FieldState was created
+    private boolean mYoung;  // indicates if this FieldState belongs to the young generation (i.e. has not been promoted by a garbage collection yet)
+    private boolean mRemembered;  // indicates if this FieldState is contained in the remembered set of persistent memory
+    private int mSavepointSerial;  // serial number of the newest savepoint that does not need to record the image of this FieldState
     private List<ClassState> mBoundClasses;  // lists classes that must be updated together with this object
     private List<String> mBoundClassNames;  // lists names of classes that must be updated together with this object
 
@@ -52,6 +59,9 @@ public abstract class FieldState {
     protected FieldState(PersistentMemory memoryManager,
                          Object referencedObject) {
         mMemoryManager = memoryManager;
+        mCreationEpoch = mMemoryManager.getCollectionEpoch();
+        mYoung = true;
+        mSavepointSerial = mMemoryManager.getSavepointSerial();
         mRefreshTag = mMemoryManager.getCurrentRefreshTag();
         mReachableTag = mRefreshTag;
         mRecreateAfterDeserialization = false;
@@ -67,7 +77,8 @@ public abstract class FieldState {
         } else {
             mFieldType = "";
         }
-        mIdentityHashCode = getObjectIdentityHashCode(referencedObject);
+        mIdentityHashCode = mMemoryManager.getObjectIdentityHashCode(referencedObject);
+        mSavedRefreshTag = -1;
         mBoundClasses = new ArrayList();
         mBoundClassNames = new ArrayList();
     }
@@ -83,14 +94,18 @@ public abstract class FieldState {
     protected FieldState(PersistentMemory memoryManager,
                          String recoveredObjectClass, Long recoveredIdentityHashCode) {
         mMemoryManager = memoryManager;
+        mCreationEpoch = mMemoryManager.getCollectionEpoch();
+        mYoung = false;  // de-serialized FieldStates always belong to the old generation
+        mSavepointSerial = mMemoryManager.getSavepointSerial();
         mRefreshTag = 0;
         mReachableTag = 0;
         mRecreateAfterDeserialization = true;
         mInitializeAfterCreation = false;
         mReferencedObject = null;
         mReferencedObjectClass = null;
-        mFieldType = recoveredObjectClass;
+        mFieldType = SharedStatePool.internName(recoveredObjectClass);
         mIdentityHashCode = recoveredIdentityHashCode;
+        mSavedRefreshTag = -1;
         mBoundClasses = new ArrayList();
         mBoundClassNames = new ArrayList();
     }
@@ -98,15 +113,16 @@ public abstract class FieldState {
     /**
      * Get unique hash code for given object.
      * 
+     * @param objectIdentifiers Object identifier allocator of the PersistentMemory instance.
      * @param o An object.
      * @return Unique identity hash code for <code>o</code>.
      */
-    public static Long getObjectIdentityHashCode(Object o) {
+    public static Long getObjectIdentityHashCode(UniqueObjectIdentifier objectIdentifiers, Object o) {
         if ((o != null) && PrimitiveValueState.isPrimitiveValueType(o.getClass())) {
-            return Long.valueOf(PrimitiveValueState.getPrimitiveValueIdentityHashCode(o));
+            return Long.valueOf(PrimitiveValueState.getPrimitiveValueIdentityHashCode(objectIdentifiers, o));
         }
         
-        return Long.valueOf(UniqueObjectIdentifier.get(o));
+        return Long.valueOf(objectIdentifiers.get(o));
     }
 
     /**
@@ -125,7 +141,10 @@ public abstract class FieldState {
      * @return Returns true on identity match, else false.
      */
     public boolean isIdentityMatch(Object o) {
-        Long newHashCode = FieldState.getObjectIdentityHashCode(o);
+        if (!mRecreateAfterDeserialization && (o == mReferencedObject)) {
+            return true;
+        }
+        Long newHashCode = mMemoryManager.getObjectIdentityHashCode(o);
         return newHashCode.longValue() == getHashCode();
     }
 
@@ -141,7 +160,7 @@ public abstract class FieldState {
 
         if (mReferencedObjectClass == null) {
             try {
-                mReferencedObjectClass = Class.forName(mFieldType);
+                mReferencedObjectClass = mMemoryManager.loadClass(mFieldType);
             } catch (Exception e) {
                 Logging.error(LOG_TAG, "Could not get class by name " + mFieldType, e);
             }
@@ -183,7 +202,18 @@ public abstract class FieldState {
      */
     public Object getInstance() {
         if (mRecreateAfterDeserialization) {
-            return restoreInstance();
+            final Lock lock = mMemoryManager.getConcurrentRefreshLock();
+            if (lock == null) {
+                return restoreInstance();
+            }
+            
+            lock.lock();
+            try {
+                // another refresh thread may have recreated the instance in the meantime
+                return mRecreateAfterDeserialization ? restoreInstance() : mReferencedObject;
+            } finally {
+                lock.unlock();
+            }
         } else {
             return mReferencedObject;
         }
@@ -236,7 +266,7 @@ public abstract class FieldState {
     protected final void setInstanceRestored(Object newInstance) {
         mReferencedObject = newInstance;
         mReferencedObjectClass = getObjectClass();
-        mIdentityHashCode = getObjectIdentityHashCode(newInstance);
+        mIdentityHashCode = mMemoryManager.getObjectIdentityHashCode(newInstance);
         mRecreateAfterDeserialization = false;
         mInitializeAfterCreation = false;
         mRefreshTag = mMemoryManager.getCurrentRefreshTag();
@@ -270,6 +300,8 @@ public abstract class FieldState {
         } else if (mRefreshTag != currentRefreshTag) {
             mRefreshTag = currentRefreshTag;  // update refresh tag to prevent multiple (or infinite recursive) updates within one refresh cycle
             mReachableTag = currentRefreshTag;
+            mMemoryManager.countVisit();
+            remember();
             internalRevertInstance();
             
             for (ClassState classState : mBoundClasses) {
@@ -293,9 +325,138 @@ public abstract class FieldState {
      */
     /* package */ void revertInstanceToField(Field field, Object parentInstance) throws Exception {
         restoreInstanceToField(field, parentInstance);
-        revertInstance();
+        mMemoryManager.revertReference(this);
     }
 
+    /**
+     * Check if this FieldState belongs to the young generation, i.e. if it
+     * has not survived enough garbage collections to be promoted yet.
+     * 
+     * @return true if FieldState is young.
+     */
+    /* package */ boolean isYoung() {
+        return mYoung;
+    }
+    
+    /**
+     * Get the collection epoch in which this FieldState was created.
+     * 
+     * @return Collection epoch.
+     */
+    /* package */ int getCreationEpoch() {
+        return mCreationEpoch;
+    }
+    
+    /**
+     * Promote this FieldState to the old generation.
+     */
+    /* package */ void promote() {
+        mYoung = false;
+    }
+    
+    /**
+     * Add this FieldState to the remembered set if it belongs to the old
+     * generation, as refreshing or reverting it may link young FieldStates.
+     */
+    /* package */ void remember() {
+        if (!mYoung && !mRemembered) {
+            mRemembered = true;
+            mMemoryManager.rememberReference(this);
+        }
+    }
+    
+    /**
+     * Mark this FieldState as removed from the remembered set.
+     */
+    /* package */ void clearRemembered() {
+        mRemembered = false;
+    }
+    
+    /**
+     * Get the serial number of the newest savepoint that already holds (or
+     * does not need) the image of this FieldState.
+     * 
+     * @return Savepoint serial number.
+     */
+    /* package */ int getSavepointSerial() {
+        return mSavepointSerial;
+    }
+    
+    /**
+     * Set the serial number of the newest savepoint that already holds the
+     * image of this FieldState.
+     * 
+     * @param savepointSerial Savepoint serial number.
+     */
+    /* package */ void setSavepointSerial(int savepointSerial) {
+        mSavepointSerial = savepointSerial;
+    }
+    
+    /**
+     * Get a copy of the image stored in this FieldState (i.e. the links to
+     * its sub-FieldStates) for a savepoint.
+     * 
+     * @return Image, or null if the image of this FieldState never changes.
+     */
+    /* package */ Object getImage() {
+        return null;
+    }
+    
+    /**
+     * Replace the image stored in this FieldState with an image previously
+     * obtained from {@link #getImage()}.
+     * 
+     * @param image Image.
+     */
+    /* package */ void setImage(Object image) {
+    }
+    
+    /**
+     * Ping the sub-FieldStates of an image previously obtained from
+     * {@link #getImage()} to prevent their garbage collection.
+     * 
+     * @param image Image.
+     */
+    /* package */ void pingImage(Object image) {
+    }
+    
+    /**
+     * Check if this FieldState has not been refreshed in the given refresh
+     * cycle yet.
+     * 
+     * @param currentRefreshTag Current refresh tag.
+     * @return true if a refresh is pending.
+     */
+    /* package */ boolean needsRefresh(int currentRefreshTag) {
+        return mInitializeAfterCreation || (mRefreshTag != currentRefreshTag);
+    }
+    
+    /**
+     * Claim the refresh of this FieldState for the current refresh cycle.
+     * During a parallel refresh, the refresh tag is tested and updated
+     * atomically so that only one thread refreshes this FieldState.
+     * 
+     * @param currentRefreshTag Current refresh tag.
+     * @return true if the caller must refresh this FieldState.
+     */
+    private boolean claimRefresh(int currentRefreshTag) {
+        if (mMemoryManager.isConcurrentRefresh()) {
+            synchronized (this) {
+                return internalClaimRefresh(currentRefreshTag);
+            }
+        }
+        return internalClaimRefresh(currentRefreshTag);
+    }
+    
+    private boolean internalClaimRefresh(int currentRefreshTag) {
+        if (mInitializeAfterCreation || (mRefreshTag != currentRefreshTag)) {
+            mRefreshTag = currentRefreshTag;  // update refresh tag to prevent multiple (or infinite recursive) updates within one refresh cycle
+            mInitializeAfterCreation = false;
+            return true;
+        }
+        return false;
+    }
+    
     /**
      * Refresh image stored in FieldState to reflect current objects.
      * Skips refresh if refresh tag indicates that object state contains
@@ -306,9 +467,10 @@ public abstract class FieldState {
      */
     public final FieldState refreshInstance(boolean noDeepRefresh) {
         final int currentRefreshTag = mMemoryManager.getCurrentRefreshTag();
-        if (mInitializeAfterCreation || (mRefreshTag != currentRefreshTag)) {
-            mRefreshTag = currentRefreshTag;  // update refresh tag to prevent multiple (or infinite recursive) updates within one refresh cycle
-            mInitializeAfterCreation = false;
+        if (claimRefresh(currentRefreshTag)) {
+            mMemoryManager.countVisit();
+            remember();
+            mMemoryManager.recordSavepointImage(this);
             internalRefreshInstance(noDeepRefresh);
             
             if (!noDeepRefresh) {
@@ -336,6 +498,7 @@ public abstract class FieldState {
         if (!mInitializeAfterCreation && (mReachableTag != currentRefreshTag)) {
             Logging.debug(LOG_TAG, "Ping " + currentRefreshTag + ": #" + mIdentityHashCode);
             mReachableTag = currentRefreshTag;
+            mMemoryManager.countVisit();
             internalPingInstance();
             
             for (ClassState classState : mBoundClasses) {
@@ -370,6 +533,52 @@ public abstract class FieldState {
         return !mInitializeAfterCreation && (mReachableTag == currentRefreshTag);
     }
     
+    /**
+     * Check if FieldState has been marked as reachable in the current refresh
+     * cycle (without requiring the object instance to be recreated).
+     * 
+     * @return true if FieldState is marked as reachable.
+     */
+    /* package */ final boolean isMarkedReachable() {
+        return mReachableTag == mMemoryManager.getCurrentRefreshTag();
+    }
+    
+    /**
+     * Check if the image stored in this FieldState has been refreshed or
+     * reverted since it was last written to a snapshot.
+     * 
+     * @return true if FieldState needs to be included in an incremental snapshot.
+     */
+    /* package */ final boolean isModifiedSinceSave() {
+        return mInitializeAfterCreation || (mRefreshTag != mSavedRefreshTag);
+    }
+    
+    /**
+     * Record that the image stored in this FieldState has been written to a
+     * snapshot.
+     */
+    /* package */ final void markSaved() {
+        mSavedRefreshTag = mRefreshTag;
+    }
+    
+    /**
+     * Get the identifier of this FieldState in dirty sets.
+     * 
+     * @return Dirty set identifier, or -1 if none has been assigned yet.
+     */
+    /* package */ final int getDirtyId() {
+        return mDirtyId;
+    }
+    
+    /**
+     * Assign the identifier of this FieldState in dirty sets.
+     * 
+     * @param dirtyId Dirty set identifier.
+     */
+    /* package */ final void setDirtyId(int dirtyId) {
+        mDirtyId = dirtyId;
+    }
+    
     /**
      * Bind a class to this FieldState. If this FieldState is refreshed/
      * reverted, bound classes will be refreshed/reverted too.
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.mroland.objectstaterecovery;
+
+/**
+ * Precomputed handle to a named instance of persistent memory.
+ *
+ * The handle keeps the instance name and caches the FieldState of the named
+ * instance until the named instances of persistent memory change, so that
+ * frequently used named instances (e.g. applet instances) can be accessed
+ * without building and hashing their names each time.
+ *
+ * @author mroland
+ */
+public final class NamedInstanceHandle {
+    final PersistentMemory mMemoryManager;
+    final String mInstanceName;
+    FieldState mFieldState;
+    int mVersion;
+
+    NamedInstanceHandle(PersistentMemory memoryManager, String instanceName) {
+        mMemoryManager = memoryManager;
+        mInstanceName = instanceName;
+        mFieldState = null;
+        mVersion = -1;
+    }
+
+    /**
+     * Get the instance name.
+     *
+     * @return Instance name.
+     */
+    public String getInstanceName() {
+        return mInstanceName;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.mroland.objectstaterecovery;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a member field that is excluded from object state recovery.
+ * 
+ * Such fields hold caches (e.g. JCA provider objects or expanded key
+ * schedules) that are re-created on demand. They are neither captured nor
+ * restored, so they are null (or zero) after an object has been restored.
+ * Note that the Java <code>transient</code> modifier has no effect on object
+ * state recovery.
+ *
+ * @author mroland
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface NotPersistent {
+}
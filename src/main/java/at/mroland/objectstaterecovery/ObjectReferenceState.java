@@ -18,10 +18,8 @@ package at.mroland.objectstaterecovery;
 import at.mroland.logging.Logging;
 import at.mroland.objectstaterecovery.helper.UniqueObjectIdentifier;
 import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
 import java.util.HashMap;
 import java.util.Map;
-import org.objenesis.ObjenesisHelper;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlSerializer;
 
@@ -65,9 +63,22 @@ public class ObjectReferenceState extends FieldState {
             if (fieldState == null) {
                 Logging.error(LOG_TAG, "Could not resolve de-serialized reference #" + fieldReference.getValue() + "!");
             }
-            mFields.put(fieldReference.getKey(), fieldState);
+            mFields.put(SharedStatePool.internName(fieldReference.getKey()), fieldState);
         }
         mFieldReferences.clear();
+
+        // resolve reflective handles ahead of (lazy) restoration
+        final Class objectClass = getObjectClass();
+        if (objectClass != null) {
+            ReflectionCache.getInstanceFields(objectClass);
+            for (String fieldQualifiedName : mFields.keySet()) {
+                try {
+                    mMemoryManager.getField(fieldQualifiedName);
+                } catch (Exception e) {
+                    // reported upon restoration
+                }
+            }
+        }
     }
     
 
@@ -84,28 +95,19 @@ public class ObjectReferenceState extends FieldState {
             return null;
         }
 
-        Object instance = ObjenesisHelper.newInstance(objectClass);
+        Object instance = ReflectionCache.newInstance(objectClass);
         setInstanceRestored(instance);
 
         for (Map.Entry<String, FieldState> entry : mFields.entrySet()) {
             final String fieldQualifiedName = entry.getKey();
             final FieldState fieldState = entry.getValue();
-            final String[] qnParts = fieldQualifiedName.split("#", 2);
-            if (qnParts.length == 2) {
-                final String className = qnParts[0];
-                final String fieldName = qnParts[1];
-
-                Logging.debug(LOG_TAG, "Restoring field " + fieldName + " from " + className + ":");
 
-                try {
-                    Class declaringClass = Class.forName(className);
-                    Field field = declaringClass.getDeclaredField(fieldName);
+            Logging.debug(LOG_TAG, "Restoring field " + fieldQualifiedName + ":");
 
-                    field.setAccessible(true);
-                    fieldState.restoreInstanceToField(field, instance);
-                } catch (Exception e) {
-                    Logging.error(LOG_TAG, "Failed to restore " + fieldQualifiedName + ": " + e.toString(), e);
-                }
+            try {
+                fieldState.restoreInstanceToField(mMemoryManager.getField(fieldQualifiedName), instance);
+            } catch (Exception e) {
+                Logging.error(LOG_TAG, "Failed to restore " + fieldQualifiedName + ": " + e.toString(), e);
             }
         }
 
@@ -121,22 +123,13 @@ public class ObjectReferenceState extends FieldState {
             for (Map.Entry<String, FieldState> entry : mFields.entrySet()) {
                 final String fieldQualifiedName = entry.getKey();
                 final FieldState fieldState = entry.getValue();
-                final String[] qnParts = fieldQualifiedName.split("#", 2);
-                if (qnParts.length == 2) {
-                    final String className = qnParts[0];
-                    final String fieldName = qnParts[1];
-
-                    Logging.debug(LOG_TAG, "Revert field " + fieldName + " from " + className + ":");
 
-                    try {
-                        Class declaringClass = Class.forName(className);
-                        Field field = declaringClass.getDeclaredField(fieldName);
+                Logging.debug(LOG_TAG, "Revert field " + fieldQualifiedName + ":");
 
-                        field.setAccessible(true);
-                        fieldState.revertInstanceToField(field, instance);
-                    } catch (Exception e) {
-                        Logging.error(LOG_TAG, "Failed to revert " + fieldQualifiedName + ": " + e.toString(), e);
-                    }
+                try {
+                    fieldState.revertInstanceToField(mMemoryManager.getField(fieldQualifiedName), instance);
+                } catch (Exception e) {
+                    Logging.error(LOG_TAG, "Failed to revert " + fieldQualifiedName + ": " + e.toString(), e);
                 }
             }
         }
@@ -151,45 +144,53 @@ public class ObjectReferenceState extends FieldState {
         Object object = getInstance();
         
         if (object != null) {
-            Class objectClass = getObjectClass();
-
             Logging.debug(LOG_TAG, "" + getHashCode() + ": " + getFieldType());
 
-            while (objectClass != null) {
-                Logging.debug(LOG_TAG, "Fields from " + objectClass.getName() + ":");
-                final Field[] instanceClassFields = objectClass.getDeclaredFields();
-                for (Field field : instanceClassFields) {
-                    try {
-                        field.setAccessible(true);
-
-                        final int fieldModifiers = field.getModifiers();
-                        final boolean isStatic = Modifier.isStatic(fieldModifiers);
-
-                        if (!isStatic) {
-                            Logging.debug(LOG_TAG, "" + objectClass.getName() + "::" + field.getName() + " (" + field.toGenericString() + ")");
+            final ReflectionCache.InstanceFields instanceFields = ReflectionCache.getInstanceFields(getObjectClass());
+            final Field[] fields = instanceFields.fields;
+            final String[] qualifiedNames = instanceFields.qualifiedNames;
+            for (int i = 0; i < fields.length; ++i) {
+                final Field field = fields[i];
+                try {
+                    final String fieldQualifiedName = qualifiedNames[i];
+                    Logging.debug(LOG_TAG, "" + fieldQualifiedName + " (" + field.toGenericString() + ")");
 
-                            final Object fieldValue = field.get(object);
-                            Class fieldType = field.getType();
-                            final String fieldQualifiedName = objectClass.getName() + "#" + field.getName();
-                            //final String fieldPath = path + "." + field.getName();
+                    final Object fieldValue = field.get(object);
+                    Class fieldType = field.getType();
 
-                            FieldState fieldState = mFields.get(fieldQualifiedName);
-                            if ((fieldState == null) || (!fieldState.isIdentityMatch(fieldValue))) {
-                                if (!fieldType.isPrimitive() && (fieldValue != null)) {
-                                    fieldType = fieldValue.getClass();
-                                }
-                                fieldState = mMemoryManager.storeObject(fieldValue, fieldType, noDeepRefresh);
-                                mFields.put(fieldQualifiedName, fieldState);
-                            } else if (!noDeepRefresh) {
-                                fieldState.refreshInstance(false);
-                            }
+                    FieldState fieldState = mFields.get(fieldQualifiedName);
+                    if ((fieldState == null) || (!fieldState.isIdentityMatch(fieldValue))) {
+                        if (!fieldType.isPrimitive() && (fieldValue != null)) {
+                            fieldType = fieldValue.getClass();
                         }
-                    } catch (Exception e) {
-                        Logging.error(LOG_TAG, "Exception while accessing field: " + e.toString(), e);
+                        fieldState = mMemoryManager.storeObject(fieldValue, fieldType, noDeepRefresh);
+                        mFields.put(fieldQualifiedName, fieldState);
+                    } else if (!noDeepRefresh) {
+                        mMemoryManager.refreshReference(fieldState);
                     }
+                } catch (Exception e) {
+                    Logging.error(LOG_TAG, "Exception while accessing field: " + e.toString(), e);
                 }
-
-                objectClass = objectClass.getSuperclass();
+            }
+        }
+    }
+    
+    @Override
+    /* package */ Object getImage() {
+        return new HashMap(mFields);
+    }
+    
+    @Override
+    /* package */ void setImage(Object image) {
+        mFields.clear();
+        mFields.putAll((Map<String, FieldState>)image);
+    }
+    
+    @Override
+    /* package */ void pingImage(Object image) {
+        for (FieldState fieldState : ((Map<String, FieldState>)image).values()) {
+            if (fieldState != null) {
+                mMemoryManager.pingReference(fieldState);
             }
         }
     }
@@ -200,7 +201,7 @@ public class ObjectReferenceState extends FieldState {
     protected void internalPingInstance() {
         for (FieldState fieldState : mFields.values()) {
             if (fieldState != null) {
-                fieldState.pingInstance();
+                mMemoryManager.pingReference(fieldState);
             }
         }
     }
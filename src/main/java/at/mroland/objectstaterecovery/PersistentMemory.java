@@ -16,14 +16,30 @@
 package at.mroland.objectstaterecovery;
 
 import at.mroland.logging.Logging;
+import at.mroland.objectstaterecovery.helper.ObjectMap;
 import at.mroland.objectstaterecovery.helper.UniqueObjectIdentifier;
 import com.licel.jcardsim.base.SimulatorSystem;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import javacard.framework.AID;
 import javacard.framework.__AIDWrapper;
 import org.xmlpull.v1.XmlPullParser;
@@ -34,18 +50,220 @@ import org.xmlpull.v1.XmlSerializer;
  */
 public class PersistentMemory {
     private static final String LOG_TAG = "PersistentMemory";
+    private static final int PARALLEL_RELINK_THRESHOLD = 1024;  // minimum number of de-serialized references to relink in parallel
+    private static final int PARALLEL_REFRESH_THRESHOLD = 1024;  // minimum number of stored references to refresh dirty objects/classes in parallel
+    private static final int TENURING_THRESHOLD = 2;  // number of minor collections a FieldState must survive to be promoted to the old generation
   
     private Map<Long, FieldState> mReferenceMap = new HashMap();
     private Map<Long, FieldState> mDeserializedReferenceMap = new HashMap();
-    private Map<String, ClassState> mClassMap = new HashMap();
+    private ObjectMap<Class, ClassState> mClassMap = new ObjectMap();
+    private Map<String, ClassState> mDeserializedClassMap = new HashMap();  // ClassStates by name, only used during de-serialization
+    private List<ClassState> mUnresolvedClasses = new ArrayList();  // ClassStates of de-serialized classes that could not be resolved
     private Map<String, FieldState> mNamedInstanceMap = new HashMap();
-    private List<String> mProhibitedClasses = new ArrayList();
+    private final UniqueObjectIdentifier mObjectIdentifiers = new UniqueObjectIdentifier();
+    private Map<ArrayState.ContentKey, Long> mSerializedArrayContents = null;  // contents of primitive arrays written to the current snapshot
+    private Set<Class> mProhibitedClasses = new HashSet();
     private List<Long> mProhibitedReferences = new ArrayList();
-    private List<String> mDirtyClasses = new ArrayList();
-    private List<Long> mDirtyReferences = new ArrayList();
-    private Stack<List<String>> mPreviousDirtyClasses = new Stack();
-    private Stack<List<Long>> mPreviousDirtyReferences = new Stack();
+    private List<Object> mProhibitedObjects = new ArrayList();  // objects of mProhibitedReferences (identifiers are re-assigned upon reset)
+    private List<DirtySet> mDirtySets = new ArrayList();  // stack of dirty sets (entries above mDirtySetDepth are kept for reuse)
+    private int mDirtySetDepth = 0;
+    private DirtySet mDirtySet;  // dirty set at mDirtySetDepth
+    private int mNextDirtyId = 0;
+    private int mNamedInstanceVersion = 0;  // incremented whenever mNamedInstanceMap changes
     private int mCurrentRefreshTag = 0;
+    private int mSaveGeneration = 0;  // generation of the last snapshot written or loaded
+    private boolean mDeltaBaseValid = false;  // indicates if the saved state of all FieldStates/ClassStates matches the last snapshot written
+    private final boolean mWeakReferenceTracking;
+    private final ClassLoader mClassLoader;  // resolves class names of de-serialized states
+    private final ConcurrentHashMap<String, Class> mLoadedClasses = new ConcurrentHashMap<String, Class>();  // classes resolved through mClassLoader
+    private Map<Long, WeakStateReference> mWeakReferenceMap = new HashMap();  // replaces mReferenceMap in weak reference tracking mode
+    private final ReferenceQueue<FieldState> mCollectedReferences = new ReferenceQueue<FieldState>();
+    private List<FieldState> mPinnedReferences = new ArrayList();  // FieldStates stored since the last GC (not necessarily linked yet)
+    private final int mRefreshThreads;
+    private int mRelinkThreads = Runtime.getRuntime().availableProcessors();  // maximum number of threads used to relink de-serialized references
+    private ExecutorService mRefreshExecutor = null;  // created upon the first parallel refresh
+    private final ReentrantLock mConcurrentRefreshLock = new ReentrantLock();  // guards shared maps while refreshing in parallel
+    private RefreshQueue mConcurrentRefreshQueue = null;  // only set while dirty objects/classes are refreshed in parallel
+    private final TraversalStack mTraversalStack = new TraversalStack();
+    private final TraversalStatistics mTraversalStatistics = new TraversalStatistics();
+    private int mVisits = 0;  // FieldStates/ClassStates visited in the current traversal phase
+    private int mMajorCollectionInterval = 1;  // number of garbage collections per major collection (1 = major collections only)
+    private int mMinorCollections = 0;  // minor collections since the last major collection
+    private int mCollectionEpoch = 0;  // incremented upon each garbage collection (used to determine the age of young FieldStates)
+    private List<FieldState> mYoungReferences = new ArrayList();
+    private List<FieldState> mRememberedReferences = new ArrayList();  // old FieldStates that may link young FieldStates
+    private List<ClassState> mRememberedClasses = new ArrayList();  // ClassStates that may link young FieldStates
+    private boolean mMinorCollection = false;  // only set while the young generation is marked
+    private boolean mYoungLinkSeen = false;  // set when a young FieldState is reached while marking the young generation
+    private int mMinorMarkTag = -1;  // refresh tag used by the last minor collection for marking
+    private List<Savepoint> mSavepoints = new ArrayList();  // valid savepoints (oldest first)
+    private int mSavepointSerial = 0;  // serial number of the newest savepoint
+    private boolean mShallowRevert = false;  // only set while rolling back to a savepoint
+    private final AtomicInteger mConcurrentVisits = new AtomicInteger();  // FieldStates/ClassStates visited on refresh threads
+
+    /**
+     * Weak reference to a FieldState that is tracked in weak reference
+     * tracking mode. The reference is enqueued once the FieldState is no
+     * longer reachable from any class, named instance, transient segment or
+     * other reachable FieldState.
+     */
+    private static final class WeakStateReference extends WeakReference<FieldState> {
+        private final Long mHashCode;
+        private final Object mInstance;  // needed to release the identifier of the object instance
+        private final String mFieldType;
+
+        WeakStateReference(Long hashCode, FieldState fieldState, ReferenceQueue<FieldState> queue) {
+            super(fieldState, queue);
+            mHashCode = hashCode;
+            mInstance = fieldState.getInstance();
+            mFieldType = fieldState.getFieldType();
+        }
+    }
+
+    /**
+     * Queue of FieldStates/ClassStates shared by all threads that take part
+     * in a parallel refresh. Each thread refreshes queued states (which
+     * queues their sub-FieldStates) until no state is queued or being
+     * refreshed on any thread. Idle threads block until a state is queued
+     * or the refresh is complete.
+     */
+    private static final class RefreshQueue {
+        private final ConcurrentLinkedQueue<Object> mQueue = new ConcurrentLinkedQueue<Object>();
+        private final AtomicInteger mPending = new AtomicInteger();  // number of queued states and states being refreshed
+        private final AtomicInteger mWaiting = new AtomicInteger();  // number of idle threads (only incremented while holding mQueue)
+
+        void add(Object state) {
+            mPending.incrementAndGet();
+            mQueue.add(state);
+            if (mWaiting.get() > 0) {
+                synchronized (mQueue) {
+                    mQueue.notify();
+                }
+            }
+        }
+
+        void drain() {
+            boolean interrupted = false;
+            while (true) {
+                final Object state = mQueue.poll();
+                if (state == null) {
+                    if (mPending.get() == 0) {
+                        break;
+                    }
+                    synchronized (mQueue) {
+                        mWaiting.incrementAndGet();
+                        try {
+                            while (mQueue.isEmpty() && (mPending.get() != 0)) {
+                                mQueue.wait();
+                            }
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        } finally {
+                            mWaiting.decrementAndGet();
+                        }
+                    }
+                    continue;
+                }
+                
+                try {
+                    refreshDirtyState(state);
+                } finally {
+                    if ((mPending.decrementAndGet() == 0) && (mWaiting.get() > 0)) {
+                        synchronized (mQueue) {
+                            mQueue.notifyAll();
+                        }
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * Refresh a dirty object or class. Exceptions are logged (just as for
+     * sub-FieldStates, see {@link TraversalStack}), so a failing state does
+     * not prevent the remaining dirty states from being refreshed.
+     * 
+     * @param state FieldState or ClassState.
+     */
+    private static void refreshDirtyState(Object state) {
+        try {
+            if (state instanceof FieldState) {
+                ((FieldState)state).refreshInstance(false);
+            } else {
+                ((ClassState)state).refreshClass(false);
+            }
+        } catch (RuntimeException e) {
+            Logging.error(LOG_TAG, "Exception while refreshing: " + e.toString(), e);
+        }
+    }
+
+    /**
+     * Create persistent memory that reclaims unreachable objects by marking
+     * all reachable objects upon garbage collection.
+     */
+    public PersistentMemory() {
+        this(false);
+    }
+
+    /**
+     * Create persistent memory.
+     * 
+     * @param weakReferenceTracking Track stored objects through weak references
+     *        so that unreachable objects are reclaimed by the garbage collector
+     *        of the Java runtime instead of marking all reachable objects upon
+     *        garbage collection.
+     */
+    public PersistentMemory(boolean weakReferenceTracking) {
+        this(weakReferenceTracking, 1);
+    }
+
+    /**
+     * Create persistent memory.
+     * 
+     * @param weakReferenceTracking Track stored objects through weak references
+     *        so that unreachable objects are reclaimed by the garbage collector
+     *        of the Java runtime instead of marking all reachable objects upon
+     *        garbage collection.
+     * @param refreshThreads Number of threads used to refresh dirty objects
+     *        and classes upon memory barriers (1 refreshes sequentially on
+     *        the calling thread).
+     */
+    public PersistentMemory(boolean weakReferenceTracking, int refreshThreads) {
+        this(weakReferenceTracking, refreshThreads, PersistentMemory.class.getClassLoader());
+    }
+
+    /**
+     * Create persistent memory.
+     * 
+     * @param weakReferenceTracking Track stored objects through weak references
+     *        so that unreachable objects are reclaimed by the garbage collector
+     *        of the Java runtime instead of marking all reachable objects upon
+     *        garbage collection.
+     * @param refreshThreads Number of threads used to refresh dirty objects
+     *        and classes upon memory barriers (1 refreshes sequentially on
+     *        the calling thread).
+     * @param classLoader Class loader used to resolve class names (e.g. of
+     *        de-serialized objects and classes).
+     */
+    public PersistentMemory(boolean weakReferenceTracking, int refreshThreads, ClassLoader classLoader) {
+        mWeakReferenceTracking = weakReferenceTracking;
+        mClassLoader = classLoader;
+        mRefreshThreads = Math.max(1, refreshThreads);
+        mDirtySet = new DirtySet();
+        mDirtySets.add(mDirtySet);
+    }
+
+    /**
+     * Check if stored objects are tracked through weak references.
+     * 
+     * @return true if weak reference tracking is enabled.
+     */
+    public boolean isWeakReferenceTracking() {
+        return mWeakReferenceTracking;
+    }
 
     /**
      * Register an object instance that must never be included in persistent
@@ -56,7 +274,8 @@ public class PersistentMemory {
      */
     public void addProhibitedReference(Object object) {
         if (object != null) {
-            mProhibitedReferences.add(FieldState.getObjectIdentityHashCode(object));
+            mProhibitedReferences.add(getObjectIdentityHashCode(object));
+            mProhibitedObjects.add(object);
         }
     }
 
@@ -69,7 +288,7 @@ public class PersistentMemory {
      */
     public void addProhibitedClass(Class classObject) {
         if (classObject != null) {
-            addProhibitedClass(classObject.getName());
+            mProhibitedClasses.add(classObject);
         }
     }
 
@@ -78,12 +297,11 @@ public class PersistentMemory {
      * Requests to record the state of these classes' static members will
      * be ignored.
      * 
-     * @param className Class to be excluded (given by name).
+     * @param className Class to be excluded (given by name, resolved through
+     *        the class loader of this memory manager).
      */
     public void addProhibitedClass(String className) {
-        if (className != null) {
-            mProhibitedClasses.add(className);
-        }
+        addProhibitedClass(resolveClass(className));
     }
 
     /**
@@ -138,6 +356,7 @@ public class PersistentMemory {
     public void updateStoredNamedInstance(Object object, Class objectClass, String instanceName, boolean noDeepRefresh) {
         FieldState instance = storeObject(object, objectClass, noDeepRefresh);
         mNamedInstanceMap.put(instanceName, instance);
+        ++mNamedInstanceVersion;
     }
     
     /**
@@ -165,14 +384,7 @@ public class PersistentMemory {
             return null;
         }
 
-        Class classObject = null;
-        try {
-            classObject = Class.forName(className);
-        } catch (Exception e) {
-            Logging.error(LOG_TAG, "Could not resolve Class object for " + className + ": " + e.toString(), e);
-        }
-
-        return storeClass(classObject, noDeepRefresh);
+        return storeClass(resolveClass(className), noDeepRefresh);
     }
 
     /**
@@ -194,20 +406,27 @@ public class PersistentMemory {
             return null;
         }
 
-        if (mProhibitedClasses.contains(classObject.getName())) {
+        if (mProhibitedClasses.contains(classObject)) {
             Logging.debug(LOG_TAG, "Skipping prohibited class " + classObject.getName());
             return null;
         }
         
-        ClassState instance = mClassMap.get(classObject.getName());
-
+        ClassState instance;
         boolean refresh = !noDeepRefresh;
         
-        if (instance == null) {
-            // class does not yet exist
-            instance = new ClassState(this, classObject);
-            mClassMap.put(classObject.getName(), instance);
-            refresh = true;
+        final Lock lock = getConcurrentRefreshLock();
+        if (lock != null) lock.lock();
+        try {
+            instance = mClassMap.get(classObject);
+
+            if (instance == null) {
+                // class does not yet exist
+                instance = new ClassState(this, classObject);
+                mClassMap.put(classObject, instance);
+                refresh = true;
+            }
+        } finally {
+            if (lock != null) lock.unlock();
         }
 
         if ((instance != null) && refresh) {
@@ -224,53 +443,60 @@ public class PersistentMemory {
      * @return {@link FieldState} instance containing the stored object state.
      */
     /* package */ FieldState storeObject(Object object, Class paramObjectClass, boolean noDeepRefresh) {
-        Long identityHashCode = FieldState.getObjectIdentityHashCode(object);
-        if (mProhibitedReferences.contains(identityHashCode)) {
-            Logging.debug(LOG_TAG, "Skipping prohibited object #" + identityHashCode);
-            object = null;
-            identityHashCode = FieldState.getObjectIdentityHashCode(object);
-        }
-        FieldState instance = mReferenceMap.get(identityHashCode);
-        Class objectClass = paramObjectClass;
-
+        FieldState instance = null;
         boolean refresh = !noDeepRefresh;
         
-        if (instance == null) {
-            // FieldState does not yet exist
-            if (object != null) {
-                objectClass = object.getClass();
+        final Lock lock = getConcurrentRefreshLock();
+        if (lock != null) lock.lock();
+        try {
+            Long identityHashCode = getObjectIdentityHashCode(object);
+            if (mProhibitedReferences.contains(identityHashCode)) {
+                Logging.debug(LOG_TAG, "Skipping prohibited object #" + identityHashCode);
+                object = null;
+                identityHashCode = getObjectIdentityHashCode(object);
             }
+            instance = lookupReference(identityHashCode);
+            Class objectClass = paramObjectClass;
 
-            if (paramObjectClass == null) {
-                paramObjectClass = objectClass;
-            }
+            if (instance == null) {
+                // FieldState does not yet exist
+                if (object != null) {
+                    objectClass = object.getClass();
+                }
 
-            if ((object == null) || (objectClass == null)) {
-                instance = new ObjectReferenceState(this, object);
-            } else if (objectClass.isArray()) {
-                Class componentClass = objectClass.getComponentType();
+                if (paramObjectClass == null) {
+                    paramObjectClass = objectClass;
+                }
+
+                if ((object == null) || (objectClass == null)) {
+                    instance = new ObjectReferenceState(this, object);
+                } else if (objectClass.isArray()) {
+                    Class componentClass = objectClass.getComponentType();
 
-                if (componentClass == null) {
-                    Logging.error(LOG_TAG, "Unexpected component class: null");
+                    if (componentClass == null) {
+                        Logging.error(LOG_TAG, "Unexpected component class: null");
+                    } else {
+                        instance = new ArrayState(this, object, componentClass.getName());
+                    }
+                } else if (PrimitiveValueState.isPrimitiveValueType(objectClass)) {
+                    //instance = new PrimitiveValueState(this, object, paramObjectClass);
+                    instance = PrimitiveValueState.getInstance(this, object, paramObjectClass);
                 } else {
-                    instance = new ArrayState(this, object, componentClass.getName());
+                    instance = new ObjectReferenceState(this, object);
+                }
+
+                if (instance != null) {
+                    putReference(identityHashCode, instance);
+                    refresh = true;
                 }
-            } else if (PrimitiveValueState.isPrimitiveValueType(objectClass)) {
-                //instance = new PrimitiveValueState(this, object, paramObjectClass);
-                instance = PrimitiveValueState.getInstance(this, object, paramObjectClass);
-            } else {
-                instance = new ObjectReferenceState(this, object);
-            }
-            
-            if (instance != null) {
-                mReferenceMap.put(identityHashCode, instance);
-                refresh = true;
             }
+        } finally {
+            if (lock != null) lock.unlock();
         }
 
         // always refresh instance (= refresh, if it already exists; initial state capture, if it is newly created)
         if ((instance != null) && refresh) {
-            instance.refreshInstance(noDeepRefresh);
+            refreshReference(instance, noDeepRefresh);
         }
         return instance;
     }
@@ -282,34 +508,42 @@ public class PersistentMemory {
      * @return {@link FieldState} instance containing the stored array object state.
      */
     /* package */ FieldState storeTransientArray(Object object) {
-        Long identityHashCode = FieldState.getObjectIdentityHashCode(object);
-        if (mProhibitedReferences.contains(identityHashCode)) {
-            Logging.debug(LOG_TAG, "Skipping prohibited object #" + identityHashCode);
-            object = null;
-            identityHashCode = FieldState.getObjectIdentityHashCode(object);
-        }
-        FieldState instance = mReferenceMap.get(identityHashCode);
+        FieldState instance = null;
+
+        final Lock lock = getConcurrentRefreshLock();
+        if (lock != null) lock.lock();
+        try {
+            Long identityHashCode = getObjectIdentityHashCode(object);
+            if (mProhibitedReferences.contains(identityHashCode)) {
+                Logging.debug(LOG_TAG, "Skipping prohibited object #" + identityHashCode);
+                object = null;
+                identityHashCode = getObjectIdentityHashCode(object);
+            }
+            instance = lookupReference(identityHashCode);
 
-        if (instance == null) {
-            // FieldState does not yet exist
-            Class objectClass = (object != null) ? object.getClass() : null;
+            if (instance == null) {
+                // FieldState does not yet exist
+                Class objectClass = (object != null) ? object.getClass() : null;
             
-            if ((object == null) || (objectClass == null)) {
-                instance = new ObjectReferenceState(this, object);
-            } else if (objectClass.isArray()) {
-                Class componentClass = objectClass.getComponentType();
+                if ((object == null) || (objectClass == null)) {
+                    instance = new ObjectReferenceState(this, object);
+                } else if (objectClass.isArray()) {
+                    Class componentClass = objectClass.getComponentType();
 
-                if (componentClass == null) {
-                    Logging.error(LOG_TAG, "Unexpected component class: null");
-                } else {
-                    instance = new TransientArrayState(this, object, componentClass.getName());
+                    if (componentClass == null) {
+                        Logging.error(LOG_TAG, "Unexpected component class: null");
+                    } else {
+                        instance = new TransientArrayState(this, object, componentClass.getName());
+                    }
                 }
-            }
             
-            if (instance != null) {
-                mReferenceMap.put(identityHashCode, instance);
-                instance.refreshInstance(false);
+                if (instance != null) {
+                    putReference(identityHashCode, instance);
+                    instance.refreshInstance(false);
+                }
             }
+        } finally {
+            if (lock != null) lock.unlock();
         }
 
         return instance;
@@ -331,39 +565,280 @@ public class PersistentMemory {
         return mCurrentRefreshTag;
     }
 
+    /**
+     * Get the lock that guards shared state of this persistent memory
+     * manager while dirty objects/classes are refreshed in parallel.
+     * 
+     * @return Lock, or null if no parallel refresh is in progress.
+     */
+    /* package */ Lock getConcurrentRefreshLock() {
+        return (mConcurrentRefreshQueue != null) ? mConcurrentRefreshLock : null;
+    }
+    
+    /**
+     * Check if dirty objects/classes are currently refreshed in parallel.
+     * 
+     * @return true if a parallel refresh is in progress.
+     */
+    /* package */ boolean isConcurrentRefresh() {
+        return mConcurrentRefreshQueue != null;
+    }
+    
+    /**
+     * Refresh an existing sub-FieldState of an object or class.
+     * 
+     * @param fieldState Sub-FieldState.
+     */
+    /* package */ void refreshReference(FieldState fieldState) {
+        refreshReference(fieldState, false);
+    }
+    
+    /**
+     * Refresh a sub-FieldState of an object or class. The FieldState is
+     * pushed onto the traversal work stack instead of being refreshed
+     * recursively. During a parallel refresh, the FieldState is queued so
+     * that any idle thread can pick it up.
+     * 
+     * @param fieldState Sub-FieldState.
+     * @param noDeepRefresh Do not recursively refresh the state of existing objects.
+     */
+    /* package */ void refreshReference(FieldState fieldState, boolean noDeepRefresh) {
+        final RefreshQueue queue = mConcurrentRefreshQueue;
+        if (queue == null) {
+            mTraversalStack.traverse(fieldState, noDeepRefresh ? TraversalStack.REFRESH_SHALLOW : TraversalStack.REFRESH);
+        } else if (noDeepRefresh) {
+            fieldState.refreshInstance(true);
+        } else if (fieldState.needsRefresh(mCurrentRefreshTag)) {
+            queue.add(fieldState);
+        }
+    }
+    
+    /**
+     * Revert a sub-FieldState of an object or class. The FieldState is
+     * pushed onto the traversal work stack instead of being reverted
+     * recursively.
+     * 
+     * @param fieldState Sub-FieldState.
+     */
+    /* package */ void revertReference(FieldState fieldState) {
+        if (mShallowRevert) {
+            return;  // sub-FieldStates are either unchanged or reverted on their own
+        }
+        mTraversalStack.traverse(fieldState, TraversalStack.REVERT);
+    }
+    
+    /**
+     * Ping a sub-FieldState of an object or class. The FieldState is
+     * pushed onto the traversal work stack instead of being pinged
+     * recursively.
+     * 
+     * @param fieldState Sub-FieldState.
+     */
+    /* package */ void pingReference(FieldState fieldState) {
+        if (mMinorCollection) {
+            if (!fieldState.isYoung()) {
+                return;  // old FieldStates are only marked by major collections
+            }
+            mYoungLinkSeen = true;
+        }
+        mTraversalStack.traverse(fieldState, TraversalStack.PING);
+    }
+    
+    /**
+     * Count a FieldState/ClassState visited in the current traversal phase.
+     */
+    /* package */ void countVisit() {
+        if (mConcurrentRefreshQueue != null) {
+            mConcurrentVisits.incrementAndGet();
+        } else {
+            ++mVisits;
+        }
+    }
+    
+    /**
+     * Start instrumentation of a traversal phase.
+     * 
+     * @return Start time of the phase.
+     */
+    private long beginPhase() {
+        mVisits = 0;
+        mConcurrentVisits.set(0);
+        mTraversalStack.resetMaxSize();
+        return System.nanoTime();
+    }
+    
+    /**
+     * End instrumentation of a traversal phase.
+     * 
+     * @param phase Phase.
+     * @param startTime Start time of the phase as returned by {@link #beginPhase()}.
+     */
+    private void endPhase(TraversalStatistics.Phase phase, long startTime) {
+        final long time = System.nanoTime() - startTime;
+        final int visits = mVisits + mConcurrentVisits.get();
+        mTraversalStatistics.record(phase, visits, time, mTraversalStack.getMaxSize());
+        Logging.debug(LOG_TAG, "Phase " + phase + " @" + mCurrentRefreshTag + ": visited " + visits + " states in " + (time / 1000) + " us (max. stack depth " + mTraversalStack.getMaxSize() + ")");
+    }
+    
+    /**
+     * Get instrumentation of the traversal phases (refresh, reversal and
+     * garbage collection mark phase) of this persistent memory.
+     * 
+     * @return Traversal statistics.
+     */
+    public TraversalStatistics getTraversalStatistics() {
+        return mTraversalStatistics;
+    }
+    
+    /**
+     * Set how often garbage collection sweeps the old generation. All other
+     * garbage collections only sweep the young generation (FieldStates that
+     * have been stored recently).
+     * 
+     * @param majorCollectionInterval Number of garbage collections per major
+     *        collection (1 sweeps all FieldStates upon each garbage collection).
+     */
+    public void setMajorCollectionInterval(int majorCollectionInterval) {
+        mMajorCollectionInterval = Math.max(1, majorCollectionInterval);
+        mMinorCollections = 0;
+        for (FieldState fieldState : mReferenceMap.values()) {
+            fieldState.promote();  // FieldStates stored so far have not been tracked as young FieldStates
+        }
+        promoteAll();
+    }
+    
+    /**
+     * Get how often garbage collection sweeps the old generation.
+     * 
+     * @return Number of garbage collections per major collection.
+     */
+    public int getMajorCollectionInterval() {
+        return mMajorCollectionInterval;
+    }
+    
+    /**
+     * Check if FieldStates are separated into young and old generation.
+     * 
+     * @return true if minor collections are used.
+     */
+    private boolean isTrackingGenerations() {
+        return !mWeakReferenceTracking && (mMajorCollectionInterval > 1);
+    }
+    
+    /**
+     * Get the current collection epoch.
+     * 
+     * @return Current collection epoch.
+     */
+    /* package */ int getCollectionEpoch() {
+        return mCollectionEpoch;
+    }
+    
+    /**
+     * Promote all young FieldStates to the old generation. As no young
+     * FieldStates remain, the remembered set is cleared.
+     */
+    private void promoteAll() {
+        for (int i = 0; i < mYoungReferences.size(); ++i) {
+            mYoungReferences.get(i).promote();
+        }
+        mYoungReferences.clear();
+        for (int i = 0; i < mRememberedReferences.size(); ++i) {
+            mRememberedReferences.get(i).clearRemembered();
+        }
+        mRememberedReferences.clear();
+        for (int i = 0; i < mRememberedClasses.size(); ++i) {
+            mRememberedClasses.get(i).clearRemembered();
+        }
+        mRememberedClasses.clear();
+    }
+    
+    /**
+     * Add an old FieldState that has been refreshed or reverted (or that has
+     * just been promoted) to the remembered set. Remembered FieldStates are
+     * roots of minor collections as they may link young FieldStates.
+     * 
+     * @param fieldState FieldState of the old generation.
+     */
+    /* package */ void rememberReference(FieldState fieldState) {
+        if (!isTrackingGenerations()) {
+            return;
+        }
+        
+        final Lock lock = getConcurrentRefreshLock();
+        if (lock != null) lock.lock();
+        try {
+            mRememberedReferences.add(fieldState);
+        } finally {
+            if (lock != null) lock.unlock();
+        }
+    }
+    
+    /**
+     * Add a ClassState that has been refreshed or reverted to the remembered
+     * set.
+     * 
+     * @param classState ClassState.
+     */
+    /* package */ void rememberClass(ClassState classState) {
+        if (!isTrackingGenerations()) {
+            return;
+        }
+        
+        final Lock lock = getConcurrentRefreshLock();
+        if (lock != null) lock.lock();
+        try {
+            mRememberedClasses.add(classState);
+        } finally {
+            if (lock != null) lock.unlock();
+        }
+    }
+
     public void bindClassToObject(Class classObject, Object instance) {
         if (classObject != null) {
-            String className = classObject.getName();
-            bindClassToObject(className, instance);
+            ClassState classState = mClassMap.get(classObject);
+            if (classState == null) {
+                Logging.error(LOG_TAG, "State of class " + classObject.getName() + " has not been recorded!");
+            }
+            bindClassToObject(classState, instance);
         }
     }
     
     public void bindClassToObject(String className, Object instance) {
-        ClassState classState = mClassMap.get(className);
-        FieldState fieldState = getReference(FieldState.getObjectIdentityHashCode(instance));
-        if (classState == null) {
-            Logging.error(LOG_TAG, "State of class " + className + " has not been recorded!");
+        Class classObject = resolveClass(className);
+        if (classObject != null) {
+            bindClassToObject(classObject, instance);
         }
+    }
+    
+    private void bindClassToObject(ClassState classState, Object instance) {
+        FieldState fieldState = getReference(getObjectIdentityHashCode(instance));
         if (fieldState != null) {
             fieldState.addBoundClass(classState);
         } else {
-            Logging.error(LOG_TAG, "State of reference " + FieldState.getObjectIdentityHashCode(instance) + " has not been recorded!");
+            Logging.error(LOG_TAG, "State of reference " + getObjectIdentityHashCode(instance) + " has not been recorded!");
         }
     }
     
     public void bindClassToNamedInstance(Class classObject, String instanceName) {
         if (classObject != null) {
-            String className = classObject.getName();
-            bindClassToNamedInstance(className, instanceName);
+            ClassState classState = mClassMap.get(classObject);
+            if (classState == null) {
+                Logging.error(LOG_TAG, "State of class " + classObject.getName() + " has not been recorded!");
+            }
+            bindClassToNamedInstance(classState, instanceName);
         }
     }
     
     public void bindClassToNamedInstance(String className, String instanceName) {
-        ClassState classState = mClassMap.get(className);
-        FieldState fieldState = mNamedInstanceMap.get(instanceName);
-        if (classState == null) {
-            Logging.error(LOG_TAG, "State of class " + className + " has not been recorded!");
+        Class classObject = resolveClass(className);
+        if (classObject != null) {
+            bindClassToNamedInstance(classObject, instanceName);
         }
+    }
+    
+    private void bindClassToNamedInstance(ClassState classState, String instanceName) {
+        FieldState fieldState = mNamedInstanceMap.get(instanceName);
         if (fieldState != null) {
             fieldState.addBoundClass(classState);
         } else {
@@ -383,30 +858,40 @@ public class PersistentMemory {
     
     public void setDirtyClass(Class classObject) {
         if (classObject != null) {
-            setDirtyClass(classObject.getName());
+            ClassState classState = mClassMap.get(classObject);
+            if (classState != null) {
+                if (classState.getDirtyId() < 0) {
+                    classState.setDirtyId(mNextDirtyId++);
+                }
+                mDirtySet.addClass(classState);
+            } else {
+                Logging.error(LOG_TAG, "State of class " + classObject.getName() + " has not been recorded!");
+            }
         }
-        
     }
     
     public void setDirtyClass(String className) {
-        if (!mClassMap.containsKey(className)) {
-            Logging.error(LOG_TAG, "State of class " + className + " has not been recorded!");
+        Class classObject = resolveClass(className);
+        if (classObject != null) {
+            setDirtyClass(classObject);
         }
-        mDirtyClasses.add(className);
     }
 
     public void setDirtyReference(Object object) {
-        Long hashCode = FieldState.getObjectIdentityHashCode(object);
-        if (!mReferenceMap.containsKey(hashCode)) {
-            Logging.error(LOG_TAG, "State of reference " + hashCode + " has not been recorded!");
+        Long hashCode = getObjectIdentityHashCode(object);
+        FieldState instance = lookupReference(hashCode);
+        if (instance != null) {
+            setDirtyReference(instance);
+        } else if (object != null) {
+            // the state may still be recorded before the next memory barrier (e.g. by refreshing a dirty object that links it)
+            mDirtySet.addUnrecordedObject(object);
         }
-        mDirtyReferences.add(hashCode);
     }
     
     public void setDirtyNamedInstance(String instanceName) {
         FieldState instance = mNamedInstanceMap.get(instanceName);
         if (instance != null) {
-            mDirtyReferences.add(instance.getHashCode());
+            setDirtyReference(instance);
         } else {
             Logging.error(LOG_TAG, "State of named instance " + instanceName + " has not been recorded!");
         }
@@ -417,65 +902,402 @@ public class PersistentMemory {
         setDirtyNamedInstance(instanceName);
     }
     
+    public void setDirtyNamedInstance(NamedInstanceHandle handle) {
+        FieldState instance = resolveNamedInstance(handle);
+        if (instance != null) {
+            setDirtyReference(instance);
+        } else {
+            Logging.error(LOG_TAG, "State of named instance " + handle.mInstanceName + " has not been recorded!");
+        }
+    }
+    
+    /**
+     * Add FieldState to the current dirty set.
+     * 
+     * @param instance FieldState.
+     */
+    private void setDirtyReference(FieldState instance) {
+        if (instance.getDirtyId() < 0) {
+            instance.setDirtyId(mNextDirtyId++);
+        }
+        mDirtySet.addReference(instance);
+    }
+    
+    /**
+     * Get a handle to a named instance. The handle can be used to access
+     * the named instance repeatedly without building its name each time.
+     * 
+     * @param aid Object instance name as AID.
+     * @return Named instance handle.
+     */
+    public NamedInstanceHandle getNamedInstanceHandle(AID aid) {
+        return new NamedInstanceHandle(this, getInstanceNameFromAid(aid));
+    }
+    
+    /**
+     * Get the FieldState of a named instance through a handle.
+     * 
+     * @param handle Named instance handle.
+     * @return FieldState, or null if the named instance has not been recorded.
+     */
+    private FieldState resolveNamedInstance(NamedInstanceHandle handle) {
+        if ((handle.mMemoryManager != this) || (handle.mVersion != mNamedInstanceVersion)) {
+            handle.mFieldState = mNamedInstanceMap.get(handle.mInstanceName);
+            handle.mVersion = (handle.mMemoryManager == this) ? mNamedInstanceVersion : -1;
+        }
+        return handle.mFieldState;
+    }
+    
     public void memoryBarrier(boolean revertMemory) {
         beginRefresh();
         Logging.debug(LOG_TAG, "Memory barrier " + mCurrentRefreshTag + (revertMemory ? " for reversal" : " for refresh"));
+        final long startTime = beginPhase();
         
         if (revertMemory) {
             // revert all changes to dirty objects/classes
-            for (String dirtyClass : mDirtyClasses) {
-                ClassState dirtyState = mClassMap.get(dirtyClass);
-                if (dirtyState != null) {
-                    dirtyState.revertClass();
-                }
+            for (int i = 0; i < mDirtySet.getClassCount(); ++i) {
+                mDirtySet.getClass(i).revertClass();
             }
             
-            for (Long dirtyReference : mDirtyReferences) {
-                FieldState dirtyState = mReferenceMap.get(dirtyReference);
-                if (dirtyState != null) {
-                    dirtyState.revertInstance();
-                }
+            for (int i = 0; i < mDirtySet.getReferenceCount(); ++i) {
+                mDirtySet.getReference(i).revertInstance();
             }
+            
+            processUnrecordedReferences(true);
+        } else if (isParallelRefreshEnabled()) {
+            // update persistent memory to reflect all changes in dirty objects/classes
+            refreshInParallel();
+            processUnrecordedReferences(false);
         } else {
             // update persistent memory to reflect all changes in dirty objects/classes
-            for (String dirtyClass : mDirtyClasses) {
-                ClassState dirtyState = mClassMap.get(dirtyClass);
-                if (dirtyState != null) {
-                    dirtyState.refreshClass(false);
-                }
+            for (int i = 0; i < mDirtySet.getClassCount(); ++i) {
+                refreshDirtyState(mDirtySet.getClass(i));
             }
             
-            for (Long dirtyReference : mDirtyReferences) {
-                FieldState dirtyState = mReferenceMap.get(dirtyReference);
-                if (dirtyState != null) {
-                    dirtyState.refreshInstance(false);
-                }
+            for (int i = 0; i < mDirtySet.getReferenceCount(); ++i) {
+                refreshDirtyState(mDirtySet.getReference(i));
             }
             
+            processUnrecordedReferences(false);
+            
             //garbageCollect();
         }
+        
+        endPhase(revertMemory ? TraversalStatistics.Phase.eRevert : TraversalStatistics.Phase.eRefresh, startTime);
     }
     
-    public void clearDirtyFlags() {
-        mDirtyClasses.clear();
-        mDirtyReferences.clear();
-    }
-    
-    public void pushDirtyFlags() {
-        mPreviousDirtyClasses.push(mDirtyClasses);
-        mPreviousDirtyReferences.push(mDirtyReferences);
-        mDirtyClasses = new ArrayList();
-        mDirtyReferences = new ArrayList();
-    }
-    
-    public void popDirtyFlags() {
-        clearDirtyFlags();
+    /**
+     * Refresh (or revert) the objects that have been flagged as dirty before
+     * their state has been recorded. Their state is looked up now as it may
+     * have been recorded since (e.g. while refreshing the dirty objects and
+     * classes that link them).
+     * 
+     * @param revertMemory Revert instead of refresh.
+     */
+    private void processUnrecordedReferences(boolean revertMemory) {
+        for (int i = 0; i < mDirtySet.getUnrecordedObjectCount(); ++i) {
+            final Long hashCode = getObjectIdentityHashCode(mDirtySet.getUnrecordedObject(i));
+            final FieldState instance = lookupReference(hashCode);
+            if (instance == null) {
+                Logging.error(LOG_TAG, "State of reference " + hashCode + " has not been recorded!");
+            } else if (revertMemory) {
+                instance.revertInstance();
+            } else {
+                instance.refreshInstance(false);
+            }
+        }
+    }
+    
+    /**
+     * Check if the dirty objects/classes should be refreshed in parallel.
+     * Small object graphs are always refreshed sequentially as the refresh
+     * would be dominated by the overhead of handing states between threads.
+     * 
+     * @return true if dirty objects/classes should be refreshed in parallel.
+     */
+    private boolean isParallelRefreshEnabled() {
+        if ((mRefreshThreads <= 1) || ((mDirtySet.getClassCount() == 0) && (mDirtySet.getReferenceCount() == 0))) {
+            return false;
+        }
         
-        if (!mPreviousDirtyClasses.empty()) {
-            mDirtyClasses = mPreviousDirtyClasses.pop();
+        final int numReferences = mWeakReferenceTracking ? mWeakReferenceMap.size() : mReferenceMap.size();
+        return numReferences >= PARALLEL_REFRESH_THRESHOLD;
+    }
+    
+    /**
+     * Refresh all dirty objects/classes on multiple threads. The dirty
+     * objects/classes and, recursively, their sub-FieldStates are handed
+     * to the refresh threads through a shared queue; the refresh tag of each
+     * state is claimed atomically so that object graphs that are reachable
+     * from multiple dirty roots are still refreshed only once. Shared maps
+     * (references, classes, object identifiers) are guarded by a common lock
+     * during the parallel refresh.
+     */
+    private void refreshInParallel() {
+        final RefreshQueue queue = new RefreshQueue();
+        for (int i = 0; i < mDirtySet.getClassCount(); ++i) {
+            queue.add(mDirtySet.getClass(i));
+        }
+        for (int i = 0; i < mDirtySet.getReferenceCount(); ++i) {
+            queue.add(mDirtySet.getReference(i));
+        }
+        
+        if (mRefreshExecutor == null) {
+            mRefreshExecutor = Executors.newFixedThreadPool(mRefreshThreads - 1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PersistentMemory");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
         }
-        if (!mPreviousDirtyReferences.empty()) {
-            mDirtyReferences = mPreviousDirtyReferences.pop();
+        
+        mConcurrentRefreshQueue = queue;
+        try {
+            final CountDownLatch workers = new CountDownLatch(mRefreshThreads - 1);
+            for (int i = 1; i < mRefreshThreads; ++i) {
+                mRefreshExecutor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            queue.drain();
+                        } finally {
+                            workers.countDown();
+                        }
+                    }
+                });
+            }
+            queue.drain();
+            
+            // the queue must not be released before all refresh threads are done
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    workers.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            mConcurrentRefreshQueue = null;
+        }
+    }
+    
+    /**
+     * Create a savepoint of persistent memory. Images of FieldStates and
+     * ClassStates are recorded in the savepoint right before they are first
+     * refreshed after this call, so the images stored in persistent memory
+     * should reflect the current state of all objects and classes (e.g.
+     * right after a memory barrier).
+     * 
+     * @return Savepoint.
+     */
+    public Savepoint savepoint() {
+        final Savepoint savepoint = new Savepoint(++mSavepointSerial, mNamedInstanceMap);
+        mSavepoints.add(savepoint);
+        Logging.debug(LOG_TAG, "Savepoint " + mSavepointSerial + " @" + mCurrentRefreshTag);
+        return savepoint;
+    }
+    
+    /**
+     * Roll persistent memory back to a savepoint. The images recorded in the
+     * savepoint are restored and the objects and classes that have changed
+     * since the savepoint are reverted to reflect them. All other objects
+     * still match their images, so reversal does not descend into
+     * sub-FieldStates. Savepoints created after the given savepoint are
+     * invalidated; the given savepoint remains valid and can be rolled back
+     * to again.
+     * 
+     * @param savepoint Savepoint.
+     * @return true if persistent memory has been rolled back.
+     */
+    public boolean rollbackTo(Savepoint savepoint) {
+        final int index = mSavepoints.indexOf(savepoint);
+        if (index < 0) {
+            Logging.error(LOG_TAG, "Cannot roll back to an invalid savepoint!");
+            return false;
+        }
+        for (int i = mSavepoints.size() - 1; i > index; --i) {
+            mSavepoints.remove(i).mValid = false;
+        }
+        
+        Logging.debug(LOG_TAG, "Rollback to savepoint " + savepoint.mSerial + " (" + savepoint.getRecordedImages() + " images)");
+        
+        for (int i = 0; i < savepoint.mClasses.size(); ++i) {
+            savepoint.mClasses.get(i).setImage(savepoint.mClassImages.get(i));
+        }
+        for (int i = 0; i < savepoint.mReferences.size(); ++i) {
+            savepoint.mReferences.get(i).setImage(savepoint.mReferenceImages.get(i));
+        }
+        mNamedInstanceMap.clear();
+        mNamedInstanceMap.putAll(savepoint.mNamedInstances);
+        ++mNamedInstanceVersion;
+        
+        for (DirtySet dirtySet : mDirtySets) {
+            dirtySet.clear();
+        }
+        mDirtySetDepth = 0;
+        mDirtySet = mDirtySets.get(0);
+        
+        beginRefresh();
+        final long startTime = beginPhase();
+        mShallowRevert = true;
+        try {
+            for (int i = 0; i < savepoint.mClasses.size(); ++i) {
+                savepoint.mClasses.get(i).revertClass();
+            }
+            for (int i = 0; i < savepoint.mReferences.size(); ++i) {
+                savepoint.mReferences.get(i).revertInstance();
+            }
+        } finally {
+            mShallowRevert = false;
+        }
+        endPhase(TraversalStatistics.Phase.eRevert, startTime);
+        
+        mDeltaBaseValid = false;  // restored images do not match the last snapshot written
+        return true;
+    }
+    
+    /**
+     * Release a savepoint, i.e. stop recording images for it.
+     * 
+     * @param savepoint Savepoint.
+     */
+    public void releaseSavepoint(Savepoint savepoint) {
+        if (mSavepoints.remove(savepoint)) {
+            savepoint.mValid = false;
+        }
+    }
+    
+    /**
+     * Invalidate all savepoints.
+     */
+    private void releaseSavepoints() {
+        for (Savepoint savepoint : mSavepoints) {
+            savepoint.mValid = false;
+        }
+        mSavepoints.clear();
+    }
+    
+    /**
+     * Get the serial number of the newest savepoint.
+     * 
+     * @return Savepoint serial number.
+     */
+    /* package */ int getSavepointSerial() {
+        return mSavepointSerial;
+    }
+    
+    /**
+     * Record the image of a FieldState in all savepoints created since its
+     * image has last been recorded (or since its creation).
+     * 
+     * @param fieldState FieldState that is about to be refreshed.
+     */
+    /* package */ void recordSavepointImage(FieldState fieldState) {
+        if (mSavepoints.isEmpty() || (fieldState.getSavepointSerial() == mSavepointSerial)) {
+            return;
+        }
+        
+        final Lock lock = getConcurrentRefreshLock();
+        if (lock != null) lock.lock();
+        try {
+            final int serial = fieldState.getSavepointSerial();
+            final Object image = fieldState.getImage();
+            if (image != null) {
+                for (Savepoint savepoint : mSavepoints) {
+                    if (savepoint.mSerial > serial) {
+                        savepoint.mReferences.add(fieldState);
+                        savepoint.mReferenceImages.add(image);
+                    }
+                }
+            }
+            fieldState.setSavepointSerial(mSavepointSerial);
+        } finally {
+            if (lock != null) lock.unlock();
+        }
+    }
+    
+    /**
+     * Record the image of a ClassState in all savepoints created since its
+     * image has last been recorded (or since its creation).
+     * 
+     * @param classState ClassState that is about to be refreshed.
+     */
+    /* package */ void recordSavepointImage(ClassState classState) {
+        if (mSavepoints.isEmpty() || (classState.getSavepointSerial() == mSavepointSerial)) {
+            return;
+        }
+        
+        final Lock lock = getConcurrentRefreshLock();
+        if (lock != null) lock.lock();
+        try {
+            final int serial = classState.getSavepointSerial();
+            final Object image = classState.getImage();
+            for (Savepoint savepoint : mSavepoints) {
+                if (savepoint.mSerial > serial) {
+                    savepoint.mClasses.add(classState);
+                    savepoint.mClassImages.add(image);
+                }
+            }
+            classState.setSavepointSerial(mSavepointSerial);
+        } finally {
+            if (lock != null) lock.unlock();
+        }
+    }
+    
+    /**
+     * Ping all FieldStates that are needed to roll back to a savepoint.
+     */
+    private void pingSavepoints() {
+        for (Savepoint savepoint : mSavepoints) {
+            for (FieldState fieldState : savepoint.mNamedInstances.values()) {
+                if (fieldState != null) {
+                    pingReference(fieldState);
+                }
+            }
+            for (int i = 0; i < savepoint.mClasses.size(); ++i) {
+                savepoint.mClasses.get(i).pingImage(savepoint.mClassImages.get(i));
+            }
+            for (int i = 0; i < savepoint.mReferences.size(); ++i) {
+                final FieldState fieldState = savepoint.mReferences.get(i);
+                pingReference(fieldState);
+                fieldState.pingImage(savepoint.mReferenceImages.get(i));
+            }
+            for (List<FieldState> segment : savepoint.mClearOnDeselect.values()) {
+                for (FieldState fieldState : segment) {
+                    pingReference(fieldState);
+                }
+            }
+            for (List<FieldState> segment : savepoint.mClearOnReset.values()) {
+                for (FieldState fieldState : segment) {
+                    pingReference(fieldState);
+                }
+            }
+        }
+    }
+    
+    public void clearDirtyFlags() {
+        mDirtySet.clear();
+    }
+    
+    public void pushDirtyFlags() {
+        ++mDirtySetDepth;
+        if (mDirtySetDepth >= mDirtySets.size()) {
+            mDirtySets.add(new DirtySet());
+        }
+        mDirtySet = mDirtySets.get(mDirtySetDepth);
+    }
+    
+    public void popDirtyFlags() {
+        clearDirtyFlags();
+        
+        if (mDirtySetDepth > 0) {
+            --mDirtySetDepth;
+            mDirtySet = mDirtySets.get(mDirtySetDepth);
         }
     }
     
@@ -487,11 +1309,17 @@ public class PersistentMemory {
      * @param fieldState Current field state.
      */
     /* package */ void addReference(Long hashCode, FieldState fieldState) {
-        if (mReferenceMap.containsKey(hashCode)) {
-            FieldState fs = mReferenceMap.get(hashCode);
-            Logging.error(LOG_TAG, "Adding instance that already exists #" + hashCode + ". Possible loss of identity mapping! (" + fs.toString() + ", " + fs.getFieldType() + ", " + fs.getInstance() + ")");
+        final Lock lock = getConcurrentRefreshLock();
+        if (lock != null) lock.lock();
+        try {
+            FieldState fs = lookupReference(hashCode);
+            if (fs != null) {
+                Logging.error(LOG_TAG, "Adding instance that already exists #" + hashCode + ". Possible loss of identity mapping! (" + fs.toString() + ", " + fs.getFieldType() + ", " + fs.getInstance() + ")");
+            }
+            putReference(hashCode, fieldState);
+        } finally {
+            if (lock != null) lock.unlock();
         }
-        mReferenceMap.put(hashCode, fieldState);
     }
 
     /**
@@ -500,25 +1328,217 @@ public class PersistentMemory {
      * @param hashCode Current hash code.
      */
     /* package */ FieldState getReference(Long hashCode) {
+        final Lock lock = getConcurrentRefreshLock();
+        if (lock != null) lock.lock();
+        try {
+            return lookupReference(hashCode);
+        } finally {
+            if (lock != null) lock.unlock();
+        }
+    }
+    
+    /**
+     * Look up FieldState in the list of current references.
+     * 
+     * @param hashCode Current hash code.
+     * @return FieldState, or null if there is no (longer a) FieldState for this hash code.
+     */
+    private FieldState lookupReference(Long hashCode) {
+        if (mWeakReferenceTracking) {
+            WeakStateReference ref = mWeakReferenceMap.get(hashCode);
+            return (ref != null) ? ref.get() : null;
+        }
         return mReferenceMap.get(hashCode);
     }
     
+    /**
+     * Check if the list of current references contains a FieldState.
+     * 
+     * @param hashCode Current hash code.
+     */
+    private boolean containsReference(Long hashCode) {
+        if (mWeakReferenceTracking) {
+            return lookupReference(hashCode) != null;
+        }
+        return mReferenceMap.containsKey(hashCode);
+    }
+    
+    /**
+     * Put FieldState into the list of current references. In weak reference
+     * tracking mode, the FieldState is pinned until the next GC as it may not
+     * have been linked to any reachable FieldState yet.
+     * 
+     * @param hashCode Current hash code.
+     * @param fieldState Current field state.
+     */
+    private void putReference(Long hashCode, FieldState fieldState) {
+        if (mWeakReferenceTracking) {
+            mWeakReferenceMap.put(hashCode, new WeakStateReference(hashCode, fieldState, mCollectedReferences));
+            mPinnedReferences.add(fieldState);
+        } else {
+            mReferenceMap.put(hashCode, fieldState);
+            if (isTrackingGenerations() && fieldState.isYoung()) {
+                mYoungReferences.add(fieldState);
+            }
+        }
+    }
+    
+    /**
+     * Get all FieldStates in the list of current references.
+     * 
+     * @return FieldStates.
+     */
+    private Collection<FieldState> getReferences() {
+        if (mWeakReferenceTracking) {
+            List<FieldState> references = new ArrayList<FieldState>(mWeakReferenceMap.size());
+            for (WeakStateReference ref : mWeakReferenceMap.values()) {
+                FieldState fieldState = ref.get();
+                if (fieldState != null) {
+                    references.add(fieldState);
+                }
+            }
+            return references;
+        }
+        return mReferenceMap.values();
+    }
+    
+    /**
+     * Clear the list of current references.
+     */
+    private void clearReferences() {
+        mReferenceMap.clear();
+        mWeakReferenceMap.clear();
+        mPinnedReferences.clear();
+        while (mCollectedReferences.poll() != null) {
+            // discard references to FieldStates of the previous state
+        }
+    }
+    
     /**
      * Get ClassState based on class object.
      * 
      * @param classObject Class object.
      */
     /* package */ ClassState getClass(Class classObject) {
-        return mClassMap.get(classObject.getName());
+        return mClassMap.get(classObject);
     }
     
     /**
-     * Get ClassState based on class name.
+     * Get ClassState based on class name. During de-serialization, classes
+     * are looked up among the de-serialized classes.
      * 
      * @param className Class name.
      */
     /* package */ ClassState getClass(String className) {
-        return mClassMap.get(className);
+        ClassState classState = mDeserializedClassMap.get(className);
+        if (classState == null) {
+            Class classObject = resolveClass(className);
+            if (classObject != null) {
+                classState = mClassMap.get(classObject);
+            }
+        }
+        return classState;
+    }
+    
+    /**
+     * Get the class loader used to resolve class names.
+     * 
+     * @return Class loader.
+     */
+    public ClassLoader getClassLoader() {
+        return mClassLoader;
+    }
+    
+    /**
+     * Load a class by name through the class loader of this memory manager.
+     * The class is loaded but not initialized, so that no static initializers
+     * run e.g. while snapshots are compacted. (A class is initialized as soon
+     * as one of its static fields is restored or one of its instances is
+     * used.)
+     * 
+     * @param className Class name.
+     * @return Class object.
+     * @throws ClassNotFoundException if the class cannot be found.
+     */
+    /* package */ Class loadClass(String className) throws ClassNotFoundException {
+        Class classObject = mLoadedClasses.get(className);
+        if (classObject == null) {
+            classObject = Class.forName(className, false, mClassLoader);
+            mLoadedClasses.put(className, classObject);
+        }
+        return classObject;
+    }
+    
+    /**
+     * Get an (accessible) member field by its qualified name. The declaring
+     * class is resolved through the class loader of this memory manager.
+     * 
+     * @param qualifiedName Qualified field name (<code>declaringClass#fieldName</code>).
+     * @return {@link Field} object.
+     * @throws ClassNotFoundException if the declaring class cannot be found.
+     * @throws NoSuchFieldException if the qualified name does not denote a field.
+     */
+    /* package */ Field getField(String qualifiedName) throws ClassNotFoundException, NoSuchFieldException {
+        final int separator = qualifiedName.indexOf('#');
+        if (separator < 0) {
+            throw new NoSuchFieldException(qualifiedName);
+        }
+        return ReflectionCache.getField(loadClass(qualifiedName.substring(0, separator)), qualifiedName.substring(separator + 1));
+    }
+    
+    /**
+     * Resolve class object by class name.
+     * 
+     * @param className Class name.
+     * @return Class object, or null if the class could not be resolved.
+     */
+    private Class resolveClass(String className) {
+        if (className == null) {
+            return null;
+        }
+        
+        try {
+            return loadClass(className);
+        } catch (Exception e) {
+            Logging.error(LOG_TAG, "Could not resolve Class object for " + className + ": " + e.toString(), e);
+        }
+        return null;
+    }
+    
+    /**
+     * Register the contents of a primitive array that is serialized to the
+     * current snapshot.
+     * 
+     * @param contentKey Content key of the array.
+     * @param hashCode Hash code of the array.
+     * @return Hash code of an array with identical contents that has already
+     *         been serialized to the current snapshot, or null if there is none.
+     */
+    /* package */ Long registerSerializedArrayContent(ArrayState.ContentKey contentKey, long hashCode) {
+        if (mSerializedArrayContents == null) {
+            return null;
+        }
+        Long contentReference = mSerializedArrayContents.get(contentKey);
+        if (contentReference == null) {
+            mSerializedArrayContents.put(contentKey, Long.valueOf(hashCode));
+        }
+        return contentReference;
+    }
+    
+    /**
+     * Get unique hash code for given object.
+     * 
+     * @param o An object.
+     * @return Unique identity hash code for <code>o</code>.
+     */
+    /* package */ Long getObjectIdentityHashCode(Object o) {
+        final Lock lock = getConcurrentRefreshLock();
+        if (lock != null) lock.lock();
+        try {
+            return FieldState.getObjectIdentityHashCode(mObjectIdentifiers, o);
+        } finally {
+            if (lock != null) lock.unlock();
+        }
     }
     
     /**
@@ -552,7 +1572,7 @@ public class PersistentMemory {
      * @param classState Current class state.
      */
     /* package */ void addClass(String className, ClassState classState) {
-        mClassMap.put(className, classState);
+        mDeserializedClassMap.put(className, classState);
     }
 
     public boolean isProhibitedReference(Long hashCode) {
@@ -560,75 +1580,88 @@ public class PersistentMemory {
     }
     
     /**
-     * Request garbage collection of unused references.
+     * Request garbage collection of unused references. Only the young
+     * generation is swept, unless a major collection is due according to
+     * the major collection interval.
      */
     public void garbageCollect(boolean includeTransientMemory) {
-        // TODO: It might be a good idea to only perform garbage collection if mReferencesMap.size() reaches a certain threshold or if GC was skipped N times before.
-
+        final boolean majorCollection = !isTrackingGenerations() || (mMinorCollections + 1 >= mMajorCollectionInterval);
+        garbageCollect(includeTransientMemory, majorCollection);
+    }
+    
+    /**
+     * Request garbage collection of unused references.
+     * 
+     * @param includeTransientMemory Also sweep transient arrays of applet-specific transient memory segments.
+     * @param majorCollection Sweep all FieldStates instead of only the young generation.
+     */
+    public void garbageCollect(boolean includeTransientMemory, boolean majorCollection) {
         if (mCurrentRefreshTag == 0) {
             Logging.debug(LOG_TAG, "GC called without refresh!");
             return;
         }
         
+        if (mWeakReferenceTracking) {
+            collectQueuedReferences();
+            return;
+        }
+        
+        if (!majorCollection && isTrackingGenerations()) {
+            collectYoungGeneration(includeTransientMemory);
+            ++mMinorCollections;
+            ++mCollectionEpoch;
+            return;
+        }
+        
+        if (mMinorMarkTag == mCurrentRefreshTag) {
+            // marks set by a minor collection do not cover the old generation
+            beginRefresh();
+        }
+        
         Logging.debug(LOG_TAG, "Performing garbage-collection @" + mCurrentRefreshTag);
+        final long startTime = beginPhase();
         
         for (ClassState classState : mClassMap.values()) {
             classState.pingClass();
         }
+        for (ClassState classState : mUnresolvedClasses) {
+            classState.pingClass();
+        }
         for (FieldState fieldState : mNamedInstanceMap.values()) {
             fieldState.pingInstance();
         }
+        pingSavepoints();
         if (!includeTransientMemory) {
             TransientMemory transientMemory = SimulatorSystem.getTransientMemoryInstance();
-            for (ArrayList<FieldState> segment : transientMemory.clearOnDeselect.values()) {
-                for (FieldState fieldState : segment) {
-                    fieldState.pingInstance();
-                }
+            for (TransientSegment segment : transientMemory.clearOnDeselect.values()) {
+                segment.pingInstances();
             }
-            for (ArrayList<FieldState> segment : transientMemory.clearOnReset.values()) {
-                for (FieldState fieldState : segment) {
-                    fieldState.pingInstance();
-                }
+            for (TransientSegment segment : transientMemory.clearOnReset.values()) {
+                segment.pingInstances();
             }
         } else {
             TransientMemory transientMemory = SimulatorSystem.getTransientMemoryInstance();
-            for (Map.Entry<String, ArrayList<FieldState>> entry : transientMemory.clearOnDeselect.entrySet()) {
+            for (Map.Entry<String, TransientSegment> entry : transientMemory.clearOnDeselect.entrySet()) {
                 String key = entry.getKey();
-                ArrayList<FieldState> segment = entry.getValue();
+                TransientSegment segment = entry.getValue();
                 if ((key == null) || key.isEmpty()) {
-                    for (FieldState fieldState : segment) {
-                        fieldState.pingInstance();
-                    }
+                    segment.pingInstances();
                 } else {
-                    Iterator<FieldState> iterField = segment.iterator();
-                    while (iterField.hasNext()) {
-                        final FieldState fieldState = iterField.next();
-                        if ((fieldState == null) || !fieldState.isReachable()) {
-                            iterField.remove();
-                            Logging.debug(LOG_TAG, "Garbage-collected transient object #" + fieldState.getHashCode() + " (" + fieldState.getFieldType() + ") during GC!");
-                        }
-                    }
+                    segment.removeUnreachable(false);
                 }
             }
-            for (Map.Entry<String, ArrayList<FieldState>> entry : transientMemory.clearOnReset.entrySet()) {
+            for (Map.Entry<String, TransientSegment> entry : transientMemory.clearOnReset.entrySet()) {
                 String key = entry.getKey();
-                ArrayList<FieldState> segment = entry.getValue();
+                TransientSegment segment = entry.getValue();
                 if ((key == null) || key.isEmpty()) {
-                    for (FieldState fieldState : segment) {
-                        fieldState.pingInstance();
-                    }
+                    segment.pingInstances();
                 } else {
-                    Iterator<FieldState> iterField = segment.iterator();
-                    while (iterField.hasNext()) {
-                        final FieldState fieldState = iterField.next();
-                        if ((fieldState == null) || !fieldState.isReachable()) {
-                            iterField.remove();
-                            Logging.debug(LOG_TAG, "Garbage-collected transient object #" + fieldState.getHashCode() + " (" + fieldState.getFieldType() + ") during GC!");
-                        }
-                    }
+                    segment.removeUnreachable(false);
                 }
             }
         }
+        endPhase(TraversalStatistics.Phase.eMark, startTime);
+        
         Iterator<Map.Entry<Long, FieldState>> iter = mReferenceMap.entrySet().iterator();
         while (iter.hasNext()) {
             final Map.Entry<Long, FieldState> entry = iter.next();
@@ -638,40 +1671,258 @@ public class PersistentMemory {
                 if (isProhibitedReference(fieldState.getHashCode())) {
                     Logging.error(LOG_TAG, "Garbage-collected #" + entry.getKey() + " (" + fieldState.getFieldType() + ") that is a prohibited reference!");
                 }
-                UniqueObjectIdentifier.forget(fieldState.getInstance());
+                mObjectIdentifiers.forget(fieldState.getInstance());
                 Logging.debug(LOG_TAG, "Garbage-collected #" + entry.getKey() + " (" + fieldState.getFieldType() + ") during GC!");
             }
         }
+        mMinorCollections = 0;
+        ++mCollectionEpoch;
+        promoteAll();
         
         Runtime.getRuntime().gc();  // invest additional effort towards garbage collection
     }
     
+    /**
+     * Sweep the young generation (FieldStates that have been stored recently).
+     * Young FieldStates are marked starting from the named instances, the
+     * default transient memory segments and the remembered set (old
+     * FieldStates and ClassStates that have been refreshed, reverted or
+     * promoted, as only these can link young FieldStates). Marking does not
+     * descend into the old generation. Young FieldStates that survive
+     * {@link #TENURING_THRESHOLD} minor collections are promoted to the old
+     * generation. Young FieldStates that are only referenced by unreachable
+     * old FieldStates survive until the next major collection.
+     * 
+     * @param includeTransientMemory Also sweep transient arrays of applet-specific transient memory segments.
+     */
+    private void collectYoungGeneration(boolean includeTransientMemory) {
+        Logging.debug(LOG_TAG, "Performing minor garbage-collection @" + mCurrentRefreshTag + " (" + mYoungReferences.size() + " young references)");
+        if (mYoungReferences.isEmpty()) {
+            promoteAll();  // clears the remembered set
+            return;
+        }
+        
+        final long startTime = beginPhase();
+        mMinorMarkTag = mCurrentRefreshTag;
+        mMinorCollection = true;
+        try {
+            for (FieldState fieldState : mNamedInstanceMap.values()) {
+                fieldState.pingInstance();
+            }
+            pingSavepoints();
+            
+            // remembered ClassStates/FieldStates that no longer link any young FieldState are dropped from the remembered set
+            int remembered = 0;
+            for (int i = 0; i < mRememberedClasses.size(); ++i) {
+                final ClassState classState = mRememberedClasses.get(i);
+                final int visits = mVisits;
+                mYoungLinkSeen = false;
+                classState.pingClass();
+                if ((mVisits != visits) && !mYoungLinkSeen) {
+                    classState.clearRemembered();
+                } else {
+                    mRememberedClasses.set(remembered++, classState);
+                }
+            }
+            mRememberedClasses.subList(remembered, mRememberedClasses.size()).clear();
+            
+            remembered = 0;
+            for (int i = 0; i < mRememberedReferences.size(); ++i) {
+                final FieldState fieldState = mRememberedReferences.get(i);
+                final int visits = mVisits;
+                mYoungLinkSeen = false;
+                fieldState.pingInstance();
+                if ((mVisits != visits) && !mYoungLinkSeen) {
+                    fieldState.clearRemembered();
+                } else {
+                    mRememberedReferences.set(remembered++, fieldState);
+                }
+            }
+            mRememberedReferences.subList(remembered, mRememberedReferences.size()).clear();
+            
+            TransientMemory transientMemory = SimulatorSystem.getTransientMemoryInstance();
+            for (Map.Entry<String, TransientSegment> entry : transientMemory.clearOnDeselect.entrySet()) {
+                String key = entry.getKey();
+                if (!includeTransientMemory || (key == null) || key.isEmpty()) {
+                    entry.getValue().pingInstances();
+                }
+            }
+            for (Map.Entry<String, TransientSegment> entry : transientMemory.clearOnReset.entrySet()) {
+                String key = entry.getKey();
+                if (!includeTransientMemory || (key == null) || key.isEmpty()) {
+                    entry.getValue().pingInstances();
+                }
+            }
+        } finally {
+            mMinorCollection = false;
+        }
+        endPhase(TraversalStatistics.Phase.eMinorMark, startTime);
+        
+        if (includeTransientMemory) {
+            TransientMemory transientMemory = SimulatorSystem.getTransientMemoryInstance();
+            for (Map.Entry<String, TransientSegment> entry : transientMemory.clearOnDeselect.entrySet()) {
+                String key = entry.getKey();
+                if ((key != null) && !key.isEmpty()) {
+                    entry.getValue().removeUnreachable(true);
+                }
+            }
+            for (Map.Entry<String, TransientSegment> entry : transientMemory.clearOnReset.entrySet()) {
+                String key = entry.getKey();
+                if ((key != null) && !key.isEmpty()) {
+                    entry.getValue().removeUnreachable(true);
+                }
+            }
+        }
+        
+        int young = 0;
+        for (int i = 0; i < mYoungReferences.size(); ++i) {
+            final FieldState fieldState = mYoungReferences.get(i);
+            if (!fieldState.isReachable()) {
+                final Long hashCode = Long.valueOf(fieldState.getHashCode());
+                if (mReferenceMap.get(hashCode) == fieldState) {
+                    mReferenceMap.remove(hashCode);
+                    if (isProhibitedReference(hashCode)) {
+                        Logging.error(LOG_TAG, "Garbage-collected #" + hashCode + " (" + fieldState.getFieldType() + ") that is a prohibited reference!");
+                    }
+                    mObjectIdentifiers.forget(fieldState.getInstance());
+                    Logging.debug(LOG_TAG, "Garbage-collected #" + hashCode + " (" + fieldState.getFieldType() + ") during minor GC!");
+                }
+            } else if (mCollectionEpoch - fieldState.getCreationEpoch() + 1 >= TENURING_THRESHOLD) {
+                fieldState.promote();
+                fieldState.remember();  // may link young FieldStates that were stored after it
+            } else {
+                mYoungReferences.set(young++, fieldState);
+            }
+        }
+        mYoungReferences.subList(young, mYoungReferences.size()).clear();
+    }
+    
+    /**
+     * Release all FieldStates that have been reclaimed by the garbage collector
+     * of the Java runtime (weak reference tracking mode). Only references that
+     * have been enqueued since the last GC are processed.
+     */
+    private void collectQueuedReferences() {
+        Logging.debug(LOG_TAG, "Processing collected references @" + mCurrentRefreshTag);
+        
+        // FieldStates stored since the last GC are linked by now; de-serialized
+        // FieldStates are only looked up while loading the state
+        mPinnedReferences.clear();
+        mDeserializedReferenceMap.clear();
+        
+        WeakStateReference ref;
+        while ((ref = (WeakStateReference)mCollectedReferences.poll()) != null) {
+            if (mWeakReferenceMap.get(ref.mHashCode) == ref) {
+                mWeakReferenceMap.remove(ref.mHashCode);
+                if (isProhibitedReference(ref.mHashCode)) {
+                    Logging.error(LOG_TAG, "Garbage-collected #" + ref.mHashCode + " (" + ref.mFieldType + ") that is a prohibited reference!");
+                }
+                mObjectIdentifiers.forget(ref.mInstance);
+                Logging.debug(LOG_TAG, "Garbage-collected #" + ref.mHashCode + " (" + ref.mFieldType + ") during GC!");
+            }
+        }
+        
+        TransientMemory transientMemory = SimulatorSystem.getTransientMemoryInstance();
+        for (TransientSegment segment : transientMemory.clearOnDeselect.values()) {
+            segment.removeCollected();
+        }
+        for (TransientSegment segment : transientMemory.clearOnReset.values()) {
+            segment.removeCollected();
+        }
+    }
+    
     /**
      * Reset persistent object storage.
      */
     public void reset(boolean resetProhibitedList) {
-        mReferenceMap.clear();
+        clearReferences();
+        releaseSavepoints();
         mDeserializedReferenceMap.clear();
         mClassMap.clear();
+        mDeserializedClassMap.clear();
+        mUnresolvedClasses.clear();
         mNamedInstanceMap.clear();
+        ++mNamedInstanceVersion;
         if (resetProhibitedList) {
             mProhibitedClasses.clear();
             mProhibitedReferences.clear();
+            mProhibitedObjects.clear();
+        }
+        for (DirtySet dirtySet : mDirtySets) {
+            dirtySet.clear();
         }
-        mDirtyClasses.clear();
-        mDirtyReferences.clear();
-        mPreviousDirtyClasses.clear();
-        mPreviousDirtyReferences.clear();
+        mDirtySetDepth = 0;
+        mDirtySet = mDirtySets.get(0);
+        mMinorCollections = 0;
+        promoteAll();
         mCurrentRefreshTag = 0;
-        UniqueObjectIdentifier.reset();
+        mSaveGeneration = 0;
+        mDeltaBaseValid = false;
+        mObjectIdentifiers.reset();
+        
+        // identifiers of prohibited objects would otherwise be handed out to other objects
+        mProhibitedReferences.clear();
+        for (Object object : mProhibitedObjects) {
+            mProhibitedReferences.add(getObjectIdentityHashCode(object));
+        }
     }
     
+    /**
+     * Snapshot types written by {@link #serializeToXml(XmlSerializer, int)}.
+     */
+    private static final int SNAPSHOT_FULL = 0;
+    private static final int SNAPSHOT_DELTA = 1;
+    private static final int SNAPSHOT_COMPACTED = 2;
+
     /**
      * Serialize persistent memory to XML.
      * 
      * @param xml XmlSerializer instance used as target for serialization.
      */
     public void serializeToXml(XmlSerializer xml) {
+        serializeToXml(xml, SNAPSHOT_FULL);
+    }
+
+    /**
+     * Check if an incremental snapshot can be written, i.e. if a snapshot
+     * has already been written in this session. (Object identities are
+     * re-assigned when memory is de-serialized, so the first snapshot after
+     * loading always needs to be a full snapshot.)
+     * 
+     * @return true if {@link #serializeDeltaToXml(XmlSerializer)} can be used.
+     */
+    public boolean canSerializeDelta() {
+        return mDeltaBaseValid;
+    }
+
+    /**
+     * Serialize an incremental snapshot to XML. The snapshot contains only
+     * the references and classes that have been refreshed or reverted since
+     * the previous snapshot (full or incremental) and has to be applied on
+     * top of that snapshot.
+     * 
+     * @param xml XmlSerializer instance used as target for serialization.
+     * @return false if no incremental snapshot could be written (see {@link #canSerializeDelta()}).
+     */
+    public boolean serializeDeltaToXml(XmlSerializer xml) {
+        if (!mDeltaBaseValid) {
+            Logging.error(LOG_TAG, "Incremental snapshot requested without base snapshot!");
+            return false;
+        }
+        serializeToXml(xml, SNAPSHOT_DELTA);
+        return true;
+    }
+
+    /**
+     * Serialize persistent memory to XML.
+     * 
+     * @param xml XmlSerializer instance used as target for serialization.
+     * @param snapshotType Type of snapshot (full, incremental or compacted from de-serialized snapshots).
+     */
+    private void serializeToXml(XmlSerializer xml, int snapshotType) {
+        final int generation = (snapshotType == SNAPSHOT_COMPACTED) ? mSaveGeneration : (mSaveGeneration + 1);
+        
+        mSerializedArrayContents = new HashMap();
         try {
             try {
                 xml.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
@@ -681,13 +1932,19 @@ public class PersistentMemory {
 
             xml.setPrefix("", XmlSchemaPersistentMemory.URI);
             xml.startTag(XmlSchemaPersistentMemory.URI, XmlSchemaPersistentMemory.TAG_ROOT);
+            xml.attribute(null, XmlSchemaPersistentMemory.ATTRIBUTE_GENERATION, Integer.toString(generation));
+            if (snapshotType == SNAPSHOT_DELTA) {
+                xml.attribute(null, XmlSchemaPersistentMemory.ATTRIBUTE_BASE_GENERATION, Integer.toString(mSaveGeneration));
+            }
 
             xml.startTag(null, XmlSchemaPersistentMemory.TAG_NAMED_INSTANCES);
             for (Map.Entry<String, FieldState> obj : mNamedInstanceMap.entrySet()) {
                 FieldState fieldState = obj.getValue();
                 if (fieldState != null) {
-                    // make sure that this FieldState's object instance has been created, otherwise we would link to an invalid hash code
-                    fieldState.getInstance();
+                    if (snapshotType != SNAPSHOT_COMPACTED) {
+                        // make sure that this FieldState's object instance has been created, otherwise we would link to an invalid hash code
+                        fieldState.getInstance();
+                    }
                     
                     xml.startTag(null, XmlSchemaPersistentMemory.TAG_NAMED_INSTANCE);
                     xml.attribute(null, XmlSchemaPersistentMemory.ATTRIBUTE_NAME, obj.getKey());
@@ -698,32 +1955,63 @@ public class PersistentMemory {
             xml.endTag(null, XmlSchemaPersistentMemory.TAG_NAMED_INSTANCES);
 
             xml.startTag(null, XmlSchemaPersistentMemory.TAG_REFERENCES);
-            for (Map.Entry<Long, FieldState> ref : mReferenceMap.entrySet()) {
-                FieldState state = ref.getValue();
+            for (FieldState state : getReferences()) {
                 if (state != null) {
-                    if (state.isRecreated()) {  // garbage-collect unused references
-                        state.serializeToXml(xml);
+                    if (snapshotType == SNAPSHOT_COMPACTED) {
+                        if (state.isMarkedReachable()) {
+                            state.serializeToXml(xml);
+                        }
+                    } else if (state.isRecreated()) {  // garbage-collect unused references
+                        if ((snapshotType == SNAPSHOT_FULL) || state.isModifiedSinceSave()) {
+                            state.serializeToXml(xml);
+                        }
+                        state.markSaved();
                     } else {
-                        Logging.debug(LOG_TAG, "Garbage-collected #" + ref.getKey() + " (" + state.getFieldType() + ") during serialization!");
+                        Logging.debug(LOG_TAG, "Garbage-collected #" + state.getHashCode() + " (" + state.getFieldType() + ") during serialization!");
                     }
                 }
             }
             xml.endTag(null, XmlSchemaPersistentMemory.TAG_REFERENCES);
 
             xml.startTag(null, XmlSchemaPersistentMemory.TAG_CLASSES);
-            for (Map.Entry<String, ClassState> cls : mClassMap.entrySet()) {
-                ClassState state = cls.getValue();
-                if (state != null) {
-                    state.serializeToXml(xml);
-                }
+            for (ClassState state : mClassMap.values()) {
+                serializeClassToXml(xml, state, snapshotType);
+            }
+            for (ClassState state : mUnresolvedClasses) {
+                serializeClassToXml(xml, state, snapshotType);
             }
             xml.endTag(null, XmlSchemaPersistentMemory.TAG_CLASSES);
 
             xml.endTag(XmlSchemaPersistentMemory.URI, XmlSchemaPersistentMemory.TAG_ROOT);
 
             xml.endDocument();
+            
+            if (snapshotType != SNAPSHOT_COMPACTED) {
+                mSaveGeneration = generation;
+                mDeltaBaseValid = true;
+            }
         } catch (Exception e) {
             Logging.error(LOG_TAG, "Exception while serializing to XML: " + e.toString(), e);
+            mDeltaBaseValid = false;  // the next snapshot needs to be a full snapshot
+        } finally {
+            mSerializedArrayContents = null;
+        }
+    }
+
+    /**
+     * Serialize a ClassState to XML (unless it is unmodified and an incremental
+     * snapshot is written).
+     * 
+     * @param xml XmlSerializer instance used as target for serialization.
+     * @param state ClassState.
+     * @param snapshotType Snapshot type (SNAPSHOT_FULL, SNAPSHOT_DELTA or SNAPSHOT_COMPACTED).
+     */
+    private static void serializeClassToXml(XmlSerializer xml, ClassState state, int snapshotType) throws Exception {
+        if (state != null) {
+            if ((snapshotType != SNAPSHOT_DELTA) || state.isModifiedSinceSave()) {
+                state.serializeToXml(xml);
+            }
+            state.markSaved();
         }
     }
 
@@ -744,12 +2032,137 @@ public class PersistentMemory {
      * @param xml XmlPullParser instance used as source for de-serialization.
      */
     public void deserializeFromXml(XmlPullParser xml) {
-        mReferenceMap.clear();
+        deserializeFromXml(xml, null);
+    }
+
+    /**
+     * De-serialize persistent memory from a base snapshot and a sequence of
+     * incremental snapshots. Incremental snapshots are applied in order
+     * until one of them does not continue the previous snapshot.
+     * 
+     * @param xml XmlPullParser instance used as source for de-serialization of the base snapshot.
+     * @param deltas XmlPullParser instances used as sources for de-serialization of the incremental snapshots (may be null).
+     */
+    public void deserializeFromXml(XmlPullParser xml, List<XmlPullParser> deltas) {
+        clearReferences();
+        promoteAll();  // de-serialized FieldStates always belong to the old generation
+        releaseSavepoints();
         mDeserializedReferenceMap.clear();
         mClassMap.clear();
+        mDeserializedClassMap.clear();
+        mUnresolvedClasses.clear();
         mNamedInstanceMap.clear();
+        ++mNamedInstanceVersion;
         Map<String, Long> deserializedNamedInstanceMap = new HashMap();
 
+        parseSnapshots(xml, deltas, deserializedNamedInstanceMap);
+        mDeltaBaseValid = false;
+
+        relinkDeserializedReferences();
+
+        for (ClassState classState : mDeserializedClassMap.values()) {
+            classState.relinkReferences(mDeserializedReferenceMap);
+            classState.restoreClass();  // while objects can be restored upon "using" (assigning) them, classes need to be restored immediately
+            
+            Class classObject = classState.getClassObject();
+            if (classObject != null) {
+                mClassMap.put(classObject, classState);
+            } else {
+                mUnresolvedClasses.add(classState);
+            }
+        }
+        mDeserializedClassMap.clear();
+
+        for (Map.Entry<String, Long> instance : deserializedNamedInstanceMap.entrySet()) {
+            Long hashCode = instance.getValue();
+            if (hashCode != null) {
+                FieldState fieldState = mDeserializedReferenceMap.get(hashCode);
+                if (fieldState != null) {
+                    mNamedInstanceMap.put(instance.getKey(), fieldState);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge a base snapshot and a sequence of incremental snapshots into a
+     * single (compacted) snapshot. References that are no longer reachable
+     * from any class, named instance or transient array are dropped. Object
+     * instances are not recreated during compaction.
+     * 
+     * @param xml XmlPullParser instance used as source for de-serialization of the base snapshot.
+     * @param deltas XmlPullParser instances used as sources for de-serialization of the incremental snapshots (may be null).
+     * @param out XmlSerializer instance used as target for serialization of the compacted snapshot.
+     */
+    public static void compactSnapshots(XmlPullParser xml, List<XmlPullParser> deltas, XmlSerializer out) {
+        final PersistentMemory memory = new PersistentMemory();
+        Map<String, Long> deserializedNamedInstanceMap = new HashMap();
+
+        memory.parseSnapshots(xml, deltas, deserializedNamedInstanceMap);
+        memory.relinkDeserializedReferences();
+        for (ClassState classState : memory.mDeserializedClassMap.values()) {
+            classState.relinkReferences(memory.mDeserializedReferenceMap);
+        }
+        memory.mUnresolvedClasses.addAll(memory.mDeserializedClassMap.values());  // classes are not loaded during compaction
+        for (Map.Entry<String, Long> instance : deserializedNamedInstanceMap.entrySet()) {
+            FieldState fieldState = memory.mDeserializedReferenceMap.get(instance.getValue());
+            if (fieldState != null) {
+                memory.mNamedInstanceMap.put(instance.getKey(), fieldState);
+            }
+        }
+        memory.mReferenceMap.putAll(memory.mDeserializedReferenceMap);
+
+        // mark reachable references
+        memory.beginRefresh();
+        for (ClassState classState : memory.mUnresolvedClasses) {
+            classState.pingClass();
+        }
+        for (FieldState fieldState : memory.mNamedInstanceMap.values()) {
+            fieldState.pingInstance();
+        }
+        for (FieldState fieldState : memory.mReferenceMap.values()) {
+            if (fieldState instanceof TransientArrayState) {
+                fieldState.pingInstance();  // referenced by transient memory
+            }
+        }
+
+        memory.serializeToXml(out, SNAPSHOT_COMPACTED);
+    }
+
+    /**
+     * Parse a base snapshot and a sequence of incremental snapshots. Later
+     * snapshots override references, classes and named instances of
+     * earlier snapshots.
+     * 
+     * @param xml Base snapshot.
+     * @param deltas Incremental snapshots (may be null).
+     * @param deserializedNamedInstanceMap Receives the mapping of named instances to de-serialized hash codes.
+     */
+    private void parseSnapshots(XmlPullParser xml, List<XmlPullParser> deltas, Map<String, Long> deserializedNamedInstanceMap) {
+        int generation = parseSnapshot(xml, -1, deserializedNamedInstanceMap);
+        if (deltas != null) {
+            for (XmlPullParser delta : deltas) {
+                final int deltaGeneration = parseSnapshot(delta, generation, deserializedNamedInstanceMap);
+                if (deltaGeneration < 0) {
+                    break;
+                }
+                generation = deltaGeneration;
+            }
+        }
+        mSaveGeneration = (generation > 0) ? generation : 0;
+    }
+
+    /**
+     * Parse a single snapshot.
+     * 
+     * @param xml XmlPullParser instance used as source for de-serialization.
+     * @param baseGeneration Generation of the snapshot that an incremental snapshot needs to continue (-1 for a base snapshot).
+     * @param deserializedNamedInstanceMap Receives the mapping of named instances to de-serialized hash codes.
+     * @return Generation of the parsed snapshot, or -1 if the snapshot has not been applied.
+     */
+    private int parseSnapshot(XmlPullParser xml, int baseGeneration, Map<String, Long> deserializedNamedInstanceMap) {
+        int generation = 0;
+        
         try {
             DeserializationParserState parserState = DeserializationParserState.eNone;
             int eventType = xml.getEventType();
@@ -760,12 +2173,24 @@ public class PersistentMemory {
                     case XmlPullParser.START_TAG:
                         tag = xml.getName();
 
-                        if (tag.equals(XmlSchemaPersistentMemory.TAG_REFERENCES)) {
+                        if (tag.equals(XmlSchemaPersistentMemory.TAG_ROOT)) {
+                            String generationValue = xml.getAttributeValue(null, XmlSchemaPersistentMemory.ATTRIBUTE_GENERATION);
+                            String baseGenerationValue = xml.getAttributeValue(null, XmlSchemaPersistentMemory.ATTRIBUTE_BASE_GENERATION);
+                            if (generationValue != null) {
+                                generation = Integer.parseInt(generationValue);
+                            }
+                            if ((baseGeneration >= 0) &&
+                                ((baseGenerationValue == null) || (Integer.parseInt(baseGenerationValue) != baseGeneration))) {
+                                Logging.error(LOG_TAG, "Incremental snapshot " + generation + " does not continue snapshot " + baseGeneration + "!");
+                                return -1;
+                            }
+                        } else if (tag.equals(XmlSchemaPersistentMemory.TAG_REFERENCES)) {
                             parserState = DeserializationParserState.eReferences;
                         } else if (tag.equals(XmlSchemaPersistentMemory.TAG_CLASSES)) {
                             parserState = DeserializationParserState.eClasses;
                         } else if (tag.equals(XmlSchemaPersistentMemory.TAG_NAMED_INSTANCES)) {
                             parserState = DeserializationParserState.eNamedInstances;
+                            deserializedNamedInstanceMap.clear();  // every snapshot contains all named instances
                         } else {
                             switch (parserState) {
                                 case eReferences:
@@ -811,24 +2236,60 @@ public class PersistentMemory {
         } catch (Exception e) {
             Logging.error(LOG_TAG, "Exception while de-serializing from XML: " + e.toString(), e);
         }
+        
+        return generation;
+    }
 
-        for (FieldState fieldState : mDeserializedReferenceMap.values()) {
-            fieldState.relinkReferences(mDeserializedReferenceMap);
-        }
-
-        for (ClassState classState : mClassMap.values()) {
-            classState.relinkReferences(mDeserializedReferenceMap);
-            classState.restoreClass();  // while objects can be restored upon "using" (assigning) them, classes need to be restored immediately
+    /**
+     * Set the maximum number of threads used to relink de-serialized
+     * references (defaults to the number of available processors).
+     * 
+     * @param relinkThreads Maximum number of threads (1 relinks sequentially).
+     */
+    /* package */ void setRelinkThreads(int relinkThreads) {
+        mRelinkThreads = Math.max(1, relinkThreads);
+    }
+    
+    /**
+     * Recreate the links between all de-serialized references. As relinking
+     * only modifies the relinked FieldState itself (and resolves reflective
+     * handles through the shared {@link ReflectionCache}), large reference
+     * lists are partitioned into ranges that are relinked in parallel.
+     */
+    private void relinkDeserializedReferences() {
+        final List<FieldState> fieldStates = new ArrayList<FieldState>(mDeserializedReferenceMap.values());
+        final int numThreads = Math.min(mRelinkThreads, fieldStates.size() / (PARALLEL_RELINK_THRESHOLD / 2));
+        
+        if ((fieldStates.size() < PARALLEL_RELINK_THRESHOLD) || (numThreads <= 1)) {
+            for (FieldState fieldState : fieldStates) {
+                fieldState.relinkReferences(mDeserializedReferenceMap);
+            }
+            return;
         }
 
-        for (Map.Entry<String, Long> instance : deserializedNamedInstanceMap.entrySet()) {
-            Long hashCode = instance.getValue();
-            if (hashCode != null) {
-                FieldState fieldState = mDeserializedReferenceMap.get(hashCode);
-                if (fieldState != null) {
-                    mNamedInstanceMap.put(instance.getKey(), fieldState);
-                }
+        Logging.debug(LOG_TAG, "Relinking " + fieldStates.size() + " references on " + numThreads + " threads");
+        
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            final List<Future<?>> partitions = new ArrayList<Future<?>>(numThreads);
+            final int partitionSize = (fieldStates.size() + numThreads - 1) / numThreads;
+            for (int start = 0; start < fieldStates.size(); start += partitionSize) {
+                final List<FieldState> partition = fieldStates.subList(start, Math.min(start + partitionSize, fieldStates.size()));
+                partitions.add(executor.submit(new Runnable() {
+                    public void run() {
+                        for (FieldState fieldState : partition) {
+                            fieldState.relinkReferences(mDeserializedReferenceMap);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> partition : partitions) {
+                partition.get();
             }
+        } catch (Exception e) {
+            Logging.error(LOG_TAG, "Exception while relinking de-serialized references: " + e.toString(), e);
+        } finally {
+            executor.shutdown();
         }
     }
     
@@ -16,6 +16,7 @@
 package at.mroland.objectstaterecovery;
 
 import at.mroland.logging.Logging;
+import java.util.List;
 import javacard.framework.AID;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlSerializer;
@@ -217,6 +218,9 @@ public class PersistentMemory_Disabled extends PersistentMemory {
     public void setDirtyNamedInstance(AID aid) {
     }
     
+    public void setDirtyNamedInstance(NamedInstanceHandle handle) {
+    }
+    
     public void memoryBarrier(boolean revertMemory) {
         if (revertMemory) {
             Logging.error(LOG_TAG, "Reverting not supported if no persistence is used!");
@@ -305,6 +309,22 @@ public class PersistentMemory_Disabled extends PersistentMemory {
     public void garbageCollect(boolean includeTransientMemory) {
     }
     
+    /**
+     * Request garbage collection of unused references.
+     */
+    public void garbageCollect(boolean includeTransientMemory, boolean majorCollection) {
+    }
+    
+    /**
+     * Roll persistent memory back to a savepoint.
+     * 
+     * @param savepoint Savepoint.
+     * @return false
+     */
+    public boolean rollbackTo(Savepoint savepoint) {
+        return false;
+    }
+    
     /**
      * Reset persistent object storage.
      */
@@ -319,6 +339,25 @@ public class PersistentMemory_Disabled extends PersistentMemory {
     public void serializeToXml(XmlSerializer xml) {
     }
 
+    /**
+     * Check if an incremental snapshot can be written.
+     * 
+     * @return false
+     */
+    public boolean canSerializeDelta() {
+        return false;
+    }
+
+    /**
+     * Serialize an incremental snapshot to XML.
+     * 
+     * @param xml XmlSerializer instance used as target for serialization.
+     * @return false
+     */
+    public boolean serializeDeltaToXml(XmlSerializer xml) {
+        return false;
+    }
+
     /**
      * De-serialize persistent memory from XML.
      * 
@@ -326,4 +365,14 @@ public class PersistentMemory_Disabled extends PersistentMemory {
      */
     public void deserializeFromXml(XmlPullParser xml) {
     }
+
+    /**
+     * De-serialize persistent memory from a base snapshot and a sequence of
+     * incremental snapshots.
+     * 
+     * @param xml XmlPullParser instance used as source for de-serialization of the base snapshot.
+     * @param deltas XmlPullParser instances used as sources for de-serialization of the incremental snapshots.
+     */
+    public void deserializeFromXml(XmlPullParser xml, List<XmlPullParser> deltas) {
+    }
 }
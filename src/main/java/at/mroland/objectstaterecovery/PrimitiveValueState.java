@@ -49,15 +49,107 @@ public class PrimitiveValueState extends FieldState {
         eUnknownPrimitive,
         eUnknown
     }
-    private String mValue;
-    private final ValueType mValueType;
-    private Object mRecoveredObject;
+    
+    /**
+     * Immutable image of a primitive value. Images are pooled in the
+     * {@link SharedStatePool}, so all PrimitiveValueStates (of all memory
+     * managers) that represent the same value share one image and one
+     * restored value object. Enumeration constants and classes are not
+     * pooled as their value objects depend on the class loader of the
+     * memory manager.
+     */
+    private static final class Image {
+        private final ValueType mValueType;
+        private final String mObjectClass;
+        private final String mValue;
+        private final Object mObject;
+        private final int mHashCode;
+        
+        private Image(ValueType valueType, String objectClass, String value, Object object) {
+            mValueType = valueType;
+            mObjectClass = (objectClass != null) ? objectClass : "";
+            mValue = value;
+            mObject = object;
+            mHashCode = 31 * (31 * valueType.hashCode() + mObjectClass.hashCode()) + ((value != null) ? value.hashCode() : 0);
+        }
+        
+        /**
+         * Get the pooled image of a primitive value.
+         * 
+         * @param valueType Primitive value type.
+         * @param objectClass Class name of the primitive value object.
+         * @param value String representation of the primitive value.
+         * @param object Primitive value object.
+         * @return Image.
+         */
+        static Image getInstance(ValueType valueType, String objectClass, String value, Object object) {
+            final Image image = new Image(valueType, objectClass, value, object);
+            if ((value == null) || (object == null) || !isShareable(valueType)) {
+                // values of unknown type and values that could not be restored are not shared
+                return image;
+            }
+            return (Image)SharedStatePool.intern(image);
+        }
+        
+        /**
+         * Get the pooled image of a de-serialized primitive value. The
+         * primitive value object is only restored if no other memory manager
+         * holds an image of the same value.
+         * 
+         * @param memoryManager PersistentMemory instance that resolves class names.
+         * @param valueType Primitive value type.
+         * @param objectClass Class name of the primitive value object.
+         * @param value String representation of the primitive value.
+         * @return Image.
+         */
+        static Image getRestoredInstance(PersistentMemory memoryManager, ValueType valueType, String objectClass, String value) {
+            if ((value != null) && isShareable(valueType)) {
+                final Image image = (Image)SharedStatePool.lookup(new Image(valueType, objectClass, value, null));
+                if (image != null) {
+                    return image;
+                }
+            }
+            return getInstance(valueType, objectClass, value, getRestoredPrimitiveFromString(memoryManager, value, valueType, objectClass));
+        }
+        
+        /**
+         * Check if images of a value type may be pooled. Enumeration
+         * constants and classes are resolved through the class loader of
+         * the memory manager, so an image restored by one memory manager
+         * must not be handed out to another one.
+         * 
+         * @param valueType Primitive value type.
+         * @return True if images of this value type are pooled.
+         */
+        private static boolean isShareable(ValueType valueType) {
+            return (valueType != ValueType.eEnum) && (valueType != ValueType.eClass);
+        }
+        
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Image)) {
+                return false;
+            }
+            Image other = (Image)obj;
+            return (mHashCode == other.mHashCode) &&
+                   (mValueType == other.mValueType) &&
+                   mObjectClass.equals(other.mObjectClass) &&
+                   ((mValue != null) ? mValue.equals(other.mValue) : (other.mValue == null));
+        }
+    }
+    
+    private final Image mImage;
 
     public PrimitiveValueState(PersistentMemory memoryManager,
                                Object referencedObject, Class referencedObjectClass) {
         super(memoryManager, getBoxedPrimitiveValue(referencedObject, getPrimitiveValueType(referencedObject, referencedObjectClass)));
-        mValueType = getPrimitiveValueType(referencedObject, referencedObjectClass);
-        mValue = getPrimitiveValue(referencedObject, mValueType);
+        final ValueType valueType = getPrimitiveValueType(referencedObject, referencedObjectClass);
+        mImage = Image.getInstance(valueType, getFieldType(), getPrimitiveValue(referencedObject, valueType), referencedObject);
     }
     
     public static PrimitiveValueState getInstance(PersistentMemory memoryManager,
@@ -66,7 +158,7 @@ public class PrimitiveValueState extends FieldState {
         String value = getPrimitiveValue(referencedObject, valueType);
         
         Object newObjectInstance = getSingleInstancePrimitiveFromObject(referencedObject, valueType);
-        Long newIdentityHashCode = getObjectIdentityHashCode(newObjectInstance);
+        Long newIdentityHashCode = memoryManager.getObjectIdentityHashCode(newObjectInstance);
         
         FieldState instance = memoryManager.getReference(newIdentityHashCode);
         
@@ -77,7 +169,7 @@ public class PrimitiveValueState extends FieldState {
             instance = null;
             Logging.error(LOG_TAG, "Found instance with duplicate hash code of primitive value that is not an instance of PrimitiveValueState (#" + newIdentityHashCode + ")");
         } else if ((referencedObjectClass != null) && !referencedObjectClass.getName().equals(instance.getFieldType())) {
-            Logging.error(LOG_TAG, "Found instance of different primitive value type: " + value + " [" + referencedObjectClass.getName() + ", " + valueType + ", #" + newIdentityHashCode + ", was #unknown] vs. " + instance.getInstance() + " [" + instance.getFieldType() + ", " + ((PrimitiveValueState)instance).mValueType + ", #" + instance.getHashCode() + "]");
+            Logging.error(LOG_TAG, "Found instance of different primitive value type: " + value + " [" + referencedObjectClass.getName() + ", " + valueType + ", #" + newIdentityHashCode + ", was #unknown] vs. " + instance.getInstance() + " [" + instance.getFieldType() + ", " + ((PrimitiveValueState)instance).mImage.mValueType + ", #" + instance.getHashCode() + "]");
         } else {
             Logging.debug(LOG_TAG, "Re-using PrimitiveValueState (new #" + newIdentityHashCode + ", was #unknown)");
         }
@@ -85,31 +177,29 @@ public class PrimitiveValueState extends FieldState {
         return (PrimitiveValueState)instance;
     }
 
-    protected PrimitiveValueState(PersistentMemory memoryManager,
-                               Object recoveredObject, String recoveredObjectClass, Long recoveredIdentityHashCode,
-                               String valueType, String value) {
+    private PrimitiveValueState(PersistentMemory memoryManager,
+                                Image recoveredImage, String recoveredObjectClass, Long recoveredIdentityHashCode) {
         super(memoryManager, recoveredObjectClass, recoveredIdentityHashCode);
-        mValueType = ValueType.valueOf(valueType);
-        mValue = value;
-        mRecoveredObject = recoveredObject;
+        mImage = recoveredImage;
     }
 
     public static PrimitiveValueState getInstance(PersistentMemory memoryManager,
                                String recoveredObjectClass, Long recoveredIdentityHashCode,
                                String valueType, String value) {
-        Object newObjectInstance = getRestoredPrimitiveFromString(value, ValueType.valueOf(valueType), recoveredObjectClass);
-        Long newIdentityHashCode = getObjectIdentityHashCode(newObjectInstance);
+        Image image = Image.getRestoredInstance(memoryManager, ValueType.valueOf(valueType), recoveredObjectClass, value);
+        Object newObjectInstance = image.mObject;
+        Long newIdentityHashCode = memoryManager.getObjectIdentityHashCode(newObjectInstance);
         
         FieldState instance = memoryManager.getReference(newIdentityHashCode);
         
         if (instance == null) {
-            instance = new PrimitiveValueState(memoryManager, newObjectInstance, recoveredObjectClass, recoveredIdentityHashCode, valueType, value);
+            instance = new PrimitiveValueState(memoryManager, image, recoveredObjectClass, recoveredIdentityHashCode);
             instance.getInstance();
         } else if (!(instance instanceof PrimitiveValueState)) {
             instance = null;
             Logging.error(LOG_TAG, "Found instance with duplicate hash code of primitive value that is not an instance of PrimitiveValueState (#" + newIdentityHashCode + ")");
         } else if (!recoveredObjectClass.equals(instance.getFieldType())) {
-            Logging.error(LOG_TAG, "Found instance of different primitive value type: " + value + " [" + recoveredObjectClass + ", " + valueType + ", #" + newIdentityHashCode + ", was #" + recoveredIdentityHashCode + "] vs. " + instance.getInstance() + " [" + instance.getFieldType() + ", " + ((PrimitiveValueState)instance).mValueType + ", #" + instance.getHashCode() + "]");
+            Logging.error(LOG_TAG, "Found instance of different primitive value type: " + value + " [" + recoveredObjectClass + ", " + valueType + ", #" + newIdentityHashCode + ", was #" + recoveredIdentityHashCode + "] vs. " + instance.getInstance() + " [" + instance.getFieldType() + ", " + ((PrimitiveValueState)instance).mImage.mValueType + ", #" + instance.getHashCode() + "]");
         } else {
             Logging.debug(LOG_TAG, "Re-using PrimitiveValueState (new #" + newIdentityHashCode + ", was #" + recoveredIdentityHashCode + ")");
         }
@@ -313,7 +403,7 @@ public class PrimitiveValueState extends FieldState {
         }
     }
     
-    private static Object getRestoredPrimitiveFromString(String value, ValueType type, String objectClassName) {
+    private static Object getRestoredPrimitiveFromString(PersistentMemory memoryManager, String value, ValueType type, String objectClassName) {
         Object newInstance = null;
         try {
             switch (type) {
@@ -352,7 +442,7 @@ public class PrimitiveValueState extends FieldState {
                     break;
                 case eEnum:
                     try {
-                        Class objectClass = Class.forName(objectClassName);
+                        Class objectClass = memoryManager.loadClass(objectClassName);
                         if (objectClass != null) {
                             newInstance = Enum.valueOf(objectClass, value);
                         }
@@ -379,7 +469,7 @@ public class PrimitiveValueState extends FieldState {
                         } else if (char.class.getName().equals(value)) {
                             newInstance = char.class;
                         } else {
-                            newInstance = Class.forName(value);
+                            newInstance = memoryManager.loadClass(value);
                         }
                     } catch (Exception e) {
                         Logging.error(LOG_TAG, "Could not get class by name " + value, e);
@@ -477,13 +567,14 @@ public class PrimitiveValueState extends FieldState {
     /**
      * Get unique hash code for given primitive value.
      * 
+     * @param objectIdentifiers Object identifier allocator of the PersistentMemory instance.
      * @param o An object.
      * @return Unique identity hash code for <code>o</code>.
      */
-    public static Long getPrimitiveValueIdentityHashCode(Object o) {
+    public static Long getPrimitiveValueIdentityHashCode(UniqueObjectIdentifier objectIdentifiers, Object o) {
         ValueType valueType = getPrimitiveValueType(o, null);
         Object singleObjectInstance = getSingleInstancePrimitiveFromObject(o, valueType);
-        return Long.valueOf(UniqueObjectIdentifier.get(singleObjectInstance));
+        return Long.valueOf(objectIdentifiers.get(singleObjectInstance));
     }
     
     /**
@@ -510,7 +601,7 @@ public class PrimitiveValueState extends FieldState {
     @Override
     protected void loadInstanceToField(Field field, Object parentInstance, Object instance) throws Exception {
         if (field.getType().isPrimitive()) {
-            switch (mValueType) {
+            switch (mImage.mValueType) {
                 case eBoolean:
                     field.setBoolean(parentInstance, ((Boolean)instance).booleanValue());
                     break;
@@ -550,10 +641,10 @@ public class PrimitiveValueState extends FieldState {
      * @return Restored object instance.
      */
     protected Object restoreInstance() {
-        Object newInstance = mRecoveredObject;
+        Object newInstance = mImage.mObject;
 
         if (newInstance == null) {
-            Logging.error(LOG_TAG, "Error restoring primitive value: " + mValue + " (" + mValueType + ")");
+            Logging.error(LOG_TAG, "Error restoring primitive value: " + mImage.mValue + " (" + mImage.mValueType + ")");
         }
         
         setInstanceRestored(newInstance);
@@ -605,8 +696,8 @@ public class PrimitiveValueState extends FieldState {
             serializeBoundClassesToXml(xml);
             
             xml.startTag(null, XmlSchemaPersistentMemory.TAG_PRIMITIVE_VALUE);
-            xml.attribute(null, XmlSchemaPersistentMemory.ATTRIBUTE_PRIMITIVE_VALUE_TYPE, mValueType.name());
-            xml.text(mValue);
+            xml.attribute(null, XmlSchemaPersistentMemory.ATTRIBUTE_PRIMITIVE_VALUE_TYPE, mImage.mValueType.name());
+            xml.text(mImage.mValue);
             xml.endTag(null, XmlSchemaPersistentMemory.TAG_PRIMITIVE_VALUE);
 
             xml.endTag(null, XmlSchemaPersistentMemory.TAG_FIELDSTATE_PRIMITIVE);
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.mroland.objectstaterecovery;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import org.objenesis.Objenesis;
+import org.objenesis.ObjenesisStd;
+import org.objenesis.instantiator.ObjectInstantiator;
+
+/**
+ * Cache of reflective handles (instantiators and member fields) used to
+ * capture and restore object state. All handles are keyed by {@link Class}
+ * identity, so classes of the same name that are loaded by different class
+ * loaders are kept apart. Class names are resolved by the memory managers
+ * (see {@link PersistentMemory#loadClass(String)}).
+ * 
+ * Qualified field names are taken from the {@link SharedStatePool} once when
+ * the fields of a class are first looked up, so refreshing objects and
+ * classes does not need to access the pool.
+ * 
+ * The cache is shared between all memory managers and may be used
+ * concurrently (e.g. while de-serialized references are relinked in
+ * parallel).
+ *
+ * @author mroland
+ */
+final class ReflectionCache {
+    private static final Objenesis sObjenesis = new ObjenesisStd(false);  // the Objenesis cache is keyed by class name
+    private static final ConcurrentHashMap<Class, ObjectInstantiator> sInstantiators = new ConcurrentHashMap<Class, ObjectInstantiator>();
+    private static final ConcurrentHashMap<Class, ConcurrentHashMap<String, Field>> sFields = new ConcurrentHashMap<Class, ConcurrentHashMap<String, Field>>();
+    private static final ConcurrentHashMap<Class, InstanceFields> sInstanceFields = new ConcurrentHashMap<Class, InstanceFields>();
+    private static final ConcurrentHashMap<Class, StaticFields> sStaticFields = new ConcurrentHashMap<Class, StaticFields>();
+
+    /**
+     * Persistable (non-static, non-transient) member fields of a class and
+     * its super classes.
+     */
+    static final class InstanceFields {
+        final Field[] fields;
+        final String[] qualifiedNames;
+
+        private InstanceFields(Field[] fields, String[] qualifiedNames) {
+            this.fields = fields;
+            this.qualifiedNames = qualifiedNames;
+        }
+    }
+
+    /**
+     * Persistable static fields declared by a class (i.e. all static fields
+     * except constants of primitive and primitive array types).
+     */
+    static final class StaticFields {
+        final Field[] fields;
+        final String[] qualifiedNames;
+
+        private StaticFields(Field[] fields, String[] qualifiedNames) {
+            this.fields = fields;
+            this.qualifiedNames = qualifiedNames;
+        }
+    }
+
+    private ReflectionCache() {
+    }
+
+    /**
+     * Create a new instance of a class without invoking any of its constructors.
+     * 
+     * @param classObject Class object.
+     * @return New object instance.
+     */
+    static Object newInstance(Class classObject) {
+        ObjectInstantiator instantiator = sInstantiators.get(classObject);
+        if (instantiator == null) {
+            instantiator = sObjenesis.getInstantiatorOf(classObject);
+            sInstantiators.put(classObject, instantiator);
+        }
+        return instantiator.newInstance();
+    }
+
+    /**
+     * Get an (accessible) member field declared by a class.
+     * 
+     * @param declaringClass Class object of the declaring class.
+     * @param fieldName Field name.
+     * @return {@link Field} object.
+     * @throws NoSuchFieldException if the class does not declare the field.
+     */
+    static Field getField(Class declaringClass, String fieldName) throws NoSuchFieldException {
+        ConcurrentHashMap<String, Field> fields = sFields.get(declaringClass);
+        if (fields == null) {
+            fields = new ConcurrentHashMap<String, Field>();
+            final ConcurrentHashMap<String, Field> existingFields = sFields.putIfAbsent(declaringClass, fields);
+            if (existingFields != null) {
+                fields = existingFields;
+            }
+        }
+        Field field = fields.get(fieldName);
+        if (field == null) {
+            field = declaringClass.getDeclaredField(fieldName);
+            field.setAccessible(true);
+            fields.put(fieldName, field);
+        }
+        return field;
+    }
+
+    /**
+     * Get the persistable member fields of a class and its super classes.
+     * 
+     * @param classObject Class object.
+     * @return Persistable member fields.
+     */
+    static InstanceFields getInstanceFields(Class classObject) {
+        InstanceFields instanceFields = sInstanceFields.get(classObject);
+        if (instanceFields == null) {
+            final List<Field> fields = new ArrayList<Field>();
+            final List<String> qualifiedNames = new ArrayList<String>();
+            for (Class c = classObject; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    final int fieldModifiers = field.getModifiers();
+
+                    // fields marked as not persistent hold caches (e.g. JCA provider objects) that are re-created on demand
+                    if (!Modifier.isStatic(fieldModifiers) && !field.isAnnotationPresent(NotPersistent.class)) {
+                        field.setAccessible(true);
+                        fields.add(field);
+                        qualifiedNames.add(SharedStatePool.internName(c.getName() + "#" + field.getName()));
+                    }
+                }
+            }
+            instanceFields = new InstanceFields(fields.toArray(new Field[fields.size()]),
+                                                qualifiedNames.toArray(new String[qualifiedNames.size()]));
+            sInstanceFields.put(classObject, instanceFields);
+        }
+        return instanceFields;
+    }
+
+    /**
+     * Get the persistable static fields declared by a class.
+     * 
+     * @param classObject Class object.
+     * @return Persistable static fields.
+     */
+    static StaticFields getStaticFields(Class classObject) {
+        StaticFields staticFields = sStaticFields.get(classObject);
+        if (staticFields == null) {
+            final List<Field> fields = new ArrayList<Field>();
+            final List<String> qualifiedNames = new ArrayList<String>();
+            for (Field field : classObject.getDeclaredFields()) {
+                final int fieldModifiers = field.getModifiers();
+                if (Modifier.isStatic(fieldModifiers)) {
+                    final Class fieldType = field.getType();
+                    final boolean isFinal = Modifier.isFinal(fieldModifiers);
+                    if (isFinal && PrimitiveValueState.isPrimitiveValueType(fieldType)) {
+                        // skip static constants of primitive types
+                    } else if (isFinal && fieldType.isArray() && PrimitiveValueState.isPrimitiveValueType(fieldType.getComponentType())) {
+                        // skip static constants of primitive array types
+                    } else {
+                        try {
+                            field.setAccessible(true);
+                        } catch (RuntimeException e) {
+                            // reported when the field is accessed
+                        }
+                        fields.add(field);
+                        qualifiedNames.add(SharedStatePool.internName(classObject.getName() + "#" + field.getName()));
+                    }
+                }
+            }
+            staticFields = new StaticFields(fields.toArray(new Field[fields.size()]),
+                                            qualifiedNames.toArray(new String[qualifiedNames.size()]));
+            sStaticFields.put(classObject, staticFields);
+        }
+        return staticFields;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.mroland.objectstaterecovery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Savepoint of persistent and transient memory.
+ *
+ * A savepoint records the images of FieldStates and ClassStates before
+ * they are first refreshed after the savepoint has been created, together
+ * with the named instances and the layout of the transient memory segments
+ * at that time. Rolling back to the savepoint restores these images and
+ * reverts only the objects and classes that have changed since.
+ *
+ * @author mroland
+ */
+public final class Savepoint {
+    final int mSerial;
+    final Map<String, FieldState> mNamedInstances;
+    final List<FieldState> mReferences = new ArrayList();
+    final List<Object> mReferenceImages = new ArrayList();
+    final List<ClassState> mClasses = new ArrayList();
+    final List<Object> mClassImages = new ArrayList();
+    final Map<String, List<FieldState>> mClearOnDeselect = new HashMap();
+    final Map<String, List<FieldState>> mClearOnReset = new HashMap();
+    final Set<String> mSharedContexts = new HashSet();
+    boolean mValid;
+
+    Savepoint(int serial, Map<String, FieldState> namedInstances) {
+        mSerial = serial;
+        mNamedInstances = new HashMap(namedInstances);
+        mValid = true;
+    }
+
+    /**
+     * Check if this savepoint can still be rolled back to. Savepoints are
+     * invalidated when they are released, when persistent memory is reset
+     * or loaded, and when an older savepoint is rolled back to.
+     *
+     * @return true if savepoint is valid.
+     */
+    public boolean isValid() {
+        return mValid;
+    }
+
+    /**
+     * Get the number of objects and classes that have changed since this
+     * savepoint was created.
+     *
+     * @return Number of recorded images.
+     */
+    public int getRecordedImages() {
+        return mReferences.size() + mClasses.size();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.mroland.objectstaterecovery;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * Pool of read-only state shared between all memory managers (i.e. between
+ * all PersistentMemory instances in the same process).
+ * 
+ * The pool holds canonical instances of class and field metadata (class
+ * names, field types and qualified field names) and of the images of
+ * primitive values, so that memory managers point into the pool instead of
+ * keeping their own copies. Pooled entries are immutable: writing a field
+ * replaces the link to the pooled entry in the owning FieldState or
+ * ClassState, the pooled entry itself is never modified.
+ * 
+ * Only this metadata and primitive value images are shared (except for
+ * enumeration constants and classes, whose value objects depend on the class
+ * loader of the memory manager). FieldStates and ClassStates stay per memory
+ * manager, and so do array images. This includes the images of arrays that
+ * are never modified (e.g. constant tables of an applet): ArrayState has no
+ * copy-on-write support, so every memory manager keeps its own copy of their
+ * contents.
+ * 
+ * Entries are only weakly referenced by the pool. An entry is dropped once
+ * it is no longer referenced by any FieldState or ClassState of any memory
+ * manager. Access to the pool is serialized, so it is only used when states
+ * are created, change their value or are de-serialized. Qualified field names
+ * that are needed while refreshing are interned once per class by
+ * {@link ReflectionCache}.
+ *
+ * @author mroland
+ */
+final class SharedStatePool {
+    private static final WeakHashMap<Object, WeakReference<Object>> sEntries = new WeakHashMap<Object, WeakReference<Object>>();
+
+    private SharedStatePool() {
+    }
+
+    /**
+     * Get the pooled instance that is equal to a given immutable object.
+     * 
+     * @param key Immutable object.
+     * @return Pooled instance, or null if no equal instance is pooled.
+     */
+    static Object lookup(Object key) {
+        synchronized (sEntries) {
+            final WeakReference<Object> entry = sEntries.get(key);
+            return (entry != null) ? entry.get() : null;
+        }
+    }
+
+    /**
+     * Get the pooled instance that is equal to a given immutable object.
+     * The object itself is added to the pool if no equal instance is pooled
+     * yet.
+     * 
+     * @param value Immutable object.
+     * @return Pooled instance.
+     */
+    static Object intern(Object value) {
+        if (value == null) {
+            return null;
+        }
+        synchronized (sEntries) {
+            final WeakReference<Object> entry = sEntries.get(value);
+            if (entry != null) {
+                final Object pooledValue = entry.get();
+                if (pooledValue != null) {
+                    return pooledValue;
+                }
+            }
+            sEntries.put(value, new WeakReference<Object>(value));
+            return value;
+        }
+    }
+
+    /**
+     * Get the pooled instance of a class name, field type or qualified
+     * field name.
+     * 
+     * @param name Name.
+     * @return Pooled instance of <code>name</code>.
+     */
+    static String internName(String name) {
+        return (String)intern(name);
+    }
+}
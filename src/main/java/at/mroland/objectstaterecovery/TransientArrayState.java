@@ -263,6 +263,8 @@ public class TransientArrayState extends ArrayState {
             String elementType = xml.getAttributeValue(null, XmlSchemaPersistentMemory.ATTRIBUTE_ARRAY_ELEMENT_TYPE);
             deserializationResult.hashCode = Long.valueOf(hashCode);
             deserializationResult.fieldState = new TransientArrayState(memoryManager, fieldType, deserializationResult.hashCode, elementType);
+            ((TransientArrayState)deserializationResult.fieldState).resolveContentReference(
+                    xml.getAttributeValue(null, XmlSchemaPersistentMemory.ATTRIBUTE_ARRAY_CONTENT_REFERENCE));
 
             int eventType;
             String subTag = tag;
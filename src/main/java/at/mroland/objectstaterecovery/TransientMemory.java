@@ -17,8 +17,9 @@ package at.mroland.objectstaterecovery;
 
 import at.mroland.logging.Logging;
 import com.licel.jcardsim.base.SimulatorSystem;
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import javacard.framework.AID;
 import javacard.framework.JCSystem;
@@ -34,8 +35,9 @@ public class TransientMemory {
     private static final String LOG_TAG = "TransientMemory";
 
     private PersistentMemory persistentMemory;
-    /* package */ HashMap<String, ArrayList<FieldState>> clearOnDeselect = new HashMap();
-    /* package */ HashMap<String, ArrayList<FieldState>> clearOnReset = new HashMap();
+    /* package */ HashMap<String, TransientSegment> clearOnDeselect = new HashMap();
+    /* package */ HashMap<String, TransientSegment> clearOnReset = new HashMap();
+    private HashSet<String> sharedContexts = new HashSet();
 
     public TransientMemory(PersistentMemory memoryManager) {
         persistentMemory = memoryManager;
@@ -136,17 +138,17 @@ public class TransientMemory {
      * @see #makeShortArray(short, byte)
      */
     public byte isTransient(Object theObj) {
-        FieldState fieldState = persistentMemory.getReference(FieldState.getObjectIdentityHashCode(theObj));
+        FieldState fieldState = persistentMemory.getReference(persistentMemory.getObjectIdentityHashCode(theObj));
         
         if (fieldState != null) {
-            for (ArrayList list : clearOnDeselect.values()) {
-                if ((list != null) && list.contains(fieldState)) {
+            for (TransientSegment segment : clearOnDeselect.values()) {
+                if ((segment != null) && segment.contains(fieldState)) {
                     return JCSystem.CLEAR_ON_DESELECT;
                 }
             }
 
-            for (ArrayList list : clearOnReset.values()) {
-                if ((list != null) && list.contains(fieldState)) {
+            for (TransientSegment segment : clearOnReset.values()) {
+                if ((segment != null) && segment.contains(fieldState)) {
                     return JCSystem.CLEAR_ON_RESET;
                 }
             }
@@ -178,9 +180,9 @@ public class TransientMemory {
                 }
                 
                 currentContextAIDString = __AIDWrapper.getAIDString(currentContextAID);
-                ArrayList clearOnDeselectSegment = clearOnDeselect.get(currentContextAIDString);
+                TransientSegment clearOnDeselectSegment = clearOnDeselect.get(currentContextAIDString);
                 if (clearOnDeselectSegment == null) {
-                    clearOnDeselectSegment = new ArrayList();
+                    clearOnDeselectSegment = createSegment(currentContextAIDString);
                     clearOnDeselect.put(currentContextAIDString, clearOnDeselectSegment);
                 }
                 fieldState = persistentMemory.storeTransientArray(arrayRef);
@@ -190,9 +192,9 @@ public class TransientMemory {
                 currentContextAID = SimulatorSystem.getCurrentPackageContextAID();
                 
                 currentContextAIDString = __AIDWrapper.getAIDString(currentContextAID);
-                ArrayList clearOnResetSegment = clearOnReset.get(currentContextAIDString);
+                TransientSegment clearOnResetSegment = clearOnReset.get(currentContextAIDString);
                 if (clearOnResetSegment == null) {
-                    clearOnResetSegment = new ArrayList();
+                    clearOnResetSegment = createSegment(currentContextAIDString);
                     clearOnReset.put(currentContextAIDString, clearOnResetSegment);
                 }
                 fieldState = persistentMemory.storeTransientArray(arrayRef);
@@ -212,42 +214,67 @@ public class TransientMemory {
         return Short.MAX_VALUE;
     }
     
+    /**
+     * Create a memory segment. Segments of applet contexts hold their
+     * transient arrays through weak references if persistent memory tracks
+     * objects through weak references; segments of the JCRE context keep
+     * their transient arrays alive.
+     *
+     * @param contextAIDString context that owns the memory segment
+     * @return new memory segment
+     */
+    private TransientSegment createSegment(String contextAIDString) {
+        final boolean appletContext = (contextAIDString != null) && !contextAIDString.isEmpty();
+        return new TransientSegment(appletContext && persistentMemory.isWeakReferenceTracking());
+    }
+
     /**
      * Clear data of transient objects in a specific memory segment.
      * 
      * @param segment memory segment
+     * @param contextAIDString context that owns the memory segment
      */
-    private void clearSegment(ArrayList<FieldState> segment) {
+    private void clearSegment(TransientSegment segment, String contextAIDString) {
         if (segment != null) {
-            for (FieldState fieldState : segment) {
-                //if ((fieldState != null) && fieldState.isRecreated()) {  // only reset objects that have been referenced (permit garbage-collection of unused objects)
-                if (fieldState != null) {
-                    Object obj = fieldState.getInstance();
-                    if (obj instanceof boolean[]) {
-                        for (int i = 0; i < ((boolean[])obj).length; ++i) {
-                            ((boolean[])obj)[i] = false;
-                        }
-                    }
-                    if (obj instanceof byte[]) {
-                        for (int i = 0; i < ((byte[])obj).length; ++i) {
-                            ((byte[])obj)[i] = 0;
-                        }
-                    }
-                    if (obj instanceof short[]) {
-                        for (int i = 0; i < ((short[])obj).length; ++i) {
-                            ((short[])obj)[i] = 0;
-                        }
-                    }
-                    if (obj instanceof Object[]) {
-                        for (int i = 0; i < ((Object[])obj).length; ++i) {
-                            ((Object[])obj)[i] = null;
-                        }
-                    }
-                }
-            }
+            // segments of the JCRE context and of contexts that handed out
+            // shareable interface objects may be modified without their
+            // context being flagged as dirty, so always clear them
+            boolean force = (contextAIDString == null) || contextAIDString.isEmpty() ||
+                            sharedContexts.contains(contextAIDString);
+            segment.clear(force);
+        }
+    }
+    
+    /**
+     * Flag transient memory segments of a context as possibly modified.
+     * Segments that have not been flagged since they were last cleared
+     * are skipped upon the next clear event.
+     * 
+     * @param contextAID package context AID
+     */
+    public void setDirtyContext(AID contextAID) {
+        String contextAIDString = __AIDWrapper.getAIDString(contextAID);
+        TransientSegment segment = clearOnDeselect.get(contextAIDString);
+        if (segment != null) {
+            segment.setDirty();
+        }
+        segment = clearOnReset.get(contextAIDString);
+        if (segment != null) {
+            segment.setDirty();
         }
     }
     
+    /**
+     * Flag a context as sharing objects with other contexts. Transient memory
+     * segments of such contexts may be modified through shareable interface
+     * objects at any time and are, therefore, always cleared.
+     * 
+     * @param contextAID package context AID
+     */
+    public void setSharedContext(AID contextAID) {
+        sharedContexts.add(__AIDWrapper.getAIDString(contextAID));
+    }
+    
     /**
      * Clear data of transient objects depending on event type.
      * @param event  event type (CLEAR_ON_RESET/CLEAR_ON_DESELECT)
@@ -259,20 +286,20 @@ public class TransientMemory {
         switch (event) {
             case JCSystem.CLEAR_ON_RESET:
                 if (selectedContextAID == null) {
-                    for (ArrayList<FieldState> segment : clearOnReset.values()) {
-                        clearSegment(segment);
+                    for (Map.Entry<String, TransientSegment> segment : clearOnReset.entrySet()) {
+                        clearSegment(segment.getValue(), segment.getKey());
                     }
                 } else {
-                    clearSegment(clearOnReset.get(selectedContextAIDString));
+                    clearSegment(clearOnReset.get(selectedContextAIDString), selectedContextAIDString);
                 }
                 // don't break here => also clear CLEAR_ON_DESELECT memory!
             case JCSystem.CLEAR_ON_DESELECT:
                 if (selectedContextAID == null) {
-                    for (ArrayList<FieldState> segment : clearOnDeselect.values()) {
-                        clearSegment(segment);
+                    for (Map.Entry<String, TransientSegment> segment : clearOnDeselect.entrySet()) {
+                        clearSegment(segment.getValue(), segment.getKey());
                     }
                 } else {
-                    clearSegment(clearOnDeselect.get(selectedContextAIDString));
+                    clearSegment(clearOnDeselect.get(selectedContextAIDString), selectedContextAIDString);
                 }
                 break;
             default:
@@ -288,6 +315,7 @@ public class TransientMemory {
             String contextAIDString = __AIDWrapper.getAIDString(contextAID);
             clearOnDeselect.remove(contextAIDString);
             clearOnReset.remove(contextAIDString);
+            sharedContexts.remove(contextAIDString);
         }
     }
     
@@ -297,6 +325,52 @@ public class TransientMemory {
     public void reset() {
         clearOnDeselect.clear();
         clearOnReset.clear();
+        sharedContexts.clear();
+    }
+    
+    /**
+     * Record the layout of the transient memory segments in a savepoint.
+     * 
+     * @param savepoint Savepoint of persistent memory.
+     */
+    public void savepoint(Savepoint savepoint) {
+        saveSegments(clearOnDeselect, savepoint.mClearOnDeselect);
+        saveSegments(clearOnReset, savepoint.mClearOnReset);
+        savepoint.mSharedContexts.addAll(sharedContexts);
+    }
+    
+    /**
+     * Restore the layout of the transient memory segments recorded in a
+     * savepoint. The data of all transient objects is cleared (just as
+     * after loading transient memory from XML).
+     * 
+     * @param savepoint Savepoint of persistent memory.
+     */
+    public void rollbackTo(Savepoint savepoint) {
+        restoreSegments(savepoint.mClearOnDeselect, clearOnDeselect);
+        restoreSegments(savepoint.mClearOnReset, clearOnReset);
+        sharedContexts.clear();
+        sharedContexts.addAll(savepoint.mSharedContexts);
+    }
+    
+    private static void saveSegments(Map<String, TransientSegment> segments, Map<String, List<FieldState>> savedSegments) {
+        for (Map.Entry<String, TransientSegment> segment : segments.entrySet()) {
+            if (segment.getValue() != null) {
+                savedSegments.put(segment.getKey(), segment.getValue().getFieldStates());
+            }
+        }
+    }
+    
+    private void restoreSegments(Map<String, List<FieldState>> savedSegments, Map<String, TransientSegment> segments) {
+        segments.clear();
+        for (Map.Entry<String, List<FieldState>> savedSegment : savedSegments.entrySet()) {
+            TransientSegment segment = createSegment(savedSegment.getKey());
+            for (FieldState fieldState : savedSegment.getValue()) {
+                segment.add(fieldState);
+            }
+            segment.clear(true);
+            segments.put(savedSegment.getKey(), segment);
+        }
     }
     
     /**
@@ -315,12 +389,12 @@ public class TransientMemory {
             xml.setPrefix("", XmlSchemaTransientMemory.URI);
             xml.startTag(XmlSchemaTransientMemory.URI, XmlSchemaTransientMemory.TAG_ROOT);
 
-            for (Map.Entry<String, ArrayList<FieldState>> obj : clearOnDeselect.entrySet()) {
-                ArrayList<FieldState> segment = obj.getValue();
+            for (Map.Entry<String, TransientSegment> obj : clearOnDeselect.entrySet()) {
+                TransientSegment segment = obj.getValue();
                 if (segment != null) {
                     xml.startTag(null, XmlSchemaTransientMemory.TAG_SEGMENT_CLEARONDESELECT);
                     xml.attribute(null, XmlSchemaTransientMemory.ATTRIBUTE_AID, obj.getKey());
-                    for (FieldState reference : segment) {
+                    for (FieldState reference : segment.getFieldStates()) {
                         if ((reference != null) && (reference.isRecreated())) {  // garbage-collect unused references
                             xml.startTag(null, XmlSchemaTransientMemory.TAG_REFERENCE);
                             xml.attribute(null, XmlSchemaTransientMemory.ATTRIBUTE_HASH_CODE, Long.toString(reference.getHashCode()));
@@ -330,13 +404,13 @@ public class TransientMemory {
                     xml.endTag(null, XmlSchemaTransientMemory.TAG_SEGMENT_CLEARONDESELECT);
                 }
             }
-            for (Map.Entry<String, ArrayList<FieldState>> obj : clearOnReset.entrySet()) {
-                ArrayList<FieldState> segment = obj.getValue();
+            for (Map.Entry<String, TransientSegment> obj : clearOnReset.entrySet()) {
+                TransientSegment segment = obj.getValue();
                 if (segment != null) {
                     String aid = obj.getKey();
                     xml.startTag(null, XmlSchemaTransientMemory.TAG_SEGMENT_CLEARONRESET);
                     xml.attribute(null, XmlSchemaTransientMemory.ATTRIBUTE_AID, (aid != null) ? aid : "");
-                    for (FieldState reference : segment) {
+                    for (FieldState reference : segment.getFieldStates()) {
                         if ((reference != null) && (reference.isRecreated())) {  // garbage-collect unused references
                             xml.startTag(null, XmlSchemaTransientMemory.TAG_REFERENCE);
                             xml.attribute(null, XmlSchemaTransientMemory.ATTRIBUTE_HASH_CODE, Long.toString(reference.getHashCode()));
@@ -373,10 +447,11 @@ public class TransientMemory {
     public void deserializeFromXml(XmlPullParser xml) {
         clearOnDeselect.clear();
         clearOnReset.clear();
+        sharedContexts.clear();
 
         try {
             DeserializationParserState parserState = DeserializationParserState.eNone;
-            ArrayList<FieldState> segment = null;
+            TransientSegment segment = null;
             int eventType = xml.getEventType();
 
             while (eventType != XmlPullParser.END_DOCUMENT) {
@@ -390,14 +465,14 @@ public class TransientMemory {
                             parserState = DeserializationParserState.eSegmentClearOnDeselect;
                             String aid = xml.getAttributeValue(null, XmlSchemaTransientMemory.ATTRIBUTE_AID);
                             if ((aid != null) && aid.isEmpty()) aid = null;
-                            segment = new ArrayList();
+                            segment = createSegment(aid);
                             clearOnDeselect.put(aid, segment);
 
                         } else if (tag.equals(XmlSchemaTransientMemory.TAG_SEGMENT_CLEARONRESET)) {
                             parserState = DeserializationParserState.eSegmentClearOnReset;
                             String aid = xml.getAttributeValue(null, XmlSchemaTransientMemory.ATTRIBUTE_AID);
                             if ((aid != null) && aid.isEmpty()) aid = null;
-                            segment = new ArrayList();
+                            segment = createSegment(aid);
                             clearOnReset.put(aid, segment);
                             
                         } else if (tag.equals(XmlSchemaTransientMemory.TAG_REFERENCE)) {
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.mroland.objectstaterecovery;
+
+import at.mroland.logging.Logging;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Transient memory segment of one context and one clear event.
+ *
+ * Transient arrays are stored separately for each element type so that
+ * clearing a segment does not need to determine the type of each array
+ * again. A segment is only cleared if its context may have written to it
+ * since the last time it was cleared.
+ *
+ * Segments of applet contexts may hold their transient arrays through weak
+ * references (weak reference tracking mode of persistent memory), so that
+ * transient arrays are dropped as soon as the applet no longer references
+ * them.
+ *
+ * @author mroland
+ */
+public class TransientSegment {
+    private static final String LOG_TAG = "TransientSegment";
+
+    private static final int TYPE_BOOLEAN = 0;
+    private static final int TYPE_BYTE = 1;
+    private static final int TYPE_SHORT = 2;
+    private static final int TYPE_OBJECT = 3;
+    private static final int NUMBER_OF_TYPES = TYPE_OBJECT + 1;
+
+    private final ArrayList<FieldState>[] mArrays;
+    private final ArrayList<WeakReference<FieldState>>[] mWeakArrays;  // only used if transient arrays are held through weak references
+    private boolean mDirty;
+
+    public TransientSegment() {
+        this(false);
+    }
+
+    /**
+     * Create a transient memory segment.
+     *
+     * @param weakReferences Hold transient arrays through weak references.
+     */
+    public TransientSegment(boolean weakReferences) {
+        mArrays = new ArrayList[NUMBER_OF_TYPES];
+        for (int i = 0; i < NUMBER_OF_TYPES; ++i) {
+            mArrays[i] = new ArrayList<FieldState>();
+        }
+        if (weakReferences) {
+            mWeakArrays = new ArrayList[NUMBER_OF_TYPES];
+            for (int i = 0; i < NUMBER_OF_TYPES; ++i) {
+                mWeakArrays[i] = new ArrayList<WeakReference<FieldState>>();
+            }
+        } else {
+            mWeakArrays = null;
+        }
+        mDirty = true;
+    }
+
+    /**
+     * Get the transient arrays of one element type.
+     *
+     * @param type Element type index.
+     * @return List of FieldStates of the transient arrays (a copy that only
+     *         contains arrays that have not been collected yet, if transient
+     *         arrays are held through weak references).
+     */
+    private List<FieldState> getArrays(int type) {
+        if (mWeakArrays == null) {
+            return mArrays[type];
+        }
+
+        final ArrayList<FieldState> fieldStates = new ArrayList<FieldState>(mWeakArrays[type].size());
+        for (WeakReference<FieldState> ref : mWeakArrays[type]) {
+            final FieldState fieldState = ref.get();
+            if (fieldState != null) {
+                fieldStates.add(fieldState);
+            }
+        }
+        return fieldStates;
+    }
+
+    /**
+     * Get the element type index for a transient array FieldState.
+     *
+     * @param fieldState FieldState of a transient array.
+     * @return Element type index.
+     */
+    private static int getElementType(FieldState fieldState) {
+        if (fieldState instanceof ArrayState) {
+            final String elementType = ((ArrayState)fieldState).mElementType;
+            if (boolean.class.getName().equals(elementType)) {
+                return TYPE_BOOLEAN;
+            } else if (byte.class.getName().equals(elementType)) {
+                return TYPE_BYTE;
+            } else if (short.class.getName().equals(elementType)) {
+                return TYPE_SHORT;
+            }
+        }
+
+        return TYPE_OBJECT;
+    }
+
+    /**
+     * Add a transient array to this segment.
+     *
+     * @param fieldState FieldState of the transient array.
+     */
+    public void add(FieldState fieldState) {
+        if (fieldState != null) {
+            if (mWeakArrays != null) {
+                mWeakArrays[getElementType(fieldState)].add(new WeakReference<FieldState>(fieldState));
+            } else {
+                mArrays[getElementType(fieldState)].add(fieldState);
+            }
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Check if a transient array is part of this segment.
+     *
+     * @param fieldState FieldState of the transient array.
+     * @return true if the array is part of this segment.
+     */
+    public boolean contains(FieldState fieldState) {
+        if (fieldState != null) {
+            return getArrays(getElementType(fieldState)).contains(fieldState);
+        }
+
+        return false;
+    }
+
+    /**
+     * Flag this segment as possibly modified.
+     */
+    public void setDirty() {
+        mDirty = true;
+    }
+
+    /**
+     * Check if this segment may have been modified since it was last cleared.
+     *
+     * @return true if this segment needs to be cleared.
+     */
+    public boolean isDirty() {
+        return mDirty;
+    }
+
+    /**
+     * Clear data of all transient arrays in this segment. Clearing is skipped
+     * if the segment has not been flagged as dirty since it was last cleared.
+     *
+     * @param force Clear arrays even if the segment is not dirty.
+     */
+    public void clear(boolean force) {
+        if (!mDirty && !force) {
+            return;
+        }
+
+        for (FieldState fieldState : getArrays(TYPE_BOOLEAN)) {
+            Object obj = fieldState.getInstance();
+            if (obj instanceof boolean[]) {
+                Arrays.fill((boolean[])obj, false);
+            }
+        }
+        for (FieldState fieldState : getArrays(TYPE_BYTE)) {
+            Object obj = fieldState.getInstance();
+            if (obj instanceof byte[]) {
+                Arrays.fill((byte[])obj, (byte)0);
+            }
+        }
+        for (FieldState fieldState : getArrays(TYPE_SHORT)) {
+            Object obj = fieldState.getInstance();
+            if (obj instanceof short[]) {
+                Arrays.fill((short[])obj, (short)0);
+            }
+        }
+        for (FieldState fieldState : getArrays(TYPE_OBJECT)) {
+            Object obj = fieldState.getInstance();
+            if (obj instanceof Object[]) {
+                Arrays.fill((Object[])obj, null);
+            }
+        }
+
+        mDirty = false;
+    }
+
+    /**
+     * Get the number of transient arrays in this segment.
+     *
+     * @return Number of transient arrays.
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < NUMBER_OF_TYPES; ++i) {
+            size += getArrays(i).size();
+        }
+        return size;
+    }
+
+    /**
+     * Get all transient arrays of this segment.
+     *
+     * @return List of FieldStates of all transient arrays in this segment.
+     */
+    public ArrayList<FieldState> getFieldStates() {
+        ArrayList<FieldState> fieldStates = new ArrayList<FieldState>(size());
+        for (int i = 0; i < NUMBER_OF_TYPES; ++i) {
+            fieldStates.addAll(getArrays(i));
+        }
+        return fieldStates;
+    }
+
+    /**
+     * Ping all transient arrays of this segment to prevent garbage collection.
+     */
+    /* package */ void pingInstances() {
+        for (int i = 0; i < NUMBER_OF_TYPES; ++i) {
+            for (FieldState fieldState : getArrays(i)) {
+                fieldState.pingInstance();
+            }
+        }
+    }
+
+    /**
+     * Remove all transient arrays from this segment that have not been
+     * marked as reachable.
+     * 
+     * @param youngOnly Only remove transient arrays of the young generation
+     *        (old transient arrays are not marked by a minor collection).
+     */
+    /* package */ void removeUnreachable(boolean youngOnly) {
+        for (int i = 0; i < NUMBER_OF_TYPES; ++i) {
+            Iterator<FieldState> iterField = mArrays[i].iterator();
+            while (iterField.hasNext()) {
+                final FieldState fieldState = iterField.next();
+                if ((fieldState == null) || ((!youngOnly || fieldState.isYoung()) && !fieldState.isReachable())) {
+                    iterField.remove();
+                    Logging.debug(LOG_TAG, "Garbage-collected transient object #" + fieldState.getHashCode() + " (" + fieldState.getFieldType() + ") during GC!");
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all transient arrays from this segment that have been reclaimed
+     * by the garbage collector (only if transient arrays are held through
+     * weak references).
+     */
+    /* package */ void removeCollected() {
+        if (mWeakArrays == null) {
+            return;
+        }
+
+        for (int i = 0; i < NUMBER_OF_TYPES; ++i) {
+            Iterator<WeakReference<FieldState>> iterField = mWeakArrays[i].iterator();
+            while (iterField.hasNext()) {
+                if (iterField.next().get() == null) {
+                    iterField.remove();
+                    Logging.debug(LOG_TAG, "Garbage-collected transient object during GC!");
+                }
+            }
+        }
+    }
+}
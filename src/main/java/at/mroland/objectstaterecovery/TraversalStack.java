@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.mroland.objectstaterecovery;
+
+import at.mroland.logging.Logging;
+
+/**
+ * Explicit work stack used to traverse FieldState hierarchies.
+ *
+ * Sub-FieldStates that need to be refreshed, reverted or pinged are pushed
+ * onto this stack instead of being processed recursively. The first push
+ * outside of a traversal drains the stack, so the stack depth of the Java
+ * runtime no longer grows with the depth of the object graph (e.g. for
+ * linked record chains). The buffers are kept for reuse, so traversals do
+ * not allocate memory once the stack has grown to its working size.
+ * Exceptions thrown while processing a FieldState are logged and the
+ * traversal continues with the remaining FieldStates (just as the recursive
+ * traversal caught failures of each field).
+ *
+ * @author mroland
+ */
+final class TraversalStack {
+    private static final String LOG_TAG = "TraversalStack";
+    private static final int INITIAL_CAPACITY = 64;
+
+    static final byte REFRESH = 0;
+    static final byte REFRESH_SHALLOW = 1;  // refresh without recursively refreshing existing objects
+    static final byte REVERT = 2;
+    static final byte PING = 3;
+
+    private FieldState[] mStates = new FieldState[INITIAL_CAPACITY];
+    private byte[] mOperations = new byte[INITIAL_CAPACITY];
+    private int mSize = 0;
+    private int mMaxSize = 0;  // maximum size since the last call to resetMaxSize()
+    private boolean mDraining = false;
+
+    /**
+     * Push a FieldState onto the stack and drain the stack unless a
+     * traversal is already in progress (in which case the FieldState is
+     * processed by the enclosing traversal). Primitive values have no
+     * sub-FieldStates and are processed immediately.
+     *
+     * @param fieldState FieldState.
+     * @param operation Operation to perform on the FieldState.
+     */
+    void traverse(FieldState fieldState, byte operation) {
+        if (fieldState instanceof PrimitiveValueState) {
+            process(fieldState, operation);
+            return;
+        }
+        
+        push(fieldState, operation);
+        if (!mDraining) {
+            drain();
+        }
+    }
+
+    private void push(FieldState fieldState, byte operation) {
+        if (mSize >= mStates.length) {
+            FieldState[] states = new FieldState[mStates.length * 2];
+            System.arraycopy(mStates, 0, states, 0, mSize);
+            mStates = states;
+            byte[] operations = new byte[mOperations.length * 2];
+            System.arraycopy(mOperations, 0, operations, 0, mSize);
+            mOperations = operations;
+        }
+        mStates[mSize] = fieldState;
+        mOperations[mSize] = operation;
+        ++mSize;
+        if (mSize > mMaxSize) {
+            mMaxSize = mSize;
+        }
+    }
+
+    private void drain() {
+        mDraining = true;
+        try {
+            while (mSize > 0) {
+                --mSize;
+                final FieldState fieldState = mStates[mSize];
+                final byte operation = mOperations[mSize];
+                mStates[mSize] = null;
+                process(fieldState, operation);
+            }
+        } finally {
+            // FieldStates still pending after an error must not be processed by the next traversal
+            while (mSize > 0) {
+                --mSize;
+                mStates[mSize] = null;
+            }
+            mDraining = false;
+        }
+    }
+
+    private static void process(FieldState fieldState, byte operation) {
+        try {
+            switch (operation) {
+                case REFRESH:
+                    fieldState.refreshInstance(false);
+                    break;
+                case REFRESH_SHALLOW:
+                    fieldState.refreshInstance(true);
+                    break;
+                case REVERT:
+                    fieldState.revertInstance();
+                    break;
+                case PING:
+                    fieldState.pingInstance();
+                    break;
+            }
+        } catch (RuntimeException e) {
+            Logging.error(LOG_TAG, "Exception while traversing #" + fieldState.getHashCode() + ": " + e.toString(), e);
+        }
+    }
+
+    /**
+     * Get the maximum number of FieldStates that were pending on this stack
+     * since the last call to {@link #resetMaxSize()}.
+     *
+     * @return Maximum stack size.
+     */
+    int getMaxSize() {
+        return mMaxSize;
+    }
+
+    void resetMaxSize() {
+        mMaxSize = mSize;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.mroland.objectstaterecovery;
+
+/**
+ * Instrumentation of the traversal phases of persistent memory: refresh
+ * and reversal of dirty objects/classes upon memory barriers, and the mark
+ * phases of major and minor persistent memory garbage collections.
+ *
+ * For each phase, the number of runs, the number of visited FieldStates
+ * and ClassStates, the time spent, and the maximum depth of the traversal
+ * work stack are recorded, both for the last run and accumulated over all
+ * runs.
+ *
+ * @author mroland
+ */
+public class TraversalStatistics {
+    /**
+     * Traversal phases.
+     */
+    public enum Phase {
+        eRefresh,
+        eRevert,
+        eMark,
+        eMinorMark
+    }
+
+    private final long[] mRuns = new long[Phase.values().length];
+    private final long[] mVisits = new long[Phase.values().length];
+    private final long[] mTime = new long[Phase.values().length];
+    private final long[] mLastVisits = new long[Phase.values().length];
+    private final long[] mLastTime = new long[Phase.values().length];
+    private final int[] mMaxStackDepth = new int[Phase.values().length];
+
+    /* package */ void record(Phase phase, long visits, long time, int stackDepth) {
+        final int i = phase.ordinal();
+        ++mRuns[i];
+        mVisits[i] += visits;
+        mTime[i] += time;
+        mLastVisits[i] = visits;
+        mLastTime[i] = time;
+        if (stackDepth > mMaxStackDepth[i]) {
+            mMaxStackDepth[i] = stackDepth;
+        }
+    }
+
+    /**
+     * Get the number of runs of a phase.
+     *
+     * @param phase Phase.
+     * @return Number of runs.
+     */
+    public long getRuns(Phase phase) {
+        return mRuns[phase.ordinal()];
+    }
+
+    /**
+     * Get the number of FieldStates and ClassStates visited in all runs of a phase.
+     *
+     * @param phase Phase.
+     * @return Number of visited states.
+     */
+    public long getVisits(Phase phase) {
+        return mVisits[phase.ordinal()];
+    }
+
+    /**
+     * Get the time spent in all runs of a phase.
+     *
+     * @param phase Phase.
+     * @return Time in nanoseconds.
+     */
+    public long getTime(Phase phase) {
+        return mTime[phase.ordinal()];
+    }
+
+    /**
+     * Get the number of FieldStates and ClassStates visited in the last run of a phase.
+     *
+     * @param phase Phase.
+     * @return Number of visited states.
+     */
+    public long getLastVisits(Phase phase) {
+        return mLastVisits[phase.ordinal()];
+    }
+
+    /**
+     * Get the time spent in the last run of a phase.
+     *
+     * @param phase Phase.
+     * @return Time in nanoseconds.
+     */
+    public long getLastTime(Phase phase) {
+        return mLastTime[phase.ordinal()];
+    }
+
+    /**
+     * Get the maximum depth of the traversal work stack in all runs of a phase.
+     *
+     * @param phase Phase.
+     * @return Maximum number of pending FieldStates.
+     */
+    public int getMaxStackDepth(Phase phase) {
+        return mMaxStackDepth[phase.ordinal()];
+    }
+
+    /**
+     * Reset all statistics.
+     */
+    public void reset() {
+        for (int i = 0; i < mRuns.length; ++i) {
+            mRuns[i] = 0;
+            mVisits[i] = 0;
+            mTime[i] = 0;
+            mLastVisits[i] = 0;
+            mLastTime[i] = 0;
+            mMaxStackDepth[i] = 0;
+        }
+    }
+}
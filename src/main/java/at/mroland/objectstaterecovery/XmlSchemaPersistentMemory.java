@@ -24,6 +24,10 @@ public interface XmlSchemaPersistentMemory {
     
     public static final String TAG_ROOT = "PersistentMemory";
     
+    // root attributes
+    public static final String ATTRIBUTE_GENERATION = "generation";
+    public static final String ATTRIBUTE_BASE_GENERATION = "baseGeneration";
+    
     // general attributes
     public static final String ATTRIBUTE_HASH_CODE = "hashCode";
     public static final String ATTRIBUTE_NAME = "name";
@@ -50,6 +54,7 @@ public interface XmlSchemaPersistentMemory {
 
     // Array attributes
     public static final String ATTRIBUTE_ARRAY_ELEMENT_TYPE = "elementType";
+    public static final String ATTRIBUTE_ARRAY_CONTENT_REFERENCE = "contentReference";
     
     // Object
     public static final String TAG_OBJECT_FIELD = "Field";
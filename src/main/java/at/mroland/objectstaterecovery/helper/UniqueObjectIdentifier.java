@@ -16,9 +16,12 @@
 package at.mroland.objectstaterecovery.helper;
 
 import at.mroland.logging.Logging;
-import java.util.Stack;
 
 /**
+ * Assigns unique object identifiers to objects. Each PersistentMemory owns
+ * its own instance, so identifiers of different PersistentMemory instances
+ * are independent of each other. Identifiers of forgotten objects are
+ * recycled.
  *
  * @author mroland
  */
@@ -41,15 +44,18 @@ public class UniqueObjectIdentifier {
     private static final int LOCAL_IDENTIFIER_BITS = Integer.SIZE;
     private static final long LOCAL_IDENTIFIER_MASK = (((long)1) << LOCAL_IDENTIFIER_BITS) - 1;
     
-    private static IdentityObjectIntMap[] sIdentityMap = new IdentityObjectIntMap[NUMBER_OF_IDENTITY_MAPS];
-    private static Stack<Integer>[] sUnusedObjectIdentifiers = new Stack[NUMBER_OF_IDENTITY_MAPS];
-    private static int[] sLastUniqueObjectIdentifier = new int[NUMBER_OF_IDENTITY_MAPS];
+    private static final int INITIAL_UNUSED_CAPACITY = 16;
+    
+    private final IdentityObjectIntMap[] mIdentityMap = new IdentityObjectIntMap[NUMBER_OF_IDENTITY_MAPS];
+    private final int[][] mUnusedObjectIdentifiers = new int[NUMBER_OF_IDENTITY_MAPS][];  // free-list (stack) of recycled identifiers
+    private final int[] mUnusedObjectIdentifierCount = new int[NUMBER_OF_IDENTITY_MAPS];
+    private final int[] mLastUniqueObjectIdentifier = new int[NUMBER_OF_IDENTITY_MAPS];
 
-    static {
+    public UniqueObjectIdentifier() {
         reset();
     }
     
-    public static long get(Object o) {
+    public long get(Object o) {
         if (o == null) return NULL_IDENTIFIER;
         
         int identityMapIndex = OFFSET_OBJECT;
@@ -92,7 +98,7 @@ public class UniqueObjectIdentifier {
             identityMapIndex = OFFSET_STRING;
         }
 
-        IdentityObjectIntMap thisMap = sIdentityMap[identityMapIndex];
+        IdentityObjectIntMap thisMap = mIdentityMap[identityMapIndex];
         
         int localUOI;
         try {
@@ -100,22 +106,21 @@ public class UniqueObjectIdentifier {
         } catch (RuntimeException e) {
             Logging.error(LOG_TAG, "Could not check identity hash code for object " + o + "!\n" +
                                    "Status:\n" + 
-//                                   "    BOOL " + sIdentityMap[0].size + ", last #0/" + sLastUniqueObjectIdentifier[0] + ", backlog " + sUnusedObjectIdentifiers[0].size() + "\n" +
-//                                   "    BYTE " + sIdentityMap[1].size + ", last #1/" + sLastUniqueObjectIdentifier[1] + ", backlog " + sUnusedObjectIdentifiers[1].size() + "\n" +
-//                                   "    SHORT " + sIdentityMap[2].size + ", last #2/" + sLastUniqueObjectIdentifier[2] + ", backlog " + sUnusedObjectIdentifiers[2].size() + "\n" +
-//                                   "    INT_P " + sIdentityMap[3].size + ", last #3/" + sLastUniqueObjectIdentifier[3] + ", backlog " + sUnusedObjectIdentifiers[3].size() + "\n" +
-//                                   "    INT_N " + sIdentityMap[4].size + ", last #4/" + sLastUniqueObjectIdentifier[4] + ", backlog " + sUnusedObjectIdentifiers[4].size() + "\n" +
-                                   "    FLOAT/DOUBLE " + sIdentityMap[0].size + ", last #0/" + sLastUniqueObjectIdentifier[0] + ", backlog " + sUnusedObjectIdentifiers[0].size() + "\n" +
-                                   "    OBJECT/LONG/CHAR/STRING " + sIdentityMap[1].size + ", last #1/" + sLastUniqueObjectIdentifier[1] + ", backlog " + sUnusedObjectIdentifiers[1].size() + "\n" +
+//                                   "    BOOL " + mIdentityMap[0].size + ", last #0/" + mLastUniqueObjectIdentifier[0] + ", backlog " + mUnusedObjectIdentifierCount[0] + "\n" +
+//                                   "    BYTE " + mIdentityMap[1].size + ", last #1/" + mLastUniqueObjectIdentifier[1] + ", backlog " + mUnusedObjectIdentifierCount[1] + "\n" +
+//                                   "    SHORT " + mIdentityMap[2].size + ", last #2/" + mLastUniqueObjectIdentifier[2] + ", backlog " + mUnusedObjectIdentifierCount[2] + "\n" +
+//                                   "    INT_P " + mIdentityMap[3].size + ", last #3/" + mLastUniqueObjectIdentifier[3] + ", backlog " + mUnusedObjectIdentifierCount[3] + "\n" +
+//                                   "    INT_N " + mIdentityMap[4].size + ", last #4/" + mLastUniqueObjectIdentifier[4] + ", backlog " + mUnusedObjectIdentifierCount[4] + "\n" +
+                                   "    FLOAT/DOUBLE " + mIdentityMap[0].size + ", last #0/" + mLastUniqueObjectIdentifier[0] + ", backlog " + mUnusedObjectIdentifierCount[0] + "\n" +
+                                   "    OBJECT/LONG/CHAR/STRING " + mIdentityMap[1].size + ", last #1/" + mLastUniqueObjectIdentifier[1] + ", backlog " + mUnusedObjectIdentifierCount[1] + "\n" +
                                    "", e);
             throw e;
         }
         if (localUOI == NULL_IDENTIFIER) {
-            Stack<Integer> thisUnusedObjectIdentifiers = sUnusedObjectIdentifiers[identityMapIndex];
-            if (thisUnusedObjectIdentifiers.empty()) {
-                localUOI = ++sLastUniqueObjectIdentifier[identityMapIndex];
+            if (mUnusedObjectIdentifierCount[identityMapIndex] == 0) {
+                localUOI = ++mLastUniqueObjectIdentifier[identityMapIndex];
             } else {
-                localUOI = thisUnusedObjectIdentifiers.pop();
+                localUOI = mUnusedObjectIdentifiers[identityMapIndex][--mUnusedObjectIdentifierCount[identityMapIndex]];
             }
             if (localUOI != NULL_IDENTIFIER) {
                 try {
@@ -123,13 +128,13 @@ public class UniqueObjectIdentifier {
                 } catch (Exception e) {
                     Logging.error(LOG_TAG, "Could not add identity hash code #" + identityMapIndex + "/" + localUOI + " for object " + o + "!\n" +
                                            "Status:\n" + 
-//                                           "    BOOL " + sIdentityMap[0].size + ", last #0/" + sLastUniqueObjectIdentifier[0] + ", backlog " + sUnusedObjectIdentifiers[0].size() + "\n" +
-//                                           "    BYTE " + sIdentityMap[1].size + ", last #1/" + sLastUniqueObjectIdentifier[1] + ", backlog " + sUnusedObjectIdentifiers[1].size() + "\n" +
-//                                           "    SHORT " + sIdentityMap[2].size + ", last #2/" + sLastUniqueObjectIdentifier[2] + ", backlog " + sUnusedObjectIdentifiers[2].size() + "\n" +
-//                                           "    INT_P " + sIdentityMap[3].size + ", last #3/" + sLastUniqueObjectIdentifier[3] + ", backlog " + sUnusedObjectIdentifiers[3].size() + "\n" +
-//                                           "    INT_N " + sIdentityMap[4].size + ", last #4/" + sLastUniqueObjectIdentifier[4] + ", backlog " + sUnusedObjectIdentifiers[4].size() + "\n" +
-                                           "    FLOAT/DOUBLE " + sIdentityMap[0].size + ", last #0/" + sLastUniqueObjectIdentifier[0] + ", backlog " + sUnusedObjectIdentifiers[0].size() + "\n" +
-                                           "    OBJECT/LONG/CHAR/STRING " + sIdentityMap[1].size + ", last #1/" + sLastUniqueObjectIdentifier[1] + ", backlog " + sUnusedObjectIdentifiers[1].size() + "\n" +
+//                                           "    BOOL " + mIdentityMap[0].size + ", last #0/" + mLastUniqueObjectIdentifier[0] + ", backlog " + mUnusedObjectIdentifierCount[0] + "\n" +
+//                                           "    BYTE " + mIdentityMap[1].size + ", last #1/" + mLastUniqueObjectIdentifier[1] + ", backlog " + mUnusedObjectIdentifierCount[1] + "\n" +
+//                                           "    SHORT " + mIdentityMap[2].size + ", last #2/" + mLastUniqueObjectIdentifier[2] + ", backlog " + mUnusedObjectIdentifierCount[2] + "\n" +
+//                                           "    INT_P " + mIdentityMap[3].size + ", last #3/" + mLastUniqueObjectIdentifier[3] + ", backlog " + mUnusedObjectIdentifierCount[3] + "\n" +
+//                                           "    INT_N " + mIdentityMap[4].size + ", last #4/" + mLastUniqueObjectIdentifier[4] + ", backlog " + mUnusedObjectIdentifierCount[4] + "\n" +
+                                           "    FLOAT/DOUBLE " + mIdentityMap[0].size + ", last #0/" + mLastUniqueObjectIdentifier[0] + ", backlog " + mUnusedObjectIdentifierCount[0] + "\n" +
+                                           "    OBJECT/LONG/CHAR/STRING " + mIdentityMap[1].size + ", last #1/" + mLastUniqueObjectIdentifier[1] + ", backlog " + mUnusedObjectIdentifierCount[1] + "\n" +
                                            "", e);
                 }
             } else {
@@ -143,7 +148,7 @@ public class UniqueObjectIdentifier {
         return uoi;
     }
     
-    public static void forget(Object o) {
+    public void forget(Object o) {
         if (o == null) return;
         
         int identityMapIndex = OFFSET_OBJECT;
@@ -178,39 +183,46 @@ public class UniqueObjectIdentifier {
             identityMapIndex = OFFSET_STRING;
         }
 
-        IdentityObjectIntMap thisMap = sIdentityMap[identityMapIndex];
+        IdentityObjectIntMap thisMap = mIdentityMap[identityMapIndex];
         
         int localUOI = thisMap.remove(o, NULL_IDENTIFIER);
         if (localUOI != NULL_IDENTIFIER) {
-            if (localUOI == sLastUniqueObjectIdentifier[identityMapIndex]) {
-                --sLastUniqueObjectIdentifier[identityMapIndex];
+            if (localUOI == mLastUniqueObjectIdentifier[identityMapIndex]) {
+                --mLastUniqueObjectIdentifier[identityMapIndex];
             } else {
-                sUnusedObjectIdentifiers[identityMapIndex].push(localUOI);
+                int[] unused = mUnusedObjectIdentifiers[identityMapIndex];
+                final int count = mUnusedObjectIdentifierCount[identityMapIndex];
+                if (count >= unused.length) {
+                    unused = new int[unused.length * 2];
+                    System.arraycopy(mUnusedObjectIdentifiers[identityMapIndex], 0, unused, 0, count);
+                    mUnusedObjectIdentifiers[identityMapIndex] = unused;
+                }
+                unused[count] = localUOI;
+                mUnusedObjectIdentifierCount[identityMapIndex] = count + 1;
             }
         }
     }
 
-    public static void reset() {
+    public void reset() {
         for (int i = 0; i < NUMBER_OF_IDENTITY_MAPS; ++i) {
-            if (sIdentityMap[i] == null) {
+            if (mIdentityMap[i] == null) {
                 if (i >= OFFSET_FLOAT) {
-                    sIdentityMap[i] = new IdentityObjectIntMap(4);
+                    mIdentityMap[i] = new IdentityObjectIntMap(4);
                 } else {
-                    sIdentityMap[i] = new IdentityObjectIntMap();
+                    mIdentityMap[i] = new IdentityObjectIntMap();
                 }
             } else {
                 if (i >= OFFSET_FLOAT) {
-                    sIdentityMap[i].clear(4);
+                    mIdentityMap[i].clear(4);
                 } else {
-                    sIdentityMap[i].clear(32);
+                    mIdentityMap[i].clear(32);
                 }
             }
-            if (sUnusedObjectIdentifiers[i] == null) {
-                sUnusedObjectIdentifiers[i] = new Stack<Integer>();
-            } else {
-                sUnusedObjectIdentifiers[i].clear();
+            if (mUnusedObjectIdentifiers[i] == null) {
+                mUnusedObjectIdentifiers[i] = new int[INITIAL_UNUSED_CAPACITY];
             }
-            sLastUniqueObjectIdentifier[i] = NULL_IDENTIFIER;
+            mUnusedObjectIdentifierCount[i] = 0;
+            mLastUniqueObjectIdentifier[i] = NULL_IDENTIFIER;
         }
     }
 }
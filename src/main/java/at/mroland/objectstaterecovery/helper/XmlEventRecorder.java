@@ -0,0 +1,539 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.mroland.objectstaterecovery.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
+
+/**
+ * XmlSerializer that records the sequence of serializer events instead of
+ * encoding them. The recorded events only reference immutable strings and
+ * can be replayed onto another XmlSerializer (e.g. on a different thread)
+ * at a later point in time, or read back through an XmlPullParser without
+ * encoding and parsing XML text.
+ *
+ * @author mroland
+ */
+public class XmlEventRecorder implements XmlSerializer {
+    private static final byte EVENT_SET_FEATURE_TRUE = 1;
+    private static final byte EVENT_SET_FEATURE_FALSE = 2;
+    private static final byte EVENT_START_DOCUMENT = 3;
+    private static final byte EVENT_END_DOCUMENT = 4;
+    private static final byte EVENT_SET_PREFIX = 5;
+    private static final byte EVENT_START_TAG = 6;
+    private static final byte EVENT_ATTRIBUTE = 7;
+    private static final byte EVENT_END_TAG = 8;
+    private static final byte EVENT_TEXT = 9;
+    private static final byte EVENT_CDSECT = 10;
+    private static final byte EVENT_ENTITY_REF = 11;
+    private static final byte EVENT_PROCESSING_INSTRUCTION = 12;
+    private static final byte EVENT_COMMENT = 13;
+    private static final byte EVENT_DOCDECL = 14;
+    private static final byte EVENT_IGNORABLE_WHITESPACE = 15;
+    
+    private byte[] mEvents = new byte[1024];
+    private int mEventCount = 0;
+    private final ArrayList<String> mArguments = new ArrayList();
+    private final HashMap<String, Boolean> mFeatures = new HashMap();
+    private final ArrayList<String> mTagStack = new ArrayList();
+
+    private void record(byte event) {
+        if (mEventCount >= mEvents.length) {
+            byte[] events = new byte[mEvents.length * 2];
+            System.arraycopy(mEvents, 0, events, 0, mEventCount);
+            mEvents = events;
+        }
+        mEvents[mEventCount++] = event;
+    }
+    
+    private void record(byte event, String arg) {
+        record(event);
+        mArguments.add(arg);
+    }
+    
+    private void record(byte event, String arg1, String arg2) {
+        record(event);
+        mArguments.add(arg1);
+        mArguments.add(arg2);
+    }
+    
+    /**
+     * Get the number of recorded events.
+     * 
+     * @return Number of recorded events.
+     */
+    public int size() {
+        return mEventCount;
+    }
+    
+    /**
+     * Replay all recorded events onto an XmlSerializer.
+     * 
+     * @param xml XmlSerializer instance used as target for the recorded events.
+     * @throws IOException 
+     */
+    public void replay(XmlSerializer xml) throws IOException {
+        int arg = 0;
+        for (int i = 0; i < mEventCount; ++i) {
+            switch (mEvents[i]) {
+                case EVENT_SET_FEATURE_TRUE:
+                case EVENT_SET_FEATURE_FALSE:
+                    try {
+                        xml.setFeature(mArguments.get(arg), mEvents[i] == EVENT_SET_FEATURE_TRUE);
+                    } catch (Exception e) {
+                    }
+                    arg += 1;
+                    break;
+                case EVENT_START_DOCUMENT:
+                    String standalone = mArguments.get(arg + 1);
+                    xml.startDocument(mArguments.get(arg), (standalone != null) ? Boolean.valueOf(standalone) : null);
+                    arg += 2;
+                    break;
+                case EVENT_END_DOCUMENT:
+                    xml.endDocument();
+                    break;
+                case EVENT_SET_PREFIX:
+                    xml.setPrefix(mArguments.get(arg), mArguments.get(arg + 1));
+                    arg += 2;
+                    break;
+                case EVENT_START_TAG:
+                    xml.startTag(mArguments.get(arg), mArguments.get(arg + 1));
+                    arg += 2;
+                    break;
+                case EVENT_ATTRIBUTE:
+                    xml.attribute(mArguments.get(arg), mArguments.get(arg + 1), mArguments.get(arg + 2));
+                    arg += 3;
+                    break;
+                case EVENT_END_TAG:
+                    xml.endTag(mArguments.get(arg), mArguments.get(arg + 1));
+                    arg += 2;
+                    break;
+                case EVENT_TEXT:
+                    xml.text(mArguments.get(arg++));
+                    break;
+                case EVENT_CDSECT:
+                    xml.cdsect(mArguments.get(arg++));
+                    break;
+                case EVENT_ENTITY_REF:
+                    xml.entityRef(mArguments.get(arg++));
+                    break;
+                case EVENT_PROCESSING_INSTRUCTION:
+                    xml.processingInstruction(mArguments.get(arg++));
+                    break;
+                case EVENT_COMMENT:
+                    xml.comment(mArguments.get(arg++));
+                    break;
+                case EVENT_DOCDECL:
+                    xml.docdecl(mArguments.get(arg++));
+                    break;
+                case EVENT_IGNORABLE_WHITESPACE:
+                    xml.ignorableWhitespace(mArguments.get(arg++));
+                    break;
+            }
+        }
+        xml.flush();
+    }
+
+    /**
+     * Get the number of arguments recorded for an event.
+     * 
+     * @param event Event.
+     * @return Number of arguments.
+     */
+    private static int getArgumentCount(byte event) {
+        switch (event) {
+            case EVENT_END_DOCUMENT:
+                return 0;
+            case EVENT_START_DOCUMENT:
+            case EVENT_SET_PREFIX:
+            case EVENT_START_TAG:
+            case EVENT_END_TAG:
+                return 2;
+            case EVENT_ATTRIBUTE:
+                return 3;
+            default:
+                return 1;
+        }
+    }
+    
+    /**
+     * Create an XmlPullParser that reads the recorded events. The recorder
+     * must not be modified while the parser is in use; multiple parsers may
+     * read the same recorder concurrently.
+     * 
+     * @return XmlPullParser positioned at the start of the document.
+     */
+    public XmlPullParser newPullParser() {
+        return new EventParser();
+    }
+    
+    /**
+     * XmlPullParser over the recorded events. Only start tags, attributes,
+     * end tags and text are reported; all other events are skipped. Like a
+     * parser of XML text without namespace processing (as used for snapshot
+     * files), names are reported without namespace, but namespace
+     * declarations are not reported as attributes.
+     */
+    private final class EventParser implements XmlPullParser {
+        private int mEventIndex = 0;  // index of the next event to read
+        private int mArgumentIndex = 0;  // index of the first argument of the next event
+        private int mEventType = START_DOCUMENT;
+        private String mName = null;
+        private String mText = null;
+        private int mAttributeIndex = 0;  // index of the first argument of the attributes of the current start tag
+        private int mAttributeCount = 0;
+        private int mDepth = 0;
+        
+        public int next() throws XmlPullParserException, IOException {
+            if (mEventType == END_TAG) {
+                --mDepth;
+            }
+            mName = null;
+            mText = null;
+            mAttributeCount = 0;
+            
+            while (mEventIndex < mEventCount) {
+                final byte event = mEvents[mEventIndex++];
+                final int arg = mArgumentIndex;
+                mArgumentIndex += getArgumentCount(event);
+                
+                switch (event) {
+                    case EVENT_START_TAG:
+                        mName = mArguments.get(arg + 1);
+                        mAttributeIndex = mArgumentIndex;
+                        while ((mEventIndex < mEventCount) && (mEvents[mEventIndex] == EVENT_ATTRIBUTE)) {
+                            ++mEventIndex;
+                            mArgumentIndex += 3;
+                            ++mAttributeCount;
+                        }
+                        ++mDepth;
+                        return mEventType = START_TAG;
+                    case EVENT_END_TAG:
+                        mName = mArguments.get(arg + 1);
+                        return mEventType = END_TAG;
+                    case EVENT_TEXT:
+                    case EVENT_CDSECT:
+                        mText = mArguments.get(arg);
+                        return mEventType = TEXT;
+                    case EVENT_END_DOCUMENT:
+                        return mEventType = END_DOCUMENT;
+                }
+            }
+            return mEventType = END_DOCUMENT;
+        }
+        
+        public int nextToken() throws XmlPullParserException, IOException {
+            return next();
+        }
+        
+        public int getEventType() throws XmlPullParserException {
+            return mEventType;
+        }
+        
+        public String nextText() throws XmlPullParserException, IOException {
+            if (mEventType != START_TAG) {
+                throw new XmlPullParserException("Parser must be on START_TAG to read next text", this, null);
+            }
+            String text = "";
+            if (next() == TEXT) {
+                text = mText;
+                next();
+            }
+            if (mEventType != END_TAG) {
+                throw new XmlPullParserException("Event TEXT must be immediately followed by END_TAG", this, null);
+            }
+            return text;
+        }
+        
+        public int nextTag() throws XmlPullParserException, IOException {
+            next();
+            if ((mEventType == TEXT) && isWhitespace()) {
+                next();
+            }
+            if ((mEventType != START_TAG) && (mEventType != END_TAG)) {
+                throw new XmlPullParserException("Expected START_TAG or END_TAG", this, null);
+            }
+            return mEventType;
+        }
+        
+        public void require(int type, String namespace, String name) throws XmlPullParserException, IOException {
+            if ((type != mEventType) ||
+                ((namespace != null) && !namespace.equals(getNamespace())) ||
+                ((name != null) && !name.equals(getName()))) {
+                throw new XmlPullParserException("Expected " + TYPES[type] + " but found " + TYPES[mEventType], this, null);
+            }
+        }
+        
+        public String getName() {
+            return mName;
+        }
+        
+        public String getNamespace() {
+            return NO_NAMESPACE;
+        }
+        
+        public String getPrefix() {
+            return null;
+        }
+        
+        public String getText() {
+            return mText;
+        }
+        
+        public char[] getTextCharacters(int[] holderForStartAndLength) {
+            if (mText == null) {
+                holderForStartAndLength[0] = -1;
+                holderForStartAndLength[1] = -1;
+                return null;
+            }
+            holderForStartAndLength[0] = 0;
+            holderForStartAndLength[1] = mText.length();
+            return mText.toCharArray();
+        }
+        
+        public boolean isWhitespace() throws XmlPullParserException {
+            if (mEventType != TEXT) {
+                throw new XmlPullParserException("Whitespace check is only supported for TEXT", this, null);
+            }
+            return mText.trim().isEmpty();
+        }
+        
+        public boolean isEmptyElementTag() throws XmlPullParserException {
+            return false;
+        }
+        
+        public int getDepth() {
+            return mDepth;
+        }
+        
+        public int getAttributeCount() {
+            return (mEventType == START_TAG) ? mAttributeCount : -1;
+        }
+        
+        public String getAttributeNamespace(int index) {
+            return NO_NAMESPACE;
+        }
+        
+        public String getAttributeName(int index) {
+            return mArguments.get(mAttributeIndex + 3 * index + 1);
+        }
+        
+        public String getAttributePrefix(int index) {
+            return null;
+        }
+        
+        public String getAttributeType(int index) {
+            return "CDATA";
+        }
+        
+        public boolean isAttributeDefault(int index) {
+            return false;
+        }
+        
+        public String getAttributeValue(int index) {
+            return mArguments.get(mAttributeIndex + 3 * index + 2);
+        }
+        
+        public String getAttributeValue(String namespace, String name) {
+            for (int i = 0; i < mAttributeCount; ++i) {
+                final int arg = mAttributeIndex + 3 * i;
+                if (name.equals(mArguments.get(arg + 1)) && ((namespace == null) || namespace.equals(NO_NAMESPACE))) {
+                    return mArguments.get(arg + 2);
+                }
+            }
+            return null;
+        }
+        
+        public int getNamespaceCount(int depth) throws XmlPullParserException {
+            return 0;
+        }
+        
+        public String getNamespacePrefix(int pos) throws XmlPullParserException {
+            throw new XmlPullParserException("Namespace declarations are not reported", this, null);
+        }
+        
+        public String getNamespaceUri(int pos) throws XmlPullParserException {
+            throw new XmlPullParserException("Namespace declarations are not reported", this, null);
+        }
+        
+        public String getNamespace(String prefix) {
+            return null;
+        }
+        
+        public String getPositionDescription() {
+            return "event " + mEventIndex + " " + TYPES[mEventType] + ((mName != null) ? " " + mName : "");
+        }
+        
+        public int getLineNumber() {
+            return -1;
+        }
+        
+        public int getColumnNumber() {
+            return -1;
+        }
+        
+        public void setFeature(String name, boolean state) throws XmlPullParserException {
+        }
+        
+        public boolean getFeature(String name) {
+            return false;
+        }
+        
+        public void setProperty(String name, Object value) throws XmlPullParserException {
+            throw new XmlPullParserException("Properties are not supported by XmlEventRecorder");
+        }
+        
+        public Object getProperty(String name) {
+            return null;
+        }
+        
+        public void setInput(Reader in) throws XmlPullParserException {
+            throw new XmlPullParserException("XmlEventRecorder does not parse input");
+        }
+        
+        public void setInput(InputStream inputStream, String inputEncoding) throws XmlPullParserException {
+            throw new XmlPullParserException("XmlEventRecorder does not parse input");
+        }
+        
+        public String getInputEncoding() {
+            return null;
+        }
+        
+        public void defineEntityReplacementText(String entityName, String replacementText) throws XmlPullParserException {
+        }
+    }
+
+    public void setFeature(String name, boolean state) throws IllegalArgumentException, IllegalStateException {
+        mFeatures.put(name, Boolean.valueOf(state));
+        record(state ? EVENT_SET_FEATURE_TRUE : EVENT_SET_FEATURE_FALSE, name);
+    }
+
+    public boolean getFeature(String name) {
+        Boolean state = mFeatures.get(name);
+        return (state != null) && state.booleanValue();
+    }
+
+    public void setProperty(String name, Object value) throws IllegalArgumentException, IllegalStateException {
+        throw new IllegalStateException("Properties are not supported by XmlEventRecorder");
+    }
+
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    public void setOutput(OutputStream os, String encoding) throws IOException, IllegalArgumentException, IllegalStateException {
+        throw new IllegalStateException("XmlEventRecorder does not produce output");
+    }
+
+    public void setOutput(Writer writer) throws IOException, IllegalArgumentException, IllegalStateException {
+        throw new IllegalStateException("XmlEventRecorder does not produce output");
+    }
+
+    public void startDocument(String encoding, Boolean standalone) throws IOException, IllegalArgumentException, IllegalStateException {
+        record(EVENT_START_DOCUMENT, encoding, (standalone != null) ? standalone.toString() : null);
+    }
+
+    public void endDocument() throws IOException, IllegalArgumentException, IllegalStateException {
+        record(EVENT_END_DOCUMENT);
+    }
+
+    public void setPrefix(String prefix, String namespace) throws IOException, IllegalArgumentException, IllegalStateException {
+        record(EVENT_SET_PREFIX, prefix, namespace);
+    }
+
+    public String getPrefix(String namespace, boolean generatePrefix) throws IllegalArgumentException {
+        return null;
+    }
+
+    public int getDepth() {
+        return mTagStack.size() / 2;
+    }
+
+    public String getNamespace() {
+        return mTagStack.isEmpty() ? null : mTagStack.get(mTagStack.size() - 2);
+    }
+
+    public String getName() {
+        return mTagStack.isEmpty() ? null : mTagStack.get(mTagStack.size() - 1);
+    }
+
+    public XmlSerializer startTag(String namespace, String name) throws IOException, IllegalArgumentException, IllegalStateException {
+        mTagStack.add(namespace);
+        mTagStack.add(name);
+        record(EVENT_START_TAG, namespace, name);
+        return this;
+    }
+
+    public XmlSerializer attribute(String namespace, String name, String value) throws IOException, IllegalArgumentException, IllegalStateException {
+        record(EVENT_ATTRIBUTE, namespace, name);
+        mArguments.add(value);
+        return this;
+    }
+
+    public XmlSerializer endTag(String namespace, String name) throws IOException, IllegalArgumentException, IllegalStateException {
+        if (!mTagStack.isEmpty()) {
+            mTagStack.remove(mTagStack.size() - 1);
+            mTagStack.remove(mTagStack.size() - 1);
+        }
+        record(EVENT_END_TAG, namespace, name);
+        return this;
+    }
+
+    public XmlSerializer text(String text) throws IOException, IllegalArgumentException, IllegalStateException {
+        record(EVENT_TEXT, text);
+        return this;
+    }
+
+    public XmlSerializer text(char[] buf, int start, int len) throws IOException, IllegalArgumentException, IllegalStateException {
+        record(EVENT_TEXT, new String(buf, start, len));
+        return this;
+    }
+
+    public void cdsect(String text) throws IOException, IllegalArgumentException, IllegalStateException {
+        record(EVENT_CDSECT, text);
+    }
+
+    public void entityRef(String text) throws IOException, IllegalArgumentException, IllegalStateException {
+        record(EVENT_ENTITY_REF, text);
+    }
+
+    public void processingInstruction(String text) throws IOException, IllegalArgumentException, IllegalStateException {
+        record(EVENT_PROCESSING_INSTRUCTION, text);
+    }
+
+    public void comment(String text) throws IOException, IllegalArgumentException, IllegalStateException {
+        record(EVENT_COMMENT, text);
+    }
+
+    public void docdecl(String text) throws IOException, IllegalArgumentException, IllegalStateException {
+        record(EVENT_DOCDECL, text);
+    }
+
+    public void ignorableWhitespace(String text) throws IOException, IllegalArgumentException, IllegalStateException {
+        record(EVENT_IGNORABLE_WHITESPACE, text);
+    }
+
+    public void flush() throws IOException {
+    }
+}
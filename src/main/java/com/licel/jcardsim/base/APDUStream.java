@@ -0,0 +1,51 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+/**
+ * Host side of a streamed APDU exchange.
+ *
+ * The command data field is pulled from the stream while the applet receives
+ * it and response data is pushed to the stream while the applet sends it.
+ * Neither is buffered as a whole by the runtime. Data is exchanged in blocks
+ * of at most the incoming/outgoing block size of the interface.
+ *
+ * If processing of a command fails, response data that has already been
+ * written to the stream must be discarded by the host.
+ *
+ * @author mroland
+ */
+public interface APDUStream {
+
+    /**
+     * Read the next block of the command data field.
+     *
+     * @param buffer destination buffer
+     * @param offset offset into destination buffer
+     * @param length maximum number of bytes to read
+     * @return number of bytes read (0 or less if no data is available)
+     */
+    int readCommandData(byte[] buffer, int offset, int length);
+
+    /**
+     * Write the next block of response data.
+     *
+     * @param buffer source buffer
+     * @param offset offset into source buffer
+     * @param length number of bytes to write
+     */
+    void writeResponseData(byte[] buffer, int offset, int length);
+}
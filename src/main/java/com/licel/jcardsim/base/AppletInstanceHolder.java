@@ -16,6 +16,8 @@
  */
 package com.licel.jcardsim.base;
 
+import at.mroland.objectstaterecovery.NamedInstanceHandle;
+import at.mroland.objectstaterecovery.NotPersistent;
 import at.mroland.objectstaterecovery.PersistentMemory;
 import javacard.framework.AID;
 import javacard.framework.Applet;
@@ -90,6 +92,13 @@ class AppletInstanceHolder {
      */
     private AID aidAppletInstance;
     
+    /**
+     * Persistent memory handle of the applet instance (not part of the
+     * persistent state; recreated on demand).
+     */
+    @NotPersistent
+    private NamedInstanceHandle namedInstanceHandle;
+    
     /**
      * Applet instance selection counter for multi-selectable applets.
      */
@@ -108,6 +117,7 @@ class AppletInstanceHolder {
         this.appletPackage = null;
         this.aidAppletClass = null;
         this.aidAppletInstance = null;
+        this.namedInstanceHandle = null;
         this.multiSelectCount = 0;
         if (MultiSelectable.class.isAssignableFrom(appletClass)) {
             this.flags[FLAG_MULTI_SELECTABLE] = true;
@@ -167,6 +177,19 @@ class AppletInstanceHolder {
         return aidAppletInstance;
     }
     
+    /**
+     * Get persistent memory handle of the applet instance.
+     * 
+     * @return named instance handle, or null if the applet is not installed
+     */
+    NamedInstanceHandle getNamedInstanceHandle() {
+        if ((namedInstanceHandle == null) && (aidAppletInstance != null)) {
+            PersistentMemory pm = SimulatorSystem.getPersistentMemoryInstance();
+            namedInstanceHandle = pm.getNamedInstanceHandle(aidAppletInstance);
+        }
+        return namedInstanceHandle;
+    }
+    
     /**
      * Get applet instance.
      * 
@@ -215,6 +238,7 @@ class AppletInstanceHolder {
         }
         applet = appletInstance;
         aidAppletInstance = appletInstanceAID;
+        namedInstanceHandle = null;
         flags[FLAG_INSTALLED] = true;
         flags[FLAG_SELECTABLE] = false;
         flags[FLAG_SELECTING] = false;
@@ -16,6 +16,7 @@
 package com.licel.jcardsim.base;
 
 import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
 import javacard.framework.Util;
 
 /**
@@ -44,10 +45,12 @@ final class CommandAPDU {
         eAPDUTypeCase4E
     }
     
-    private final byte[] commandAPDU;
+    private byte[] commandAPDU;
     private final APDUType commandAPDUType;
     private final int commandNc;
     private final int commandNe;
+    private final APDUStream stream;
+    private boolean commandDataStreamed;
 
     CommandAPDU(byte[] commandAPDU) {
         if ((commandAPDU == null) || (commandAPDU.length < ISO7816.OFFSET_LC)) {
@@ -128,6 +131,61 @@ final class CommandAPDU {
         this.commandNc = fieldNc;
         this.commandNe = fieldNe;
         this.commandAPDU = commandAPDU;
+        this.stream = null;
+        this.commandDataStreamed = false;
+    }
+
+    /**
+     * Create a command APDU whose command data field and response data are
+     * exchanged through a stream.
+     *
+     * @param header command header (CLA, INS, P1, P2)
+     * @param nc length of the command data field
+     * @param ne maximum length of the response data field
+     * @param stream stream that supplies the command data and consumes the response data
+     */
+    CommandAPDU(byte[] header, int nc, int ne, APDUStream stream) {
+        if ((header == null) || (header.length < ISO7816.OFFSET_LC) || (stream == null) ||
+            (nc < 0) || (nc > (NE_MAX_EXTENDED - 1)) || (ne < 0) || (ne > NE_MAX_EXTENDED)) {
+            throw new IllegalArgumentException();
+        }
+
+        final boolean extendedLength = (nc > (NE_MAX - 1)) || (ne > NE_MAX);
+        final int lengthField = (nc > 0) ? nc : ne;
+
+        // build the header as it appears in the APDU buffer (the command data
+        // field and trailing Le field are never part of the buffer header)
+        final byte[] commandHeader;
+        if (extendedLength) {
+            commandHeader = new byte[ISO7816.OFFSET_EXT_CDATA];
+            Util.setShort(commandHeader, (short)(ISO7816.OFFSET_LC + 1), (short)lengthField);
+        } else {
+            commandHeader = new byte[ISO7816.OFFSET_CDATA];
+            commandHeader[ISO7816.OFFSET_LC] = (byte)lengthField;
+        }
+        System.arraycopy(header, 0, commandHeader, 0, ISO7816.OFFSET_LC);
+
+        APDUType apduType;
+        if (nc == 0) {
+            if (ne == 0) {
+                apduType = APDUType.eAPDUTypeCase1;
+            } else {
+                apduType = extendedLength ? APDUType.eAPDUTypeCase2E : APDUType.eAPDUTypeCase2S;
+            }
+        } else {
+            if (ne == 0) {
+                apduType = extendedLength ? APDUType.eAPDUTypeCase3E : APDUType.eAPDUTypeCase3S;
+            } else {
+                apduType = extendedLength ? APDUType.eAPDUTypeCase4E : APDUType.eAPDUTypeCase4S;
+            }
+        }
+
+        this.commandAPDUType = apduType;
+        this.commandNc = nc;
+        this.commandNe = ne;
+        this.commandAPDU = commandHeader;
+        this.stream = stream;
+        this.commandDataStreamed = (nc > 0);
     }
 
     boolean isExtendedLength() {
@@ -190,10 +248,52 @@ final class CommandAPDU {
     }
     
     void getCommandData(byte[] buffer, short offset) {
+        if (commandDataStreamed) {
+            receiveCommandData();
+        }
         Util.arrayCopyNonAtomic(commandAPDU, (short)getOffsetCData(), buffer, offset, (short)commandNc);
     }
     
     int getNe() {
         return commandNe;
     }
+
+    /**
+     * Get the stream used to exchange the command data and the response data.
+     *
+     * @return stream, or null if the APDU is fully buffered
+     */
+    APDUStream getStream() {
+        return stream;
+    }
+
+    /**
+     * Check if the command data field still needs to be read from the stream.
+     *
+     * @return true if the command data field has not been received yet
+     */
+    boolean isCommandDataStreamed() {
+        return commandDataStreamed;
+    }
+
+    /**
+     * Read the whole command data field from the stream into the command
+     * buffer. This is only used for the (short) commands processed by the
+     * runtime itself.
+     */
+    private void receiveCommandData() {
+        final int offset = getOffsetCData();
+        final byte[] command = new byte[offset + commandNc];
+        System.arraycopy(commandAPDU, 0, command, 0, offset);
+        int received = 0;
+        while (received < commandNc) {
+            int len = stream.readCommandData(command, offset + received, commandNc - received);
+            if ((len <= 0) || (len > (commandNc - received))) {
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            }
+            received += len;
+        }
+        commandAPDU = command;
+        commandDataStreamed = false;
+    }
 }
@@ -0,0 +1,670 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import at.mroland.logging.Logging;
+import at.mroland.objectstaterecovery.PersistentMemory;
+import at.mroland.objectstaterecovery.TransientMemory;
+import at.mroland.objectstaterecovery.helper.XmlEventRecorder;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+import org.xmlpull.v1.XmlSerializer;
+
+/**
+ * Saves and loads the simulator state to/from persistent storage.
+ *
+ * Saving is split into two phases: The state of persistent and transient
+ * memory is serialized into a sequence of XML serializer events while APDU
+ * processing is blocked. This capture is a synchronous serialization of the
+ * whole state (for a full snapshot) or of all states changed since the last
+ * snapshot (for an incremental snapshot), so its cost adds to the latency of
+ * the next APDU. There is no copy-on-write capture, i.e. the captured events
+ * hold a second copy of the serialized state in memory until they have been
+ * written. Only encoding (compression) and writing of these events happen on
+ * a background thread afterwards. All writes are executed in order on a
+ * single thread and each file is written to a temporary file, synced to disk
+ * and renamed to its final name. Snapshot files are optionally compressed
+ * (see {@link #setCompression(boolean)}).
+ *
+ * @author mroland
+ */
+final class PersistentStorage {
+    private static final String TAG = PersistentStorage.class.getName();
+    
+    private static final String PERSISTENT_MEMORY_FILE = "persistentmemory.xml";
+    private static final String TRANSIENT_MEMORY_FILE = "transientmemory.xml";
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+    private static final String BACKUP_FILE_SUFFIX = ".bak";
+    private static final int WRITE_BUFFER_SIZE = 65536;
+    private static final int READ_BUFFER_SIZE = 65536;
+    
+    private static volatile boolean compression = SimulatorConfig.PERSISTENT_STORAGE_COMPRESSION;
+
+    private final PersistentMemory persistentMemory;
+    private final TransientMemory transientMemory;
+    private ScheduledExecutorService executor;
+    
+    // incremental snapshots (guarded by this)
+    private File lastBasePath = null;
+    private int deltasSinceFullSnapshot = 0;
+    // set by the writer thread if a write fails, cleared once a full snapshot has been written
+    private volatile boolean writeFailed = false;
+    
+    // periodic checkpoints (guarded by this)
+    private File checkpointBasePath = null;
+    private int checkpointAPDUInterval = 0;
+    private int apdusSinceCheckpoint = 0;
+    private ScheduledFuture checkpointTimer = null;
+
+    PersistentStorage(PersistentMemory persistentMemory, TransientMemory transientMemory) {
+        this.persistentMemory = persistentMemory;
+        this.transientMemory = transientMemory;
+    }
+    
+    /**
+     * Enable or disable compression of snapshot files written from now on
+     * (defaults to <code>SimulatorConfig.PERSISTENT_STORAGE_COMPRESSION</code>).
+     * 
+     * @param enabled compress snapshot files
+     */
+    static void setCompression(boolean enabled) {
+        compression = enabled;
+    }
+    
+    /**
+     * Capture the simulator state and write it to persistent storage.
+     * 
+     * @param runtime simulator runtime
+     * @param basePath directory containing the snapshot files
+     * @param incremental write an incremental snapshot if possible
+     * @param wait wait until the snapshot has been written
+     */
+    void save(final SimulatorRuntime runtime, final File basePath, final boolean incremental, boolean wait) {
+        final ArrayList<Future> pending = new ArrayList();
+        runtime.runExclusive(new Runnable() {
+            public void run() {
+                // capture and submission need to happen under the APDU processing lock to keep the writes in order
+                pending.add(getExecutor().submit(capture(runtime, basePath, incremental)));
+            }
+        });
+        if (wait) {
+            await(pending.get(0));
+        }
+    }
+    
+    /**
+     * Capture the simulator state. This must be called while no APDU is
+     * processed. The state is serialized synchronously (full snapshots
+     * serialize the whole state, incremental snapshots the states changed
+     * since the last snapshot); the returned task only encodes and writes the
+     * captured events.
+     */
+    private synchronized Runnable capture(SimulatorRuntime runtime, final File basePath, boolean incremental) {
+        apdusSinceCheckpoint = 0;
+        
+        // save state of runtime (applets, packages, etc)
+        runtime.saveState(persistentMemory);
+
+        final boolean delta = incremental && !writeFailed &&
+                              basePath.equals(lastBasePath) &&
+                              (deltasSinceFullSnapshot < SimulatorConfig.PERSISTENT_MEMORY_MAX_DELTAS) &&
+                              persistentMemory.canSerializeDelta();
+        
+        final XmlEventRecorder persistentMemoryEvents = new XmlEventRecorder();
+        if (delta) {
+            persistentMemory.serializeDeltaToXml(persistentMemoryEvents);
+            ++deltasSinceFullSnapshot;
+        } else {
+            persistentMemory.serializeToXml(persistentMemoryEvents);
+            deltasSinceFullSnapshot = 0;
+        }
+        lastBasePath = basePath;
+        
+        final XmlEventRecorder transientMemoryEvents = new XmlEventRecorder();
+        transientMemory.serializeToXml(transientMemoryEvents);
+        
+        return new Runnable() {
+            public void run() {
+                write(basePath, delta, persistentMemoryEvents, transientMemoryEvents);
+            }
+        };
+    }
+    
+    /**
+     * Write captured state to persistent storage. Once a write has failed,
+     * incremental snapshots that have been captured before the failure was
+     * noticed do not continue the snapshots in persistent storage, so they
+     * are dropped until a full snapshot has been written. The transient
+     * memory state is not written either in that case, so that it stays
+     * consistent with the persistent memory snapshots.
+     */
+    private void write(File basePath, boolean delta, XmlEventRecorder persistentMemoryEvents, XmlEventRecorder transientMemoryEvents) {
+        if (delta && writeFailed) {
+            Logging.error(TAG, "Dropped incremental snapshot after a failed write, the next snapshot will be a full snapshot");
+            return;
+        }
+        
+        XmlPullParserFactory pullParserFactory = getPullParserFactory();
+        
+        // save persistent memory manager
+        try {
+            File file;
+            if (delta) {
+                int deltaIndex = 1;
+                while (getDeltaFile(basePath, deltaIndex).exists()) {
+                    ++deltaIndex;
+                }
+                file = getDeltaFile(basePath, deltaIndex);
+            } else {
+                file = new File(basePath, PERSISTENT_MEMORY_FILE);
+            }
+            
+            writeFile(pullParserFactory, file, persistentMemoryEvents);
+            
+            if (!delta) {
+                deleteDeltaFiles(basePath);
+                writeFailed = false;
+            }
+        } catch (Exception e) {
+            writeFailed = true;  // the next snapshot needs to be a full snapshot
+            Logging.error(TAG, "Exception while serializing to persistent storage: " + e.toString(), e);
+            return;
+        }
+
+        // save transient memory state
+        try {
+            writeFile(pullParserFactory, new File(basePath, TRANSIENT_MEMORY_FILE), transientMemoryEvents);
+        } catch (Exception e) {
+            Logging.error(TAG, "Exception while serializing to persistent storage: " + e.toString(), e);
+        }
+    }
+    
+    /**
+     * Write XML events to a file. The file is first written to a temporary
+     * file, synced to disk and then renamed to its final name.
+     */
+    private static void writeFile(XmlPullParserFactory pullParserFactory, File file, XmlEventRecorder events) throws Exception {
+        File temporaryFile = new File(file.getPath() + TEMPORARY_FILE_SUFFIX);
+        FileOutputStream ostr = new FileOutputStream(temporaryFile);
+        try {
+            BufferedOutputStream bstr = new BufferedOutputStream(ostr, WRITE_BUFFER_SIZE);
+            encode(pullParserFactory, bstr, events);
+            bstr.flush();
+            ostr.getChannel().force(true);
+        } finally {
+            ostr.close();
+        }
+        
+        renameFile(temporaryFile, file);
+    }
+    
+    /**
+     * Write already encoded contents to a file. The file is first written to
+     * a temporary file, synced to disk and then renamed to its final name.
+     */
+    private static void writeFile(File file, byte[] contents) throws Exception {
+        File temporaryFile = new File(file.getPath() + TEMPORARY_FILE_SUFFIX);
+        FileOutputStream ostr = new FileOutputStream(temporaryFile);
+        try {
+            ostr.write(contents);
+            ostr.getChannel().force(true);
+        } finally {
+            ostr.close();
+        }
+        
+        renameFile(temporaryFile, file);
+    }
+    
+    /**
+     * Encode XML events (optionally compressed) onto an output stream.
+     */
+    private static void encode(XmlPullParserFactory pullParserFactory, OutputStream ostr, XmlEventRecorder events) throws Exception {
+        Deflater deflater = null;
+        try {
+            DeflaterOutputStream dstr = null;
+            if (compression) {
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+                dstr = new DeflaterOutputStream(ostr, deflater, WRITE_BUFFER_SIZE);
+            }
+            XmlSerializer xml = pullParserFactory.newSerializer();
+//            XmlSerializer xml = Xml.newSerializer();
+
+            xml.setOutput((dstr != null) ? dstr : ostr, "UTF-8");
+
+            events.replay(xml);
+
+            if (dstr != null) {
+                dstr.finish();
+            }
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+    
+    /**
+     * Rename a temporary file to its final name. If the platform does not
+     * support renaming onto an existing file, the existing file is first
+     * renamed to a backup file, so that either the old or the new file is
+     * available at any time (see {@link #resolveFile(File)}).
+     */
+    private static void renameFile(File temporaryFile, File file) throws IOException {
+        if (temporaryFile.renameTo(file)) {
+            return;
+        }
+        
+        File backupFile = new File(file.getPath() + BACKUP_FILE_SUFFIX);
+        backupFile.delete();
+        if (!file.renameTo(backupFile)) {
+            throw new IOException("Could not rename " + file.getName() + " to " + backupFile.getName());
+        }
+        if (!temporaryFile.renameTo(file)) {
+            backupFile.renameTo(file);
+            throw new IOException("Could not rename " + temporaryFile.getName() + " to " + file.getName());
+        }
+        if (!backupFile.delete()) {
+            Logging.error(TAG, "Could not delete backup file " + backupFile.getName() + "!");
+        }
+    }
+    
+    /**
+     * Resolve the file to read for a snapshot file. If the file does not
+     * exist because writing it was interrupted between renaming the old file
+     * to its backup file and renaming the new file to its final name, the
+     * backup file is used.
+     */
+    private static File resolveFile(File file) {
+        if (!file.exists()) {
+            File backupFile = new File(file.getPath() + BACKUP_FILE_SUFFIX);
+            if (backupFile.exists()) {
+                return backupFile;
+            }
+        }
+        return file;
+    }
+    
+    /**
+     * Wait until all pending writes have completed.
+     */
+    void await() {
+        await(getExecutor().submit(new Runnable() {
+            public void run() {
+            }
+        }));
+    }
+    
+    private static void await(Future future) {
+        try {
+            future.get();
+        } catch (Exception e) {
+            Logging.error(TAG, "Exception while waiting for persistent storage: " + e.toString(), e);
+        }
+    }
+    
+    /**
+     * Load the simulator state from persistent storage.
+     * 
+     * @param runtime simulator runtime
+     * @param basePath directory containing the snapshot files
+     */
+    void load(SimulatorRuntime runtime, File basePath) {
+        await();
+        
+        XmlPullParserFactory pullParserFactory = getPullParserFactory();
+        
+        // load persistent memory manager
+        ArrayList<InputStream> istrs = new ArrayList();
+        try {
+            InputStream istr = openFile(resolveFile(new File(basePath, PERSISTENT_MEMORY_FILE)));
+            istrs.add(istr);
+            XmlPullParser xml = pullParserFactory.newPullParser();
+//            XmlPullParser xml = Xml.newPullParser();
+            
+            xml.setInput(istr, "UTF-8");
+
+            List<XmlPullParser> deltas = openDeltaFiles(basePath, pullParserFactory, istrs);
+            persistentMemory.deserializeFromXml(xml, deltas);
+        } catch (Exception e) {
+            Logging.error(TAG, "Exception while de-serializing persistent memory from persistent storage: " + e.toString(), e);
+        } finally {
+            closeStreams(istrs);
+        }
+        
+        // load transient memory state
+        try {
+            InputStream istr = openFile(resolveFile(new File(basePath, TRANSIENT_MEMORY_FILE)));
+            XmlPullParser xml = pullParserFactory.newPullParser();
+//            XmlPullParser xml = Xml.newPullParser();
+            
+            xml.setInput(istr, "UTF-8");
+
+            transientMemory.deserializeFromXml(xml);
+
+            istr.close();
+        } catch (Exception e) {
+            Logging.error(TAG, "Exception while de-serializing transient memory from persistent storage: " + e.toString(), e);
+        }
+        
+        // load state of runtime (applets, packages, etc)
+        runtime.loadState(persistentMemory);
+    }
+    
+    /**
+     * Merge the persistent memory snapshot and its incremental snapshots into
+     * a single snapshot. The compaction is executed in order with pending
+     * writes.
+     * 
+     * @param basePath directory containing the snapshot files
+     */
+    void compact(final File basePath) {
+        await(getExecutor().submit(new Runnable() {
+            public void run() {
+                compactFiles(basePath);
+            }
+        }));
+    }
+    
+    private void compactFiles(File basePath) {
+        XmlPullParserFactory pullParserFactory = getPullParserFactory();
+        
+        ArrayList<InputStream> istrs = new ArrayList();
+        try {
+            InputStream istr = openFile(resolveFile(new File(basePath, PERSISTENT_MEMORY_FILE)));
+            istrs.add(istr);
+            XmlPullParser xml = pullParserFactory.newPullParser();
+            
+            xml.setInput(istr, "UTF-8");
+
+            List<XmlPullParser> deltas = openDeltaFiles(basePath, pullParserFactory, istrs);
+            if (deltas.isEmpty()) {
+                return;
+            }
+            
+            XmlEventRecorder events = new XmlEventRecorder();
+            PersistentMemory.compactSnapshots(xml, deltas, events);
+            closeStreams(istrs);
+            
+            // left-over incremental snapshots do not continue the compacted snapshot and are ignored upon loading
+            writeFile(pullParserFactory, new File(basePath, PERSISTENT_MEMORY_FILE), events);
+            deleteDeltaFiles(basePath);
+        } catch (Exception e) {
+            Logging.error(TAG, "Exception while compacting persistent storage: " + e.toString(), e);
+        } finally {
+            closeStreams(istrs);
+        }
+    }
+    
+    /**
+     * Capture a snapshot image of the simulator state while APDU processing is
+     * blocked.
+     * 
+     * @param runtime simulator runtime
+     * @return snapshot image
+     */
+    SnapshotImage captureSnapshotImage(final SimulatorRuntime runtime) {
+        final ArrayList<SnapshotImage> image = new ArrayList();
+        runtime.runExclusive(new Runnable() {
+            public void run() {
+                image.add(captureImage(runtime));
+            }
+        });
+        return image.get(0);
+    }
+    
+    private synchronized SnapshotImage captureImage(SimulatorRuntime runtime) {
+        // save state of runtime (applets, packages, etc)
+        runtime.saveState(persistentMemory);
+        
+        final XmlEventRecorder persistentMemoryEvents = new XmlEventRecorder();
+        persistentMemory.serializeToXml(persistentMemoryEvents);
+        // the snapshot image is now the base of incremental snapshots, so the next snapshot written needs to be a full snapshot
+        lastBasePath = null;
+        
+        final XmlEventRecorder transientMemoryEvents = new XmlEventRecorder();
+        transientMemory.serializeToXml(transientMemoryEvents);
+        
+        return new SnapshotImage(persistentMemoryEvents, transientMemoryEvents);
+    }
+    
+    /**
+     * Write a snapshot image to persistent storage. Any existing snapshot in
+     * the directory is replaced. The snapshot files are encoded only once
+     * per snapshot image, so writing many copies of a snapshot image (e.g. from
+     * multiple threads into different directories) does not serialize the
+     * card state again.
+     * 
+     * @param image snapshot image
+     * @param basePath directory receiving the snapshot files
+     */
+    static void saveSnapshotImage(SnapshotImage image, File basePath) {
+        byte[] persistentMemoryFile;
+        byte[] transientMemoryFile;
+        synchronized (image) {
+            if (image.persistentMemoryFile == null) {
+                XmlPullParserFactory pullParserFactory = getPullParserFactory();
+                try {
+                    ByteArrayOutputStream ostr = new ByteArrayOutputStream();
+                    encode(pullParserFactory, ostr, image.persistentMemoryEvents);
+                    image.persistentMemoryFile = ostr.toByteArray();
+                    ostr = new ByteArrayOutputStream();
+                    encode(pullParserFactory, ostr, image.transientMemoryEvents);
+                    image.transientMemoryFile = ostr.toByteArray();
+                } catch (Exception e) {
+                    image.persistentMemoryFile = null;
+                    Logging.error(TAG, "Exception while encoding snapshot image: " + e.toString(), e);
+                    return;
+                }
+            }
+            persistentMemoryFile = image.persistentMemoryFile;
+            transientMemoryFile = image.transientMemoryFile;
+        }
+        
+        try {
+            writeFile(new File(basePath, PERSISTENT_MEMORY_FILE), persistentMemoryFile);
+            deleteDeltaFiles(basePath);
+            writeFile(new File(basePath, TRANSIENT_MEMORY_FILE), transientMemoryFile);
+        } catch (Exception e) {
+            Logging.error(TAG, "Exception while writing snapshot image to persistent storage: " + e.toString(), e);
+        }
+    }
+    
+    /**
+     * Load the simulator state from a snapshot image. The recorded events of
+     * the snapshot image are read directly, i.e. without parsing XML text,
+     * but the memory state is still rebuilt from them by
+     * <code>deserializeFromXml</code>.
+     * 
+     * @param runtime simulator runtime
+     * @param image snapshot image
+     */
+    void load(SimulatorRuntime runtime, SnapshotImage image) {
+        await();
+        
+        // load persistent memory manager
+        try {
+            persistentMemory.deserializeFromXml(image.persistentMemoryEvents.newPullParser(), null);
+        } catch (Exception e) {
+            Logging.error(TAG, "Exception while de-serializing persistent memory from snapshot image: " + e.toString(), e);
+        }
+        
+        // load transient memory state
+        try {
+            transientMemory.deserializeFromXml(image.transientMemoryEvents.newPullParser());
+        } catch (Exception e) {
+            Logging.error(TAG, "Exception while de-serializing transient memory from snapshot image: " + e.toString(), e);
+        }
+        
+        // load state of runtime (applets, packages, etc)
+        runtime.loadState(persistentMemory);
+    }
+    
+    /**
+     * Configure periodic checkpoints. Checkpoints are captured as incremental
+     * snapshots (see {@link #save(SimulatorRuntime, File, boolean, boolean)})
+     * and written in the background after a number of processed APDUs and/or
+     * after a period of time (if at least one APDU has been processed since
+     * the last checkpoint).
+     * 
+     * @param runtime simulator runtime
+     * @param basePath directory containing the snapshot files (null disables periodic checkpoints)
+     * @param apduInterval number of APDUs between checkpoints (0 disables APDU-based checkpoints)
+     * @param timeInterval number of seconds between checkpoints (0 disables time-based checkpoints)
+     */
+    synchronized void setPeriodicCheckpoints(final SimulatorRuntime runtime, File basePath, int apduInterval, int timeInterval) {
+        if (checkpointTimer != null) {
+            checkpointTimer.cancel(false);
+            checkpointTimer = null;
+        }
+        
+        checkpointBasePath = basePath;
+        checkpointAPDUInterval = (basePath != null) ? apduInterval : 0;
+        apdusSinceCheckpoint = 0;
+        
+        if ((basePath != null) && (timeInterval > 0)) {
+            checkpointTimer = getExecutor().scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    File path;
+                    synchronized (PersistentStorage.this) {
+                        path = (apdusSinceCheckpoint > 0) ? checkpointBasePath : null;
+                    }
+                    if (path != null) {
+                        save(runtime, path, true, false);
+                    }
+                }
+            }, timeInterval, timeInterval, TimeUnit.SECONDS);
+        }
+    }
+    
+    /**
+     * Count a processed APDU and start a checkpoint if the APDU interval has
+     * been reached.
+     * 
+     * @param runtime simulator runtime
+     */
+    void apduProcessed(SimulatorRuntime runtime) {
+        File path = null;
+        synchronized (this) {
+            ++apdusSinceCheckpoint;
+            if ((checkpointAPDUInterval > 0) && (apdusSinceCheckpoint >= checkpointAPDUInterval)) {
+                path = checkpointBasePath;
+            }
+        }
+        if (path != null) {
+            save(runtime, path, true, false);
+        }
+    }
+    
+    synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PersistentStorage");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+    
+    private static XmlPullParserFactory getPullParserFactory() {
+        try {
+            return XmlPullParserFactory.newInstance();
+        } catch (XmlPullParserException e) {
+            Logging.error(TAG, "Exception while retrieving XmlPullParserFactory: " + e.toString(), e);
+            return null;
+        }
+    }
+    
+    /**
+     * Open a (possibly compressed) snapshot file for reading.
+     */
+    private static InputStream openFile(File file) throws IOException {
+        BufferedInputStream bstr = new BufferedInputStream(new FileInputStream(file), READ_BUFFER_SIZE);
+        bstr.mark(2);
+        final int cmf = bstr.read();
+        final int flg = bstr.read();
+        bstr.reset();
+        if ((cmf >= 0) && (flg >= 0) && ((cmf & 0x0f) == 8) && ((((cmf << 8) | flg) % 31) == 0)) {
+            // zlib header (an XML document never starts with this byte sequence)
+            return new InflaterInputStream(bstr);
+        }
+        return bstr;
+    }
+    
+    private static File getDeltaFile(File basePath, int index) {
+        return new File(basePath, "persistentmemory.delta." + index + ".xml");
+    }
+    
+    private static List<XmlPullParser> openDeltaFiles(File basePath, XmlPullParserFactory pullParserFactory, List<InputStream> istrs) throws Exception {
+        ArrayList<XmlPullParser> deltas = new ArrayList();
+        for (int index = 1; ; ++index) {
+            File file = getDeltaFile(basePath, index);
+            if (!file.exists()) {
+                break;
+            }
+            InputStream istr = openFile(file);
+            istrs.add(istr);
+            XmlPullParser xml = pullParserFactory.newPullParser();
+            xml.setInput(istr, "UTF-8");
+            deltas.add(xml);
+        }
+        return deltas;
+    }
+    
+    private static void deleteDeltaFiles(File basePath) {
+        for (int index = 1; ; ++index) {
+            File file = getDeltaFile(basePath, index);
+            if (!file.exists()) {
+                break;
+            }
+            if (!file.delete()) {
+                Logging.error(TAG, "Could not delete incremental snapshot " + file.getName() + "!");
+            }
+        }
+    }
+    
+    private static void closeStreams(List<InputStream> istrs) {
+        for (InputStream istr : istrs) {
+            try {
+                istr.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+}
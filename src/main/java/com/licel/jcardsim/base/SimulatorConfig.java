@@ -65,6 +65,54 @@ public interface SimulatorConfig {
      * Maximum size of extended length APDUs.
      */
     public static final int EXTENDED_LENGTH_MAXIMUM = 32767;
+    /**
+     * Pre-generate key pairs for <code>KeyPair.genKeyPair()</code> on background threads.
+     */
+    public static final boolean KEY_PAIR_POOL_ENABLED = false;
+    /**
+     * Number of pre-generated key pairs kept per key generation parameter set.
+     */
+    public static final int KEY_PAIR_POOL_SIZE = 4;
+    /**
+     * Number of background threads used for key pair pre-generation.
+     */
+    public static final int KEY_PAIR_POOL_THREADS = 2;
+    /**
+     * Use the JCA/JCE providers of the Java runtime instead of the BouncyCastle
+     * lightweight API for block ciphers and message digests by default.
+     */
+    public static final boolean CRYPTO_BACKEND_JCE = false;
+    /**
+     * Maximum number of incremental persistent memory snapshots written by
+     * <code>SimulatorSystem.saveIncrementalToPersistentStorage()</code>
+     * before a full snapshot is written instead.
+     */
+    public static final int PERSISTENT_MEMORY_MAX_DELTAS = 16;
+    /**
+     * Compress snapshot files in persistent storage (zlib/deflate). Compressed
+     * and uncompressed snapshot files are detected automatically upon loading.
+     */
+    public static final boolean PERSISTENT_STORAGE_COMPRESSION = false;
+    /**
+     * Track stored objects of persistent memory through weak references so
+     * that unreachable objects are reclaimed by the garbage collector of the
+     * Java runtime instead of marking all reachable objects upon each
+     * persistent memory garbage collection.
+     */
+    public static final boolean PERSISTENT_MEMORY_WEAK_REFERENCES = false;
+    /**
+     * Number of threads used to refresh the persistent memory state of dirty
+     * objects and classes upon memory barriers. Large object graphs are
+     * traversed in parallel if this is greater than 1.
+     */
+    public static final int PERSISTENT_MEMORY_REFRESH_THREADS = 1;
+    /**
+     * Number of persistent memory garbage collections (performed after each
+     * APDU) per major collection. All other collections only sweep objects
+     * that have been stored since the previous collection. 1 sweeps all
+     * objects upon each collection (generational collection disabled).
+     */
+    public static final int PERSISTENT_MEMORY_MAJOR_GC_INTERVAL = 1;
     /**
      * Interface name of internal interface.
      */
@@ -18,6 +18,8 @@ package com.licel.jcardsim.base;
 
 import at.mroland.logging.Logging;
 import at.mroland.objectstaterecovery.PersistentMemory;
+import at.mroland.objectstaterecovery.Savepoint;
+import at.mroland.objectstaterecovery.TransientMemory;
 import at.mroland.utils.StringUtils;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -102,20 +104,36 @@ public class SimulatorRuntime {
     private byte[] commandBuffer = null;
     
     /**
-     * Outbound response byte array buffer data size.
+     * Inbound command byte array buffer read offset.
      */
     private int commandBufferOffset = 0;
     
     /**
-     * Outbound response byte array buffer.
+     * Number of command data bytes not yet received by the applet.
+     */
+    private int commandDataRemaining = 0;
+    
+    /**
+     * Stream supplying the command data (null if the command data is buffered).
+     */
+    private APDUStream commandStream = null;
+    
+    /**
+     * Outbound response byte array buffer (grown on demand up to the maximum
+     * response length).
      */
-    private byte[] responseBuffer = new byte[SimulatorConfig.EXTENDED_LENGTH_SUPPORT ? SimulatorConfig.EXTENDED_LENGTH_MAXIMUM : 256];
+    private byte[] responseBuffer = null;
     
     /**
      * Outbound response byte array buffer data size.
      */
     private int responseBufferSize = 0;
     
+    /**
+     * Stream consuming the response data (null if the response data is buffered).
+     */
+    private APDUStream responseStream = null;
+    
     /**
      * Expected response length.
      */
@@ -140,6 +158,21 @@ public class SimulatorRuntime {
         }
     }
     
+    /**
+     * Run a task while no APDU is processed.
+     * 
+     * @param task task executed under the APDU processing serialization lock
+     */
+    void runExclusive(Runnable task) {
+        try {
+            singleProcessLock.lock();
+            
+            task.run();
+        } finally {
+            singleProcessLock.unlock();
+        }
+    }
+    
     /**
      * Return current applet context AID or null.
      * 
@@ -548,6 +581,9 @@ public class SimulatorRuntime {
                 installParameter[offset] = (byte)appletData.length;
                 offset = Util.arrayCopyNonAtomic(appletData, (short)0, installParameter, (short)(offset + 1), (short)appletData.length);
 
+                // flag transient memory of the package as dirty
+                SimulatorSystem.setDirtyTransientMemorySegments(ah.getPackageAID());
+                
                 // flag all package classes as dirty
                 PackageHolder ph = ah.getPackage();
                 if (ph != null) {
@@ -789,7 +825,8 @@ public class SimulatorRuntime {
                     currentAppletContext = selectedAppletContext;
                     
                     // flag applet as dirty (all package classes are bound to the applet instance and are therefore implicitly marked as dirty)
-                    pm.setDirtyNamedInstance(selectedAppletContext.getInstanceAID());
+                    pm.setDirtyNamedInstance(selectedAppletContext.getNamedInstanceHandle());
+                    SimulatorSystem.setDirtyTransientMemorySegments(selectedAppletContext.getPackageAID());
                     
                     try {
                         ((AppletEvent)applet).uninstall();
@@ -887,8 +924,52 @@ public class SimulatorRuntime {
         if (ifc == null) throw new InvalidParameterException("Interface '" + interfaceName + "' does not exist!");
 
         CommandAPDU commandAPDU = null;
+        try {
+            commandAPDU = new CommandAPDU(command);
+        } catch (IllegalArgumentException e) {
+            Logging.info(TAG, "transceiveAPDU: Malformed C-APDU = " + StringUtils.convertByteArrayToHexString(command).toUpperCase());
+        }
+
+        byte[] response = transceiveAPDU(ifc, interfaceName, commandAPDU).toBytes();
+        Logging.info(TAG, "transceiveAPDU: R-APDU = " + StringUtils.convertByteArrayToHexString(response).toUpperCase());
+        return response;
+    }
+
+    /**
+     * Transceive APDU with Java Card emulator environment streaming the
+     * command data field and the response data.
+     * 
+     * @param interfaceName name of interface used for APDU exchange
+     * @param header        command header (CLA, INS, P1, P2)
+     * @param nc            length of the command data field
+     * @param ne            maximum length of the response data field
+     * @param stream        stream that supplies the command data and consumes the response data
+     * @return              status word
+     * @throws InvalidParameterException if specified interface does not exist
+     */
+    short transceiveAPDU(String interfaceName, byte[] header, int nc, int ne, APDUStream stream) throws InvalidParameterException {
+        CardInterface ifc = interfaces.get(interfaceName);
+        if (ifc == null) throw new InvalidParameterException("Interface '" + interfaceName + "' does not exist!");
+
+        CommandAPDU commandAPDU = null;
+        try {
+            commandAPDU = new CommandAPDU(header, nc, ne, stream);
+        } catch (IllegalArgumentException e) {
+            Logging.info(TAG, "transceiveAPDU: Malformed C-APDU (Nc = " + nc + ", Ne = " + ne + ")");
+        }
+
+        ResponseAPDU responseAPDU = transceiveAPDU(ifc, interfaceName, commandAPDU);
+        final int responseLength = responseAPDU.toBytes().length - 2;
+        if ((responseLength > 0) && (stream != null)) {
+            // response data generated by the runtime itself
+            stream.writeResponseData(responseAPDU.toBytes(), 0, responseLength);
+        }
+        Logging.info(TAG, "transceiveAPDU: SW = " + Integer.toHexString(responseAPDU.getSW() & 0x0ffff).toUpperCase());
+        return responseAPDU.getSW();
+    }
+
+    private ResponseAPDU transceiveAPDU(CardInterface ifc, String interfaceName, CommandAPDU commandAPDU) {
         ResponseAPDU responseAPDU = null;
-        byte[] response = null;
         
         try {
             singleProcessLock.lock();  // serialize APDU exchange
@@ -897,12 +978,14 @@ public class SimulatorRuntime {
                 activeInterface = ifc;
 
                 Logging.info(TAG, "transceiveAPDU: Interface = " + interfaceName);
-                Logging.info(TAG, "transceiveAPDU: C-APDU = " + StringUtils.convertByteArrayToHexString(command).toUpperCase());
 
-                try {
-                    commandAPDU = new CommandAPDU(command);
-                } catch (IllegalArgumentException e) {
-                    ISOException.throwIt(ISO7816.SW_UNKNOWN);
+                if (commandAPDU == null) ISOException.throwIt(ISO7816.SW_UNKNOWN);
+
+                if (commandAPDU.getStream() == null) {
+                    Logging.info(TAG, "transceiveAPDU: C-APDU = " + StringUtils.convertByteArrayToHexString(commandAPDU.getCommand()).toUpperCase());
+                } else {
+                    Logging.info(TAG, "transceiveAPDU: C-APDU header = " + StringUtils.convertByteArrayToHexString(commandAPDU.getCommand()).toUpperCase() +
+                                      " (Nc = " + commandAPDU.getNc() + ", Ne = " + commandAPDU.getNe() + ")");
                 }
 
                 if (commandAPDU != null) {
@@ -1063,12 +1146,8 @@ public class SimulatorRuntime {
                 responseAPDU = new ResponseAPDU(null, 0, ISO7816.SW_UNKNOWN);
             }
 
-            response = responseAPDU.toBytes();
-            
             PersistentMemory pm = SimulatorSystem.getPersistentMemoryInstance();
             pm.garbageCollect(true);
-
-            Logging.info(TAG, "transceiveAPDU: R-APDU = " + StringUtils.convertByteArrayToHexString(response).toUpperCase());
         } finally {
             try {
                 selectedAppletContext = null;
@@ -1081,7 +1160,9 @@ public class SimulatorRuntime {
             }
         }
         
-        return response;
+        SimulatorSystem.apduProcessed();
+        
+        return responseAPDU;
     }
 
 //    private ResponseAPDU selectAppletByAID(AID instanceAID, CommandAPDU selectCommand) {
@@ -1114,7 +1195,8 @@ public class SimulatorRuntime {
                     pm.pushDirtyFlags();
                     
                     // flag applet as dirty (all package classes are bound to the applet instance and are therefore implicitly marked as dirty)
-                    pm.setDirtyNamedInstance(selectedAppletContext.getInstanceAID());
+                    pm.setDirtyNamedInstance(selectedAppletContext.getNamedInstanceHandle());
+                    SimulatorSystem.setDirtyTransientMemorySegments(selectedAppletContext.getPackageAID());
                     
                     try {
                         if (selectedAppletContext.isPackageMultiSelected()) {
@@ -1164,7 +1246,8 @@ public class SimulatorRuntime {
             pm.pushDirtyFlags();
             
             // flag applet as dirty (all package classes are bound to the applet instance and are therefore implicitly marked as dirty)
-            pm.setDirtyNamedInstance(selectedAppletContext.getInstanceAID());
+            pm.setDirtyNamedInstance(selectedAppletContext.getNamedInstanceHandle());
+            SimulatorSystem.setDirtyTransientMemorySegments(selectedAppletContext.getPackageAID());
             
             boolean selectResult;
             try {
@@ -1248,19 +1331,27 @@ public class SimulatorRuntime {
                 final int apduNc = command.getNc();
 
                 commandBufferOffset = command.getOffsetCData();
+                commandDataRemaining = apduNc;
+                commandStream = command.isCommandDataStreamed() ? command.getStream() : null;
                 int apduNe = command.getNe();
                 if (apduNe > SimulatorConfig.EXTENDED_LENGTH_MAXIMUM) apduNe = SimulatorConfig.EXTENDED_LENGTH_MAXIMUM;
                 responseBufferSize = 0;
                 responseExpectedLength = apduNe;
+                responseStream = command.getStream();
 
                 apdu.load(commandBuffer, (short)0, (short)apduNc, activeChannel, command.isExtendedLength());
 
                 // flag applet as dirty (all package classes are bound to the applet instance and are therefore implicitly marked as dirty)
-                pm.setDirtyNamedInstance(selectedAppletContext.getInstanceAID());
+                pm.setDirtyNamedInstance(selectedAppletContext.getNamedInstanceHandle());
+                SimulatorSystem.setDirtyTransientMemorySegments(selectedAppletContext.getPackageAID());
                 
                 Logging.debug(TAG, "selectApplet: Processing command with applet " + __AIDWrapper.getAIDString(selectedAppletContext.getInstanceAID()) + " (" + selectedAppletContext.getAppletClass().getName() + ")");
                 selectedAppletContext.getApplet().process(apdu);
 
+                if (responseStream != null) {
+                    // response data has already been passed to the stream
+                    return new ResponseAPDU(null, 0, ISO7816.SW_NO_ERROR);
+                }
                 return new ResponseAPDU(responseBuffer, responseBufferSize, ISO7816.SW_NO_ERROR);
             } finally {
                 if (SimulatorSystem.getTransactionDepth() != 0) {
@@ -1272,11 +1363,7 @@ public class SimulatorRuntime {
                 
                 pm.popDirtyFlags();
 
-                commandBufferOffset = 0;
-                responseBufferSize = 0;
-                responseExpectedLength = 0;
-                commandBuffer = null;
-                Arrays.fill(responseBuffer, (byte)0);
+                clearAPDUBuffers();
                 apdu.reset();
             }
         } else {
@@ -1312,32 +1399,79 @@ public class SimulatorRuntime {
      * @return        remaining number of bytes not yet received into buffer
      */
     short receiveAPDU(byte[] buffer, short bOff, short len) {
-        if (commandBuffer != null) {
-            int newOffset = commandBufferOffset + len;
-            if (newOffset > commandBuffer.length) {
-                newOffset = commandBuffer.length;
-                len = (short)(newOffset - commandBufferOffset);
+        if (len > commandDataRemaining) len = (short)commandDataRemaining;
+        if (commandStream != null) {
+            // pull the command data from the host in blocks of the incoming block size
+            final int blockSize = SimulatorSystem.getInBlockSize(getCurrentProtocol());
+            while (len > 0) {
+                final int blockLength = (len < blockSize) ? len : blockSize;
+                final int received = commandStream.readCommandData(buffer, bOff, blockLength);
+                if ((received <= 0) || (received > blockLength)) APDUException.throwIt(APDUException.IO_ERROR);
+                bOff += received;
+                len -= received;
+                commandDataRemaining -= received;
             }
+        } else if (commandBuffer != null) {
             System.arraycopy(commandBuffer, commandBufferOffset, buffer, bOff, len);
-            commandBufferOffset = newOffset;
-            return (short)(commandBuffer.length - commandBufferOffset);
-        } else {
-            return 0;
+            commandBufferOffset += len;
+            commandDataRemaining -= len;
         }
+        return (short)commandDataRemaining;
     }
     
     /**
-     * Copy response bytes to internal buffer
+     * Pass response bytes to the response stream or copy them to the internal
+     * buffer.
      * 
      * @param buffer source byte array
      * @param bOff the starting offset in buffer
      * @param len the length in bytes of the response
      */
     void sendAPDU(byte[] buffer, short bOff, short len) {
-        System.arraycopy(buffer, bOff, responseBuffer, responseBufferSize, len);
+        if (responseStream != null) {
+            // push the response data to the host in blocks of the outgoing block size
+            final int blockSize = SimulatorSystem.getOutBlockSize(getCurrentProtocol());
+            int offset = bOff;
+            int remaining = len;
+            while (remaining > 0) {
+                final int blockLength = (remaining < blockSize) ? remaining : blockSize;
+                responseStream.writeResponseData(buffer, offset, blockLength);
+                offset += blockLength;
+                remaining -= blockLength;
+            }
+        } else {
+            final int responseSize = responseBufferSize + len;
+            if ((responseBuffer == null) || (responseSize > responseBuffer.length)) {
+                int capacity = (responseBuffer == null) ? 256 : (responseBuffer.length << 1);
+                if (capacity < responseSize) capacity = responseSize;
+                byte[] newBuffer = new byte[capacity];
+                if (responseBuffer != null) {
+                    System.arraycopy(responseBuffer, 0, newBuffer, 0, responseBufferSize);
+                    Arrays.fill(responseBuffer, (byte)0);
+                }
+                responseBuffer = newBuffer;
+            }
+            System.arraycopy(buffer, bOff, responseBuffer, responseBufferSize, len);
+        }
         responseBufferSize += len;
     }
 
+    /**
+     * Clear the command and response state of the current APDU.
+     */
+    private void clearAPDUBuffers() {
+        if (responseBuffer != null) {
+            Arrays.fill(responseBuffer, 0, (responseBufferSize < responseBuffer.length) ? responseBufferSize : responseBuffer.length, (byte)0);
+        }
+        commandBufferOffset = 0;
+        commandDataRemaining = 0;
+        commandStream = null;
+        responseBufferSize = 0;
+        responseExpectedLength = 0;
+        responseStream = null;
+        commandBuffer = null;
+    }
+
     /**
      * Check if applet is currently being selected.
      * 
@@ -1417,7 +1551,12 @@ public class SimulatorRuntime {
             PersistentMemory pm = SimulatorSystem.getPersistentMemoryInstance();
             
             // mark serverApplet as dirty
-            pm.setDirtyNamedInstance(serverAID);
+            AppletInstanceHolder ah = applets.get(serverAID);
+            if (ah != null) {
+                pm.setDirtyNamedInstance(ah.getNamedInstanceHandle());
+            } else {
+                pm.setDirtyNamedInstance(serverAID);
+            }
             
             Shareable shareableInterface = serverApplet.getShareableInterfaceObject(getCurrentContextAID(), parameter);
             // Register shareable interface with persistent memory processing (if not already registered,
@@ -1431,8 +1570,10 @@ public class SimulatorRuntime {
                 pm.setDirtyReference(shareableInterface);
                 
                 // Bind server package's classes to this shareable object
-                AppletInstanceHolder ah = applets.get(serverAID);
                 if (ah != null) {
+                    // transient memory of the server package may now be modified through the shareable interface at any time
+                    SimulatorSystem.setSharedTransientMemorySegments(ah.getPackageAID());
+                    
                     PackageHolder ph = ah.getPackage();
                     if (ph != null) {
                         if (ph.PACKAGE_DEFINITION.CLASSES != null) {
@@ -1469,11 +1610,7 @@ public class SimulatorRuntime {
             appletToInstallAID = null;
             
             // clear APDU buffers
-            commandBufferOffset = 0;
-            responseBufferSize = 0;
-            responseExpectedLength = 0;
-            commandBuffer = null;
-            Arrays.fill(responseBuffer, (byte)0);
+            clearAPDUBuffers();
             APDU apdu = APDU.getCurrentAPDU();
             if (apdu != null) {
                 apdu.reset();
@@ -1553,13 +1690,15 @@ public class SimulatorRuntime {
                     
                     // -> deselect applet (if any)
                     selectedAppletContext = activeInterface.getCurrentSelectedApplet(activeChannel);
-                    if (selectedAppletContext.isSelected()) {
-                        // implicit deselect (i.e. do not call Applet.deselect() or MultiSelectable.deselect())
-                        selectedAppletContext.deselect();
-                    }
-                    
-                    if (!selectedAppletContext.isPackageSelected()) {
-                        SimulatorSystem.clearTransientMemory(JCSystem.CLEAR_ON_RESET);
+                    if (selectedAppletContext != null) {
+                        if (selectedAppletContext.isSelected()) {
+                            // implicit deselect (i.e. do not call Applet.deselect() or MultiSelectable.deselect())
+                            selectedAppletContext.deselect();
+                        }
+
+                        if (!selectedAppletContext.isPackageSelected()) {
+                            SimulatorSystem.clearTransientMemory(JCSystem.CLEAR_ON_RESET);
+                        }
                     }
                     
                     // close channel
@@ -1644,6 +1783,67 @@ public class SimulatorRuntime {
         }
     }
 
+    /**
+     * Create a savepoint of the runtime state, persistent memory and the
+     * layout of transient memory.
+     * 
+     * @param pm persistent memory
+     * @param tm transient memory
+     * @return savepoint
+     */
+    Savepoint savepoint(PersistentMemory pm, TransientMemory tm) {
+        try {
+            singleProcessLock.lock();
+            
+            saveState(pm);
+            Savepoint savepoint = pm.savepoint();
+            tm.savepoint(savepoint);
+            return savepoint;
+        } finally {
+            singleProcessLock.unlock();
+        }
+    }
+    
+    /**
+     * Roll the runtime state, persistent memory and the layout of transient
+     * memory back to a savepoint. The card is reset before the rollback, so
+     * the runtime state is restored just as after loading it from persistent
+     * storage. The card is left untouched if the savepoint is no longer
+     * valid.
+     * 
+     * @param pm persistent memory
+     * @param tm transient memory
+     * @param savepoint savepoint
+     * @return true if the savepoint has been rolled back to
+     */
+    boolean rollbackTo(PersistentMemory pm, TransientMemory tm, Savepoint savepoint) {
+        try {
+            singleProcessLock.lock();
+            
+            if ((savepoint == null) || !savepoint.isValid()) {
+                return false;
+            }
+            
+            resetCard();
+            
+            if (!pm.rollbackTo(savepoint)) {
+                return false;
+            }
+            tm.rollbackTo(savepoint);
+            
+            // channels without a default applet at the savepoint are not restored by loadState()
+            for (CardInterface iface : interfaces.values()) {
+                for (int i = 0; i < iface.MAX_CHANNELS; ++i) {
+                    iface.setDefaultApplet(null, (byte)(i & 0x0ff));
+                }
+            }
+            loadState(pm);
+            return true;
+        } finally {
+            singleProcessLock.unlock();
+        }
+    }
+
     /**
      * Load runtime state from persistent memory.
      */
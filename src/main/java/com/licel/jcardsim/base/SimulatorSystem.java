@@ -19,16 +19,14 @@ package com.licel.jcardsim.base;
 import at.mroland.logging.Logging;
 import at.mroland.objectstaterecovery.PersistentMemory;
 import at.mroland.objectstaterecovery.PersistentMemory_Disabled;
+import at.mroland.objectstaterecovery.Savepoint;
 import at.mroland.objectstaterecovery.TransientMemory;
+import com.licel.jcardsim.crypto.BouncyCastleCryptoBackend;
+import com.licel.jcardsim.crypto.CryptoBackend;
+import com.licel.jcardsim.crypto.JceCryptoBackend;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.security.InvalidParameterException;
 import javacard.framework.*;
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
-import org.xmlpull.v1.XmlSerializer;
 
 /**
  * Base implementation of <code>JCSystem</code>
@@ -37,26 +35,46 @@ import org.xmlpull.v1.XmlSerializer;
 public class SimulatorSystem {
     private static final String TAG = SimulatorSystem.class.getName();
     
+    /**
+     * Command chaining bit of the (inter-industry) class byte.
+     */
+    private static final byte CHAINING_CLA_MASK = (byte)0x10;
+    
     /**
      * Persistent memory.
      */
-    private static final PersistentMemory persistentMemory = new PersistentMemory(); //new PersistentMemory_Disabled();
+    private static final PersistentMemory persistentMemory = new PersistentMemory(SimulatorConfig.PERSISTENT_MEMORY_WEAK_REFERENCES, SimulatorConfig.PERSISTENT_MEMORY_REFRESH_THREADS); //new PersistentMemory_Disabled();
     
     /**
      * Transient memory storage.
      */
     private static final TransientMemory transientMemory = new TransientMemory(persistentMemory);
+    
+    static {
+        persistentMemory.setMajorCollectionInterval(SimulatorConfig.PERSISTENT_MEMORY_MAJOR_GC_INTERVAL);
+    }
 
     /**
      * Transaction manager.
      */
     private static final TransactionManager transactionManager = new TransactionManager(persistentMemory);
 
+    /**
+     * Persistent storage (snapshots and checkpoints).
+     */
+    private static final PersistentStorage persistentStorage = new PersistentStorage(persistentMemory, transientMemory);
+
     /**
      * JavaCard simulator runtime instance.
      */
     private static SimulatorRuntime runtime = new SimulatorRuntime();
 
+    /**
+     * Backend providing the cryptographic primitives.
+     */
+    private static CryptoBackend cryptoBackend = SimulatorConfig.CRYPTO_BACKEND_JCE ?
+            JceCryptoBackend.INSTANCE : BouncyCastleCryptoBackend.INSTANCE;
+
     private SimulatorSystem() {
     }
 
@@ -135,6 +153,24 @@ public class SimulatorSystem {
         transientMemory.deleteContextSegments(packageContextAID);
     }
     
+    /**
+     * Flag transient memory segments of a context as possibly modified.
+     * 
+     * @param packageContextAID 
+     */
+    public static void setDirtyTransientMemorySegments(AID packageContextAID) {
+        transientMemory.setDirtyContext(packageContextAID);
+    }
+    
+    /**
+     * Flag transient memory segments of a context as shared with other contexts.
+     * 
+     * @param packageContextAID 
+     */
+    public static void setSharedTransientMemorySegments(AID packageContextAID) {
+        transientMemory.setSharedContext(packageContextAID);
+    }
+    
     /**
      * Reset transient memory.
      */
@@ -380,6 +416,18 @@ public class SimulatorSystem {
         transactionManager.commitTransaction();
     }
 
+    /**
+     * Record the current content of an array range that is about to be
+     * updated atomically, so that it can be restored if the current
+     * transaction is aborted.
+     * @param array destination array
+     * @param offset offset of the updated range
+     * @param length length of the updated range
+     */
+    public static void logArrayUpdate(byte[] array, short offset, short length) {
+        transactionManager.logArrayUpdate(array, offset, length);
+    }
+
     /**
      * Returns the current transaction nesting depth level. At present,
      * only 1 transaction can be in progress at a time.
@@ -454,6 +502,29 @@ public class SimulatorSystem {
         return transientMemory.getAvailableMemory(JCSystem.CLEAR_ON_DESELECT);
     }
 
+    /**
+     * Get the backend that provides the cryptographic primitives.
+     *
+     * @return crypto backend
+     */
+    public static CryptoBackend getCryptoBackend() {
+        return cryptoBackend;
+    }
+
+    /**
+     * Set the backend that provides the cryptographic primitives. The backend
+     * is used for all cipher, signature and message digest objects created
+     * afterwards.
+     *
+     * @param backend crypto backend
+     */
+    public static void setCryptoBackend(CryptoBackend backend) {
+        if (backend == null) {
+            throw new NullPointerException();
+        }
+        cryptoBackend = backend;
+    }
+
     public static TransientMemory getTransientMemoryInstance() {
         return transientMemory;
     }
@@ -614,6 +685,59 @@ public class SimulatorSystem {
     public static byte[] transceiveAPDU(String interfaceName, byte[] command) throws InvalidParameterException {
         return runtime.transceiveAPDU(interfaceName, command);
     }
+
+    /**
+     * Transceive APDU with Java Card emulator environment. The command data
+     * field is read from and the response data is written to the stream
+     * while the applet processes the command, so neither needs to be
+     * buffered as a whole.
+     * 
+     * @param interfaceName name of interface used for APDU exchange
+     * @param header        command header (CLA, INS, P1, P2)
+     * @param nc            length of the command data field
+     * @param ne            maximum length of the response data field
+     * @param stream        stream that supplies the command data and consumes the response data
+     * @return              status word
+     * @throws InvalidParameterException if specified interface does not exist
+     */
+    public static short transceiveAPDU(String interfaceName, byte[] header, int nc, int ne, APDUStream stream) throws InvalidParameterException {
+        return runtime.transceiveAPDU(interfaceName, header, nc, ne, stream);
+    }
+
+    /**
+     * Transceive a command data field of arbitrary length with Java Card
+     * emulator environment using command chaining. The command data field
+     * is split into segments of at most <code>segmentLength</code> bytes
+     * that are streamed as a chain of commands. The chain is aborted on the
+     * first segment that is not answered with status word 9000.
+     * 
+     * @param interfaceName name of interface used for APDU exchange
+     * @param header        command header (CLA, INS, P1, P2)
+     * @param nc            total length of the command data field
+     * @param ne            maximum length of the response data field of the last command
+     * @param segmentLength maximum length of the command data field of each command
+     * @param stream        stream that supplies the command data and consumes the response data
+     * @return              status word of the last command sent
+     * @throws InvalidParameterException if specified interface does not exist
+     */
+    public static short transceiveChainedAPDU(String interfaceName, byte[] header, int nc, int ne, int segmentLength, APDUStream stream) throws InvalidParameterException {
+        if ((header == null) || (header.length < ISO7816.OFFSET_LC) || (segmentLength <= 0)) {
+            throw new IllegalArgumentException();
+        }
+        final byte[] segmentHeader = new byte[ISO7816.OFFSET_LC];
+        System.arraycopy(header, 0, segmentHeader, 0, ISO7816.OFFSET_LC);
+        int remaining = nc;
+        while (remaining > segmentLength) {
+            segmentHeader[ISO7816.OFFSET_CLA] = (byte)(header[ISO7816.OFFSET_CLA] | CHAINING_CLA_MASK);
+            short sw = runtime.transceiveAPDU(interfaceName, segmentHeader, segmentLength, 0, stream);
+            if (sw != ISO7816.SW_NO_ERROR) {
+                return sw;
+            }
+            remaining -= segmentLength;
+        }
+        segmentHeader[ISO7816.OFFSET_CLA] = header[ISO7816.OFFSET_CLA];
+        return runtime.transceiveAPDU(interfaceName, segmentHeader, remaining, ne, stream);
+    }
     
     /**
      * This method is used by the applet <code>process()</code> method to distinguish
@@ -634,6 +758,14 @@ public class SimulatorSystem {
         return runtime;
     }
     
+    /**
+     * Return the <code>PersistentStorage</code> instance.
+     * @return instance of the PersistentStorage
+     */
+    static PersistentStorage getPersistentStorage() {
+        return persistentStorage;
+    }
+    
     /**
      * Force a reset of the simulator runtime environment.
      */
@@ -642,91 +774,151 @@ public class SimulatorSystem {
     }
     
     public static void saveToPersistentStorage(File basePath) {
-        // save state of runtime (applets, packages, etc)
-        runtime.saveState(persistentMemory);
-
-        // save persistent memory manager
-        XmlPullParserFactory pullParserFactory;
-        try {
-            pullParserFactory = XmlPullParserFactory.newInstance();
-        } catch (XmlPullParserException e) {
-            pullParserFactory = null;
-            Logging.error(TAG, "Exception while retrieving XmlPullParserFactory: " + e.toString(), e);
-        }
-        
-        try {
-            FileOutputStream ostr = new FileOutputStream(new File(basePath, "persistentmemory.xml"));
-            XmlSerializer xml = pullParserFactory.newSerializer();
-//            XmlSerializer xml = Xml.newSerializer();
-
-            xml.setOutput(ostr, "UTF-8");
-
-            persistentMemory.serializeToXml(xml);
-
-            ostr.flush();
-            ostr.close();
-        } catch (Exception e) {
-            Logging.error(TAG, "Exception while serializing to persistent storage: " + e.toString(), e);
-        }
-
-        // save transient memory state
-        try {
-            FileOutputStream ostr = new FileOutputStream(new File(basePath, "transientmemory.xml"));
-            XmlSerializer xml = pullParserFactory.newSerializer();
-//            XmlSerializer xml = Xml.newSerializer();
-
-            xml.setOutput(ostr, "UTF-8");
-
-            transientMemory.serializeToXml(xml);
-
-            ostr.flush();
-            ostr.close();
-        } catch (Exception e) {
-            Logging.error(TAG, "Exception while serializing to persistent storage: " + e.toString(), e);
-        }
+        persistentStorage.save(runtime, basePath, false, true);
+    }
+    
+    /**
+     * Save the simulator state to persistent storage. Only the changes of
+     * persistent memory since the last save are written (as an incremental
+     * snapshot on top of the existing snapshots). A full snapshot is written
+     * if no incremental snapshot is possible (e.g. for the first save after
+     * loading) or if the maximum number of incremental snapshots is reached.
+     * 
+     * @param basePath directory containing the snapshot files
+     */
+    public static void saveIncrementalToPersistentStorage(File basePath) {
+        persistentStorage.save(runtime, basePath, true, true);
+    }
+    
+    /**
+     * Checkpoint the simulator state to persistent storage. The state is
+     * serialized (as an incremental snapshot if possible) while APDU
+     * processing is blocked, so this takes as long as serializing the changed
+     * state (or the whole state if a full snapshot is needed). Only encoding
+     * and writing the snapshot files happen on a background thread. This
+     * method returns as soon as the state has been serialized.
+     * 
+     * @param basePath directory containing the snapshot files
+     */
+    public static void checkpointToPersistentStorage(File basePath) {
+        persistentStorage.save(runtime, basePath, true, false);
+    }
+    
+    /**
+     * Configure periodic checkpoints (see
+     * {@link #checkpointToPersistentStorage(File)}).
+     * 
+     * @param basePath directory containing the snapshot files (null disables periodic checkpoints)
+     * @param apduInterval number of APDUs between checkpoints (0 disables APDU-based checkpoints)
+     * @param timeInterval number of seconds between checkpoints (0 disables time-based checkpoints)
+     */
+    public static void setPeriodicCheckpoints(File basePath, int apduInterval, int timeInterval) {
+        persistentStorage.setPeriodicCheckpoints(runtime, basePath, apduInterval, timeInterval);
+    }
+    
+    /**
+     * Wait until all pending checkpoints have been written to persistent
+     * storage.
+     */
+    public static void waitForCheckpoints() {
+        persistentStorage.await();
     }
     
     public static void loadFromPersistentStorage(File basePath) {
-        // load persistent memory manager
-        XmlPullParserFactory pullParserFactory;
-        try {
-            pullParserFactory = XmlPullParserFactory.newInstance();
-        } catch (XmlPullParserException e) {
-            pullParserFactory = null;
-            Logging.error(TAG, "Exception while retrieving XmlPullParserFactory: " + e.toString(), e);
-        }
-        
-        try {
-            FileInputStream istr = new FileInputStream(new File(basePath, "persistentmemory.xml"));
-            XmlPullParser xml = pullParserFactory.newPullParser();
-//            XmlPullParser xml = Xml.newPullParser();
-            
-            xml.setInput(istr, "UTF-8");
-
-            persistentMemory.deserializeFromXml(xml);
-
-            istr.close();
-        } catch (Exception e) {
-            Logging.error(TAG, "Exception while de-serializing persistent memory from persistent storage: " + e.toString(), e);
-        }
-        
-        // load transient memory state
-        try {
-            FileInputStream istr = new FileInputStream(new File(basePath, "transientmemory.xml"));
-            XmlPullParser xml = pullParserFactory.newPullParser();
-//            XmlPullParser xml = Xml.newPullParser();
-            
-            xml.setInput(istr, "UTF-8");
-
-            transientMemory.deserializeFromXml(xml);
-
-            istr.close();
-        } catch (Exception e) {
-            Logging.error(TAG, "Exception while de-serializing transient memory from persistent storage: " + e.toString(), e);
-        }
-        
-        // load state of runtime (applets, packages, etc)
-        runtime.loadState(persistentMemory);
+        persistentStorage.load(runtime, basePath);
+    }
+    
+    /**
+     * Capture a snapshot image of the simulator state, e.g. of a fully
+     * provisioned card. The snapshot image can be loaded into the simulator
+     * (see {@link #loadSnapshotImage(SnapshotImage)}) or written to
+     * persistent storage (see {@link #saveSnapshotImage(SnapshotImage, File)})
+     * any number of times.
+     * 
+     * @return snapshot image
+     */
+    public static SnapshotImage captureSnapshotImage() {
+        return persistentStorage.captureSnapshotImage(runtime);
+    }
+    
+    /**
+     * Write a snapshot image to persistent storage, so that a simulator
+     * instance can be started from it with
+     * {@link #loadFromPersistentStorage(File)}. The snapshot files are
+     * encoded only once per snapshot image. This method may be called
+     * concurrently for different directories.
+     * 
+     * @param image snapshot image
+     * @param basePath directory receiving the snapshot files
+     */
+    public static void saveSnapshotImage(SnapshotImage image, File basePath) {
+        PersistentStorage.saveSnapshotImage(image, basePath);
+    }
+    
+    /**
+     * Load the simulator state from a snapshot image without parsing snapshot
+     * files. The state of persistent memory is still rebuilt from the
+     * recorded events of the snapshot image, i.e. this costs about as much as
+     * de-serializing an uncompressed snapshot minus the XML parsing.
+     * 
+     * @param image snapshot image
+     */
+    public static void loadSnapshotImage(SnapshotImage image) {
+        persistentStorage.load(runtime, image);
+    }
+    
+    /**
+     * Create an in-memory savepoint of the simulator state (persistent memory,
+     * transient memory segments, loaded packages, installed applets and
+     * default applets of all channels). Only objects that change after the
+     * savepoint are recorded, so creating a savepoint is cheap.
+     * 
+     * @return savepoint
+     */
+    public static Savepoint savepoint() {
+        return runtime.savepoint(persistentMemory, transientMemory);
+    }
+    
+    /**
+     * Roll the simulator state back to a savepoint. Only objects that have
+     * changed since the savepoint are reverted. The card is reset, just as
+     * after {@link #loadFromPersistentStorage(File)}. The savepoint remains
+     * valid and can be rolled back to again; savepoints created after it
+     * are invalidated. Rolling back to an invalid (released or invalidated)
+     * savepoint fails without resetting the card.
+     * 
+     * @param savepoint savepoint
+     * @return true if the savepoint has been rolled back to
+     */
+    public static boolean rollbackTo(Savepoint savepoint) {
+        return runtime.rollbackTo(persistentMemory, transientMemory, savepoint);
+    }
+    
+    /**
+     * Release a savepoint that is no longer needed.
+     * 
+     * @param savepoint savepoint
+     */
+    public static void releaseSavepoint(Savepoint savepoint) {
+        persistentMemory.releaseSavepoint(savepoint);
+    }
+    
+    /**
+     * Merge the persistent memory snapshot and its incremental snapshots in
+     * persistent storage into a single snapshot. This does not affect the
+     * currently running simulator state.
+     * 
+     * @param basePath directory containing the snapshot files
+     */
+    public static void compactPersistentStorage(File basePath) {
+        persistentStorage.compact(basePath);
+    }
+    
+    /**
+     * Notify the persistent storage that an APDU has been processed.
+     */
+    static void apduProcessed() {
+        persistentStorage.apduProcessed(runtime);
     }
     
     
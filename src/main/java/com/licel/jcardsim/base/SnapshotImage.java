@@ -0,0 +1,60 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import at.mroland.objectstaterecovery.helper.XmlEventRecorder;
+
+/**
+ * In-memory snapshot of the simulator state, e.g. of a fully provisioned card.
+ *
+ * A snapshot image holds the captured state of persistent and transient
+ * memory as recorded XML serializer events. It is immutable once captured and
+ * can be loaded into the simulator or written to any number of snapshot
+ * directories without serializing the card again. The encoded snapshot files
+ * are created upon the first write and shared by all further writes.
+ * 
+ * Loading a snapshot image reads the recorded events directly instead of
+ * encoding, inflating and parsing XML text. It is not a clone of the card:
+ * the FieldState graph is rebuilt from these events on every load (by
+ * <code>PersistentMemory.deserializeFromXml</code>), there is no
+ * copy-on-write overlay on a shared base state, and the simulator runtime is
+ * a singleton, so only one card per process can be loaded from a snapshot
+ * image at a time.
+ *
+ * @author mroland
+ */
+public final class SnapshotImage {
+    final XmlEventRecorder persistentMemoryEvents;
+    final XmlEventRecorder transientMemoryEvents;
+    
+    // encoded snapshot files (guarded by this)
+    byte[] persistentMemoryFile = null;
+    byte[] transientMemoryFile = null;
+
+    SnapshotImage(XmlEventRecorder persistentMemoryEvents, XmlEventRecorder transientMemoryEvents) {
+        this.persistentMemoryEvents = persistentMemoryEvents;
+        this.transientMemoryEvents = transientMemoryEvents;
+    }
+    
+    /**
+     * Get the number of recorded serializer events of this snapshot image.
+     * 
+     * @return number of events
+     */
+    public int size() {
+        return persistentMemoryEvents.size() + transientMemoryEvents.size();
+    }
+}
@@ -16,6 +16,8 @@
 package com.licel.jcardsim.base;
 
 import at.mroland.objectstaterecovery.PersistentMemory;
+import java.util.ArrayList;
+import javacard.framework.JCSystem;
 import javacard.framework.TransactionException;
 
 /**
@@ -31,10 +33,103 @@ public class TransactionManager {
      */
     private byte transactionDepth = 0;
 
+    /**
+     * Maximum number of log entries (and their buffers) that are kept for
+     * reuse by the next transaction.
+     */
+    private static final int MAX_POOLED_ARRAY_UPDATES = 64;
+
+    /**
+     * Maximum size of a log entry buffer that is kept for reuse.
+     */
+    private static final int MAX_POOLED_BUFFER_SIZE = 256;
+
+    /**
+     * Log of array ranges updated with <code>Util.arrayCopy()</code> and
+     * <code>Util.setShort()</code> during the current transaction. Only the
+     * first <code>arrayUpdateCount</code> entries are in use, the remaining
+     * entries are kept for reuse.
+     */
+    private final ArrayList<ArrayUpdate> arrayUpdateLog = new ArrayList<ArrayUpdate>();
+    private int arrayUpdateCount = 0;
+
+    /**
+     * Previous content of an updated array range.
+     */
+    private static final class ArrayUpdate {
+        byte[] array;
+        short offset;
+        short length;
+        byte[] data = new byte[2];
+
+        void record(byte[] array, short offset, short length) {
+            this.array = array;
+            this.offset = offset;
+            this.length = length;
+            if (data.length < length) {
+                data = new byte[length];
+            }
+            System.arraycopy(array, offset, data, 0, length);
+        }
+
+        void restore() {
+            System.arraycopy(data, 0, array, offset, length);
+        }
+    }
+
     public TransactionManager(PersistentMemory memoryManager) {
         persistentMemory = memoryManager;
     }
     
+    /**
+     * Record the current content of an array range that is about to be
+     * updated atomically. Ranges are only recorded while a transaction is in
+     * progress and are restored if the transaction is aborted. This covers
+     * arrays that are not (yet) reachable from the recorded memory state.
+     * The memory barrier at the beginning of a transaction is still needed
+     * for all other updates (field assignments and array element
+     * assignments), which are not logged. Log entries and their buffers are
+     * reused across transactions, so logging does not allocate once the log
+     * has grown to the size needed by the applet.
+     * 
+     * @param array destination array
+     * @param offset offset of the updated range
+     * @param length length of the updated range
+     */
+    public void logArrayUpdate(byte[] array, short offset, short length) {
+        if ((transactionDepth != 0) && (length > 0)) {
+            ArrayUpdate update;
+            if (arrayUpdateCount < arrayUpdateLog.size()) {
+                update = arrayUpdateLog.get(arrayUpdateCount);
+            } else {
+                update = new ArrayUpdate();
+                arrayUpdateLog.add(update);
+            }
+            update.record(array, offset, length);
+            ++arrayUpdateCount;
+        }
+    }
+    
+    /**
+     * Clear the log of array updates. Entries beyond
+     * <code>MAX_POOLED_ARRAY_UPDATES</code> and buffers larger than
+     * <code>MAX_POOLED_BUFFER_SIZE</code> are dropped, the other entries are
+     * kept for reuse without their array references.
+     */
+    private void clearArrayUpdateLog() {
+        for (int i = 0; i < arrayUpdateCount; ++i) {
+            ArrayUpdate update = arrayUpdateLog.get(i);
+            update.array = null;
+            if (update.data.length > MAX_POOLED_BUFFER_SIZE) {
+                update.data = new byte[2];
+            }
+        }
+        arrayUpdateCount = 0;
+        for (int i = arrayUpdateLog.size() - 1; i >= MAX_POOLED_ARRAY_UPDATES; --i) {
+            arrayUpdateLog.remove(i);
+        }
+    }
+    
     /**
      * Begins an atomic transaction. If a transaction is already in
      * progress (transaction nesting depth level != 0), a TransactionException is
@@ -59,6 +154,7 @@ public class TransactionManager {
         
         persistentMemory.memoryBarrier(false);
         
+        clearArrayUpdateLog();
         transactionDepth = 1;
     }
 
@@ -91,6 +187,15 @@ public class TransactionManager {
             TransactionException.throwIt(TransactionException.NOT_IN_PROGRESS);
         }
         
+        // undo logged array updates in reverse order (contents of transient arrays are not subject to transactions)
+        for (int i = arrayUpdateCount - 1; i >= 0; --i) {
+            ArrayUpdate update = arrayUpdateLog.get(i);
+            if (SimulatorSystem.isTransient(update.array) == JCSystem.NOT_A_TRANSIENT_OBJECT) {
+                update.restore();
+            }
+        }
+        clearArrayUpdateLog();
+        
         persistentMemory.memoryBarrier(true);
         
         transactionDepth = 0;
@@ -122,6 +227,7 @@ public class TransactionManager {
         // NOTE: This memoryBarrier is unnecessary as we always save state on beginTransaction and after applet processing.
         //persistentMemory.memoryBarrier(false);
         
+        clearArrayUpdateLog();
         transactionDepth = 0;
     }
     
@@ -15,16 +15,18 @@
  */
 package com.licel.jcardsim.crypto;
 
+import at.mroland.objectstaterecovery.NotPersistent;
+import com.licel.jcardsim.base.SimulatorSystem;
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
 import javacard.security.CryptoException;
 import javacard.security.Key;
 import javacardx.crypto.Cipher;
 import org.bouncycastle.crypto.AsymmetricBlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
 import org.bouncycastle.crypto.DataLengthException;
 import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.bouncycastle.crypto.encodings.PKCS1Encoding;
-import org.bouncycastle.crypto.engines.RSAEngine;
 import org.bouncycastle.crypto.paddings.BlockCipherPadding;
 
 /*
@@ -41,16 +43,20 @@ public class AsymmetricCipherImpl extends Cipher {
     byte[] buffer;
     short bufferPos;
     KeyWithParameters tempkey;
+    // parameters the engine has last been initialized with
+    @NotPersistent
+    CipherParameters engineParameters;
+    boolean engineForEncryption;
 
     public AsymmetricCipherImpl(byte algorithm) {
         this.algorithm = algorithm;
         switch (algorithm) {
             case ALG_RSA_NOPAD:
-                engine = new RSAEngine();
+                engine = SimulatorSystem.getCryptoBackend().createRSAEngine();
                 paddingEngine = null;
                 break;
             case ALG_RSA_PKCS1:
-                engine = new PKCS1Encoding(new RSAEngine());
+                engine = new PKCS1Encoding(SimulatorSystem.getCryptoBackend().createRSAEngine());
                 paddingEngine = null;
                 break;
             default:
@@ -71,8 +77,18 @@ public class AsymmetricCipherImpl extends Cipher {
         }
         KeyWithParameters key = (KeyWithParameters) theKey;
         tempkey = key;
-        engine.init(theMode == MODE_ENCRYPT, key.getParameters());
-        buffer = JCSystem.makeTransientByteArray((short) (engine.getInputBlockSize() + 1), JCSystem.CLEAR_ON_DESELECT);
+        CipherParameters parameters = key.getParameters();
+        boolean forEncryption = (theMode == MODE_ENCRYPT);
+        // keys return the same parameters as long as they are unchanged
+        if ((parameters != engineParameters) || (forEncryption != engineForEncryption)) {
+            engine.init(forEncryption, parameters);
+            engineParameters = parameters;
+            engineForEncryption = forEncryption;
+        }
+        short bufferSize = (short) (engine.getInputBlockSize() + 1);
+        if ((buffer == null) || (buffer.length != bufferSize)) {
+            buffer = JCSystem.makeTransientByteArray(bufferSize, JCSystem.CLEAR_ON_DESELECT);
+        }
         bufferPos = 0;
         isInitialized = true;
     }
@@ -15,20 +15,20 @@
  */
 package com.licel.jcardsim.crypto;
 
+import at.mroland.objectstaterecovery.NotPersistent;
+import com.licel.jcardsim.base.SimulatorSystem;
 import java.lang.reflect.Field;
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
 import javacard.security.CryptoException;
 import javacard.security.Key;
+import javacard.security.MessageDigest;
 import javacard.security.Signature;
 import javacard.security.SignatureMessageRecovery;
+import org.bouncycastle.crypto.CipherParameters;
 import org.bouncycastle.crypto.DataLengthException;
 import org.bouncycastle.crypto.Signer;
 import org.bouncycastle.crypto.SignerWithRecovery;
-import org.bouncycastle.crypto.digests.MD5Digest;
-import org.bouncycastle.crypto.digests.RIPEMD160Digest;
-import org.bouncycastle.crypto.digests.SHA1Digest;
-import org.bouncycastle.crypto.engines.RSAEngine;
 import org.bouncycastle.crypto.signers.DSADigestSigner;
 import org.bouncycastle.crypto.signers.ECDSASigner;
 import org.bouncycastle.crypto.signers.ISO9796d2Signer;
@@ -47,32 +47,37 @@ public class AsymmetricSignatureImpl extends Signature implements SignatureMessa
     boolean isInitialized;
     boolean isRecovery;
     byte[] preSig;
+    // parameters the engine has last been initialized with
+    @NotPersistent
+    CipherParameters engineParameters;
+    boolean engineForSigning;
 
     public AsymmetricSignatureImpl(byte algorithm) {
         this.algorithm = algorithm;
         isRecovery = false;
+        CryptoBackend backend = SimulatorSystem.getCryptoBackend();
         switch (algorithm) {
             case ALG_RSA_SHA_ISO9796:
-                engine = new ISO9796d2Signer(new RSAEngine(), new SHA1Digest());
+                engine = new ISO9796d2Signer(backend.createRSAEngine(), backend.createDigest(MessageDigest.ALG_SHA));
                 break;
             case ALG_RSA_SHA_ISO9796_MR:    
-                engine = new ISO9796d2Signer(new RSAEngine(), new SHA1Digest());
+                engine = new ISO9796d2Signer(backend.createRSAEngine(), backend.createDigest(MessageDigest.ALG_SHA));
                 isRecovery = true;
                 break;
             case ALG_RSA_SHA_PKCS1:
-                engine = new RSADigestSigner(new SHA1Digest());
+                engine = new RSADigestSigner(backend.createDigest(MessageDigest.ALG_SHA));
                 break;
             case ALG_RSA_MD5_PKCS1:
-                engine = new RSADigestSigner(new MD5Digest());
+                engine = new RSADigestSigner(backend.createDigest(MessageDigest.ALG_MD5));
                 break;
             case ALG_RSA_RIPEMD160_ISO9796:
-                engine = new ISO9796d2Signer(new RSAEngine(), new RIPEMD160Digest());
+                engine = new ISO9796d2Signer(backend.createRSAEngine(), backend.createDigest(MessageDigest.ALG_RIPEMD160));
                 break;
             case ALG_RSA_RIPEMD160_PKCS1:
-                engine = new RSADigestSigner(new RIPEMD160Digest());
+                engine = new RSADigestSigner(backend.createDigest(MessageDigest.ALG_RIPEMD160));
                 break;
             case ALG_ECDSA_SHA:
-                engine = new DSADigestSigner(new ECDSASigner(), new SHA1Digest());
+                engine = new DSADigestSigner(new ECDSASigner(), backend.createDigest(MessageDigest.ALG_SHA));
                 break;
         }
     }
@@ -87,7 +92,16 @@ public class AsymmetricSignatureImpl extends Signature implements SignatureMessa
         if (!(theKey instanceof KeyWithParameters)) {
             CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
         }
-        engine.init(theMode == MODE_SIGN, ((KeyWithParameters) theKey).getParameters());
+        CipherParameters parameters = ((KeyWithParameters) theKey).getParameters();
+        boolean forSigning = (theMode == MODE_SIGN);
+        // keys return the same parameters as long as they are unchanged
+        if ((parameters != engineParameters) || (forSigning != engineForSigning)) {
+            engine.init(forSigning, parameters);
+            engineParameters = parameters;
+            engineForSigning = forSigning;
+        } else {
+            engine.reset();
+        }
         this.key = theKey;
         isInitialized = true;
     }
@@ -159,11 +173,15 @@ public class AsymmetricSignatureImpl extends Signature implements SignatureMessa
             CryptoException.throwIt(CryptoException.INVALID_INIT);
         }
         engine.update(inBuff, inOffset, inLength);
-        byte[] sig = JCSystem.makeTransientByteArray(sigLength, JCSystem.CLEAR_ON_RESET);
-        Util.arrayCopyNonAtomic(sigBuff, sigOffset, sig, (short) 0, sigLength);
-        boolean b = engine.verifySignature(sig);
-        engine.reset();
-        return b;
+        byte[] sig = ScratchBufferPool.acquire(sigLength);
+        try {
+            Util.arrayCopyNonAtomic(sigBuff, sigOffset, sig, (short) 0, sigLength);
+            boolean b = engine.verifySignature(sig);
+            engine.reset();
+            return b;
+        } finally {
+            ScratchBufferPool.release(sig);
+        }
     }
 
     public short beginVerify(byte[] sigAndRecDataBuff, short buffOffset, short sigLength) throws CryptoException {
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.crypto;
+
+import javacard.security.MessageDigest;
+import org.bouncycastle.crypto.AsymmetricBlockCipher;
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.digests.MD5Digest;
+import org.bouncycastle.crypto.digests.RIPEMD160Digest;
+import org.bouncycastle.crypto.digests.SHA1Digest;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.digests.SHA384Digest;
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.engines.DESEngine;
+import org.bouncycastle.crypto.engines.DESedeEngine;
+import org.bouncycastle.crypto.engines.RSAEngine;
+
+/**
+ * Reference crypto backend based on the BouncyCastle lightweight API.
+ *
+ * @author mroland
+ */
+public final class BouncyCastleCryptoBackend implements CryptoBackend {
+
+    public static final BouncyCastleCryptoBackend INSTANCE = new BouncyCastleCryptoBackend();
+
+    private BouncyCastleCryptoBackend() {
+    }
+
+    public BlockCipher createBlockCipher(String algorithm) {
+        if ("AES".equals(algorithm)) {
+            return new AESEngine();
+        } else if ("DES".equals(algorithm)) {
+            return new DESEngine();
+        } else if ("DESede".equals(algorithm)) {
+            return new DESedeEngine();
+        }
+        return null;
+    }
+
+    public Digest createDigest(byte algorithm) {
+        switch (algorithm) {
+            case MessageDigest.ALG_SHA:
+                return new SHA1Digest();
+            case MessageDigest.ALG_MD5:
+                return new MD5Digest();
+            case MessageDigest.ALG_RIPEMD160:
+                return new RIPEMD160Digest();
+            case MessageDigest.ALG_SHA_256:
+                return new SHA256Digest();
+            case MessageDigest.ALG_SHA_384:
+                return new SHA384Digest();
+            case MessageDigest.ALG_SHA_512:
+                return new SHA512Digest();
+        }
+        return null;
+    }
+
+    public AsymmetricBlockCipher createRSAEngine() {
+        return new RSAEngine();
+    }
+}
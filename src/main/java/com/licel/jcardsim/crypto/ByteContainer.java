@@ -15,7 +15,9 @@
  */
 package com.licel.jcardsim.crypto;
 
+import at.mroland.objectstaterecovery.NotPersistent;
 import java.math.BigInteger;
+import java.util.Arrays;
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
 import javacard.security.CryptoException;
@@ -29,6 +31,11 @@ public final class ByteContainer {
     private byte[] data;
     private boolean isInitialized;
     private byte memoryType;
+    // cached BigInteger representation and the bytes it was created from
+    @NotPersistent
+    private BigInteger bigInteger;
+    @NotPersistent
+    private byte[] bigIntegerBytes;
 
     /**
      * Construct <code>ByteContainer</code>
@@ -113,17 +120,26 @@ public final class ByteContainer {
         }
         Util.arrayCopy(buff, offset, data, (short) 0, length);
         isInitialized = true;
+        bigInteger = null;
     }
 
     /**
-     * Return <code>BigInteger</code> representation of the <code>ByteContainer</code>
+     * Return <code>BigInteger</code> representation of the <code>ByteContainer</code>.
+     * The same instance is returned as long as the content is unchanged. Besides
+     * <code>setBytes()</code> and <code>clear()</code>, the content may also be
+     * changed by aborted transactions and clearing of transient memory, so the
+     * cached value is checked against the bytes it was created from.
      * @return BigInteger
      */
     public BigInteger getBigInteger() {
         if (!isInitialized) {
             CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
         }
-        return new BigInteger(1, data);
+        if ((bigInteger == null) || !Arrays.equals(data, bigIntegerBytes)) {
+            bigIntegerBytes = copyBytes(bigIntegerBytes);
+            bigInteger = new BigInteger(1, data);
+        }
+        return bigInteger;
     }
 
     /**
@@ -140,6 +156,63 @@ public final class ByteContainer {
         return result;
     }
 
+    /**
+     * Return plain byte array representation of the <code>ByteContainer</code>
+     * in a scratch buffer that is not tracked as transient memory. The buffer
+     * must be returned with <code>ScratchBufferPool.release()</code>.
+     * @return scratch buffer containing the plain byte array
+     */
+    byte[] getScratchBytes() {
+        if (!isInitialized) {
+            CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+        }
+        byte[] result = ScratchBufferPool.acquire(data.length);
+        System.arraycopy(data, 0, result, 0, data.length);
+        return result;
+    }
+
+    /**
+     * Copy plain byte array representation of the <code>ByteContainer</code>
+     * into a simulator-internal array (outside of any transaction)
+     * @param dest destination byte array, reused if it has the right length
+     * @return byte array containing a copy of the plain byte array
+     */
+    byte[] copyBytes(byte[] dest) {
+        if (!isInitialized) {
+            CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+        }
+        if ((dest == null) || (dest.length != data.length)) {
+            dest = new byte[data.length];
+        }
+        System.arraycopy(data, 0, dest, 0, data.length);
+        return dest;
+    }
+
+    /**
+     * Compare plain byte array representation of the <code>ByteContainer</code>
+     * with a byte array
+     * @param buff byte array
+     * @return true if the container is initialized and has the same content
+     */
+    boolean isEqual(byte[] buff) {
+        return isInitialized && Arrays.equals(data, buff);
+    }
+
+    /**
+     * Append plain byte array representation of the <code>ByteContainer</code>
+     * to a lookup key
+     * @param key lookup key
+     */
+    void appendTo(StringBuilder key) {
+        if (!isInitialized) {
+            CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+        }
+        key.append(':').append(data.length).append(':');
+        for (int i = 0; i < data.length; ++i) {
+            key.append((char) (data[i] & 0x0ff));
+        }
+    }
+
     /**
      * Copy byte array representation of the <code>ByteContainer</code>
      * @param dest destination byte array
@@ -165,6 +238,10 @@ public final class ByteContainer {
             Util.arrayFillNonAtomic(data, (short) 0, (short) data.length, (byte) 0);
         }
         isInitialized = false;
+        bigInteger = null;
+        if (bigIntegerBytes != null) {
+            Arrays.fill(bigIntegerBytes, (byte) 0);
+        }
     }
 
     public boolean isInitialized() {
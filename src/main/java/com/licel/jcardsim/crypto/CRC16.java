@@ -29,6 +29,8 @@ import javacard.security.CryptoException;
 public class CRC16 extends Checksum {
 
     static final byte LENGTH = 2;
+    private static final int POLYNOMIAL = 0x1021;
+    private static final short[] TABLE = createTable();
     private byte crc16[];
 
     public CRC16() {
@@ -62,19 +64,30 @@ public class CRC16 extends Checksum {
     }
 
     void crc16(byte inBuf[], short inOff, short inLen) {
-        short fcs = Util.getShort(crc16, (short) 0);
-        for (short i = inOff; i < (short) (inOff + inLen); i++) {
-            short d = (short) (inBuf[i] << 8);
-            for (short k = 0; k < 8; k++) {
-                if ((short) ((fcs ^ d) & 0x8000) != 0) {
-                    fcs = (short) ((short) (fcs << 1) ^ 0x1021);
+        int fcs = Util.getShort(crc16, (short) 0);
+        int end = inOff + inLen;
+        for (int i = inOff; i < end; i++) {
+            fcs = (fcs << 8) ^ TABLE[((fcs >>> 8) ^ inBuf[i]) & 0xff];
+        }
+        Util.setShort(crc16, (short) 0, (short) fcs);
+    }
+
+    /**
+     * Create lookup table with the CRC of each byte value (polynomial 0x1021, MSB first).
+     */
+    private static short[] createTable() {
+        short[] table = new short[256];
+        for (int i = 0; i < 256; i++) {
+            int fcs = i << 8;
+            for (int k = 0; k < 8; k++) {
+                if ((fcs & 0x8000) != 0) {
+                    fcs = (fcs << 1) ^ POLYNOMIAL;
                 } else {
                     fcs <<= 1;
                 }
-                d <<= 1;
             }
-
+            table[i] = (short) fcs;
         }
-        Util.setShort(crc16, (short) 0, fcs);
+        return table;
     }
 }
@@ -29,10 +29,9 @@ import javacard.security.CryptoException;
 public class CRC32 extends Checksum {
 
     final static byte LENGTH = 4;
+    private static final int POLYNOMIAL = 0x04C11DB7;
+    private static final int[] TABLE = createTable();
     private byte crc32[];
-    private final byte polynom[] = {
-        4, -63, 29, -73
-    };
 
     public CRC32() {
         crc32 = JCSystem.makeTransientByteArray(LENGTH, JCSystem.CLEAR_ON_DESELECT);
@@ -66,49 +65,49 @@ public class CRC32 extends Checksum {
     }
 
     private void crc32(byte inBuf[], short inOff, short inLen) {
-        short fcs_h = Util.getShort(crc32, (short) 0);
-        short fcs_l = Util.getShort(crc32, (short) 2);
-        short poly_h = Util.getShort(polynom, (short) 0);
-        short poly_l = Util.getShort(polynom, (short) 2);
-        byte carry = 0;
-        for (short i = inOff; i < (short) (inOff + inLen); i++) {
-            short d_h = (short) (inBuf[i] << 8);
-            for (short k = 0; k < 8; k++) {
-                if (((fcs_h ^ d_h) & 0x8000) != 0) {
-                    carry = 0;
-                    short lfcs_h = shift(fcs_h);
-                    if ((fcs_l & 0x8000) != 0) {
-                        carry = 1;
-                    }
-                    short lfcs_l = shift(fcs_l);
-                    if (carry == 1) {
-                        lfcs_h++;
-                    }
-                    fcs_h = (short) (lfcs_h ^ poly_h);
-                    fcs_l = (short) (lfcs_l ^ poly_l);
+        int fcs = (Util.getShort(crc32, (short) 0) << 16) | (Util.getShort(crc32, (short) 2) & 0xffff);
+        int i = inOff;
+        int end = inOff + inLen;
+        // slicing-by-8: process 8 input bytes per step
+        for (; (end - i) >= 8; i += 8) {
+            fcs ^= ((inBuf[i] & 0xff) << 24) | ((inBuf[i + 1] & 0xff) << 16) |
+                   ((inBuf[i + 2] & 0xff) << 8) | (inBuf[i + 3] & 0xff);
+            fcs = TABLE[(7 << 8) | (fcs >>> 24)] ^ TABLE[(6 << 8) | ((fcs >>> 16) & 0xff)] ^
+                  TABLE[(5 << 8) | ((fcs >>> 8) & 0xff)] ^ TABLE[(4 << 8) | (fcs & 0xff)] ^
+                  TABLE[(3 << 8) | (inBuf[i + 4] & 0xff)] ^ TABLE[(2 << 8) | (inBuf[i + 5] & 0xff)] ^
+                  TABLE[(1 << 8) | (inBuf[i + 6] & 0xff)] ^ TABLE[inBuf[i + 7] & 0xff];
+        }
+        for (; i < end; i++) {
+            fcs = (fcs << 8) ^ TABLE[((fcs >>> 24) ^ inBuf[i]) & 0xff];
+        }
+        Util.setShort(crc32, (short) 0, (short) (fcs >>> 16));
+        Util.setShort(crc32, (short) 2, (short) fcs);
+    }
+
+    /**
+     * Create lookup tables for slicing-by-8 (polynomial 0x04C11DB7, MSB first).
+     * Table k (at offset k * 256) holds the CRC of each byte value followed
+     * by k zero bytes.
+     */
+    private static int[] createTable() {
+        int[] table = new int[8 * 256];
+        for (int i = 0; i < 256; i++) {
+            int fcs = i << 24;
+            for (int k = 0; k < 8; k++) {
+                if ((fcs & 0x80000000) != 0) {
+                    fcs = (fcs << 1) ^ POLYNOMIAL;
                 } else {
-                    carry = 0;
-                    short lfcs_h = shift(fcs_h);
-                    if ((fcs_l & 0x8000) != 0) {
-                        carry = 1;
-                    }
-                    short lfcs_l = shift(fcs_l);
-                    if (carry == 1) {
-                        lfcs_h++;
-                    }
-                    fcs_h = lfcs_h;
-                    fcs_l = lfcs_l;
+                    fcs <<= 1;
                 }
-                d_h <<= 1;
             }
-
+            table[i] = fcs;
         }
-
-        Util.setShort(crc32, (short) 2, fcs_l);
-        Util.setShort(crc32, (short) 0, fcs_h);
-    }
-
-    short shift(short s) {
-        return s <<= 1;
+        for (int k = 1; k < 8; k++) {
+            for (int i = 0; i < 256; i++) {
+                int fcs = table[((k - 1) << 8) | i];
+                table[(k << 8) | i] = (fcs << 8) ^ table[fcs >>> 24];
+            }
+        }
+        return table;
     }
 }
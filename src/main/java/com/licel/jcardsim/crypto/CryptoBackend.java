@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.crypto;
+
+import org.bouncycastle.crypto.AsymmetricBlockCipher;
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.Digest;
+
+/**
+ * Provider of the cryptographic primitives that the Java Card crypto
+ * implementation is built upon.
+ *
+ * Primitives are exposed through the BouncyCastle lightweight API so that
+ * modes of operation, paddings, MACs and signature schemes can be shared
+ * between all backends.
+ *
+ * @author mroland
+ * @see BouncyCastleCryptoBackend
+ * @see JceCryptoBackend
+ */
+public interface CryptoBackend {
+
+    /**
+     * Create a raw block cipher.
+     * @param algorithm BouncyCastle algorithm name ("AES", "DES" or "DESede")
+     * @return block cipher, or null if the algorithm is not supported
+     */
+    BlockCipher createBlockCipher(String algorithm);
+
+    /**
+     * Create a message digest.
+     * @param algorithm message digest algorithm (<code>MessageDigest.ALG_..</code>)
+     * @return message digest, or null if the algorithm is not supported
+     */
+    Digest createDigest(byte algorithm);
+
+    /**
+     * Create a raw RSA engine.
+     * @return RSA engine
+     */
+    AsymmetricBlockCipher createRSAEngine();
+}
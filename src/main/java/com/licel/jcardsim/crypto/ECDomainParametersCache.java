@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.crypto;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.bouncycastle.asn1.sec.SECNamedCurves;
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.crypto.params.ECDomainParameters;
+
+/**
+ * Cache of shared <code>ECDomainParameters</code>.
+ *
+ * Domain parameters are shared between all keys on the same curve. The
+ * BouncyCastle point multiplier stores its precomputed tables with the base
+ * point, so sharing one generator instance lets all operations on a curve
+ * reuse the fixed-base precomputation.
+ *
+ * @author mroland
+ */
+final class ECDomainParametersCache {
+    private static final int MAX_CUSTOM_CURVES = 16;
+
+    private static final HashMap<String, ECDomainParameters> namedCurves = new HashMap();
+    private static final LinkedHashMap<String, ECDomainParameters> customCurves =
+            new LinkedHashMap<String, ECDomainParameters>(MAX_CUSTOM_CURVES, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<String, ECDomainParameters> eldest) {
+                    return size() > MAX_CUSTOM_CURVES;
+                }
+            };
+
+    private ECDomainParametersCache() {
+    }
+
+    /**
+     * Get the domain parameters of a named curve.
+     *
+     * @param curveName SEC curve name
+     * @return shared domain parameters
+     */
+    static synchronized ECDomainParameters getNamedCurve(String curveName) {
+        ECDomainParameters parameters = namedCurves.get(curveName);
+        if (parameters == null) {
+            X9ECParameters x9params = SECNamedCurves.getByName(curveName);
+            parameters = precompute(new ECDomainParameters(
+                    x9params.getCurve(),
+                    x9params.getG(), // G
+                    x9params.getN(), x9params.getH(), x9params.getSeed()));
+            namedCurves.put(curveName, parameters);
+        }
+        return parameters;
+    }
+
+    /**
+     * Get cached domain parameters.
+     *
+     * @param curveKey key built from the encoded curve parameters
+     * @return shared domain parameters, or null if not cached
+     */
+    static synchronized ECDomainParameters get(String curveKey) {
+        return customCurves.get(curveKey);
+    }
+
+    /**
+     * Add domain parameters to the cache.
+     *
+     * @param curveKey key built from the encoded curve parameters
+     * @param parameters domain parameters
+     * @return shared domain parameters
+     */
+    static synchronized ECDomainParameters put(String curveKey, ECDomainParameters parameters) {
+        ECDomainParameters cached = customCurves.get(curveKey);
+        if (cached == null) {
+            cached = precompute(parameters);
+            customCurves.put(curveKey, cached);
+        }
+        return cached;
+    }
+
+    /**
+     * Precompute the fixed-base table of the generator.
+     */
+    private static ECDomainParameters precompute(ECDomainParameters parameters) {
+        parameters.getG().multiply(parameters.getN());
+        return parameters;
+    }
+}
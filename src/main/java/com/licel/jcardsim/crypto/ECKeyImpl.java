@@ -17,14 +17,11 @@ package com.licel.jcardsim.crypto;
 
 import java.math.BigInteger;
 import java.security.SecureRandom;
-import javacard.framework.JCSystem;
 import javacard.framework.Util;
 import javacard.security.CryptoException;
 import javacard.security.ECKey;
 import javacard.security.KeyBuilder;
 import javacard.security.KeyPair;
-import org.bouncycastle.asn1.sec.SECNamedCurves;
-import org.bouncycastle.asn1.x9.X9ECParameters;
 import org.bouncycastle.crypto.KeyGenerationParameters;
 import org.bouncycastle.crypto.params.ECDomainParameters;
 import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
@@ -170,6 +167,22 @@ public abstract class ECKeyImpl extends KeyImpl implements ECKey {
         if (!isDomainParametersInitialized()) {
             CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
         }
+        StringBuilder curveKey = new StringBuilder();
+        if (fp.isInitialized()) {
+            curveKey.append("Fp");
+            fp.appendTo(curveKey);
+        } else {
+            curveKey.append("F2m:").append(size).append(':').append(e1).append(':').append(e2).append(':').append(e3);
+        }
+        a.appendTo(curveKey);
+        b.appendTo(curveKey);
+        g.appendTo(curveKey);
+        r.appendTo(curveKey);
+        curveKey.append(k);
+        ECDomainParameters parameters = ECDomainParametersCache.get(curveKey.toString());
+        if (parameters != null) {
+            return parameters;
+        }
         ECCurve curve = null;
         if (fp.isInitialized()) {
             curve = new ECCurve.Fp(fp.getBigInteger(), a.getBigInteger(), b.getBigInteger());
@@ -177,8 +190,14 @@ public abstract class ECKeyImpl extends KeyImpl implements ECKey {
             curve = new ECCurve.F2m(size, e1, e2, e3, a.getBigInteger(), b.getBigInteger(),
                     r.getBigInteger(), BigInteger.valueOf(k));
         }
-        return new ECDomainParameters(curve, curve.decodePoint(g.getBytes(JCSystem.CLEAR_ON_RESET)),
-                r.getBigInteger(), BigInteger.valueOf(k));
+        byte[] gBytes = g.getScratchBytes();
+        try {
+            return ECDomainParametersCache.put(curveKey.toString(),
+                    new ECDomainParameters(curve, curve.decodePoint(gBytes),
+                    r.getBigInteger(), BigInteger.valueOf(k)));
+        } finally {
+            ScratchBufferPool.release(gBytes);
+        }
     }
 
     /**
@@ -307,10 +326,6 @@ public abstract class ECKeyImpl extends KeyImpl implements ECKey {
                 CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
                 break;
         }
-        X9ECParameters x9params = SECNamedCurves.getByName(curveName);
-        return new ECDomainParameters(
-                x9params.getCurve(),
-                x9params.getG(), // G
-                x9params.getN(), x9params.getH(), x9params.getSeed());
+        return ECDomainParametersCache.getNamedCurve(curveName);
     }
 }
@@ -15,7 +15,6 @@
  */
 package com.licel.jcardsim.crypto;
 
-import javacard.framework.JCSystem;
 import javacard.security.CryptoException;
 import javacard.security.ECPublicKey;
 import org.bouncycastle.crypto.CipherParameters;
@@ -81,6 +80,11 @@ public class ECPublicKeyImpl extends ECKeyImpl implements ECPublicKey {
             CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
         }
         ECDomainParameters dp = getDomainParameters();
-        return new ECPublicKeyParameters(dp.getCurve().decodePoint(w.getBytes(JCSystem.CLEAR_ON_RESET)), dp);
+        byte[] wBytes = w.getScratchBytes();
+        try {
+            return new ECPublicKeyParameters(dp.getCurve().decodePoint(wBytes), dp);
+        } finally {
+            ScratchBufferPool.release(wBytes);
+        }
     }
 }
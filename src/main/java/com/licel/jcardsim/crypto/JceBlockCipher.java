@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.crypto;
+
+import at.mroland.objectstaterecovery.NotPersistent;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * BouncyCastle <code>BlockCipher</code> adapter for a JCA <code>Cipher</code>
+ * in ECB mode without padding. Modes of operation are still provided by the
+ * BouncyCastle classes on top of this cipher.
+ *
+ * Neither the JCA object nor the copy of the key is captured by persistent
+ * memory, so no plaintext key ends up in a snapshot. After the card state
+ * has been restored, this cipher has to be keyed again (see
+ * <code>KeyScheduleCache.restoreKey</code>) before it can be used.
+ *
+ * @author mroland
+ */
+final class JceBlockCipher implements BlockCipher {
+
+    private final String algorithmName;
+    private final int blockSize;
+    @NotPersistent
+    private byte[] keyBytes;
+    private boolean forEncryption;
+    @NotPersistent
+    private Cipher cipher;
+
+    /**
+     * Create a block cipher.
+     * @param algorithmName JCA (and BouncyCastle) algorithm name ("AES", "DES" or "DESede")
+     * @param blockSize block size in bytes
+     * @throws GeneralSecurityException if no provider supports the algorithm
+     */
+    JceBlockCipher(String algorithmName, int blockSize) throws GeneralSecurityException {
+        this.algorithmName = algorithmName;
+        this.blockSize = blockSize;
+        cipher = Cipher.getInstance(getTransformation());
+    }
+
+    private String getTransformation() {
+        return algorithmName + "/ECB/NoPadding";
+    }
+
+    public void init(boolean forEncryption, CipherParameters params) throws IllegalArgumentException {
+        if (!(params instanceof KeyParameter)) {
+            throw new IllegalArgumentException("invalid parameter passed to " + algorithmName + " init");
+        }
+        byte[] key = ((KeyParameter) params).getKey();
+        if (keyBytes != null) {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+        if ("DESede".equals(algorithmName) && (key.length == 16)) {
+            // two-key triple DES: K1 K2 K1
+            keyBytes = new byte[24];
+            System.arraycopy(key, 0, keyBytes, 0, 16);
+            System.arraycopy(key, 0, keyBytes, 16, 8);
+        } else {
+            keyBytes = new byte[key.length];
+            System.arraycopy(key, 0, keyBytes, 0, key.length);
+        }
+        this.forEncryption = forEncryption;
+        initCipher();
+    }
+
+    private void initCipher() {
+        try {
+            if (cipher == null) {
+                cipher = Cipher.getInstance(getTransformation());
+            }
+            cipher.init(forEncryption ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE,
+                        new SecretKeySpec(keyBytes, algorithmName));
+        } catch (GeneralSecurityException e) {
+            cipher = null;
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    public String getAlgorithmName() {
+        return algorithmName;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int processBlock(byte[] in, int inOff, byte[] out, int outOff) throws DataLengthException, IllegalStateException {
+        if (keyBytes == null) {
+            throw new IllegalStateException(algorithmName + " engine not initialised");
+        }
+        if ((inOff + blockSize) > in.length) {
+            throw new DataLengthException("input buffer too short");
+        }
+        if ((outOff + blockSize) > out.length) {
+            throw new DataLengthException("output buffer too short");
+        }
+        if (cipher == null) {
+            initCipher();
+        }
+        try {
+            return cipher.update(in, inOff, blockSize, out, outOff);
+        } catch (GeneralSecurityException e) {
+            throw new DataLengthException(e.getMessage());
+        }
+    }
+
+    public void reset() {
+    }
+}
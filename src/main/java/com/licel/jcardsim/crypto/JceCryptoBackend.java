@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.crypto;
+
+import java.security.GeneralSecurityException;
+import javacard.security.MessageDigest;
+import org.bouncycastle.crypto.AsymmetricBlockCipher;
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.Digest;
+
+/**
+ * Crypto backend based on the JCA/JCE providers of the Java runtime.
+ *
+ * Block ciphers and message digests are taken from the JCA providers,
+ * which use the hardware instructions of the CPU where available (e.g.
+ * AES-NI and SHA extensions). Algorithms that are not available from the
+ * installed providers are taken from the BouncyCastle backend. RSA always
+ * uses the BouncyCastle engine, as its modular exponentiation is already
+ * done by <code>BigInteger</code>.
+ *
+ * @author mroland
+ */
+public final class JceCryptoBackend implements CryptoBackend {
+
+    public static final JceCryptoBackend INSTANCE = new JceCryptoBackend();
+
+    private JceCryptoBackend() {
+    }
+
+    public BlockCipher createBlockCipher(String algorithm) {
+        int blockSize;
+        if ("AES".equals(algorithm)) {
+            blockSize = 16;
+        } else if ("DES".equals(algorithm) || "DESede".equals(algorithm)) {
+            blockSize = 8;
+        } else {
+            return null;
+        }
+        try {
+            return new JceBlockCipher(algorithm, blockSize);
+        } catch (GeneralSecurityException e) {
+            return BouncyCastleCryptoBackend.INSTANCE.createBlockCipher(algorithm);
+        }
+    }
+
+    public Digest createDigest(byte algorithm) {
+        try {
+            switch (algorithm) {
+                case MessageDigest.ALG_SHA:
+                    return new JceDigest("SHA-1", 64);
+                case MessageDigest.ALG_MD5:
+                    return new JceDigest("MD5", 64);
+                case MessageDigest.ALG_SHA_256:
+                    return new JceDigest("SHA-256", 64);
+                case MessageDigest.ALG_SHA_384:
+                    return new JceDigest("SHA-384", 128);
+                case MessageDigest.ALG_SHA_512:
+                    return new JceDigest("SHA-512", 128);
+            }
+        } catch (GeneralSecurityException e) {
+        }
+        return BouncyCastleCryptoBackend.INSTANCE.createDigest(algorithm);
+    }
+
+    public AsymmetricBlockCipher createRSAEngine() {
+        return BouncyCastleCryptoBackend.INSTANCE.createRSAEngine();
+    }
+}
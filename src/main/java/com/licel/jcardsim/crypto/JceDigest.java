@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.crypto;
+
+import at.mroland.objectstaterecovery.NotPersistent;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.ExtendedDigest;
+
+/**
+ * BouncyCastle <code>Digest</code> adapter for a JCA <code>MessageDigest</code>.
+ *
+ * The JCA object is kept in a <code>transient</code> field so that it is not
+ * captured by persistent memory. It is created again on first use after the
+ * card state has been restored (i.e. an unfinished digest is reset).
+ *
+ * @author mroland
+ */
+final class JceDigest implements ExtendedDigest {
+
+    private final String algorithmName;
+    private final int byteLength;
+    @NotPersistent
+    private MessageDigest digest;
+
+    /**
+     * Create a digest.
+     * @param algorithmName JCA (and BouncyCastle) algorithm name, e.g. "SHA-256"
+     * @param byteLength internal block size of the digest
+     * @throws NoSuchAlgorithmException if no provider supports the algorithm
+     */
+    JceDigest(String algorithmName, int byteLength) throws NoSuchAlgorithmException {
+        this.algorithmName = algorithmName;
+        this.byteLength = byteLength;
+        digest = MessageDigest.getInstance(algorithmName);
+    }
+
+    private MessageDigest getDigest() {
+        if (digest == null) {
+            try {
+                digest = MessageDigest.getInstance(algorithmName);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e.getMessage());
+            }
+        }
+        return digest;
+    }
+
+    public String getAlgorithmName() {
+        return algorithmName;
+    }
+
+    public int getDigestSize() {
+        return getDigest().getDigestLength();
+    }
+
+    public int getByteLength() {
+        return byteLength;
+    }
+
+    public void update(byte in) {
+        getDigest().update(in);
+    }
+
+    public void update(byte[] in, int inOff, int len) {
+        getDigest().update(in, inOff, len);
+    }
+
+    public int doFinal(byte[] out, int outOff) {
+        try {
+            return getDigest().digest(out, outOff, out.length - outOff);
+        } catch (DigestException e) {
+            throw new DataLengthException(e.getMessage());
+        }
+    }
+
+    public void reset() {
+        getDigest().reset();
+    }
+}
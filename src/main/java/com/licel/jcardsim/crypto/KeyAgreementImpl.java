@@ -15,7 +15,6 @@
  */
 package com.licel.jcardsim.crypto;
 
-import javacard.framework.JCSystem;
 import javacard.framework.Util;
 import javacard.security.CryptoException;
 import javacard.security.KeyAgreement;
@@ -23,7 +22,7 @@ import javacard.security.PrivateKey;
 import org.bouncycastle.crypto.BasicAgreement;
 import org.bouncycastle.crypto.agreement.ECDHBasicAgreement;
 import org.bouncycastle.crypto.agreement.ECDHCBasicAgreement;
-import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.bouncycastle.crypto.params.ECDomainParameters;
 import org.bouncycastle.crypto.params.ECPublicKeyParameters;
 
 /**
@@ -74,10 +73,15 @@ public class KeyAgreementImpl extends KeyAgreement {
             short publicLength,
             byte[] secret,
             short secretOffset) throws CryptoException {
-        byte[] publicKey = JCSystem.makeTransientByteArray(publicLength, JCSystem.CLEAR_ON_RESET);
-        Util.arrayCopyNonAtomic(publicData, publicOffset, publicKey, (short) 0, publicLength);
-        ECPublicKeyParameters ecp = new ECPublicKeyParameters(
-                ((ECPrivateKeyParameters) privateKey.getParameters()).getParameters().getCurve().decodePoint(publicKey), ((ECPrivateKeyParameters) privateKey.getParameters()).getParameters());
+        byte[] publicKey = ScratchBufferPool.acquire(publicLength);
+        ECPublicKeyParameters ecp;
+        try {
+            Util.arrayCopyNonAtomic(publicData, publicOffset, publicKey, (short) 0, publicLength);
+            ECDomainParameters dp = privateKey.getDomainParameters();
+            ecp = new ECPublicKeyParameters(dp.getCurve().decodePoint(publicKey), dp);
+        } finally {
+            ScratchBufferPool.release(publicKey);
+        }
         byte[] result = engine.calculateAgreement(ecp).toByteArray();
         if (result.length > secret.length - secretOffset) {
             CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
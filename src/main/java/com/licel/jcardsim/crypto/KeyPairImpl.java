@@ -15,6 +15,7 @@
  */
 package com.licel.jcardsim.crypto;
 
+import com.licel.jcardsim.base.SimulatorConfig;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 import javacard.security.CryptoException;
@@ -104,7 +105,13 @@ public final class KeyPairImpl {
     public final void genKeyPair()
             throws CryptoException {
         initEngine();        
-        AsymmetricCipherKeyPair kp = engine.generateKeyPair();
+        AsymmetricCipherKeyPair kp = null;
+        if (SimulatorConfig.KEY_PAIR_POOL_ENABLED) {
+            kp = KeyPairPool.take(keyGenerationParameters);
+        }
+        if (kp == null) {
+            kp = engine.generateKeyPair();
+        }
         // rsa
         if (kp.getPublic() instanceof RSAKeyParameters) {
             publicKey = new RSAKeyImpl((RSAKeyParameters) kp.getPublic());
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.crypto;
+
+import at.mroland.logging.Logging;
+import com.licel.jcardsim.base.SimulatorConfig;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.AsymmetricCipherKeyPairGenerator;
+import org.bouncycastle.crypto.KeyGenerationParameters;
+import org.bouncycastle.crypto.generators.DSAKeyPairGenerator;
+import org.bouncycastle.crypto.generators.ECKeyPairGenerator;
+import org.bouncycastle.crypto.generators.RSAKeyPairGenerator;
+import org.bouncycastle.crypto.params.DSAKeyGenerationParameters;
+import org.bouncycastle.crypto.params.DSAParameters;
+import org.bouncycastle.crypto.params.ECDomainParameters;
+import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
+import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
+import org.bouncycastle.math.ec.ECCurve;
+
+/**
+ * Pool of key pairs that are pre-generated on background threads.
+ *
+ * Key pairs are pooled per key generation parameter set (algorithm, key
+ * size, public exponent, domain parameters). Each pool is bounded and is
+ * refilled whenever a key pair is taken from it. Each generator thread uses
+ * its own SecureRandom. A pool is only filled completely once a key pair
+ * has been generated for its parameter set. After a failed generation, a
+ * pool is only refilled by single retries with an exponentially growing
+ * delay, and pre-generation stops for the parameter set after
+ * <code>MAX_FAILURES</code> consecutive failures.
+ *
+ * @author mroland
+ */
+final class KeyPairPool {
+
+    private static final String TAG = KeyPairPool.class.getName();
+
+    private static final int MAX_FAILURES = 8;
+    private static final long RETRY_DELAY = 1000;  // milliseconds, doubled upon each further failure
+
+    private static final HashMap<String, KeyPairPool> pools = new HashMap();
+    private static ExecutorService executor;
+    private static final ThreadLocal<SecureRandom> random = new ThreadLocal<SecureRandom>() {
+        protected SecureRandom initialValue() {
+            return new SecureRandom();
+        }
+    };
+
+    private final KeyGenerationParameters parameters;
+    private final int size;
+    private final ArrayBlockingQueue<AsymmetricCipherKeyPair> keyPairs;
+    private final AtomicInteger scheduled = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();  // consecutive failed generations
+    private volatile boolean generated = false;  // at least one key pair has been generated
+    private volatile long retryTime = 0;
+
+    private KeyPairPool(KeyGenerationParameters parameters, int size) {
+        this.parameters = parameters;
+        this.size = size;
+        this.keyPairs = new ArrayBlockingQueue<AsymmetricCipherKeyPair>(size);
+    }
+
+    /**
+     * Take a pre-generated key pair for a key generation parameter set. The
+     * pool for this parameter set is (re)filled in the background.
+     *
+     * @param parameters key generation parameters
+     * @return pre-generated key pair, or null if no key pair is available yet
+     * (the caller has to generate the key pair itself in that case)
+     */
+    static AsymmetricCipherKeyPair take(KeyGenerationParameters parameters) {
+        String poolKey = getPoolKey(parameters);
+        if (poolKey == null) {
+            return null;
+        }
+        KeyPairPool pool;
+        synchronized (pools) {
+            pool = pools.get(poolKey);
+            if (pool == null) {
+                // the random number generator is replaced by the one of the generator thread
+                pool = new KeyPairPool(copyParameters(parameters, null), SimulatorConfig.KEY_PAIR_POOL_SIZE);
+                pools.put(poolKey, pool);
+            }
+        }
+        AsymmetricCipherKeyPair keyPair = pool.keyPairs.poll();
+        pool.refill();
+        return keyPair;
+    }
+
+    /**
+     * Get the number of consecutive failed generations for a key generation
+     * parameter set.
+     *
+     * @param parameters key generation parameters
+     * @return number of consecutive failures (0 if the parameter set is not pooled)
+     */
+    static int getFailures(KeyGenerationParameters parameters) {
+        KeyPairPool pool;
+        synchronized (pools) {
+            pool = pools.get(getPoolKey(parameters));
+        }
+        return (pool != null) ? pool.failures.get() : 0;
+    }
+
+    /**
+     * Schedule generation of key pairs until the pool is (or will be) full.
+     * Before the first key pair has been generated and after a failed
+     * generation, only a single generation is scheduled (once the retry
+     * delay has passed).
+     */
+    private void refill() {
+        final int failureCount = failures.get();
+        if ((failureCount > 0) || !generated) {
+            if ((failureCount < MAX_FAILURES) && (scheduled.get() == 0) &&
+                (System.currentTimeMillis() >= retryTime)) {
+                schedule();
+            }
+            return;
+        }
+        while ((keyPairs.size() + scheduled.get()) < size) {
+            schedule();
+        }
+    }
+
+    /**
+     * Schedule the generation of one key pair.
+     */
+    private void schedule() {
+        scheduled.incrementAndGet();
+        getExecutor().execute(new Runnable() {
+            public void run() {
+                try {
+                    KeyGenerationParameters generatorParameters = copyParameters(parameters, random.get());
+                    AsymmetricCipherKeyPairGenerator generator = createGenerator(generatorParameters);
+                    generator.init(generatorParameters);
+                    keyPairs.offer(generator.generateKeyPair());
+                    failures.set(0);
+                    generated = true;
+                } catch (RuntimeException e) {
+                    final int failureCount = failures.incrementAndGet();
+                    retryTime = System.currentTimeMillis() + (RETRY_DELAY << Math.min(failureCount - 1, 16));
+                    Logging.error(TAG, "Key pair pre-generation failed (" + failureCount + " consecutive failures): " + e.toString(), e);
+                } finally {
+                    scheduled.decrementAndGet();
+                }
+                if (generated && (failures.get() == 0)) {
+                    refill();
+                }
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(SimulatorConfig.KEY_PAIR_POOL_THREADS, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "KeyPairPool");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Get the key pair generator for a key generation parameter set.
+     */
+    private static AsymmetricCipherKeyPairGenerator createGenerator(KeyGenerationParameters parameters) {
+        if (parameters instanceof RSAKeyGenerationParameters) {
+            return new RSAKeyPairGenerator();
+        } else if (parameters instanceof DSAKeyGenerationParameters) {
+            return new DSAKeyPairGenerator();
+        } else if (parameters instanceof ECKeyGenerationParameters) {
+            return new ECKeyPairGenerator();
+        }
+        return null;
+    }
+
+    /**
+     * Get a copy of a key generation parameter set that uses another random
+     * number generator.
+     */
+    private static KeyGenerationParameters copyParameters(KeyGenerationParameters parameters, SecureRandom rnd) {
+        if (parameters instanceof RSAKeyGenerationParameters) {
+            RSAKeyGenerationParameters rsaParameters = (RSAKeyGenerationParameters) parameters;
+            return new RSAKeyGenerationParameters(rsaParameters.getPublicExponent(), rnd,
+                    rsaParameters.getStrength(), rsaParameters.getCertainty());
+        } else if (parameters instanceof DSAKeyGenerationParameters) {
+            return new DSAKeyGenerationParameters(rnd, ((DSAKeyGenerationParameters) parameters).getParameters());
+        } else if (parameters instanceof ECKeyGenerationParameters) {
+            return new ECKeyGenerationParameters(((ECKeyGenerationParameters) parameters).getDomainParameters(), rnd);
+        }
+        return null;
+    }
+
+    /**
+     * Get the pool key of a key generation parameter set.
+     *
+     * @return pool key, or null if key pairs for this parameter set cannot be pooled
+     */
+    private static String getPoolKey(KeyGenerationParameters parameters) {
+        if (parameters instanceof RSAKeyGenerationParameters) {
+            RSAKeyGenerationParameters rsaParameters = (RSAKeyGenerationParameters) parameters;
+            return "RSA:" + rsaParameters.getStrength() + ":" + rsaParameters.getPublicExponent().toString(16) +
+                   ":" + rsaParameters.getCertainty();
+        } else if (parameters instanceof DSAKeyGenerationParameters) {
+            DSAParameters dsaParameters = ((DSAKeyGenerationParameters) parameters).getParameters();
+            return "DSA:" + dsaParameters.getP().toString(16) + ":" + dsaParameters.getQ().toString(16) +
+                   ":" + dsaParameters.getG().toString(16);
+        } else if (parameters instanceof ECKeyGenerationParameters) {
+            ECDomainParameters ecParameters = ((ECKeyGenerationParameters) parameters).getDomainParameters();
+            ECCurve curve = ecParameters.getCurve();
+            StringBuilder poolKey = new StringBuilder("EC:");
+            if (curve instanceof ECCurve.Fp) {
+                poolKey.append("Fp:").append(((ECCurve.Fp) curve).getQ().toString(16));
+            } else if (curve instanceof ECCurve.F2m) {
+                ECCurve.F2m f2m = (ECCurve.F2m) curve;
+                poolKey.append("F2m:").append(f2m.getM()).append(':').append(f2m.getK1())
+                       .append(':').append(f2m.getK2()).append(':').append(f2m.getK3());
+            } else {
+                return null;
+            }
+            poolKey.append(':').append(curve.getA().toBigInteger().toString(16));
+            poolKey.append(':').append(curve.getB().toBigInteger().toString(16));
+            poolKey.append(':').append(ecParameters.getG().getX().toBigInteger().toString(16));
+            poolKey.append(':').append(ecParameters.getG().getY().toBigInteger().toString(16));
+            poolKey.append(':').append(ecParameters.getN().toString(16));
+            poolKey.append(':').append(ecParameters.getH().toString(16));
+            return poolKey.toString();
+        }
+        return null;
+    }
+}
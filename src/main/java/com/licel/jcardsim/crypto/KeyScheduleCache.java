@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.crypto;
+
+import at.mroland.objectstaterecovery.NotPersistent;
+import java.util.Arrays;
+import org.bouncycastle.crypto.BlockCipher;
+
+/**
+ * Remembers which key an engine has last been keyed with so that the
+ * expanded key schedule can be reused as long as the key has not changed.
+ *
+ * The key version counter of <code>SymmetricKeyImpl</code> detects calls to
+ * <code>setKey()</code> and <code>clearKey()</code>. The key bytes are
+ * compared in addition, as transient key data is cleared by the runtime and
+ * aborted transactions restore key data without going through the key.
+ * The copy of the key bytes is not persisted, so it never ends up in a
+ * snapshot of persistent memory. After a restore, the engine is re-keyed
+ * upon its next use: either when it is initialized again, or through
+ * {@link #restoreKey(BlockCipher)} if it is used without being initialized
+ * again (block ciphers such as <code>JceBlockCipher</code> do not persist
+ * their key either).
+ *
+ * @author mroland
+ */
+final class KeyScheduleCache {
+
+    private SymmetricKeyImpl key;
+    private int keyVersion;
+    @NotPersistent
+    private byte[] keyBytes;
+    private boolean forEncryption;
+
+    /**
+     * Check if the engine is still keyed with the current value of a key.
+     * @param key key
+     * @param forEncryption direction of the key schedule
+     * @return true if the key schedule can be reused
+     */
+    boolean isCurrent(SymmetricKeyImpl key, boolean forEncryption) {
+        return (this.key == key) &&
+               (this.forEncryption == forEncryption) &&
+               (keyVersion == key.getKeyVersion()) &&
+               key.isKeyEqual(keyBytes);
+    }
+
+    /**
+     * Record that the engine has been keyed with the current value of a key.
+     * @param key key
+     * @param forEncryption direction of the key schedule
+     */
+    void update(SymmetricKeyImpl key, boolean forEncryption) {
+        this.key = key;
+        this.forEncryption = forEncryption;
+        keyVersion = key.getKeyVersion();
+        keyBytes = key.copyKey(keyBytes);
+    }
+
+    /**
+     * Key a block cipher again with the recorded key if the copy of the key
+     * bytes has been lost in a restore. Nothing is done if the engine is
+     * still keyed or if the key has been changed since the engine was keyed
+     * (the previous key value is lost in that case).
+     * @param cipher block cipher underlying the engine (may be null)
+     */
+    void restoreKey(BlockCipher cipher) {
+        if ((key == null) || (keyBytes != null) || (cipher == null)) {
+            return;
+        }
+        if (keyVersion != key.getKeyVersion()) {
+            key = null;
+            return;
+        }
+        cipher.init(forEncryption, key.getParameters());
+        keyBytes = key.copyKey(null);
+    }
+
+    /**
+     * Forget the recorded key.
+     */
+    void invalidate() {
+        key = null;
+        if (keyBytes != null) {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.licel.jcardsim.crypto;
 
+import com.licel.jcardsim.base.SimulatorSystem;
 import java.lang.reflect.Field;
 import javacard.security.CryptoException;
 import javacard.security.InitializedMessageDigest;
@@ -32,6 +33,7 @@ import org.bouncycastle.crypto.util.Pack;
  * Implementation
  * <code>MessageDigest</code> based
  * on BouncyCastle CryptoAPI
+ * (or on the JCA provider of the <code>CryptoBackend</code>)
  * @see MessageDigest
  * @see MD5Digest
  * @see RIPEMD160Digest
@@ -55,38 +57,36 @@ public class MessageDigestImpl extends InitializedMessageDigest {
         componentStartIdx = 1;
         switch (algorithm) {
             case ALG_SHA:
-                engine = new SHA1Digest();
-                digestClass = engine.getClass();
+                digestClass = SHA1Digest.class;
                 break;
             case ALG_MD5:
-                engine = new MD5Digest();
-                digestClass = engine.getClass();
+                digestClass = MD5Digest.class;
                 break;
             case ALG_RIPEMD160:
-                engine = new RIPEMD160Digest();
-                digestClass = engine.getClass();
+                digestClass = RIPEMD160Digest.class;
                 componentStartIdx = 0;
                 break;
             case ALG_SHA_256:
-                engine = new SHA256Digest();
-                digestClass = engine.getClass();
+                digestClass = SHA256Digest.class;
                 break;
             case ALG_SHA_384:
-                engine = new SHA384Digest();
                 blockSize = 128;                
                 byteCountFieldName = "byteCount1";
-                digestClass = engine.getClass().getSuperclass();
+                digestClass = SHA384Digest.class.getSuperclass();
                 break;
             case ALG_SHA_512:
-                engine = new SHA512Digest();
                 blockSize = 128;                
                 byteCountFieldName = "byteCount1";
-                digestClass = engine.getClass().getSuperclass();
+                digestClass = SHA512Digest.class.getSuperclass();
                 break;
             default:
                 CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
                 break;
         }
+        engine = SimulatorSystem.getCryptoBackend().createDigest(algorithm);
+        if (engine == null) {
+            CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+        }
         componentSize = (byte)(blockSize == 64 ? 4 : 8);
         componentCount = (byte) (engine.getDigestSize() / componentSize);
     }
@@ -134,6 +134,9 @@ public class MessageDigestImpl extends InitializedMessageDigest {
             CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
         }
         // set hash state - BouncyCastle specific
+        if (!digestClass.isInstance(engine)) {
+            engine = BouncyCastleCryptoBackend.INSTANCE.createDigest(algorithm);
+        }
         try {
             for (byte i = 0; i < componentCount; i++) {
                 // some reflection work
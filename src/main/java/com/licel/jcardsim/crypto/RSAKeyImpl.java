@@ -15,6 +15,7 @@
  */
 package com.licel.jcardsim.crypto;
 
+import at.mroland.objectstaterecovery.NotPersistent;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 import javacard.security.CryptoException;
@@ -39,6 +40,8 @@ public class RSAKeyImpl extends KeyImpl implements RSAPrivateKey, RSAPublicKey {
     protected ByteContainer exponent = new ByteContainer();
     protected ByteContainer modulus = new ByteContainer();
     protected boolean isPrivate;
+    @NotPersistent
+    private RSAKeyParameters parameters;
 
     /**
      * Construct not-initialized rsa key
@@ -103,7 +106,13 @@ public class RSAKeyImpl extends KeyImpl implements RSAPrivateKey, RSAPublicKey {
         if (!isInitialized()) {
             CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
         }
-        return new RSAKeyParameters(isPrivate, modulus.getBigInteger(), exponent.getBigInteger());
+        BigInteger mod = modulus.getBigInteger();
+        BigInteger exp = exponent.getBigInteger();
+        // reuse parameters as long as the key components are unchanged
+        if ((parameters == null) || (parameters.getModulus() != mod) || (parameters.getExponent() != exp)) {
+            parameters = new RSAKeyParameters(isPrivate, mod, exp);
+        }
+        return parameters;
     }
 
     /**
@@ -15,6 +15,8 @@
  */
 package com.licel.jcardsim.crypto;
 
+import at.mroland.objectstaterecovery.NotPersistent;
+import java.math.BigInteger;
 import javacard.security.CryptoException;
 import javacard.security.KeyBuilder;
 import javacard.security.RSAPrivateCrtKey;
@@ -35,6 +37,8 @@ public class RSAPrivateCrtKeyImpl extends RSAKeyImpl implements RSAPrivateCrtKey
     protected ByteContainer dp1 = new ByteContainer();
     protected ByteContainer dq1 = new ByteContainer();
     protected ByteContainer pq = new ByteContainer();
+    @NotPersistent
+    private RSAPrivateCrtKeyParameters crtParameters;
 
     /**
      * Construct not-initialized rsa private crt key
@@ -122,9 +126,18 @@ public class RSAPrivateCrtKeyImpl extends RSAKeyImpl implements RSAPrivateCrtKey
         if (!isInitialized()) {
             CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
         }
-        // modulus = p * q;
-        return new RSAPrivateCrtKeyParameters(p.getBigInteger().multiply(q.getBigInteger()), null,
-                null, p.getBigInteger(), q.getBigInteger(),
-                dp1.getBigInteger(), dq1.getBigInteger(), pq.getBigInteger());
+        BigInteger bp = p.getBigInteger();
+        BigInteger bq = q.getBigInteger();
+        BigInteger bdp1 = dp1.getBigInteger();
+        BigInteger bdq1 = dq1.getBigInteger();
+        BigInteger bpq = pq.getBigInteger();
+        // reuse parameters (and the modulus) as long as the key components are unchanged
+        if ((crtParameters == null) || (crtParameters.getP() != bp) || (crtParameters.getQ() != bq) ||
+            (crtParameters.getDP() != bdp1) || (crtParameters.getDQ() != bdq1) || (crtParameters.getQInv() != bpq)) {
+            // modulus = p * q;
+            crtParameters = new RSAPrivateCrtKeyParameters(bp.multiply(bq), null,
+                    null, bp, bq, bdp1, bdq1, bpq);
+        }
+        return crtParameters;
     }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.crypto;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.DataLengthException;
+
+/**
+ * <code>BlockCipher</code> wrapper that keeps its expanded key schedule
+ * when it is initialized with <code>null</code> parameters. This allows
+ * modes of operation and MACs on top of this cipher to be re-initialized
+ * (e.g. with a new IV) without expanding the same key again.
+ *
+ * @author mroland
+ */
+final class ReusableBlockCipher implements BlockCipher {
+
+    private final BlockCipher cipher;
+
+    ReusableBlockCipher(BlockCipher cipher) {
+        this.cipher = cipher;
+    }
+
+    public void init(boolean forEncryption, CipherParameters params) throws IllegalArgumentException {
+        if (params != null) {
+            cipher.init(forEncryption, params);
+        }
+    }
+
+    public String getAlgorithmName() {
+        return cipher.getAlgorithmName();
+    }
+
+    public int getBlockSize() {
+        return cipher.getBlockSize();
+    }
+
+    public int processBlock(byte[] in, int inOff, byte[] out, int outOff) throws DataLengthException, IllegalStateException {
+        return cipher.processBlock(in, inOff, out, outOff);
+    }
+
+    public void reset() {
+        cipher.reset();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.crypto;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Pool of scratch buffers for simulator-internal use.
+ *
+ * Scratch buffers are plain byte arrays that are neither registered with
+ * transient memory nor with persistent memory. Released buffers are cleared
+ * and reused for subsequent requests of the same size.
+ *
+ * @author mroland
+ */
+final class ScratchBufferPool {
+    private static final int MAX_BUFFERS_PER_SIZE = 4;
+
+    private static final HashMap<Integer, ArrayList<byte[]>> buffers = new HashMap();
+
+    private ScratchBufferPool() {
+    }
+
+    /**
+     * Get a scratch buffer.
+     *
+     * @param length exact length of the buffer
+     * @return cleared scratch buffer
+     */
+    static synchronized byte[] acquire(int length) {
+        ArrayList<byte[]> sizeBuffers = buffers.get(length);
+        if ((sizeBuffers != null) && !sizeBuffers.isEmpty()) {
+            return sizeBuffers.remove(sizeBuffers.size() - 1);
+        }
+        return new byte[length];
+    }
+
+    /**
+     * Return a scratch buffer to the pool. The buffer is cleared and must
+     * not be used by the caller after it has been released.
+     *
+     * @param buffer scratch buffer obtained from {@link #acquire(int)}
+     */
+    static synchronized void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        Arrays.fill(buffer, (byte)0);
+        ArrayList<byte[]> sizeBuffers = buffers.get(buffer.length);
+        if (sizeBuffers == null) {
+            sizeBuffers = new ArrayList<byte[]>(MAX_BUFFERS_PER_SIZE);
+            buffers.put(buffer.length, sizeBuffers);
+        }
+        if (sizeBuffers.size() < MAX_BUFFERS_PER_SIZE) {
+            sizeBuffers.add(buffer);
+        }
+    }
+}
@@ -15,12 +15,13 @@
  */
 package com.licel.jcardsim.crypto;
 
-import javacard.framework.JCSystem;
 import javacard.framework.Util;
 import javacard.security.CryptoException;
 import javacard.security.Key;
 import javacardx.crypto.Cipher;
+import org.bouncycastle.crypto.BlockCipher;
 import org.bouncycastle.crypto.BufferedBlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
 import org.bouncycastle.crypto.modes.CBCBlockCipher;
 import org.bouncycastle.crypto.paddings.ISO7816d4Padding;
 import org.bouncycastle.crypto.paddings.PKCS7Padding;
@@ -37,6 +38,8 @@ public class SymmetricCipherImpl extends Cipher {
 
     byte algorithm;
     BufferedBlockCipher engine;
+    ReusableBlockCipher cipher;
+    KeyScheduleCache keySchedule = new KeyScheduleCache();
     boolean isInitialized;
 
     public SymmetricCipherImpl(byte algorithm) {
@@ -44,8 +47,7 @@ public class SymmetricCipherImpl extends Cipher {
     }
 
     public void init(Key theKey, byte theMode) throws CryptoException {
-        selectCipherEngine(theKey);
-        engine.init(theMode == MODE_ENCRYPT, ((SymmetricKeyImpl) theKey).getParameters());
+        initEngine(theKey, theMode, null);
         isInitialized = true;
     }
 
@@ -66,10 +68,13 @@ public class SymmetricCipherImpl extends Cipher {
                 }
                 break;
         }
-        selectCipherEngine(theKey);
-        byte[] iv = JCSystem.makeTransientByteArray(bLen, JCSystem.CLEAR_ON_RESET);
-        Util.arrayCopyNonAtomic(bArray, bOff, iv, (short) 0, bLen);
-        engine.init(theMode == MODE_ENCRYPT, new ParametersWithIV(((SymmetricKeyImpl) theKey).getParameters(), iv));
+        byte[] iv = ScratchBufferPool.acquire(bLen);
+        try {
+            Util.arrayCopyNonAtomic(bArray, bOff, iv, (short) 0, bLen);
+            initEngine(theKey, theMode, iv);
+        } finally {
+            ScratchBufferPool.release(iv);
+        }
         isInitialized = true;
     }
 
@@ -81,6 +86,7 @@ public class SymmetricCipherImpl extends Cipher {
         if (!isInitialized) {
             CryptoException.throwIt(CryptoException.INVALID_INIT);
         }
+        keySchedule.restoreKey(cipher);
 
         short processedBytes = (short) engine.processBytes(inBuff, inOffset, inLength, outBuff, outOffset);
         try {
@@ -95,10 +101,56 @@ public class SymmetricCipherImpl extends Cipher {
         if (!isInitialized) {
             CryptoException.throwIt(CryptoException.INVALID_INIT);
         }
+        keySchedule.restoreKey(cipher);
         return (short) engine.processBytes(inBuff, inOffset, inLength, outBuff, outOffset);
     }
 
-    private void selectCipherEngine(Key theKey) {
+    /**
+     * Initialize the (cached) cipher engine. The key is only expanded again
+     * if it differs from the key that the engine has last been keyed with.
+     * @param theKey key
+     * @param theMode cipher mode
+     * @param iv initialization vector, or null if no IV was given
+     */
+    private void initEngine(Key theKey, byte theMode, byte[] iv) {
+        SymmetricKeyImpl key = selectCipherEngine(theKey);
+        boolean forEncryption = theMode == MODE_ENCRYPT;
+        CipherParameters keyParams = null;
+        if (!keySchedule.isCurrent(key, forEncryption)) {
+            keySchedule.invalidate();
+            keyParams = key.getParameters();
+        }
+        if (iv != null) {
+            engine.init(forEncryption, new ParametersWithIV(keyParams, iv));
+        } else if (isCBCMode()) {
+            // a reused CBC engine still holds the previous IV, so explicitly reset it to zero
+            byte[] zeroIV = ScratchBufferPool.acquire(cipher.getBlockSize());
+            try {
+                engine.init(forEncryption, new ParametersWithIV(keyParams, zeroIV));
+            } finally {
+                ScratchBufferPool.release(zeroIV);
+            }
+        } else {
+            engine.init(forEncryption, keyParams);
+        }
+        if (keyParams != null) {
+            keySchedule.update(key, forEncryption);
+        }
+    }
+
+    private boolean isCBCMode() {
+        switch (algorithm) {
+            case ALG_DES_CBC_NOPAD:
+            case ALG_AES_BLOCK_128_CBC_NOPAD:
+            case ALG_DES_CBC_ISO9797_M1:
+            case ALG_DES_CBC_ISO9797_M2:
+            case ALG_DES_CBC_PKCS5:
+                return true;
+        }
+        return false;
+    }
+
+    private SymmetricKeyImpl selectCipherEngine(Key theKey) {
         if (theKey == null) {
             CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
         }
@@ -109,36 +161,45 @@ public class SymmetricCipherImpl extends Cipher {
             CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
         }
         SymmetricKeyImpl key = (SymmetricKeyImpl) theKey;
+        String cipherName = key.getCipherAlgorithmName();
+        if ((engine != null) && (cipher != null) && cipher.getAlgorithmName().equals(cipherName)) {
+            // engine for this algorithm and key type already exists
+            return key;
+        }
+        keySchedule.invalidate();
+        BlockCipher blockCipher = key.getCipher();
+        cipher = (blockCipher != null) ? new ReusableBlockCipher(blockCipher) : null;
         switch (algorithm) {
             case ALG_DES_CBC_NOPAD:
             case ALG_AES_BLOCK_128_CBC_NOPAD:
-                engine = new BufferedBlockCipher(new CBCBlockCipher(key.getCipher()));
+                engine = new BufferedBlockCipher(new CBCBlockCipher(cipher));
                 break;
             case ALG_DES_CBC_ISO9797_M1:
-                engine = new PaddedBufferedBlockCipher(new CBCBlockCipher(key.getCipher()), new ZeroBytePadding());
+                engine = new PaddedBufferedBlockCipher(new CBCBlockCipher(cipher), new ZeroBytePadding());
                 break;
             case ALG_DES_CBC_ISO9797_M2:
-                engine = new PaddedBufferedBlockCipher(new CBCBlockCipher(key.getCipher()), new ISO7816d4Padding());
+                engine = new PaddedBufferedBlockCipher(new CBCBlockCipher(cipher), new ISO7816d4Padding());
                 break;
             case ALG_DES_CBC_PKCS5:
-                engine = new PaddedBufferedBlockCipher(new CBCBlockCipher(key.getCipher()), new PKCS7Padding());
+                engine = new PaddedBufferedBlockCipher(new CBCBlockCipher(cipher), new PKCS7Padding());
                 break;
             case ALG_DES_ECB_NOPAD:
             case ALG_AES_BLOCK_128_ECB_NOPAD:                
-                engine = new BufferedBlockCipher(key.getCipher());
+                engine = new BufferedBlockCipher(cipher);
                 break;
             case ALG_DES_ECB_ISO9797_M1:
-                engine = new PaddedBufferedBlockCipher(key.getCipher(), new ZeroBytePadding());
+                engine = new PaddedBufferedBlockCipher(cipher, new ZeroBytePadding());
                 break;
             case ALG_DES_ECB_ISO9797_M2:
-                engine = new PaddedBufferedBlockCipher(key.getCipher(), new ISO7816d4Padding());
+                engine = new PaddedBufferedBlockCipher(cipher, new ISO7816d4Padding());
                 break;
             case ALG_DES_ECB_PKCS5:
-                engine = new PaddedBufferedBlockCipher(key.getCipher(), new PKCS7Padding());
+                engine = new PaddedBufferedBlockCipher(cipher, new PKCS7Padding());
                 break;
             default:
                 CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
                 break;
         }
+        return key;
     }
 }
@@ -15,6 +15,7 @@
  */
 package com.licel.jcardsim.crypto;
 
+import com.licel.jcardsim.base.SimulatorSystem;
 import java.security.SecureRandom;
 import javacard.framework.JCSystem;
 import javacard.security.AESKey;
@@ -25,9 +26,6 @@ import javacard.security.KeyBuilder;
 import org.bouncycastle.crypto.BlockCipher;
 import org.bouncycastle.crypto.CipherParameters;
 import org.bouncycastle.crypto.KeyGenerationParameters;
-import org.bouncycastle.crypto.engines.AESEngine;
-import org.bouncycastle.crypto.engines.DESEngine;
-import org.bouncycastle.crypto.engines.DESedeEngine;
 import org.bouncycastle.crypto.params.KeyParameter;
 
 /**
@@ -38,6 +36,7 @@ import org.bouncycastle.crypto.params.KeyParameter;
 public class SymmetricKeyImpl extends KeyImpl implements DESKey, AESKey, HMACKey {
 
     protected ByteContainer key;
+    private int keyVersion;
 
     /**
      * Create new instance of <code>SymmetricKeyImpl</code>
@@ -72,6 +71,7 @@ public class SymmetricKeyImpl extends KeyImpl implements DESKey, AESKey, HMACKey
      */
     public void clearKey() {
         key.clear();
+        ++keyVersion;
     }
 
     /**
@@ -79,6 +79,7 @@ public class SymmetricKeyImpl extends KeyImpl implements DESKey, AESKey, HMACKey
      */
     public void setKey(byte[] keyData, short kOff) throws CryptoException, NullPointerException, ArrayIndexOutOfBoundsException {
         key.setBytes(keyData, kOff, (short) (size / 8));
+        ++keyVersion;
     }
 
     /**
@@ -86,6 +87,7 @@ public class SymmetricKeyImpl extends KeyImpl implements DESKey, AESKey, HMACKey
      */
     public void setKey(byte[] keyData, short kOff, short kLen) throws CryptoException, NullPointerException, ArrayIndexOutOfBoundsException {
         key.setBytes(keyData, kOff, kLen);
+        ++keyVersion;
     }
     /**
      * Returns the <code>Key</code> data in plain text.
@@ -104,36 +106,79 @@ public class SymmetricKeyImpl extends KeyImpl implements DESKey, AESKey, HMACKey
         if (!key.isInitialized()) {
             CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
         }
-        return new KeyParameter(key.getBytes(JCSystem.CLEAR_ON_RESET));
+        byte[] keyBytes = key.getScratchBytes();
+        try {
+            return new KeyParameter(keyBytes);
+        } finally {
+            ScratchBufferPool.release(keyBytes);
+        }
     }
 
     /**
-     * Return the BouncyCastle <code>BlockCipher</code> for using with this key
-     * @return <code>BlockCipher</code> for this key, or null for HMACKey
-     * @throws CryptoException if key not initialized
-     * @see BlockCipher
+     * Return the version of the key data. The version changes whenever
+     * the key is set or cleared.
+     * @return key version counter
      */
-    public BlockCipher getCipher() throws CryptoException {
-        if (!key.isInitialized()) {
-            CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
-        }
-        BlockCipher cipher = null;
+    int getKeyVersion() {
+        return keyVersion;
+    }
+
+    /**
+     * Compare the key data with a byte array
+     * @param keyData key data
+     * @return true if the key is initialized and equals <code>keyData</code>
+     */
+    boolean isKeyEqual(byte[] keyData) {
+        return key.isEqual(keyData);
+    }
+
+    /**
+     * Copy the key data into a simulator-internal array
+     * @param keyData destination array, reused if it has the right length
+     * @return array containing a copy of the key data
+     */
+    byte[] copyKey(byte[] keyData) {
+        return key.copyBytes(keyData);
+    }
+
+    /**
+     * Return the name of the BouncyCastle <code>BlockCipher</code> for using with this key
+     * @return name of the block cipher algorithm, or null for HMACKey
+     */
+    String getCipherAlgorithmName() {
         switch (type) {
             case KeyBuilder.TYPE_DES:
             case KeyBuilder.TYPE_DES_TRANSIENT_DESELECT:
             case KeyBuilder.TYPE_DES_TRANSIENT_RESET:
                 if (size == KeyBuilder.LENGTH_DES) {
-                    cipher = new DESEngine();
+                    return "DES";
                 }
                 if (size == KeyBuilder.LENGTH_DES3_2KEY || size == KeyBuilder.LENGTH_DES3_3KEY) {
-                    cipher = new DESedeEngine();
+                    return "DESede";
                 }
                 break;
             case KeyBuilder.TYPE_AES:
             case KeyBuilder.TYPE_AES_TRANSIENT_DESELECT:
             case KeyBuilder.TYPE_AES_TRANSIENT_RESET:
-                cipher = new AESEngine();
-                break;
+                return "AES";
+        }
+        return null;
+    }
+
+    /**
+     * Return the BouncyCastle <code>BlockCipher</code> for using with this key
+     * @return <code>BlockCipher</code> for this key, or null for HMACKey
+     * @throws CryptoException if key not initialized
+     * @see BlockCipher
+     */
+    public BlockCipher getCipher() throws CryptoException {
+        if (!key.isInitialized()) {
+            CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+        }
+        BlockCipher cipher = null;
+        String algorithmName = getCipherAlgorithmName();
+        if (algorithmName != null) {
+            cipher = SimulatorSystem.getCryptoBackend().createBlockCipher(algorithmName);
         }
         return cipher;
     }
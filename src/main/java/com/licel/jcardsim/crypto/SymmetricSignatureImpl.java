@@ -15,20 +15,15 @@
  */
 package com.licel.jcardsim.crypto;
 
-import javacard.framework.JCSystem;
+import com.licel.jcardsim.base.SimulatorSystem;
 import javacard.framework.Util;
 import javacard.security.CryptoException;
 import javacard.security.Key;
+import javacard.security.MessageDigest;
 import javacard.security.Signature;
 import org.bouncycastle.crypto.BlockCipher;
 import org.bouncycastle.crypto.CipherParameters;
 import org.bouncycastle.crypto.Mac;
-import org.bouncycastle.crypto.digests.MD5Digest;
-import org.bouncycastle.crypto.digests.RIPEMD160Digest;
-import org.bouncycastle.crypto.digests.SHA1Digest;
-import org.bouncycastle.crypto.digests.SHA256Digest;
-import org.bouncycastle.crypto.digests.SHA384Digest;
-import org.bouncycastle.crypto.digests.SHA512Digest;
 import org.bouncycastle.crypto.engines.DESEngine;
 import org.bouncycastle.crypto.macs.CBCBlockCipherMac;
 import org.bouncycastle.crypto.macs.HMac;
@@ -47,6 +42,8 @@ import org.bouncycastle.crypto.params.ParametersWithIV;
 public class SymmetricSignatureImpl extends Signature {
     
     Mac engine;
+    ReusableBlockCipher cipher;
+    KeyScheduleCache keySchedule = new KeyScheduleCache();
     byte algorithm;
     boolean isInitialized;
     
@@ -68,73 +65,136 @@ public class SymmetricSignatureImpl extends Signature {
         if (!(theKey instanceof SymmetricKeyImpl)) {
             CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
         }
-        CipherParameters cipherParams = null;
-        BlockCipher cipher = ((SymmetricKeyImpl) theKey).getCipher();
-        if (bArray == null) {
-            cipherParams = ((SymmetricKeyImpl) theKey).getParameters();
-        } else {
+        SymmetricKeyImpl key = (SymmetricKeyImpl) theKey;
+        BlockCipher cipher = selectMacEngine(key);
+        if (bArray != null) {
             if (bLen != cipher.getBlockSize()) {
                 CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
             }
-            cipherParams = new ParametersWithIV(((SymmetricKeyImpl) theKey).getParameters(), bArray, bOff, bLen);
         }
         switch (algorithm) {
-            case ALG_DES_MAC4_NOPAD:
-                engine = new CBCBlockCipherMac(cipher, 32, null);
-                break;
-            case ALG_DES_MAC8_NOPAD:
-                engine = new CBCBlockCipherMac(cipher, 64, null);
-                break;
-            case ALG_DES_MAC4_ISO9797_M1:
-                engine = new CBCBlockCipherMac(cipher, 32, new ZeroBytePadding());
-                break;
-            case ALG_DES_MAC8_ISO9797_M1:
-                engine = new CBCBlockCipherMac(cipher, 64, new ZeroBytePadding());
-                break;
-            case ALG_DES_MAC4_ISO9797_M2:
-                engine = new CBCBlockCipherMac(cipher, 32, new ISO7816d4Padding());
-                break;
-            case ALG_DES_MAC8_ISO9797_M2:
-                engine = new CBCBlockCipherMac(cipher, 64, new ISO7816d4Padding());
-                break;
             case ALG_DES_MAC8_ISO9797_1_M2_ALG3:
-                engine = new ISO9797Alg3Mac(new DESEngine(), 64, new ISO7816d4Padding());
-                break;
-            case ALG_DES_MAC4_PKCS5:
-                engine = new CBCBlockCipherMac(cipher, 32, new PKCS7Padding());
-                break;
-            case ALG_DES_MAC8_PKCS5:
-                engine = new CBCBlockCipherMac(cipher, 64, new PKCS7Padding());
-                break;
-            case ALG_AES_MAC_128_NOPAD:
-                engine = new CBCBlockCipherMac(cipher, 128, null);
+                // ISO9797Alg3Mac derives its internal keys on every init
+                keySchedule.invalidate();
+                if (bArray == null) {
+                    engine.init(key.getParameters());
+                } else {
+                    engine.init(new ParametersWithIV(key.getParameters(), bArray, bOff, bLen));
+                }
                 break;
             case ALG_HMAC_SHA1:
-                engine = new HMac(new SHA1Digest());
-                break;
             case ALG_HMAC_SHA_256:
-                engine = new HMac(new SHA256Digest());
-                break;
             case ALG_HMAC_SHA_384:
-                engine = new HMac(new SHA384Digest());
-                break;
             case ALG_HMAC_SHA_512:
-                engine = new HMac(new SHA512Digest());
-                break;
             case ALG_HMAC_MD5:
-                engine = new HMac(new MD5Digest());
-                break;
             case ALG_HMAC_RIPEMD160:
-                engine = new HMac(new RIPEMD160Digest());
+                if (keySchedule.isCurrent(key, true)) {
+                    // HMac.reset() restores the state after processing the (unchanged) key
+                    engine.reset();
+                } else {
+                    keySchedule.invalidate();
+                    engine.init(key.getParameters());
+                    keySchedule.update(key, true);
+                }
                 break;
             default:
-                CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+                CipherParameters keyParams = null;
+                if (!keySchedule.isCurrent(key, true)) {
+                    keySchedule.invalidate();
+                    keyParams = key.getParameters();
+                }
+                if (bArray == null) {
+                    // a reused CBC-MAC engine still holds the previous IV, so explicitly reset it to zero
+                    byte[] zeroIV = ScratchBufferPool.acquire(cipher.getBlockSize());
+                    try {
+                        engine.init(new ParametersWithIV(keyParams, zeroIV));
+                    } finally {
+                        ScratchBufferPool.release(zeroIV);
+                    }
+                } else {
+                    engine.init(new ParametersWithIV(keyParams, bArray, bOff, bLen));
+                }
+                if (keyParams != null) {
+                    keySchedule.update(key, true);
+                }
                 break;
         }
-        engine.init(cipherParams);
         isInitialized = true;
     }
     
+    /**
+     * Select the (cached) MAC engine for a key. Engines are reused as long as
+     * the key uses the same block cipher algorithm.
+     * @param key key
+     * @return block cipher of the key, or null for HMACKey
+     */
+    private BlockCipher selectMacEngine(SymmetricKeyImpl key) {
+        String cipherName = key.getCipherAlgorithmName();
+        if ((cipher == null) ? (cipherName != null) : !cipher.getAlgorithmName().equals(cipherName)) {
+            BlockCipher blockCipher = key.getCipher();
+            cipher = (blockCipher != null) ? new ReusableBlockCipher(blockCipher) : null;
+            engine = null;
+        }
+        if (engine == null) {
+            keySchedule.invalidate();
+            switch (algorithm) {
+                case ALG_DES_MAC4_NOPAD:
+                    engine = new CBCBlockCipherMac(cipher, 32, null);
+                    break;
+                case ALG_DES_MAC8_NOPAD:
+                    engine = new CBCBlockCipherMac(cipher, 64, null);
+                    break;
+                case ALG_DES_MAC4_ISO9797_M1:
+                    engine = new CBCBlockCipherMac(cipher, 32, new ZeroBytePadding());
+                    break;
+                case ALG_DES_MAC8_ISO9797_M1:
+                    engine = new CBCBlockCipherMac(cipher, 64, new ZeroBytePadding());
+                    break;
+                case ALG_DES_MAC4_ISO9797_M2:
+                    engine = new CBCBlockCipherMac(cipher, 32, new ISO7816d4Padding());
+                    break;
+                case ALG_DES_MAC8_ISO9797_M2:
+                    engine = new CBCBlockCipherMac(cipher, 64, new ISO7816d4Padding());
+                    break;
+                case ALG_DES_MAC8_ISO9797_1_M2_ALG3:
+                    // BouncyCastle requires its own DESEngine for the final triple DES step
+                    engine = new ISO9797Alg3Mac(new DESEngine(), 64, new ISO7816d4Padding());
+                    break;
+                case ALG_DES_MAC4_PKCS5:
+                    engine = new CBCBlockCipherMac(cipher, 32, new PKCS7Padding());
+                    break;
+                case ALG_DES_MAC8_PKCS5:
+                    engine = new CBCBlockCipherMac(cipher, 64, new PKCS7Padding());
+                    break;
+                case ALG_AES_MAC_128_NOPAD:
+                    engine = new CBCBlockCipherMac(cipher, 128, null);
+                    break;
+                case ALG_HMAC_SHA1:
+                    engine = new HMac(SimulatorSystem.getCryptoBackend().createDigest(MessageDigest.ALG_SHA));
+                    break;
+                case ALG_HMAC_SHA_256:
+                    engine = new HMac(SimulatorSystem.getCryptoBackend().createDigest(MessageDigest.ALG_SHA_256));
+                    break;
+                case ALG_HMAC_SHA_384:
+                    engine = new HMac(SimulatorSystem.getCryptoBackend().createDigest(MessageDigest.ALG_SHA_384));
+                    break;
+                case ALG_HMAC_SHA_512:
+                    engine = new HMac(SimulatorSystem.getCryptoBackend().createDigest(MessageDigest.ALG_SHA_512));
+                    break;
+                case ALG_HMAC_MD5:
+                    engine = new HMac(SimulatorSystem.getCryptoBackend().createDigest(MessageDigest.ALG_MD5));
+                    break;
+                case ALG_HMAC_RIPEMD160:
+                    engine = new HMac(SimulatorSystem.getCryptoBackend().createDigest(MessageDigest.ALG_RIPEMD160));
+                    break;
+                default:
+                    CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+                    break;
+            }
+        }
+        return cipher;
+    }
+    
     public short getLength() throws CryptoException {
         if (!isInitialized) {
             CryptoException.throwIt(CryptoException.INVALID_INIT);
@@ -150,6 +210,7 @@ public class SymmetricSignatureImpl extends Signature {
         if (!isInitialized) {
             CryptoException.throwIt(CryptoException.INVALID_INIT);
         }
+        keySchedule.restoreKey(cipher);
         engine.update(inBuff, inOffset, inLength);
     }
     
@@ -161,6 +222,7 @@ public class SymmetricSignatureImpl extends Signature {
             && ((inLength % 8) != 0)) {
             CryptoException.throwIt(CryptoException.ILLEGAL_USE);
         }
+        keySchedule.restoreKey(cipher);
         engine.update(inBuff, inOffset, inLength);
         short processedBytes = (short) engine.doFinal(sigBuff, sigOffset);
         engine.reset();
@@ -175,10 +237,15 @@ public class SymmetricSignatureImpl extends Signature {
             && ((inLength % 8) != 0)) {
             CryptoException.throwIt(CryptoException.ILLEGAL_USE);
         }
+        keySchedule.restoreKey(cipher);
         engine.update(inBuff, inOffset, inLength);
-        byte[] sig = JCSystem.makeTransientByteArray(getLength(), JCSystem.CLEAR_ON_RESET);
-        engine.doFinal(sig, (short) 0);
-        engine.reset();
-        return Util.arrayCompare(sig, (short) 0, sigBuff, sigOffset, (short) sig.length) == 0;
+        byte[] sig = ScratchBufferPool.acquire(getLength());
+        try {
+            engine.doFinal(sig, (short) 0);
+            engine.reset();
+            return Util.arrayCompare(sig, (short) 0, sigBuff, sigOffset, (short) sig.length) == 0;
+        } finally {
+            ScratchBufferPool.release(sig);
+        }
     }
 }
\ No newline at end of file
@@ -682,14 +682,14 @@ public final class APDU {
         if (ncRemaining != 0) {
             short len = (short) (BUFFER_SIZE - bOff);
             if (len > ncRemaining) len = ncRemaining;
-            ncRemaining = SimulatorSystem.receiveAPDU(buffer, bOff, len);
-            ramVarsShort[RV_SHORT_NC_REMAINING] = ncRemaining;
-            if (ncRemaining == 0) {
+            short newNcRemaining = SimulatorSystem.receiveAPDU(buffer, bOff, len);
+            ramVarsShort[RV_SHORT_NC_REMAINING] = newNcRemaining;
+            if (newNcRemaining == 0) {
                 ramVarsByte[RV_BYTE_CURRENT_STATE] = STATE_FULL_INCOMING;
             } else {
                 ramVarsByte[RV_BYTE_CURRENT_STATE] = STATE_PARTIAL_INCOMING;
             }
-            return len;
+            return (short) (ncRemaining - newNcRemaining);
         } else {
             ramVarsByte[RV_BYTE_CURRENT_STATE] = STATE_FULL_INCOMING;
             return 0;
@@ -807,6 +807,13 @@ public final class APDU {
         if ((bOff < 0) || (len < 0) || ((short)(bOff + len) > BUFFER_SIZE)) {
             APDUException.throwIt(APDUException.BUFFER_BOUNDS);
         }
+        send(buffer, bOff, len);
+    }
+
+    /**
+     * Pass response bytes to the runtime environment.
+     */
+    private void send(byte[] data, short bOff, short len) throws APDUException {
         if (!flags[FLAG_OUTGOING_LEN_SET]) {
             APDUException.throwIt(APDUException.ILLEGAL_USE);
         }
@@ -825,7 +832,7 @@ public final class APDU {
             APDUException.throwIt(APDUException.ILLEGAL_USE);
         }
 
-        SimulatorSystem.sendAPDU(buffer, bOff, len);
+        SimulatorSystem.sendAPDU(data, bOff, len);
 
         Lr -= len;
 
@@ -887,16 +894,18 @@ public final class APDU {
      */
     public void sendBytesLong(byte outData[], short bOff, short len)
             throws APDUException, SecurityException {
-        short sendLength = BUFFER_SIZE;
-        while (len > 0) {
-            if (len < sendLength) {
-                sendLength = len;
-            }
-            Util.arrayCopy(outData, bOff, buffer, (short) 0, sendLength);
-            sendBytes((short) 0, sendLength);
-            len -= sendLength;
-            bOff += sendLength;
+        if (len == 0) {
+            return;
+        }
+        if (len < 0) {
+            APDUException.throwIt(APDUException.BUFFER_BOUNDS);
+        }
+        if ((bOff < 0) || ((bOff + len) > outData.length)) {
+            throw new ArrayIndexOutOfBoundsException();
         }
+        // the runtime environment takes the data directly from outData
+        // (no need to stage it in the APDU buffer)
+        send(outData, bOff, len);
     }
 
     /**
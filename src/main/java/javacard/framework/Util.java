@@ -16,6 +16,9 @@
 
 package javacard.framework;
 
+import com.licel.jcardsim.base.SimulatorSystem;
+import java.util.Arrays;
+
 /**
  * The <code>Util</code> class contains common utility functions.
  * Some of the methods may be implemented as native functions for
@@ -27,7 +30,9 @@ package javacard.framework;
  * one CAD session to the next, indefinitely.
  * The <code>JCSystem</code> class is used to control the persistence and transience of objects.
  * <p>
- * <b>Current implementation use <code>System.arraycopy</code> method and no supported transactions !</b>
+ * <b>Current implementation uses <code>System.arraycopy</code> and <code>java.util.Arrays</code> methods.
+ * Within a transaction, <code>arrayCopy()</code> and <code>setShort()</code> record the previous content
+ * of the destination range so that it is restored if the transaction is aborted.</b>
  */
 public class Util {
 
@@ -72,6 +77,11 @@ public class Util {
      */
     public static final short arrayCopy(byte src[], short srcOff, byte dest[], short destOff, short length)
             throws ArrayIndexOutOfBoundsException, NullPointerException, TransactionException {
+        if ((srcOff < 0) || (destOff < 0) || (length < 0) ||
+            ((srcOff + length) > src.length) || ((destOff + length) > dest.length)) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        SimulatorSystem.logArrayUpdate(dest, destOff, length);
         System.arraycopy(src, srcOff, dest, destOff, length);
         return (short) (destOff + length);
     }
@@ -151,16 +161,11 @@ public class Util {
      */
     public static final short arrayFillNonAtomic(byte bArray[], short bOff, short bLen, byte bValue)
             throws ArrayIndexOutOfBoundsException, NullPointerException {
-        byte tester = bArray[bOff];
-        if (bLen < 0) {
+        if ((bOff < 0) || (bLen < 0) || ((bOff + bLen) > bArray.length)) {
             throw new ArrayIndexOutOfBoundsException();
         }
-        while (bLen > 0) {
-            bArray[bOff++] = bValue;
-            bLen--;
-        }
-        // after loop bOff = bOff + bLen
-        return bOff;
+        Arrays.fill(bArray, bOff, bOff + bLen, bValue);
+        return (short) (bOff + bLen);
     }
 
     /**
@@ -193,18 +198,18 @@ public class Util {
      */
     public static final byte arrayCompare(byte src[], short srcOff, byte dest[], short destOff, short length)
             throws ArrayIndexOutOfBoundsException, NullPointerException {
-        if (length < 0) {
+        if ((srcOff < 0) || (destOff < 0) || (length < 0) ||
+            ((srcOff + length) > src.length) || ((destOff + length) > dest.length)) {
             throw new ArrayIndexOutOfBoundsException();
         }
-        if (length != 0) {
-            byte tester = src[(srcOff + length) - 1];
-            tester = dest[(destOff + length) - 1];
+        if ((src == dest) && (srcOff == destOff)) {
+            return 0;
         }
-        for (short i = 0; i < length; i++) {
-            if (src[srcOff + i] != dest[destOff + i]) {
-                short thisSrc = (short) (src[srcOff + i] & 0x00ff);
-                short thisDest = (short) (dest[destOff + i] & 0x00ff);
-                return (byte) (thisSrc >= thisDest ? 1 : -1);
+        // bounds are checked above, so the JIT can drop range checks in this loop
+        final int end = srcOff + length;
+        for (int i = srcOff, j = destOff; i < end; i++, j++) {
+            if (src[i] != dest[j]) {
+                return (byte) ((src[i] & 0x00ff) > (dest[j] & 0x00ff) ? 1 : -1);
             }
         }
 
@@ -230,7 +235,7 @@ public class Util {
      * @throws NullPointerException if the <CODE>bArray</CODE> parameter is <CODE>null</CODE>
      */
     public static final short getShort(byte bArray[], short bOff) throws ArrayIndexOutOfBoundsException, NullPointerException {
-        return (short) (((short) bArray[bOff] << 8) + ((short) bArray[bOff + 1] & 0xff));
+        return (short) ((bArray[bOff] << 8) | (bArray[bOff + 1] & 0xff));
     }
 
     /**
@@ -251,6 +256,10 @@ public class Util {
      */
     public static final short setShort(byte bArray[], short bOff, short sValue)
             throws TransactionException, ArrayIndexOutOfBoundsException, NullPointerException {
+        if ((bOff < 0) || ((bOff + 2) > bArray.length)) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        SimulatorSystem.logArrayUpdate(bArray, bOff, (short) 2);
         bArray[bOff] = (byte) (sValue >> 8);
         bArray[bOff + 1] = (byte) sValue;
         return (short) (bOff + 2);
@@ -26,6 +26,11 @@ package javacardx.framework.math;
  */
 public final class BCDUtil {
   private static final short MAX_BYTES_SUPPORTED = 8;
+  private static final short MAX_BCD_BYTES = 10; // 20 decimal digits cover 8 hex bytes
+  
+  // conversion buffers (allow input and output to overlap without allocating temporary arrays)
+  private static final byte[] hexBuffer = new byte[MAX_BYTES_SUPPORTED];
+  private static final byte[] bcdBuffer = new byte[MAX_BCD_BYTES];
   
   public BCDUtil() {
   }
@@ -78,7 +83,19 @@ public final class BCDUtil {
    * </ul>
    */
   public static short convertToHex(byte[] bcdArray, short bOff, short bLen, byte[] hexArray, short outOff) {
-    throw new UnsupportedOperationException("Not yet implemented");
+    checkBounds(bcdArray, bOff, bLen);
+    if (hexArray == null) throw new NullPointerException();
+    if (outOff < 0) throw new ArrayIndexOutOfBoundsException();
+    if (bLen == 0) throw new ArithmeticException();
+    
+    synchronized (hexBuffer) {
+      if (!bcdToHex(bcdArray, bOff, bLen, hexBuffer, (short)0, MAX_BYTES_SUPPORTED)) throw new ArithmeticException();
+      short hexOff = significantOffset(hexBuffer, (short)0, MAX_BYTES_SUPPORTED);
+      short hexLen = (short)(MAX_BYTES_SUPPORTED - hexOff);
+      if ((outOff + hexLen) > hexArray.length) throw new ArrayIndexOutOfBoundsException();
+      System.arraycopy(hexBuffer, hexOff, hexArray, outOff, hexLen);
+      return hexLen;
+    }
   }
 
   /**
@@ -119,7 +136,22 @@ public final class BCDUtil {
    * </ul>
    */
   public static short convertToBCD(byte[] hexArray, short bOff, short bLen, byte[] bcdArray, short outOff) {
-    throw new UnsupportedOperationException("Not yet implemented");
+    checkBounds(hexArray, bOff, bLen);
+    if (bcdArray == null) throw new NullPointerException();
+    if (outOff < 0) throw new ArrayIndexOutOfBoundsException();
+    if ((bLen == 0) || (bLen > MAX_BYTES_SUPPORTED)) throw new ArithmeticException();
+    
+    synchronized (hexBuffer) {
+      short hexOff = (short)(MAX_BYTES_SUPPORTED - bLen);
+      fill(hexBuffer, (short)0, hexOff);
+      System.arraycopy(hexArray, bOff, hexBuffer, hexOff, bLen);
+      hexToBCD(hexBuffer, (short)0, MAX_BYTES_SUPPORTED, bcdBuffer, (short)0, MAX_BCD_BYTES);
+      short bcdOff = significantOffset(bcdBuffer, (short)0, MAX_BCD_BYTES);
+      short bcdLen = (short)(MAX_BCD_BYTES - bcdOff);
+      if ((outOff + bcdLen) > bcdArray.length) throw new ArrayIndexOutOfBoundsException();
+      System.arraycopy(bcdBuffer, bcdOff, bcdArray, outOff, bcdLen);
+      return bcdLen;
+    }
   }
 
   /**
@@ -135,6 +167,118 @@ public final class BCDUtil {
    * @throws ArithmeticException             if <code>bLen</code> is 0
    */
   public static boolean isBCDFormat(byte[] bcdArray, short bOff, short bLen) {
-    throw new UnsupportedOperationException("Not yet implemented");
+    checkBounds(bcdArray, bOff, bLen);
+    if (bLen == 0) throw new ArithmeticException();
+    
+    return isBCD(bcdArray, bOff, bLen);
+  }
+  
+  /**
+   * Check array bounds of an input array.
+   */
+  static void checkBounds(byte[] bArray, short bOff, short bLen) {
+    if (bArray == null) throw new NullPointerException();
+    if ((bOff < 0) || (bLen < 0) || ((bOff + bLen) > bArray.length)) throw new ArrayIndexOutOfBoundsException();
+  }
+  
+  /**
+   * Check if all nibbles of a byte array are decimal digits.
+   */
+  static boolean isBCD(byte[] bcdArray, short bOff, short bLen) {
+    for (int i = bOff; i < (bOff + bLen); ++i) {
+      if (((bcdArray[i] & 0x0F0) > 0x090) || ((bcdArray[i] & 0x00F) > 0x009)) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Convert a BCD number into a fixed-width hexadecimal number.
+   * @return false if the input is not in BCD format or does not fit into <code>hexLen</code> bytes
+   */
+  static boolean bcdToHex(byte[] bcdArray, short bOff, short bLen, byte[] hexArray, short hexOff, short hexLen) {
+    if (!isBCD(bcdArray, bOff, bLen)) {
+      return false;
+    }
+    fill(hexArray, hexOff, hexLen);
+    for (int i = bOff; i < (bOff + bLen); ++i) {
+      int digits = ((bcdArray[i] >> 4) & 0x00F) * 10 + (bcdArray[i] & 0x00F);
+      if (multiplyAdd(hexArray, hexOff, hexLen, 100, digits) != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Convert a fixed-width hexadecimal number into a fixed-width, right justified BCD number.
+   * The hexadecimal number is destroyed. The BCD array must be large enough to hold the result.
+   */
+  static void hexToBCD(byte[] hexArray, short hexOff, short hexLen, byte[] bcdArray, short bOff, short bLen) {
+    for (int i = bOff + bLen - 1; i >= bOff; --i) {
+      int digits = divide(hexArray, hexOff, hexLen, 100);
+      bcdArray[i] = (byte)(((digits / 10) << 4) | (digits % 10));
+    }
+  }
+  
+  /**
+   * Multiply a fixed-width number by a small factor and add a small summand in place.
+   * @return carry out of the most significant byte (non-zero on overflow)
+   */
+  static int multiplyAdd(byte[] number, short off, short len, int factor, int summand) {
+    int carry = summand;
+    for (int i = off + len - 1; i >= off; --i) {
+      carry += (number[i] & 0x0FF) * factor;
+      number[i] = (byte)carry;
+      carry >>>= 8;
+    }
+    return carry;
+  }
+  
+  /**
+   * Divide a fixed-width number by a small divisor in place.
+   * @return remainder
+   */
+  static int divide(byte[] number, short off, short len, int divisor) {
+    int remainder = 0;
+    for (int i = off; i < (off + len); ++i) {
+      remainder = (remainder << 8) | (number[i] & 0x0FF);
+      number[i] = (byte)(remainder / divisor);
+      remainder %= divisor;
+    }
+    return remainder;
+  }
+  
+  /**
+   * Get the offset of the first significant byte of a fixed-width number (at least the last byte).
+   */
+  static short significantOffset(byte[] number, short off, short len) {
+    short end = (short)(off + len - 1);
+    while ((off < end) && (number[off] == 0)) {
+      ++off;
+    }
+    return off;
+  }
+  
+  /**
+   * Check if a fixed-width number is zero.
+   */
+  static boolean isZero(byte[] number, short off, short len) {
+    for (int i = off; i < (off + len); ++i) {
+      if (number[i] != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Clear a range of a byte array.
+   */
+  static void fill(byte[] bArray, short off, short len) {
+    for (int i = off; i < (off + len); ++i) {
+      bArray[i] = 0;
+    }
   }
 }
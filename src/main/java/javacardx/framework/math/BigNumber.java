@@ -15,6 +15,7 @@
  */
 package javacardx.framework.math;
 
+import javacard.framework.JCSystem;
 import javacard.framework.Util;
 
 /**
@@ -40,6 +41,9 @@ public final class BigNumber {
   
   private byte[] number;
   private byte[] maxValue;
+  // working buffers for operands and results (no allocation after construction)
+  private byte[] operand;
+  private byte[] result;
   
   /**
    * Creates a BigNumber instance with initial value 0. All implementations must support at least 8 byte length internal representation capacity.
@@ -48,16 +52,33 @@ public final class BigNumber {
    * @throws ArithmeticException  if maxBytes is 0, negative or larger than the supported maximum
    */
   public BigNumber(short maxBytes) {
-    if ((maxBytes < 0) || (maxBytes > MAX_BYTES_SUPPORTED)) throw new ArithmeticException();
+    if ((maxBytes <= 0) || (maxBytes > MAX_BYTES_SUPPORTED)) throw new ArithmeticException();
     
     number = new byte[maxBytes];
     maxValue = new byte[maxBytes];
+    operand = JCSystem.makeTransientByteArray(maxBytes, JCSystem.CLEAR_ON_RESET);
+    result = JCSystem.makeTransientByteArray((short)(2 * maxBytes), JCSystem.CLEAR_ON_RESET);
 
     Util.arrayFillNonAtomic(maxValue, (short)0, maxBytes, (byte)-1);
   }
 
+  /**
+   * Sets the maximum value of the BigNumber. Any operation which results in a value larger
+   * than the maximum value results in an <code>ArithmeticException</code> and the value
+   * of the BigNumber is unchanged.
+   * 
+   * @param maxValue     byte array containing the maximum value
+   * @param bOff         offset within byte array containing first byte (the high order byte)
+   * @param bLen         byte length of the maximum value
+   * @param arrayFormat  format of the maximum value (<code>FORMAT_BCD</code> or <code>FORMAT_HEX</code>)
+   * @throws ArithmeticException  if the maximum value does not conform to <code>arrayFormat</code>, if
+   *                              <code>arrayFormat</code> is not supported, if <code>bLen</code> is 0
+   *                              or if the maximum value exceeds the capacity of this BigNumber
+   */
   public void setMaximum(byte[] maxValue, short bOff, short bLen, byte arrayFormat) {
-    throw new UnsupportedOperationException("Not yet implemented");
+    if (!loadOperand(maxValue, bOff, bLen, arrayFormat)) throw new ArithmeticException();
+    
+    Util.arrayCopy(operand, (short)0, this.maxValue, (short)0, (short)operand.length);
   }
 
   /**
@@ -69,44 +90,265 @@ public final class BigNumber {
     return MAX_BYTES_SUPPORTED;
   }
 
+  /**
+   * Initializes the BigNumber using the input data.
+   * 
+   * @param bArray       input byte array
+   * @param bOff         offset within byte array containing first byte (the high order byte)
+   * @param bLen         byte length of input data
+   * @param arrayFormat  format of the input data (<code>FORMAT_BCD</code> or <code>FORMAT_HEX</code>)
+   * @throws NullPointerException            if <code>bArray</code> is null
+   * @throws ArrayIndexOutOfBoundsException  if accessing the input array would cause access of data outside array bounds or if <code>bLen</code> is negative
+   * @throws ArithmeticException             if the input data does not conform to <code>arrayFormat</code>, if <code>arrayFormat</code>
+   *                                         is not supported, if <code>bLen</code> is 0 or if the value is larger than the maximum value
+   */
   public void init(byte[] bArray, short bOff, short bLen, byte arrayFormat)
     throws NullPointerException, ArrayIndexOutOfBoundsException, ArithmeticException {
-    throw new UnsupportedOperationException("Not yet implemented");
+    if (!loadOperand(bArray, bOff, bLen, arrayFormat)) throw new ArithmeticException();
+    if (compare(operand, maxValue) > 0) throw new ArithmeticException();
+    
+    Util.arrayCopy(operand, (short)0, number, (short)0, (short)number.length);
   }
 
+  /**
+   * Increments the internal big number by the specified operand value.
+   * 
+   * @param bArray       input byte array
+   * @param bOff         offset within byte array containing first byte (the high order byte)
+   * @param bLen         byte length of input data
+   * @param arrayFormat  format of the input data (<code>FORMAT_BCD</code> or <code>FORMAT_HEX</code>)
+   * @throws NullPointerException            if <code>bArray</code> is null
+   * @throws ArrayIndexOutOfBoundsException  if accessing the input array would cause access of data outside array bounds or if <code>bLen</code> is negative
+   * @throws ArithmeticException             if the input data does not conform to <code>arrayFormat</code>, if <code>arrayFormat</code>
+   *                                         is not supported, if <code>bLen</code> is 0 or if the result is larger than the maximum value
+   */
   public void add(byte[] bArray, short bOff, short bLen, byte arrayFormat)
     throws NullPointerException, ArrayIndexOutOfBoundsException, ArithmeticException {
-    throw new UnsupportedOperationException("Not yet implemented");
+    if (!loadOperand(bArray, bOff, bLen, arrayFormat)) throw new ArithmeticException();
+    
+    int carry = 0;
+    for (int i = number.length - 1; i >= 0; --i) {
+      carry += (number[i] & 0x0FF) + (operand[i] & 0x0FF);
+      operand[i] = (byte)carry;
+      carry >>>= 8;
+    }
+    if ((carry != 0) || (compare(operand, maxValue) > 0)) throw new ArithmeticException();
+    
+    Util.arrayCopy(operand, (short)0, number, (short)0, (short)number.length);
   }
 
+  /**
+   * Decrements the internal big number by the specified operand value.
+   * 
+   * @param bArray       input byte array
+   * @param bOff         offset within byte array containing first byte (the high order byte)
+   * @param bLen         byte length of input data
+   * @param arrayFormat  format of the input data (<code>FORMAT_BCD</code> or <code>FORMAT_HEX</code>)
+   * @throws ArithmeticException  if the input data does not conform to <code>arrayFormat</code>, if <code>arrayFormat</code>
+   *                              is not supported, if <code>bLen</code> is 0 or if the result would be negative
+   */
   public void subtract(byte[] bArray, short bOff, short bLen, byte arrayFormat)
     throws ArithmeticException {
-    throw new UnsupportedOperationException("Not yet implemented");
+    if (!loadOperand(bArray, bOff, bLen, arrayFormat)) throw new ArithmeticException();
+    if (compare(number, operand) < 0) throw new ArithmeticException();
+    
+    int borrow = 0;
+    for (int i = number.length - 1; i >= 0; --i) {
+      borrow = (number[i] & 0x0FF) - (operand[i] & 0x0FF) - borrow;
+      operand[i] = (byte)borrow;
+      borrow = (borrow < 0) ? 1 : 0;
+    }
+    
+    Util.arrayCopy(operand, (short)0, number, (short)0, (short)number.length);
   }
 
+  /**
+   * Multiplies the internal big number by the specified operand value.
+   * 
+   * @param bArray       input byte array
+   * @param bOff         offset within byte array containing first byte (the high order byte)
+   * @param bLen         byte length of input data
+   * @param arrayFormat  format of the input data (<code>FORMAT_BCD</code> or <code>FORMAT_HEX</code>)
+   * @throws ArithmeticException  if the input data does not conform to <code>arrayFormat</code>, if <code>arrayFormat</code>
+   *                              is not supported, if <code>bLen</code> is 0 or if the result is larger than the maximum value
+   */
   public void multiply(byte[] bArray, short bOff, short bLen, byte arrayFormat)
     throws ArithmeticException {
-    throw new UnsupportedOperationException("Not yet implemented");
+    if (!loadOperand(bArray, bOff, bLen, arrayFormat)) throw new ArithmeticException();
+    
+    final int len = number.length;
+    Util.arrayFillNonAtomic(result, (short)0, (short)result.length, (byte)0);
+    for (int i = len - 1; i >= 0; --i) {
+      final int a = number[i] & 0x0FF;
+      if (a != 0) {
+        int carry = 0;
+        for (int j = len - 1; j >= 0; --j) {
+          final int k = i + j + 1;
+          carry += a * (operand[j] & 0x0FF) + (result[k] & 0x0FF);
+          result[k] = (byte)carry;
+          carry >>>= 8;
+        }
+        result[i] = (byte)carry;
+      }
+    }
+    for (int i = 0; i < len; ++i) {
+      if (result[i] != 0) throw new ArithmeticException();
+    }
+    if (compare(result, len, len, maxValue, 0, len) > 0) throw new ArithmeticException();
+    
+    Util.arrayCopy(result, (short)len, number, (short)0, (short)len);
   }
 
+  /**
+   * Compares the internal big number against the specified operand.
+   * 
+   * @param operand  BigNumber object to compare against
+   * @return the result of the comparison as follows:
+   * <ul>
+   *   <li>0 if equal</li>
+   *   <li>-1 if the internal big number is less than the specified operand</li>
+   *   <li>1 if the internal big number is greater than the specified operand</li>
+   * </ul>
+   * @throws NullPointerException  if <code>operand</code> is null
+   */
   public byte compareTo(BigNumber operand) {
-    throw new UnsupportedOperationException("Not yet implemented");
+    return compare(number, operand.number);
   }
 
+  /**
+   * Compares the internal big number against the operand specified in the byte array.
+   * 
+   * @param bArray       input byte array
+   * @param bOff         offset within byte array containing first byte (the high order byte)
+   * @param bLen         byte length of input data
+   * @param arrayFormat  format of the input data (<code>FORMAT_BCD</code> or <code>FORMAT_HEX</code>)
+   * @return the result of the comparison as follows:
+   * <ul>
+   *   <li>0 if equal</li>
+   *   <li>-1 if the internal big number is less than the specified operand</li>
+   *   <li>1 if the internal big number is greater than the specified operand</li>
+   * </ul>
+   * @throws ArithmeticException  if the input data does not conform to <code>arrayFormat</code>, if <code>arrayFormat</code>
+   *                              is not supported or if <code>bLen</code> is 0
+   */
   public byte compareTo(byte[] bArray, short bOff, short bLen, byte arrayFormat) {
-    throw new UnsupportedOperationException("Not yet implemented");
+    if (!loadOperand(bArray, bOff, bLen, arrayFormat)) {
+      // operand is larger than the capacity of this BigNumber
+      return -1;
+    }
+    return compare(number, operand);
   }
 
+  /**
+   * Writes the internal big number out in the desired format. The output data is right justified
+   * and padded with leading zeros to <code>numBytes</code> bytes.
+   * 
+   * @param outBuf       output byte array
+   * @param bOff         offset within byte array where output data begins
+   * @param numBytes     byte length of output data
+   * @param arrayFormat  format of the output data (<code>FORMAT_BCD</code> or <code>FORMAT_HEX</code>)
+   * @throws ArrayIndexOutOfBoundsException  if writing would cause access of data outside array bounds, if <code>numBytes</code>
+   *                                         is negative or if <code>numBytes</code> is not sufficient to represent the big number
+   * @throws NullPointerException            if <code>outBuf</code> is null
+   * @throws ArithmeticException             if <code>arrayFormat</code> is not supported
+   */
   public void toBytes(byte[] outBuf, short bOff, short numBytes, byte arrayFormat)
     throws ArrayIndexOutOfBoundsException, NullPointerException {
-    throw new UnsupportedOperationException("Not yet implemented");
+    BCDUtil.checkBounds(outBuf, bOff, numBytes);
+    if (numBytes < getByteLength(arrayFormat)) throw new ArrayIndexOutOfBoundsException();
+    
+    Util.arrayFillNonAtomic(outBuf, bOff, numBytes, (byte)0);
+    if (arrayFormat == FORMAT_HEX) {
+      short len = (short)Math.min(numBytes, number.length);
+      Util.arrayCopyNonAtomic(number, (short)(number.length - len), outBuf, (short)(bOff + numBytes - len), len);
+    } else {
+      Util.arrayCopyNonAtomic(number, (short)0, operand, (short)0, (short)number.length);
+      BCDUtil.hexToBCD(operand, (short)0, (short)operand.length, outBuf, bOff, numBytes);
+    }
   }
 
+  /**
+   * Returns the number of bytes required to represent the big number using the desired format.
+   * 
+   * @param arrayFormat  format of the output data (<code>FORMAT_BCD</code> or <code>FORMAT_HEX</code>)
+   * @return the byte length of the big number
+   * @throws ArithmeticException  if <code>arrayFormat</code> is not supported
+   */
   public short getByteLength(byte arrayFormat) {
-    throw new UnsupportedOperationException("Not yet implemented");
+    switch (arrayFormat) {
+      case FORMAT_HEX:
+        return (short)(number.length - BCDUtil.significantOffset(number, (short)0, (short)number.length));
+      case FORMAT_BCD:
+        Util.arrayCopyNonAtomic(number, (short)0, operand, (short)0, (short)number.length);
+        short digits = 0;
+        do {
+          BCDUtil.divide(operand, (short)0, (short)operand.length, 10);
+          ++digits;
+        } while (!BCDUtil.isZero(operand, (short)0, (short)operand.length));
+        return (short)((digits + 1) / 2);
+    }
+    throw new ArithmeticException();
   }
 
+  /**
+   * Resets the big number to 0.
+   */
   public void reset() {
-    throw new UnsupportedOperationException("Not yet implemented");
+    Util.arrayFillNonAtomic(number, (short)0, (short)number.length, (byte)0);
+  }
+  
+  /**
+   * Load an operand into the fixed-width operand buffer.
+   * @return false if the operand does not fit into the capacity of this BigNumber
+   * @throws ArithmeticException  if the input data does not conform to <code>arrayFormat</code>,
+   *                              if <code>arrayFormat</code> is not supported or if <code>bLen</code> is 0
+   */
+  private boolean loadOperand(byte[] bArray, short bOff, short bLen, byte arrayFormat) {
+    BCDUtil.checkBounds(bArray, bOff, bLen);
+    if (bLen == 0) throw new ArithmeticException();
+    
+    switch (arrayFormat) {
+      case FORMAT_HEX:
+        short off = BCDUtil.significantOffset(bArray, bOff, bLen);
+        short len = (short)(bOff + bLen - off);
+        if (len > operand.length) {
+          return false;
+        }
+        short pad = (short)(operand.length - len);
+        Util.arrayFillNonAtomic(operand, (short)0, pad, (byte)0);
+        Util.arrayCopyNonAtomic(bArray, off, operand, pad, len);
+        return true;
+      case FORMAT_BCD:
+        if (!BCDUtil.isBCD(bArray, bOff, bLen)) throw new ArithmeticException();
+        return BCDUtil.bcdToHex(bArray, bOff, bLen, operand, (short)0, (short)operand.length);
+    }
+    throw new ArithmeticException();
+  }
+  
+  /**
+   * Compare two unsigned numbers of possibly different width.
+   */
+  private static byte compare(byte[] a, byte[] b) {
+    return compare(a, 0, a.length, b, 0, b.length);
+  }
+  
+  private static byte compare(byte[] a, int aOff, int aLen, byte[] b, int bOff, int bLen) {
+    // leading bytes of the wider number must be zero
+    while (aLen > bLen) {
+      if (a[aOff++] != 0) return 1;
+      --aLen;
+    }
+    while (bLen > aLen) {
+      if (b[bOff++] != 0) return -1;
+      --bLen;
+    }
+    for (int i = 0; i < aLen; ++i) {
+      final int x = a[aOff + i] & 0x0FF;
+      final int y = b[bOff + i] & 0x0FF;
+      if (x != y) {
+        return (byte)((x < y) ? -1 : 1);
+      }
+    }
+    return 0;
   }
 }
@@ -0,0 +1,963 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.mroland.objectstaterecovery;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+import org.xmlpull.v1.XmlSerializer;
+
+/**
+ * Test for <code>PersistentMemory</code>
+ */
+public class PersistentMemoryTest extends TestCase {
+
+    /**
+     * Object with fields that are (or are not) captured by object state
+     * recovery.
+     */
+    static class Holder {
+        int value;
+        transient int transientValue;
+        transient byte[] transientData;
+        @NotPersistent
+        Object cache;
+        Holder next;
+    }
+
+    /**
+     * Class with static constants and static fields.
+     */
+    static class StaticHolder {
+        static final int CONSTANT = 1;
+        static final byte[] TABLE = { 1, 2, 3 };
+        static int counter;
+        static Holder holder;
+    }
+
+    private static boolean sLazyHolderInitialized = false;
+
+    /**
+     * Object with the same fields as {@link Holder}, whose class records
+     * when it is initialized.
+     */
+    static class LazyHolder {
+        static {
+            sLazyHolderInitialized = true;
+        }
+
+        int value;
+        transient int transientValue;
+        transient byte[] transientData;
+        @NotPersistent
+        Object cache;
+        LazyHolder next;
+    }
+
+    /**
+     * Kind of a {@link ValueHolder}.
+     */
+    static enum Kind {
+        eFirst,
+        eSecond
+    }
+
+    /**
+     * Object with fields of immutable value types.
+     */
+    static class ValueHolder {
+        String text;
+        Kind kind;
+        ValueHolder next;
+    }
+
+    /**
+     * Class loader that defines its own copy of {@link Holder} (or of a given
+     * set of classes).
+     */
+    static class IsolatingClassLoader extends ClassLoader {
+        private final List<String> mClassNames;
+
+        IsolatingClassLoader() {
+            this(new Class[] { Holder.class });
+        }
+
+        IsolatingClassLoader(Class[] classes) {
+            super(PersistentMemoryTest.class.getClassLoader());
+            mClassNames = new ArrayList<String>();
+            for (Class c : classes) {
+                mClassNames.add(c.getName());
+            }
+        }
+
+        protected synchronized Class loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!mClassNames.contains(name)) {
+                return super.loadClass(name, resolve);
+            }
+            Class c = findLoadedClass(name);
+            if (c == null) {
+                try {
+                    InputStream istr = getParent().getResourceAsStream(name.replace('.', '/') + ".class");
+                    ByteArrayOutputStream ostr = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[4096];
+                    for (int length = istr.read(buffer); length >= 0; length = istr.read(buffer)) {
+                        ostr.write(buffer, 0, length);
+                    }
+                    istr.close();
+                    byte[] classFile = ostr.toByteArray();
+                    c = defineClass(name, classFile, 0, classFile.length);
+                } catch (Exception e) {
+                    throw new ClassNotFoundException(name, e);
+                }
+            }
+            if (resolve) {
+                resolveClass(c);
+            }
+            return c;
+        }
+    }
+
+    public PersistentMemoryTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    /**
+     * Serialize persistent memory to XML.
+     */
+    static byte[] serialize(PersistentMemory memory) throws Exception {
+        ByteArrayOutputStream ostr = new ByteArrayOutputStream();
+        XmlSerializer xml = XmlPullParserFactory.newInstance().newSerializer();
+        xml.setOutput(ostr, "UTF-8");
+        memory.serializeToXml(xml);
+        xml.flush();
+        return ostr.toByteArray();
+    }
+
+    /**
+     * Serialize an incremental snapshot of persistent memory to XML.
+     */
+    static byte[] serializeDelta(PersistentMemory memory) throws Exception {
+        ByteArrayOutputStream ostr = new ByteArrayOutputStream();
+        XmlSerializer xml = XmlPullParserFactory.newInstance().newSerializer();
+        xml.setOutput(ostr, "UTF-8");
+        assertTrue(memory.serializeDeltaToXml(xml));
+        xml.flush();
+        return ostr.toByteArray();
+    }
+
+    /**
+     * Compact a base snapshot and incremental snapshots.
+     */
+    static byte[] compact(byte[] snapshot, byte[]... deltas) throws Exception {
+        List<XmlPullParser> deltaParsers = new ArrayList<XmlPullParser>();
+        for (byte[] delta : deltas) {
+            deltaParsers.add(parser(delta));
+        }
+        ByteArrayOutputStream ostr = new ByteArrayOutputStream();
+        XmlSerializer xml = XmlPullParserFactory.newInstance().newSerializer();
+        xml.setOutput(ostr, "UTF-8");
+        PersistentMemory.compactSnapshots(parser(snapshot), deltaParsers, xml);
+        xml.flush();
+        return ostr.toByteArray();
+    }
+
+    /**
+     * Create a chain of holders.
+     */
+    static Holder createChain(int length) {
+        Holder head = null;
+        for (int i = 0; i < length; ++i) {
+            Holder holder = new Holder();
+            holder.value = i;
+            holder.transientData = new byte[] { (byte) i, (byte) (i >> 8) };
+            holder.next = head;
+            head = holder;
+        }
+        return head;
+    }
+
+    /**
+     * Get the n-th holder of a chain.
+     */
+    static Holder get(Holder head, int index) {
+        for (int i = 0; i < index; ++i) {
+            head = head.next;
+        }
+        return head;
+    }
+
+    /**
+     * Describe the contents of a chain of holders.
+     */
+    static String dump(Holder head) {
+        StringBuilder sb = new StringBuilder();
+        for (Holder holder = head; holder != null; holder = holder.next) {
+            sb.append(holder.value).append(',');
+            sb.append((holder.transientData != null) ? Arrays.toString(holder.transientData) : "null").append(';');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Check if the state of an object is stored in persistent memory.
+     */
+    static boolean isStored(PersistentMemory memory, Object object) {
+        return memory.getReference(memory.getObjectIdentityHashCode(object)) != null;
+    }
+
+    /**
+     * Refresh the dirty objects and run a garbage collection.
+     */
+    static void collect(PersistentMemory memory, boolean majorCollection) {
+        memory.memoryBarrier(false);
+        memory.clearDirtyFlags();
+        memory.garbageCollect(false, majorCollection);
+    }
+
+    /**
+     * Create persistent memory with a stored chain of holders that has been
+     * promoted to the old generation.
+     */
+    static PersistentMemory createGenerationalMemory(Holder head) {
+        PersistentMemory memory = new PersistentMemory();
+        memory.setMajorCollectionInterval(8);
+        memory.updateStoredNamedInstance(head, null, "head", false);
+        for (int i = 0; i < 3; ++i) {
+            collect(memory, false);
+        }
+        return memory;
+    }
+
+    /**
+     * Create a pull parser for serialized XML.
+     */
+    static XmlPullParser parser(byte[] snapshot) throws Exception {
+        XmlPullParser xml = XmlPullParserFactory.newInstance().newPullParser();
+        xml.setInput(new ByteArrayInputStream(snapshot), "UTF-8");
+        return xml;
+    }
+
+    /**
+     * De-serialize persistent memory from XML.
+     */
+    static PersistentMemory deserialize(byte[] snapshot) throws Exception {
+        PersistentMemory memory = new PersistentMemory();
+        memory.deserializeFromXml(parser(snapshot));
+        return memory;
+    }
+
+    /**
+     * Test that fields with the Java transient modifier are captured (as
+     * e.g. collection classes keep their contents in transient fields).
+     */
+    public void testTransientFieldsArePersisted() throws Exception {
+        System.out.println("test transient fields are persisted");
+        PersistentMemory memory = new PersistentMemory();
+        Holder holder = new Holder();
+        holder.value = 1;
+        holder.transientValue = 2;
+        holder.transientData = new byte[] { 3, 4 };
+        memory.updateStoredNamedInstance(holder, null, "holder", false);
+        memory.memoryBarrier(false);
+
+        Holder restored = (Holder)deserialize(serialize(memory)).getNamedInstance("holder");
+        assertEquals(1, restored.value);
+        assertEquals(2, restored.transientValue);
+        assertNotNull(restored.transientData);
+        assertEquals(2, restored.transientData.length);
+        assertEquals(3, restored.transientData[0]);
+        assertEquals(4, restored.transientData[1]);
+    }
+
+    /**
+     * Test that fields marked as not persistent are skipped.
+     */
+    public void testNotPersistentFieldsAreSkipped() throws Exception {
+        System.out.println("test not persistent fields are skipped");
+        PersistentMemory memory = new PersistentMemory();
+        Holder holder = new Holder();
+        holder.value = 1;
+        holder.cache = new byte[] { 1, 2, 3 };
+        memory.updateStoredNamedInstance(holder, null, "holder", false);
+        memory.memoryBarrier(false);
+
+        Holder restored = (Holder)deserialize(serialize(memory)).getNamedInstance("holder");
+        assertEquals(1, restored.value);
+        assertNull(restored.cache);
+    }
+
+    /**
+     * Test loading a full snapshot followed by two incremental snapshots.
+     */
+    public void testDeltaSnapshotRoundTrip() throws Exception {
+        System.out.println("test delta snapshot round trip");
+        PersistentMemory memory = new PersistentMemory();
+        Holder head = createChain(20);
+        memory.updateStoredNamedInstance(head, null, "head", false);
+        memory.memoryBarrier(false);
+        assertFalse(memory.canSerializeDelta());
+        byte[] snapshot = serialize(memory);
+        assertTrue(memory.canSerializeDelta());
+
+        get(head, 3).value = 1000;
+        memory.setDirtyReference(get(head, 3));
+        memory.memoryBarrier(false);
+        byte[] delta1 = serializeDelta(memory);
+
+        get(head, 5).transientData[0] = 99;
+        memory.setDirtyReference(get(head, 5).transientData);
+        Holder inserted = new Holder();
+        inserted.value = 777;
+        inserted.next = get(head, 7).next;
+        get(head, 7).next = inserted;
+        memory.setDirtyReference(get(head, 7));
+        memory.memoryBarrier(false);
+        byte[] delta2 = serializeDelta(memory);
+        assertTrue(delta1.length < snapshot.length);
+        assertTrue(delta2.length < snapshot.length);
+
+        PersistentMemory restoredMemory = new PersistentMemory();
+        restoredMemory.deserializeFromXml(parser(snapshot), Arrays.asList(parser(delta1), parser(delta2)));
+        assertEquals(dump(head), dump((Holder) restoredMemory.getNamedInstance("head")));
+        assertFalse(restoredMemory.canSerializeDelta());
+
+        restoredMemory = new PersistentMemory();
+        restoredMemory.deserializeFromXml(parser(snapshot), Arrays.asList(parser(delta1)));
+        Holder restored = (Holder) restoredMemory.getNamedInstance("head");
+        assertEquals(1000, get(restored, 3).value);
+        assertEquals(14, get(restored, 5).transientData[0]);
+        assertEquals(20, dump(restored).split(";").length);
+    }
+
+    /**
+     * Test that an incremental snapshot that does not continue the previous
+     * snapshot is ignored.
+     */
+    public void testMismatchedDeltaSnapshotIgnored() throws Exception {
+        System.out.println("test mismatched delta snapshot ignored");
+        PersistentMemory memory = new PersistentMemory();
+        Holder head = createChain(5);
+        memory.updateStoredNamedInstance(head, null, "head", false);
+        memory.memoryBarrier(false);
+        byte[] snapshot = serialize(memory);
+        head.value = 100;
+        memory.setDirtyReference(head);
+        memory.memoryBarrier(false);
+        serializeDelta(memory);
+        head.value = 200;
+        memory.setDirtyReference(head);
+        memory.memoryBarrier(false);
+        byte[] delta2 = serializeDelta(memory);
+
+        PersistentMemory restoredMemory = new PersistentMemory();
+        restoredMemory.deserializeFromXml(parser(snapshot), Arrays.asList(parser(delta2)));
+        assertEquals(4, ((Holder) restoredMemory.getNamedInstance("head")).value);
+    }
+
+    /**
+     * Test that a compacted snapshot is equivalent to the base snapshot with
+     * its incremental snapshots, and that it can be continued by further
+     * incremental snapshots.
+     */
+    public void testCompactedSnapshotEquivalent() throws Exception {
+        System.out.println("test compacted snapshot equivalent");
+        PersistentMemory memory = new PersistentMemory();
+        Holder head = createChain(20);
+        memory.updateStoredNamedInstance(head, null, "head", false);
+        memory.memoryBarrier(false);
+        byte[] snapshot = serialize(memory);
+
+        get(head, 3).value = 1000;
+        memory.setDirtyReference(get(head, 3));
+        memory.memoryBarrier(false);
+        byte[] delta1 = serializeDelta(memory);
+
+        get(head, 9).next = get(head, 12);  // drops two holders
+        memory.setDirtyReference(get(head, 9));
+        memory.memoryBarrier(false);
+        byte[] delta2 = serializeDelta(memory);
+
+        byte[] compacted = compact(snapshot, delta1, delta2);
+        assertEquals(dump(head), dump((Holder) deserialize(compacted).getNamedInstance("head")));
+        assertTrue(compacted.length < snapshot.length + delta1.length + delta2.length);
+
+        head.value = 4242;
+        memory.setDirtyReference(head);
+        memory.memoryBarrier(false);
+        byte[] delta3 = serializeDelta(memory);
+        PersistentMemory restoredMemory = new PersistentMemory();
+        restoredMemory.deserializeFromXml(parser(compacted), Arrays.asList(parser(delta3)));
+        assertEquals(dump(head), dump((Holder) restoredMemory.getNamedInstance("head")));
+    }
+
+    /**
+     * Test that compaction does not initialize the classes of the compacted
+     * objects.
+     */
+    public void testCompactionDoesNotInitializeClasses() throws Exception {
+        System.out.println("test compaction does not initialize classes");
+        PersistentMemory memory = new PersistentMemory();
+        Holder holder = new Holder();
+        holder.value = 5;
+        memory.updateStoredNamedInstance(holder, null, "holder", false);
+        memory.memoryBarrier(false);
+        String xml = new String(serialize(memory), "UTF-8");
+        byte[] snapshot = xml.replace(Holder.class.getName(), LazyHolder.class.getName()).getBytes("UTF-8");
+
+        byte[] compacted = compact(snapshot);
+        assertFalse(sLazyHolderInitialized);
+
+        LazyHolder restored = (LazyHolder) deserialize(compacted).getNamedInstance("holder");
+        assertEquals(5, restored.value);
+        assertTrue(sLazyHolderInitialized);
+    }
+
+    /**
+     * Test that prohibited references are still excluded after a reset and
+     * that other objects are not mistaken for them.
+     */
+    public void testProhibitedReferencesAfterReset() throws Exception {
+        System.out.println("test prohibited references after reset");
+        PersistentMemory memory = new PersistentMemory();
+        Holder prohibited = new Holder();
+        memory.addProhibitedReference(prohibited);
+        memory.reset(false);
+
+        Holder holder = new Holder();
+        holder.value = 1;
+        holder.next = prohibited;
+        memory.updateStoredNamedInstance(holder, null, "holder", false);
+        memory.memoryBarrier(false);
+
+        Holder restored = (Holder)deserialize(serialize(memory)).getNamedInstance("holder");
+        assertNotNull(restored);
+        assertEquals(1, restored.value);
+        assertNull(restored.next);
+    }
+
+    /**
+     * Test that class names are resolved through the class loader of the
+     * memory manager.
+     */
+    public void testClassesResolvedPerClassLoader() throws Exception {
+        System.out.println("test classes resolved per class loader");
+        PersistentMemory memory = new PersistentMemory();
+        Holder head = createChain(3);
+        memory.updateStoredNamedInstance(head, null, "head", false);
+        memory.memoryBarrier(false);
+        byte[] snapshot = serialize(memory);
+
+        ClassLoader classLoader = new IsolatingClassLoader();
+        PersistentMemory isolatedMemory = new PersistentMemory(false, 1, classLoader);
+        isolatedMemory.deserializeFromXml(parser(snapshot));
+        Object restored = isolatedMemory.getNamedInstance("head");
+        Class isolatedClass = classLoader.loadClass(Holder.class.getName());
+        assertNotSame(Holder.class, isolatedClass);
+        assertSame(isolatedClass, restored.getClass());
+        Field value = isolatedClass.getDeclaredField("value");
+        Field next = isolatedClass.getDeclaredField("next");
+        value.setAccessible(true);
+        next.setAccessible(true);
+        assertEquals(2, value.getInt(restored));
+        assertSame(isolatedClass, next.get(restored).getClass());
+        assertEquals(1, value.getInt(next.get(restored)));
+
+        // the memory manager of the default class loader still resolves its own class
+        assertSame(Holder.class, deserialize(snapshot).getNamedInstance("head").getClass());
+    }
+
+    /**
+     * Test that an object flagged as dirty before its state has been
+     * recorded is captured once a dirty object that links it is refreshed.
+     */
+    public void testUnrecordedDirtyReference() throws Exception {
+        System.out.println("test unrecorded dirty reference");
+        PersistentMemory memory = new PersistentMemory();
+        Holder head = createChain(3);
+        memory.updateStoredNamedInstance(head, null, "head", false);
+        memory.memoryBarrier(false);
+        memory.clearDirtyFlags();
+
+        Holder inserted = new Holder();
+        inserted.value = 42;
+        memory.setDirtyReference(inserted);  // not recorded yet
+        inserted.next = head.next;
+        head.next = inserted;
+        memory.setDirtyReference(head);
+        memory.memoryBarrier(false);
+        memory.clearDirtyFlags();
+        assertEquals(dump(head), dump((Holder)deserialize(serialize(memory)).getNamedInstance("head")));
+
+        // the inserted object is now recorded and can be flagged on its own
+        inserted.value = 43;
+        memory.setDirtyReference(inserted);
+        memory.memoryBarrier(false);
+        memory.clearDirtyFlags();
+        assertEquals(43, ((Holder)deserialize(serialize(memory)).getNamedInstance("head")).next.value);
+    }
+
+    /**
+     * Test that an object flagged as dirty before its state has been
+     * recorded is refreshed if its state is recorded before the memory
+     * barrier.
+     */
+    public void testDirtyReferenceRecordedBeforeBarrier() throws Exception {
+        System.out.println("test dirty reference recorded before barrier");
+        PersistentMemory memory = new PersistentMemory();
+        Holder holder = new Holder();
+        holder.value = 1;
+        memory.setDirtyReference(holder);  // not recorded yet
+        memory.updateStoredNamedInstance(holder, null, "holder", true);
+        holder.value = 2;
+        memory.memoryBarrier(false);
+        memory.clearDirtyFlags();
+        assertEquals(2, ((Holder)deserialize(serialize(memory)).getNamedInstance("holder")).value);
+    }
+
+    /**
+     * Test that a young object that is only linked from a refreshed object
+     * of the old generation survives minor collections.
+     */
+    public void testYoungObjectLinkedFromOldSurvivesMinorCollection() throws Exception {
+        System.out.println("test young object linked from old survives minor collection");
+        Holder head = createChain(4);
+        PersistentMemory memory = createGenerationalMemory(head);
+        final long majorCollections = memory.getTraversalStatistics().getRuns(TraversalStatistics.Phase.eMark);
+
+        Holder tail = get(head, 3);
+        Holder young = new Holder();
+        young.value = 100;
+        young.next = new Holder();
+        tail.next = young;
+        memory.setDirtyReference(tail);
+        collect(memory, false);
+        assertTrue(isStored(memory, young));
+        assertTrue(isStored(memory, young.next));
+
+        // further minor collections without refreshing the old object
+        for (int i = 0; i < 3; ++i) {
+            collect(memory, false);
+        }
+        assertTrue(isStored(memory, young));
+        assertTrue(isStored(memory, young.next));
+        assertEquals(majorCollections, memory.getTraversalStatistics().getRuns(TraversalStatistics.Phase.eMark));
+        assertEquals(dump(head), dump((Holder)deserialize(serialize(memory)).getNamedInstance("head")));
+    }
+
+    /**
+     * Test that young objects that are no longer reachable are swept by a
+     * minor collection.
+     */
+    public void testUnreachableYoungObjectsSwept() throws Exception {
+        System.out.println("test unreachable young objects swept");
+        Holder head = createChain(4);
+        PersistentMemory memory = createGenerationalMemory(head);
+
+        Holder young = new Holder();
+        young.next = new Holder();
+        young.next.next = head.next;
+        head.next = young;
+        memory.setDirtyReference(head);
+        memory.memoryBarrier(false);
+        memory.clearDirtyFlags();
+        assertTrue(isStored(memory, young));
+        assertTrue(isStored(memory, young.next));
+
+        head.next = young.next.next;
+        memory.setDirtyReference(head);
+        collect(memory, false);
+        assertFalse(isStored(memory, young));
+        assertFalse(isStored(memory, young.next));
+        assertTrue(isStored(memory, head.next));
+        assertEquals(dump(head), dump((Holder)deserialize(serialize(memory)).getNamedInstance("head")));
+    }
+
+    /**
+     * Test that a major collection that follows a minor collection within
+     * the same refresh cycle does not sweep the old generation.
+     */
+    public void testMajorCollectionAfterMinorCollection() throws Exception {
+        System.out.println("test major collection after minor collection");
+        Holder head = createChain(6);
+        PersistentMemory memory = createGenerationalMemory(head);
+
+        Holder young = new Holder();
+        get(head, 5).next = young;
+        memory.setDirtyReference(get(head, 5));
+        collect(memory, false);
+        memory.garbageCollect(false, true);  // no memory barrier in between
+        for (int i = 0; i < 6; ++i) {
+            assertTrue(isStored(memory, get(head, i)));
+            assertTrue(isStored(memory, get(head, i).transientData));
+        }
+        assertTrue(isStored(memory, young));
+        assertEquals(dump(head), dump((Holder)deserialize(serialize(memory)).getNamedInstance("head")));
+    }
+
+    /**
+     * Test that static constants are skipped and that all memory managers
+     * key the state of static fields by the same pooled names.
+     */
+    public void testStaticFieldsUsePooledNames() throws Exception {
+        System.out.println("test static fields use pooled names");
+        StaticHolder.counter = 5;
+        StaticHolder.holder = createChain(2);
+        PersistentMemory memory1 = new PersistentMemory();
+        memory1.updateStoredClass(StaticHolder.class, false);
+        memory1.memoryBarrier(false);
+        PersistentMemory memory2 = new PersistentMemory();
+        memory2.updateStoredClass(StaticHolder.class, false);
+        memory2.memoryBarrier(false);
+
+        Map<String, FieldState> image1 = (Map<String, FieldState>)memory1.storeClass(StaticHolder.class, true).getImage();
+        Map<String, FieldState> image2 = (Map<String, FieldState>)memory2.storeClass(StaticHolder.class, true).getImage();
+        String prefix = StaticHolder.class.getName() + "#";
+        assertEquals(new HashSet<String>(Arrays.asList(prefix + "counter", prefix + "holder")), image1.keySet());
+        assertEquals(image1.keySet(), image2.keySet());
+        for (String name1 : image1.keySet()) {
+            for (String name2 : image2.keySet()) {
+                if (name1.equals(name2)) {
+                    assertSame(name1, name2);
+                }
+            }
+        }
+        assertEquals(dump(StaticHolder.holder), dump((Holder)image1.get(prefix + "holder").getInstance()));
+
+        StaticHolder.counter = 6;
+        memory1.updateStoredClass(StaticHolder.class, false);
+        memory1.memoryBarrier(false);
+        Map<String, FieldState> refreshedImage = (Map<String, FieldState>)memory1.storeClass(StaticHolder.class, true).getImage();
+        assertNotSame(image1.get(prefix + "counter"), refreshedImage.get(prefix + "counter"));
+        assertSame(image1.get(prefix + "holder"), refreshedImage.get(prefix + "holder"));
+    }
+
+    /**
+     * Test that refresh, reversal and garbage collection traverse a linked
+     * chain that is too deep to be traversed recursively.
+     */
+    public void testDeepChain() throws Exception {
+        System.out.println("test deep chain");
+        final int length = 100000;
+        Holder head = createChain(length);
+        Holder tail = get(head, length - 1);
+        PersistentMemory memory = new PersistentMemory();
+        memory.updateStoredNamedInstance(head, null, "head", false);
+        memory.memoryBarrier(false);
+        memory.clearDirtyFlags();
+        TraversalStatistics statistics = memory.getTraversalStatistics();
+        // the work stack holds one pending array per holder, the Java stack does not grow at all
+
+        tail.value = -1;
+        memory.setDirtyReference(head);
+        memory.memoryBarrier(false);
+        memory.clearDirtyFlags();
+        assertTrue(statistics.getLastVisits(TraversalStatistics.Phase.eRefresh) >= length);
+        assertTrue(statistics.getMaxStackDepth(TraversalStatistics.Phase.eRefresh) <= length + 16);
+
+        tail.value = -2;
+        memory.setDirtyReference(head);
+        memory.memoryBarrier(true);
+        memory.clearDirtyFlags();
+        assertEquals(-1, tail.value);
+        assertTrue(statistics.getLastVisits(TraversalStatistics.Phase.eRevert) >= length);
+        assertTrue(statistics.getMaxStackDepth(TraversalStatistics.Phase.eRevert) <= length + 16);
+
+        Holder unlinked = get(head, length / 2);
+        get(head, length / 2 - 1).next = null;
+        memory.setDirtyReference(get(head, length / 2 - 1));
+        collect(memory, true);
+        assertTrue(statistics.getLastVisits(TraversalStatistics.Phase.eMark) >= length / 2);
+        assertTrue(statistics.getMaxStackDepth(TraversalStatistics.Phase.eMark) <= length / 2 + 16);
+        assertTrue(isStored(memory, get(head, length / 2 - 1)));
+        assertFalse(isStored(memory, unlinked));
+        assertFalse(isStored(memory, tail));
+    }
+
+    /**
+     * Create chains of holders that all continue with one shared chain.
+     */
+    static Holder[] createSharedChains(int roots, int length, int sharedLength) {
+        Holder shared = createChain(sharedLength);
+        Holder[] heads = new Holder[roots];
+        for (int i = 0; i < roots; ++i) {
+            heads[i] = createChain(length);
+            get(heads[i], length - 1).next = shared;
+        }
+        return heads;
+    }
+
+    /**
+     * Store chains of holders that continue with a shared chain, change
+     * every holder and refresh all chains from their (dirty) heads.
+     */
+    static PersistentMemory refreshSharedChains(Holder[] heads, int refreshThreads) {
+        PersistentMemory memory = new PersistentMemory(false, refreshThreads);
+        for (int i = 0; i < heads.length; ++i) {
+            memory.updateStoredNamedInstance(heads[i], null, "head" + i, false);
+        }
+        memory.memoryBarrier(false);
+        memory.clearDirtyFlags();
+
+        for (int i = 0; i < heads.length; ++i) {
+            for (Holder holder = heads[i]; holder != null; holder = holder.next) {
+                holder.value += 1000;
+            }
+            memory.setDirtyReference(heads[i]);
+        }
+        memory.memoryBarrier(false);
+        memory.clearDirtyFlags();
+        return memory;
+    }
+
+    /**
+     * Test that a parallel refresh of object graphs that share sub-graphs
+     * refreshes each state once and records the same state as a sequential
+     * refresh.
+     */
+    public void testParallelRefresh() throws Exception {
+        System.out.println("test parallel refresh");
+        Holder[] sequentialHeads = createSharedChains(8, 100, 400);
+        PersistentMemory sequentialMemory = refreshSharedChains(sequentialHeads, 1);
+        Holder[] parallelHeads = createSharedChains(8, 100, 400);
+        PersistentMemory parallelMemory = refreshSharedChains(parallelHeads, 4);
+        boolean refreshThreadStarted = false;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            refreshThreadStarted |= thread.getName().equals("PersistentMemory");
+        }
+        assertTrue(refreshThreadStarted);
+
+        long sequentialVisits = sequentialMemory.getTraversalStatistics().getLastVisits(TraversalStatistics.Phase.eRefresh);
+        long parallelVisits = parallelMemory.getTraversalStatistics().getLastVisits(TraversalStatistics.Phase.eRefresh);
+        assertTrue(sequentialVisits >= 2 * (8 * 100 + 400));
+        assertEquals(sequentialVisits, parallelVisits);
+        assertEquals(sequentialVisits, parallelVisits);
+
+        PersistentMemory sequentialRestored = deserialize(serialize(sequentialMemory));
+        PersistentMemory parallelRestored = deserialize(serialize(parallelMemory));
+        for (int i = 0; i < 8; ++i) {
+            String expected = dump(sequentialHeads[i]);
+            assertEquals(expected, dump(parallelHeads[i]));
+            assertEquals(expected, dump((Holder)sequentialRestored.getNamedInstance("head" + i)));
+            assertEquals(expected, dump((Holder)parallelRestored.getNamedInstance("head" + i)));
+        }
+        Holder shared = get((Holder)parallelRestored.getNamedInstance("head0"), 100);
+        for (int i = 1; i < 8; ++i) {
+            assertSame(shared, get((Holder)parallelRestored.getNamedInstance("head" + i), 100));
+        }
+    }
+
+    /**
+     * Run the garbage collector of the Java runtime and process the
+     * reclaimed states until the state of an object has been reclaimed.
+     */
+    static boolean awaitReclaimed(PersistentMemory memory, Object object) throws Exception {
+        for (int i = 0; (i < 50) && isStored(memory, object); ++i) {
+            System.gc();
+            Thread.sleep(10);
+            memory.garbageCollect(false);
+        }
+        return !isStored(memory, object);
+    }
+
+    /**
+     * Test that weak reference tracking reclaims the state of unlinked
+     * objects once the Java runtime has collected it, and keeps the state
+     * of linked objects and of objects stored since the last collection.
+     */
+    public void testWeakReferenceTracking() throws Exception {
+        System.out.println("test weak reference tracking");
+        Holder head = createChain(5);
+        PersistentMemory memory = new PersistentMemory(true);
+        assertTrue(memory.isWeakReferenceTracking());
+        memory.updateStoredNamedInstance(head, null, "head", false);
+        memory.memoryBarrier(false);
+        memory.clearDirtyFlags();
+        memory.garbageCollect(false);
+
+        // unlinked, but still pinned until the next collection
+        Holder unlinked = get(head, 3);
+        Holder pinned = new Holder();
+        pinned.value = 42;
+        get(head, 2).next = pinned;
+        memory.setDirtyReference(get(head, 2));
+        memory.memoryBarrier(false);
+        memory.clearDirtyFlags();
+        get(head, 2).next = null;
+        memory.setDirtyReference(get(head, 2));
+        memory.memoryBarrier(false);
+        memory.clearDirtyFlags();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertTrue(isStored(memory, pinned));
+
+        assertTrue(awaitReclaimed(memory, unlinked));
+        assertTrue(awaitReclaimed(memory, pinned));
+        for (int i = 0; i < 3; ++i) {
+            assertTrue(isStored(memory, get(head, i)));
+            assertTrue(isStored(memory, get(head, i).transientData));
+        }
+        assertEquals(dump(head), dump((Holder)deserialize(serialize(memory)).getNamedInstance("head")));
+    }
+
+    /**
+     * Test that snapshots of weak reference tracking mode and of mark and
+     * sweep mode restore the same object graph.
+     */
+    public void testWeakReferenceTrackingRoundTrip() throws Exception {
+        System.out.println("test weak reference tracking round trip");
+        Holder head = createChain(10);
+        PersistentMemory weakMemory = new PersistentMemory(true);
+        weakMemory.updateStoredNamedInstance(head, null, "head", false);
+        weakMemory.memoryBarrier(false);
+        PersistentMemory markSweepMemory = new PersistentMemory(false);
+        markSweepMemory.updateStoredNamedInstance(head, null, "head", false);
+        markSweepMemory.memoryBarrier(false);
+        String expected = dump(head);
+
+        byte[] weakSnapshot = serialize(weakMemory);
+        assertEquals(expected, dump((Holder)deserialize(serialize(markSweepMemory)).getNamedInstance("head")));
+        assertEquals(expected, dump((Holder)deserialize(weakSnapshot).getNamedInstance("head")));
+
+        // de-serialized states must stay reachable through the restored graph
+        PersistentMemory restored = new PersistentMemory(true);
+        restored.deserializeFromXml(parser(weakSnapshot));
+        Holder restoredHead = (Holder)restored.getNamedInstance("head");
+        assertEquals(expected, dump(restoredHead));
+        restored.memoryBarrier(false);
+        restored.clearDirtyFlags();
+        restored.garbageCollect(false);
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            Thread.sleep(10);
+            restored.garbageCollect(false);
+        }
+        for (int i = 0; i < 10; ++i) {
+            assertTrue(isStored(restored, get(restoredHead, i)));
+        }
+        assertEquals(expected, dump((Holder)deserialize(serialize(restored)).getNamedInstance("head")));
+    }
+
+    /**
+     * De-serialize persistent memory from XML with a given maximum number
+     * of relink threads.
+     */
+    static PersistentMemory deserialize(byte[] snapshot, int relinkThreads) throws Exception {
+        PersistentMemory memory = new PersistentMemory();
+        memory.setRelinkThreads(relinkThreads);
+        memory.deserializeFromXml(parser(snapshot));
+        return memory;
+    }
+
+    /**
+     * Test that relinking a large snapshot in parallel restores the same
+     * state as relinking it sequentially.
+     */
+    public void testParallelRelink() throws Exception {
+        System.out.println("test parallel relink");
+        Holder[] heads = createSharedChains(8, 100, 400);
+        PersistentMemory memory = new PersistentMemory();
+        for (int i = 0; i < heads.length; ++i) {
+            memory.updateStoredNamedInstance(heads[i], null, "head" + i, false);
+        }
+        memory.memoryBarrier(false);
+        byte[] snapshot = serialize(memory);
+
+        PersistentMemory sequentialMemory = deserialize(snapshot, 1);
+        PersistentMemory parallelMemory = deserialize(snapshot, 4);
+        for (int i = 0; i < heads.length; ++i) {
+            String expected = dump(heads[i]);
+            assertEquals(expected, dump((Holder)sequentialMemory.getNamedInstance("head" + i)));
+            assertEquals(expected, dump((Holder)parallelMemory.getNamedInstance("head" + i)));
+        }
+        Holder shared = get((Holder)parallelMemory.getNamedInstance("head0"), 100);
+        for (int i = 1; i < heads.length; ++i) {
+            assertSame(shared, get((Holder)parallelMemory.getNamedInstance("head" + i), 100));
+        }
+        assertEquals(new String(serialize(sequentialMemory), "UTF-8"), new String(serialize(parallelMemory), "UTF-8"));
+    }
+
+    /**
+     * Test that memory managers loading the same snapshot share the restored
+     * value objects of strings, and that enumeration constants are not
+     * shared with memory managers that resolve classes through a different
+     * class loader.
+     */
+    public void testValueImagesSharedBetweenMemoryManagers() throws Exception {
+        System.out.println("test value images shared between memory managers");
+        final int length = 50;
+        final int cards = 10;
+        PersistentMemory memory = new PersistentMemory();
+        ValueHolder head = null;
+        for (int i = 0; i < length; ++i) {
+            ValueHolder holder = new ValueHolder();
+            holder.text = new String("value " + i);
+            holder.kind = Kind.eSecond;
+            holder.next = head;
+            head = holder;
+        }
+        memory.updateStoredNamedInstance(head, null, "head", false);
+        memory.memoryBarrier(false);
+        byte[] snapshot = serialize(memory);
+
+        Map<String, Object> texts = new IdentityHashMap<String, Object>();
+        List<PersistentMemory> memories = new ArrayList<PersistentMemory>();
+        for (int card = 0; card < cards; ++card) {
+            PersistentMemory restoredMemory = deserialize(snapshot);
+            memories.add(restoredMemory);
+            int count = 0;
+            for (ValueHolder holder = (ValueHolder)restoredMemory.getNamedInstance("head"); holder != null; holder = holder.next) {
+                assertEquals("value " + (length - 1 - count), holder.text);
+                assertSame(Kind.eSecond, holder.kind);
+                texts.put(holder.text, null);
+                ++count;
+            }
+            assertEquals(length, count);
+        }
+        // one string object per distinct value instead of one per card and value
+        assertEquals(length, texts.size());
+
+        ClassLoader classLoader = new IsolatingClassLoader(new Class[] { ValueHolder.class, Kind.class });
+        PersistentMemory isolatedMemory = new PersistentMemory(false, 1, classLoader);
+        isolatedMemory.deserializeFromXml(parser(snapshot));
+        Object restored = isolatedMemory.getNamedInstance("head");
+        Field kind = restored.getClass().getDeclaredField("kind");
+        kind.setAccessible(true);
+        Class isolatedKind = classLoader.loadClass(Kind.class.getName());
+        assertNotSame(Kind.class, isolatedKind);
+        assertSame(isolatedKind, kind.get(restored).getClass());
+        assertEquals("eSecond", ((Enum)kind.get(restored)).name());
+    }
+}
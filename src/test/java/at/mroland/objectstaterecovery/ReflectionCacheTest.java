@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.mroland.objectstaterecovery;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import junit.framework.TestCase;
+
+/**
+ * Test for <code>ReflectionCache</code>
+ */
+public class ReflectionCacheTest extends TestCase {
+
+    /**
+     * Classes that are not looked up by any other test, so that all threads
+     * race for the first lookup.
+     */
+    static class Base {
+        static Object shared;
+        int a;
+        transient byte[] b;
+    }
+
+    static class Derived extends Base {
+        static final int CONSTANT = 1;
+        long c;
+        @NotPersistent
+        Object cache;
+        Derived next;
+    }
+
+    static class Other {
+        static int counter;
+        String d;
+        Object[] e;
+    }
+
+    private static final Class[] CLASSES = new Class[] { Base.class, Derived.class, Other.class };
+    private static final int THREADS = 8;
+
+    public ReflectionCacheTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    /**
+     * Describe the cached fields of a class.
+     */
+    static String describe(Class classObject) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        ReflectionCache.InstanceFields instanceFields = ReflectionCache.getInstanceFields(classObject);
+        for (int i = 0; i < instanceFields.fields.length; ++i) {
+            sb.append(instanceFields.qualifiedNames[i]).append('=').append(instanceFields.fields[i]).append(';');
+            Field field = instanceFields.fields[i];
+            assertEquals(field, ReflectionCache.getField(field.getDeclaringClass(), field.getName()));
+        }
+        ReflectionCache.StaticFields staticFields = ReflectionCache.getStaticFields(classObject);
+        for (int i = 0; i < staticFields.fields.length; ++i) {
+            sb.append(staticFields.qualifiedNames[i]).append('=').append(staticFields.fields[i]).append(';');
+        }
+        assertSame(classObject, ReflectionCache.newInstance(classObject).getClass());
+        return sb.toString();
+    }
+
+    /**
+     * Test that concurrent lookups of uncached classes (as while relinking
+     * de-serialized references in parallel) all see the same fields and
+     * the same pooled qualified names.
+     */
+    public void testConcurrentLookups() throws Exception {
+        System.out.println("test concurrent lookups");
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<List<Object>>> results = new ArrayList<Future<List<Object>>>();
+            for (int i = 0; i < THREADS; ++i) {
+                results.add(executor.submit(new Callable<List<Object>>() {
+                    public List<Object> call() throws Exception {
+                        start.await();
+                        List<Object> result = new ArrayList<Object>();
+                        for (Class classObject : CLASSES) {
+                            result.add(describe(classObject));
+                            result.add(ReflectionCache.getInstanceFields(classObject).qualifiedNames);
+                        }
+                        return result;
+                    }
+                }));
+            }
+            start.countDown();
+
+            List<Object> expected = results.get(0).get();
+            for (Future<List<Object>> result : results) {
+                List<Object> actual = result.get();
+                for (int i = 0; i < expected.size(); i += 2) {
+                    assertEquals(expected.get(i), actual.get(i));
+                    String[] expectedNames = (String[])expected.get(i + 1);
+                    String[] actualNames = (String[])actual.get(i + 1);
+                    for (int j = 0; j < expectedNames.length; ++j) {
+                        assertSame(expectedNames[j], actualNames[j]);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        String derived = describe(Derived.class);
+        assertTrue(derived.contains(Derived.class.getName() + "#next="));
+        assertTrue(derived.contains(Base.class.getName() + "#b="));
+        assertTrue(derived.contains(Base.class.getName() + "#a="));
+        assertFalse(derived.contains("#cache="));
+        assertFalse(derived.contains("#CONSTANT="));
+        assertTrue(describe(Base.class).contains(Base.class.getName() + "#shared="));
+        assertTrue(describe(Other.class).contains(Other.class.getName() + "#counter="));
+        assertSame(ReflectionCache.getField(Other.class, "d"), ReflectionCache.getField(Other.class, "d"));
+    }
+}
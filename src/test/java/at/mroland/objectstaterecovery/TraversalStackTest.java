@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.mroland.objectstaterecovery;
+
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Test for <code>TraversalStack</code>
+ */
+public class TraversalStackTest extends TestCase {
+
+    /**
+     * FieldState that records its refreshes and traverses its children
+     * (or fails).
+     */
+    static class Node extends ObjectReferenceState {
+        final String name;
+        final List<String> log;
+        final List<Node> children = new ArrayList<Node>();
+        TraversalStack stack;
+        boolean fail;
+
+        Node(PersistentMemory memory, String name, List<String> log) {
+            super(memory, new Object());
+            this.name = name;
+            this.log = log;
+        }
+
+        protected void internalRefreshInstance(boolean noDeepRefresh) {
+            if (fail) {
+                throw new IllegalStateException(name);
+            }
+            log.add(name);
+            for (Node child : children) {
+                stack.traverse(child, TraversalStack.REFRESH);
+            }
+        }
+    }
+
+    public TraversalStackTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    /**
+     * Test that an exception thrown while processing a FieldState is
+     * contained, so that its siblings are still processed and no pending
+     * FieldStates are left for the next traversal.
+     */
+    public void testExceptionContained() {
+        System.out.println("test exception contained");
+        PersistentMemory memory = new PersistentMemory();
+        TraversalStack stack = new TraversalStack();
+        List<String> log = new ArrayList<String>();
+        Node root = new Node(memory, "root", log);
+        String[] names = new String[] { "a", "failing", "b" };
+        for (String name : names) {
+            Node child = new Node(memory, name, log);
+            child.stack = stack;
+            child.fail = name.equals("failing");
+            root.children.add(child);
+        }
+        root.stack = stack;
+
+        stack.traverse(root, TraversalStack.REFRESH);
+        assertEquals("[root, b, a]", log.toString());
+
+        log.clear();
+        Node next = new Node(memory, "next", log);
+        next.stack = stack;
+        stack.traverse(next, TraversalStack.REFRESH);
+        assertEquals("[next]", log.toString());
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.mroland.objectstaterecovery.helper;
+
+import at.mroland.objectstaterecovery.PersistentMemory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+import org.xmlpull.v1.XmlSerializer;
+
+/**
+ * Test for <code>XmlEventRecorder</code>
+ */
+public class XmlEventRecorderTest extends TestCase {
+
+    /**
+     * Object with primitive, string, array and reference fields.
+     */
+    public static class Node {
+        int value;
+        char letter;
+        String label;
+        String empty;
+        byte[] data;
+        Node other;
+        Node next;
+    }
+
+    public XmlEventRecorderTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    /**
+     * Encode recorded events as XML text.
+     */
+    static byte[] encode(XmlEventRecorder events) throws Exception {
+        ByteArrayOutputStream ostr = new ByteArrayOutputStream();
+        XmlSerializer xml = XmlPullParserFactory.newInstance().newSerializer();
+        xml.setOutput(ostr, "UTF-8");
+        events.replay(xml);
+        return ostr.toByteArray();
+    }
+
+    /**
+     * Create a pull parser for XML text.
+     */
+    static XmlPullParser parser(byte[] text) throws Exception {
+        XmlPullParser xml = XmlPullParserFactory.newInstance().newPullParser();
+        xml.setInput(new ByteArrayInputStream(text), "UTF-8");
+        return xml;
+    }
+
+    /**
+     * Create a chain of nodes.
+     */
+    static Node createChain(int length) {
+        Node head = null;
+        for (int i = 0; i < length; ++i) {
+            Node node = new Node();
+            node.value = i;
+            node.letter = (char) ('a' + i);
+            node.label = "<node " + i + " & \"label\">";
+            node.empty = "";
+            node.data = ((i & 1) == 0) ? new byte[] { (byte) i, (byte) (i >> 8) } : null;
+            node.other = (head != null) ? head.next : null;
+            node.next = head;
+            head = node;
+        }
+        return head;
+    }
+
+    /**
+     * Describe the contents of a chain of nodes.
+     */
+    static String dump(Node head) {
+        StringBuilder sb = new StringBuilder();
+        for (Node node = head; node != null; node = node.next) {
+            sb.append(node.value).append(',').append(node.letter).append(',');
+            sb.append(node.label).append(',').append("[" + node.empty + "]").append(',');
+            sb.append((node.data != null) ? Arrays.toString(node.data) : "null").append(',');
+            sb.append((node.other != null) ? Integer.toString(node.other.value) : "null").append(';');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Check if an attribute reported by a parser without namespace
+     * processing is a namespace declaration.
+     */
+    static boolean isNamespaceDeclaration(String name) {
+        return name.equals("xmlns") || name.startsWith("xmlns:");
+    }
+
+    /**
+     * List the attributes of the current start tag, without namespace
+     * declarations.
+     */
+    static List<String> attributes(XmlPullParser xml) {
+        List<String> attributes = new ArrayList<String>();
+        for (int i = 0; i < xml.getAttributeCount(); ++i) {
+            String name = xml.getAttributeName(i);
+            if (!isNamespaceDeclaration(name)) {
+                attributes.add(xml.getAttributeNamespace(i) + ":" + name + "=" + xml.getAttributeValue(i));
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * Check that a text parser and an event parser report the same events,
+     * names, attributes and text until the end of the document.
+     */
+    static void assertSameEvents(XmlPullParser expected, XmlPullParser actual) throws Exception {
+        int eventType;
+        do {
+            eventType = expected.next();
+            int actualEventType = actual.next();
+            // empty text is not reported by a parser of XML text
+            if ((actualEventType == XmlPullParser.TEXT) && (actual.getText().length() == 0)) {
+                actualEventType = actual.next();
+            }
+            assertEquals(actual.getPositionDescription(), XmlPullParser.TYPES[eventType], XmlPullParser.TYPES[actualEventType]);
+            assertEquals(expected.getDepth(), actual.getDepth());
+            if ((eventType == XmlPullParser.START_TAG) || (eventType == XmlPullParser.END_TAG)) {
+                assertEquals(expected.getNamespace(), actual.getNamespace());
+                assertEquals(expected.getName(), actual.getName());
+            }
+            if (eventType == XmlPullParser.START_TAG) {
+                assertEquals(attributes(expected), attributes(actual));
+                for (int i = 0; i < expected.getAttributeCount(); ++i) {
+                    if (!isNamespaceDeclaration(expected.getAttributeName(i))) {
+                        assertEquals(expected.getAttributeValue(i), actual.getAttributeValue(null, expected.getAttributeName(i)));
+                    }
+                }
+            } else if (eventType == XmlPullParser.TEXT) {
+                assertEquals(expected.getText(), actual.getText());
+            }
+        } while (eventType != XmlPullParser.END_DOCUMENT);
+    }
+
+    /**
+     * Test that the event parser reports the same events as a parser of the
+     * replayed XML text for attributes, text and empty elements.
+     */
+    public void testEventParserMatchesTextParser() throws Exception {
+        System.out.println("test event parser matches text parser");
+        XmlEventRecorder events = new XmlEventRecorder();
+        events.startDocument("UTF-8", Boolean.TRUE);
+        events.setPrefix("", "urn:test");
+        events.startTag("urn:test", "root");
+        events.attribute(null, "version", "1");
+        events.startTag(null, "empty");
+        events.attribute(null, "a", "x & y");
+        events.attribute(null, "b", "");
+        events.endTag(null, "empty");
+        events.startTag(null, "text");
+        events.text("<value> & \"quoted\"");
+        events.endTag(null, "text");
+        events.startTag(null, "emptyText");
+        events.text("");
+        events.endTag(null, "emptyText");
+        events.startTag(null, "outer");
+        events.startTag(null, "inner");
+        events.endTag(null, "inner");
+        events.endTag(null, "outer");
+        events.endTag("urn:test", "root");
+        events.endDocument();
+
+        assertSameEvents(parser(encode(events)), events.newPullParser());
+    }
+
+    /**
+     * Test that nextText() returns the text of elements with text, empty
+     * text and no text at all, and leaves the parser on the end tag.
+     */
+    public void testNextText() throws Exception {
+        System.out.println("test next text");
+        XmlEventRecorder events = new XmlEventRecorder();
+        events.startDocument("UTF-8", null);
+        events.startTag(null, "root");
+        events.startTag(null, "text");
+        events.text("value");
+        events.endTag(null, "text");
+        events.startTag(null, "emptyText");
+        events.text("");
+        events.endTag(null, "emptyText");
+        events.startTag(null, "empty");
+        events.endTag(null, "empty");
+        events.endTag(null, "root");
+        events.endDocument();
+
+        XmlPullParser[] parsers = new XmlPullParser[] { parser(encode(events)), events.newPullParser() };
+        for (XmlPullParser xml : parsers) {
+            assertEquals(XmlPullParser.START_TAG, xml.nextTag());
+            assertEquals("root", xml.getName());
+            assertEquals(XmlPullParser.START_TAG, xml.nextTag());
+            assertEquals("value", xml.nextText());
+            assertEquals(XmlPullParser.END_TAG, xml.getEventType());
+            assertEquals("text", xml.getName());
+            assertEquals(XmlPullParser.START_TAG, xml.nextTag());
+            assertEquals("", xml.nextText());
+            assertEquals("emptyText", xml.getName());
+            assertEquals(XmlPullParser.START_TAG, xml.nextTag());
+            assertEquals("", xml.nextText());
+            assertEquals(XmlPullParser.END_TAG, xml.getEventType());
+            assertEquals("empty", xml.getName());
+            assertEquals(XmlPullParser.END_TAG, xml.nextTag());
+            assertEquals("root", xml.getName());
+            assertEquals(XmlPullParser.END_DOCUMENT, xml.next());
+        }
+    }
+
+    /**
+     * Test that persistent memory loaded from recorded events equals
+     * persistent memory loaded from the XML text of the same snapshot.
+     */
+    public void testSnapshotRoundTrip() throws Exception {
+        System.out.println("test snapshot round trip");
+        PersistentMemory memory = new PersistentMemory();
+        Node head = createChain(6);
+        memory.updateStoredNamedInstance(head, null, "head", false);
+        memory.memoryBarrier(false);
+
+        XmlEventRecorder events = new XmlEventRecorder();
+        memory.serializeToXml(events);
+        byte[] text = encode(events);
+        assertSameEvents(parser(text), events.newPullParser());
+
+        PersistentMemory parsedMemory = new PersistentMemory();
+        parsedMemory.deserializeFromXml(parser(text));
+        PersistentMemory replayedMemory = new PersistentMemory();
+        replayedMemory.deserializeFromXml(events.newPullParser());
+
+        String expected = dump(head);
+        assertEquals(expected, dump((Node) parsedMemory.getNamedInstance("head")));
+        assertEquals(expected, dump((Node) replayedMemory.getNamedInstance("head")));
+
+        XmlEventRecorder parsedEvents = new XmlEventRecorder();
+        parsedMemory.serializeToXml(parsedEvents);
+        XmlEventRecorder replayedEvents = new XmlEventRecorder();
+        replayedMemory.serializeToXml(replayedEvents);
+        assertEquals(new String(encode(parsedEvents), "UTF-8"), new String(encode(replayedEvents), "UTF-8"));
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import javacard.framework.APDU;
+import javacard.framework.APDUException;
+import javacard.framework.Applet;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.Util;
+import javacard.framework.__AIDWrapper;
+import javacardx.apdu.ExtendedLength;
+import junit.framework.TestCase;
+
+/**
+ * Test for streamed APDU exchange (<code>APDUStream</code>)
+ */
+public class APDUStreamTest extends TestCase {
+    private static final String PACKAGE_AID = "F0000000360100";
+    private static final String APPLET_AID = "F000000036010101";
+    private static final byte INS_SEND_LENGTH = 0x20;
+
+    /**
+     * Applet that collects the command data field (across chained commands)
+     * and returns it as response data. INS_SEND_LENGTH sends P1 bytes
+     * (signed) with <code>sendBytesLong()</code> and returns the reason of
+     * an <code>APDUException</code> as 0x6Fxx.
+     */
+    public static class EchoApplet extends Applet implements ExtendedLength {
+        private final byte[] data = new byte[4096];
+        private short length;
+        private boolean chaining;
+
+        public static void install(byte[] bArray, short bOffset, byte bLength) {
+            new EchoApplet().register();
+        }
+
+        public void process(APDU apdu) {
+            if (selectingApplet()) {
+                return;
+            }
+            byte[] buffer = apdu.getBuffer();
+            if (buffer[ISO7816.OFFSET_INS] == INS_SEND_LENGTH) {
+                short len = buffer[ISO7816.OFFSET_P1];
+                apdu.setOutgoing();
+                apdu.setOutgoingLength((short) ((len > 0) ? len : 0));
+                try {
+                    apdu.sendBytesLong(data, (short) 0, len);
+                } catch (APDUException e) {
+                    ISOException.throwIt((short) (0x6F00 | e.getReason()));
+                }
+                return;
+            }
+            if (!chaining) {
+                length = 0;
+            }
+            short received = apdu.setIncomingAndReceive();
+            short offset = apdu.getOffsetCdata();
+            while (received > 0) {
+                Util.arrayCopyNonAtomic(buffer, offset, data, length, received);
+                length += received;
+                received = apdu.receiveBytes(offset);
+            }
+            chaining = apdu.isCommandChainingCLA();
+            if (chaining) {
+                return;
+            }
+            short le = apdu.setOutgoing();
+            if (le > length) {
+                le = length;
+            }
+            apdu.setOutgoingLength(le);
+            apdu.sendBytesLong(data, (short) 0, le);
+        }
+    }
+
+    /**
+     * Stream that supplies a command data field and collects the response
+     * data.
+     */
+    static class BufferStream implements APDUStream {
+        final byte[] command;
+        int commandOffset;
+        final byte[] response;
+        int responseLength;
+        int maxReadLength;
+        int maxWriteLength;
+        int writes;
+
+        BufferStream(byte[] command, int responseCapacity) {
+            this.command = command;
+            this.response = new byte[responseCapacity];
+        }
+
+        public int readCommandData(byte[] buffer, int offset, int length) {
+            if (length > maxReadLength) {
+                maxReadLength = length;
+            }
+            if (length > command.length - commandOffset) {
+                length = command.length - commandOffset;
+            }
+            System.arraycopy(command, commandOffset, buffer, offset, length);
+            commandOffset += length;
+            return length;
+        }
+
+        public void writeResponseData(byte[] buffer, int offset, int length) {
+            if (length > maxWriteLength) {
+                maxWriteLength = length;
+            }
+            ++writes;
+            System.arraycopy(buffer, offset, response, responseLength, length);
+            responseLength += length;
+        }
+    }
+
+    public APDUStreamTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        SimulatorSystem.resetRuntime();
+        PackageDefinition pkg = new PackageDefinition(PACKAGE_AID, new AppletDefinition[] {
+            new AppletDefinition(APPLET_AID, EchoApplet.class) }, new Class[0]);
+        SimulatorSystem.installForLoad(pkg);
+        SimulatorSystem.installForInstall(pkg.APPLETS[0].APPLET_AID, hex(APPLET_AID), null, null);
+        SimulatorSystem.installForMakeSelectable(__AIDWrapper.getAIDInstance(APPLET_AID), true);
+        byte[] aid = hex(APPLET_AID);
+        byte[] select = new byte[5 + aid.length];
+        select[ISO7816.OFFSET_INS] = ISO7816.INS_SELECT;
+        select[ISO7816.OFFSET_P1] = 0x04;
+        select[ISO7816.OFFSET_LC] = (byte) aid.length;
+        System.arraycopy(aid, 0, select, 5, aid.length);
+        byte[] response = SimulatorSystem.transceiveAPDU(SimulatorConfig.INTERFACE_INTERNAL_NAME, select);
+        assertEquals(ISO7816.SW_NO_ERROR, Util.getShort(response, (short) (response.length - 2)));
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        SimulatorSystem.resetRuntime();
+    }
+
+    private static byte[] hex(String s) {
+        return at.mroland.utils.StringUtils.convertHexStringToByteArray(s);
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            data[i] = (byte) (i * 7 + (i >> 8));
+        }
+        return data;
+    }
+
+    private static void assertArrayEquals(byte[] expected, byte[] actual, int actualLength) {
+        assertEquals(expected.length, actualLength);
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals("offset " + i, expected[i], actual[i]);
+        }
+    }
+
+    /**
+     * Test the header of a streamed extended length command.
+     */
+    public void testExtendedLengthHeader() {
+        System.out.println("test extended length header");
+        BufferStream stream = new BufferStream(new byte[0], 0);
+        CommandAPDU command = new CommandAPDU(new byte[] { (byte) 0x80, 0x10, 0x01, 0x02 }, 3000, 2000, stream);
+        assertTrue(command.isExtendedLength());
+        assertTrue(command.isCommandDataStreamed());
+        assertEquals(3000, command.getNc());
+        assertEquals(2000, command.getNe());
+        byte[] header = command.getCommand();
+        assertEquals(ISO7816.OFFSET_EXT_CDATA, header.length);
+        assertEquals((byte) 0x80, header[ISO7816.OFFSET_CLA]);
+        assertEquals(0x10, header[ISO7816.OFFSET_INS]);
+        assertEquals(0, header[ISO7816.OFFSET_LC]);
+        assertEquals(3000, Util.getShort(header, (short) (ISO7816.OFFSET_LC + 1)));
+
+        command = new CommandAPDU(new byte[] { (byte) 0x80, 0x10, 0x01, 0x02 }, 100, 256, stream);
+        assertFalse(command.isExtendedLength());
+        assertEquals(ISO7816.OFFSET_CDATA, command.getCommand().length);
+        assertEquals(100, command.getCommand()[ISO7816.OFFSET_LC]);
+
+        try {
+            new CommandAPDU(new byte[] { (byte) 0x80, 0x10, 0x01, 0x02 }, 65536, 0, stream);
+            fail("Nc out of range must be rejected");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    /**
+     * Test streaming a large command data field and large response data.
+     */
+    public void testStreamedExtendedLength() {
+        System.out.println("test streamed extended length");
+        byte[] data = pattern(3000);
+        BufferStream stream = new BufferStream(data, 4096);
+        short sw = SimulatorSystem.transceiveAPDU(SimulatorConfig.INTERFACE_INTERNAL_NAME,
+                new byte[] { (byte) 0x80, 0x10, 0x00, 0x00 }, data.length, data.length, stream);
+        assertEquals(ISO7816.SW_NO_ERROR, sw);
+        assertEquals(data.length, stream.commandOffset);
+        assertArrayEquals(data, stream.response, stream.responseLength);
+        assertTrue(stream.maxReadLength <= SimulatorSystem.getInBlockSize(SimulatorConfig.INTERFACE_INTERNAL_PROTOCOL));
+        assertTrue(stream.maxWriteLength <= SimulatorSystem.getOutBlockSize(SimulatorConfig.INTERFACE_INTERNAL_PROTOCOL));
+        assertTrue(stream.writes > 1);
+    }
+
+    /**
+     * Test that the response data is limited to Ne.
+     */
+    public void testStreamedResponseLimitedToNe() {
+        System.out.println("test streamed response limited to Ne");
+        byte[] data = pattern(1000);
+        BufferStream stream = new BufferStream(data, 4096);
+        short sw = SimulatorSystem.transceiveAPDU(SimulatorConfig.INTERFACE_INTERNAL_NAME,
+                new byte[] { (byte) 0x80, 0x10, 0x00, 0x00 }, data.length, 300, stream);
+        assertEquals(ISO7816.SW_NO_ERROR, sw);
+        assertEquals(300, stream.responseLength);
+        for (int i = 0; i < 300; ++i) {
+            assertEquals(data[i], stream.response[i]);
+        }
+    }
+
+    /**
+     * Test a command data field that is sent as a chain of streamed commands.
+     */
+    public void testChainedCommand() {
+        System.out.println("test chained command");
+        byte[] data = pattern(1000);
+        BufferStream stream = new BufferStream(data, 4096);
+        short sw = SimulatorSystem.transceiveChainedAPDU(SimulatorConfig.INTERFACE_INTERNAL_NAME,
+                new byte[] { (byte) 0x00, 0x10, 0x00, 0x00 }, data.length, data.length, 200, stream);
+        assertEquals(ISO7816.SW_NO_ERROR, sw);
+        assertEquals(data.length, stream.commandOffset);
+        assertArrayEquals(data, stream.response, stream.responseLength);
+    }
+
+    /**
+     * Test that streamed and buffered exchange of a short command give the
+     * same result.
+     */
+    public void testStreamedMatchesBuffered() {
+        System.out.println("test streamed matches buffered");
+        byte[] data = pattern(200);
+        byte[] command = new byte[5 + data.length + 1];
+        command[ISO7816.OFFSET_CLA] = (byte) 0x80;
+        command[ISO7816.OFFSET_INS] = 0x10;
+        command[ISO7816.OFFSET_LC] = (byte) data.length;
+        System.arraycopy(data, 0, command, 5, data.length);
+        byte[] response = SimulatorSystem.transceiveAPDU(SimulatorConfig.INTERFACE_INTERNAL_NAME, command);
+        assertEquals(ISO7816.SW_NO_ERROR, Util.getShort(response, (short) (response.length - 2)));
+
+        BufferStream stream = new BufferStream(data, 4096);
+        short sw = SimulatorSystem.transceiveAPDU(SimulatorConfig.INTERFACE_INTERNAL_NAME,
+                new byte[] { (byte) 0x80, 0x10, 0x00, 0x00 }, data.length, 256, stream);
+        assertEquals(ISO7816.SW_NO_ERROR, sw);
+        assertEquals(response.length - 2, stream.responseLength);
+        for (int i = 0; i < stream.responseLength; ++i) {
+            assertEquals(response[i], stream.response[i]);
+        }
+    }
+
+    /**
+     * Test that a stream that runs out of command data fails the command.
+     */
+    public void testTruncatedCommandData() {
+        System.out.println("test truncated command data");
+        BufferStream stream = new BufferStream(pattern(500), 4096);
+        short sw = SimulatorSystem.transceiveAPDU(SimulatorConfig.INTERFACE_INTERNAL_NAME,
+                new byte[] { (byte) 0x80, 0x10, 0x00, 0x00 }, 1000, 1000, stream);
+        assertTrue(sw != ISO7816.SW_NO_ERROR);
+    }
+
+    /**
+     * Test that sendBytesLong() sends nothing for a length of 0 and rejects
+     * a negative length.
+     */
+    public void testSendBytesLongLength() {
+        System.out.println("test sendBytesLong length");
+        byte[] response = SimulatorSystem.transceiveAPDU(SimulatorConfig.INTERFACE_INTERNAL_NAME,
+                new byte[] { (byte) 0x80, INS_SEND_LENGTH, 0x00, 0x00, 0x00 });
+        assertEquals(2, response.length);
+        assertEquals(ISO7816.SW_NO_ERROR, Util.getShort(response, (short) 0));
+
+        response = SimulatorSystem.transceiveAPDU(SimulatorConfig.INTERFACE_INTERNAL_NAME,
+                new byte[] { (byte) 0x80, INS_SEND_LENGTH, (byte) 0xFF, 0x00, 0x00 });
+        assertEquals(2, response.length);
+        assertEquals((short) (0x6F00 | APDUException.BUFFER_BOUNDS), Util.getShort(response, (short) 0));
+
+        response = SimulatorSystem.transceiveAPDU(SimulatorConfig.INTERFACE_INTERNAL_NAME,
+                new byte[] { (byte) 0x80, INS_SEND_LENGTH, 0x04, 0x00, 0x00 });
+        assertEquals(6, response.length);
+        assertEquals(ISO7816.SW_NO_ERROR, Util.getShort(response, (short) 4));
+    }
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import javacard.framework.APDU;
+import javacard.framework.Applet;
+import javacard.framework.ISO7816;
+import javacard.framework.Util;
+import javacard.framework.__AIDWrapper;
+import junit.framework.TestCase;
+
+/**
+ * Test for <code>PersistentStorage</code>
+ */
+public class PersistentStorageTest extends TestCase {
+    private static final String PACKAGE_AID = "F0000000400100";
+    private static final String APPLET_AID = "F000000040010101";
+    
+    private static final byte INS_READ = 0x10;
+    private static final byte INS_WRITE = 0x20;
+
+    /**
+     * Applet with several primitive arrays of identical contents.
+     */
+    public static class DuplicateArrayApplet extends Applet {
+        private final byte[][] arrays = new byte[3][];
+        private final short[] words = new short[] { 1, 2, 3, 4 };
+        private final short[] sameWords = new short[] { 1, 2, 3, 4 };
+
+        public static void install(byte[] bArray, short bOffset, byte bLength) {
+            new DuplicateArrayApplet().register();
+        }
+
+        DuplicateArrayApplet() {
+            for (short i = 0; i < arrays.length; ++i) {
+                arrays[i] = new byte[32];
+                for (short j = 0; j < 32; ++j) {
+                    arrays[i][j] = (byte) (j * 3);
+                }
+            }
+        }
+
+        public void process(APDU apdu) {
+            if (selectingApplet()) {
+                return;
+            }
+            byte[] buffer = apdu.getBuffer();
+            byte[] array = arrays[buffer[ISO7816.OFFSET_P1]];
+            switch (buffer[ISO7816.OFFSET_INS]) {
+                case INS_READ:
+                    Util.arrayCopyNonAtomic(array, (short) 0, buffer, (short) 0, (short) array.length);
+                    Util.setShort(buffer, (short) array.length, (short) (words[3] + sameWords[3]));
+                    apdu.setOutgoingAndSend((short) 0, (short) (array.length + 2));
+                    break;
+                case INS_WRITE:
+                    array[buffer[ISO7816.OFFSET_P2]] = (byte) 0xFF;
+                    sameWords[3] = 40;
+                    break;
+            }
+        }
+    }
+
+    private File basePath;
+
+    public PersistentStorageTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        SimulatorSystem.resetRuntime();
+        PackageDefinition pkg = new PackageDefinition(PACKAGE_AID, new AppletDefinition[] {
+            new AppletDefinition(APPLET_AID, DuplicateArrayApplet.class) }, new Class[0]);
+        SimulatorSystem.installForLoad(pkg);
+        SimulatorSystem.installForInstall(pkg.APPLETS[0].APPLET_AID, hex(APPLET_AID), null, null);
+        SimulatorSystem.installForMakeSelectable(__AIDWrapper.getAIDInstance(APPLET_AID), true);
+        select();
+        basePath = File.createTempFile("jcardsim", "");
+        basePath.delete();
+        basePath.mkdir();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        SimulatorSystem.setPeriodicCheckpoints(null, 0, 0);
+        SimulatorSystem.waitForCheckpoints();
+        PersistentStorage.setCompression(SimulatorConfig.PERSISTENT_STORAGE_COMPRESSION);
+        SimulatorSystem.resetRuntime();
+        File[] files = basePath.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        basePath.delete();
+    }
+
+    private static byte[] hex(String s) {
+        return at.mroland.utils.StringUtils.convertHexStringToByteArray(s);
+    }
+
+    private static void select() {
+        byte[] aid = hex(APPLET_AID);
+        byte[] select = new byte[5 + aid.length];
+        select[ISO7816.OFFSET_INS] = ISO7816.INS_SELECT;
+        select[ISO7816.OFFSET_P1] = 0x04;
+        select[ISO7816.OFFSET_LC] = (byte) aid.length;
+        System.arraycopy(aid, 0, select, 5, aid.length);
+        byte[] response = SimulatorSystem.transceiveAPDU(SimulatorConfig.INTERFACE_INTERNAL_NAME, select);
+        assertEquals(ISO7816.SW_NO_ERROR, Util.getShort(response, (short) (response.length - 2)));
+    }
+
+    private static byte[] transceive(byte ins, int p1, int p2) {
+        byte[] response = SimulatorSystem.transceiveAPDU(SimulatorConfig.INTERFACE_INTERNAL_NAME,
+                new byte[] { (byte) 0x80, ins, (byte) p1, (byte) p2, 0 });
+        assertEquals(ISO7816.SW_NO_ERROR, Util.getShort(response, (short) (response.length - 2)));
+        return response;
+    }
+
+    private static byte[] readFile(File file) throws Exception {
+        InputStream istr = new FileInputStream(file);
+        try {
+            byte[] contents = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < contents.length) {
+                offset += istr.read(contents, offset, contents.length - offset);
+            }
+            return contents;
+        } finally {
+            istr.close();
+        }
+    }
+
+    private static int count(String s, String pattern) {
+        int count = 0;
+        for (int index = s.indexOf(pattern); index >= 0; index = s.indexOf(pattern, index + 1)) {
+            ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Save, modify and reload the applet state, and verify that arrays with
+     * identical contents are restored as separate arrays.
+     */
+    private void checkRoundTrip(boolean compressed) throws Exception {
+        PersistentStorage.setCompression(compressed);
+        byte[] expected = transceive(INS_READ, 0, 0);
+        SimulatorSystem.saveToPersistentStorage(basePath);
+
+        byte[] contents = readFile(new File(basePath, "persistentmemory.xml"));
+        if (compressed) {
+            assertEquals(0x78, contents[0] & 0xff);
+        } else {
+            assertEquals('<', contents[0]);
+            String xml = new String(contents, "UTF-8");
+            // two of the three byte arrays and one of the two short arrays reference identical contents
+            assertEquals(3, count(xml, "contentReference="));
+        }
+
+        transceive(INS_WRITE, 0, 1);
+        assertFalse(Util.arrayCompare(expected, (short) 0, transceive(INS_READ, 0, 0), (short) 0, (short) expected.length) == 0);
+
+        SimulatorSystem.loadFromPersistentStorage(basePath);
+        select();
+        for (int i = 0; i < 3; ++i) {
+            byte[] actual = transceive(INS_READ, i, 0);
+            assertEquals(0, Util.arrayCompare(expected, (short) 0, actual, (short) 0, (short) expected.length));
+        }
+
+        // deduplicated arrays must not share their contents after loading
+        transceive(INS_WRITE, 1, 5);
+        byte[] modified = transceive(INS_READ, 1, 0);
+        assertEquals((byte) 0xFF, modified[5]);
+        assertEquals(44, Util.getShort(modified, (short) 32));
+        assertEquals(0, Util.arrayCompare(expected, (short) 0, transceive(INS_READ, 0, 0), (short) 0, (short) 32));
+        assertEquals(0, Util.arrayCompare(expected, (short) 0, transceive(INS_READ, 2, 0), (short) 0, (short) 32));
+    }
+
+    /**
+     * Test an uncompressed snapshot with deduplicated array contents.
+     */
+    public void testUncompressedRoundTrip() throws Exception {
+        System.out.println("test uncompressed round trip");
+        checkRoundTrip(false);
+    }
+
+    /**
+     * Test a compressed snapshot with deduplicated array contents.
+     */
+    public void testCompressedRoundTrip() throws Exception {
+        System.out.println("test compressed round trip");
+        checkRoundTrip(true);
+    }
+
+    /**
+     * Test loading an uncompressed snapshot that is continued by a
+     * compressed incremental snapshot.
+     */
+    public void testMixedCompressionRoundTrip() throws Exception {
+        System.out.println("test mixed compression round trip");
+        PersistentStorage.setCompression(false);
+        SimulatorSystem.saveIncrementalToPersistentStorage(basePath);
+        transceive(INS_WRITE, 2, 7);
+        PersistentStorage.setCompression(true);
+        SimulatorSystem.saveIncrementalToPersistentStorage(basePath);
+        File delta = new File(basePath, "persistentmemory.delta.1.xml");
+        assertTrue(delta.exists());
+        assertEquals(0x78, readFile(delta)[0] & 0xff);
+        byte[] expected = transceive(INS_READ, 2, 0);
+
+        transceive(INS_WRITE, 2, 8);
+        SimulatorSystem.loadFromPersistentStorage(basePath);
+        select();
+        byte[] actual = transceive(INS_READ, 2, 0);
+        assertEquals(0, Util.arrayCompare(expected, (short) 0, actual, (short) 0, (short) expected.length));
+        assertEquals((byte) 0xFF, actual[7]);
+        assertEquals(8 * 3, actual[8]);
+    }
+
+    private static void assertFileNames(File basePath, String[] expected) {
+        String[] names = basePath.list();
+        Arrays.sort(names);
+        Arrays.sort(expected);
+        assertEquals(Arrays.asList(expected), Arrays.asList(names));
+    }
+
+    /**
+     * Test that snapshot files are replaced through their temporary files
+     * and that no temporary or backup files remain.
+     */
+    public void testTemporaryFileRenamed() throws Exception {
+        System.out.println("test temporary file renamed");
+        PersistentStorage.setCompression(false);
+        SimulatorSystem.saveToPersistentStorage(basePath);
+        byte[] first = readFile(new File(basePath, "persistentmemory.xml"));
+        assertFileNames(basePath, new String[] { "persistentmemory.xml", "transientmemory.xml" });
+
+        transceive(INS_WRITE, 0, 3);
+        SimulatorSystem.saveToPersistentStorage(basePath);
+        byte[] second = readFile(new File(basePath, "persistentmemory.xml"));
+        assertFileNames(basePath, new String[] { "persistentmemory.xml", "transientmemory.xml" });
+        assertFalse(Arrays.equals(first, second));
+    }
+
+    /**
+     * Test that loading falls back to the backup files if a write was
+     * interrupted after the old files were renamed to their backup files.
+     */
+    public void testLoadFallsBackToBackupFile() throws Exception {
+        System.out.println("test load falls back to backup file");
+        byte[] expected = transceive(INS_READ, 0, 0);
+        SimulatorSystem.saveToPersistentStorage(basePath);
+        assertTrue(new File(basePath, "persistentmemory.xml").renameTo(new File(basePath, "persistentmemory.xml.bak")));
+        assertTrue(new File(basePath, "transientmemory.xml").renameTo(new File(basePath, "transientmemory.xml.bak")));
+
+        transceive(INS_WRITE, 0, 1);
+        SimulatorSystem.loadFromPersistentStorage(basePath);
+        select();
+        byte[] actual = transceive(INS_READ, 0, 0);
+        assertEquals(0, Util.arrayCompare(expected, (short) 0, actual, (short) 0, (short) expected.length));
+    }
+
+    private void assertLoadedState(byte[] expected) {
+        SimulatorSystem.loadFromPersistentStorage(basePath);
+        select();
+        byte[] actual = transceive(INS_READ, 2, 0);
+        assertEquals(0, Util.arrayCompare(expected, (short) 0, actual, (short) 0, (short) expected.length));
+    }
+
+    /**
+     * Test that the next checkpoint after a failed write of an incremental
+     * snapshot is a full snapshot.
+     */
+    public void testWriteFailureFallsBackToFullSnapshot() throws Exception {
+        System.out.println("test write failure falls back to full snapshot");
+        SimulatorSystem.saveIncrementalToPersistentStorage(basePath);
+
+        // a directory in place of the temporary file lets writing the incremental snapshot fail
+        File blocker = new File(basePath, "persistentmemory.delta.1.xml.tmp");
+        assertTrue(blocker.mkdir());
+        transceive(INS_WRITE, 2, 7);
+        SimulatorSystem.checkpointToPersistentStorage(basePath);
+        SimulatorSystem.waitForCheckpoints();
+        assertFalse(new File(basePath, "persistentmemory.delta.1.xml").exists());
+        assertTrue(blocker.delete());
+
+        transceive(INS_WRITE, 2, 8);
+        SimulatorSystem.checkpointToPersistentStorage(basePath);
+        SimulatorSystem.waitForCheckpoints();
+        assertFalse(new File(basePath, "persistentmemory.delta.1.xml").exists());
+        byte[] expected = transceive(INS_READ, 2, 0);
+        assertEquals((byte) 0xFF, expected[7]);
+        assertEquals((byte) 0xFF, expected[8]);
+
+        assertLoadedState(expected);
+    }
+
+    /**
+     * Test that incremental snapshots that have been captured before a
+     * failed write of a full snapshot are not written on top of the older
+     * snapshot.
+     */
+    public void testQueuedDeltaDroppedAfterFailedWrite() throws Exception {
+        System.out.println("test queued delta dropped after failed write");
+        SimulatorSystem.saveIncrementalToPersistentStorage(basePath);
+        byte[] saved = transceive(INS_READ, 2, 0);
+
+        File blocker = new File(basePath, "persistentmemory.xml.tmp");
+        assertTrue(blocker.mkdir());
+        final CountDownLatch latch = new CountDownLatch(1);
+        PersistentStorage storage = SimulatorSystem.getPersistentStorage();
+        storage.getExecutor().submit(new Runnable() {
+            public void run() {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        try {
+            // both snapshots are captured before the full snapshot fails to be written
+            transceive(INS_WRITE, 2, 7);
+            storage.save(SimulatorSystem.getRuntime(), basePath, false, false);
+            transceive(INS_WRITE, 2, 8);
+            SimulatorSystem.checkpointToPersistentStorage(basePath);
+        } finally {
+            latch.countDown();
+        }
+        SimulatorSystem.waitForCheckpoints();
+        assertFalse(new File(basePath, "persistentmemory.delta.1.xml").exists());
+        assertTrue(blocker.delete());
+        assertLoadedState(saved);
+
+        transceive(INS_WRITE, 2, 7);
+        transceive(INS_WRITE, 2, 8);
+        byte[] expected = transceive(INS_READ, 2, 0);
+        SimulatorSystem.checkpointToPersistentStorage(basePath);
+        SimulatorSystem.waitForCheckpoints();
+        assertFalse(new File(basePath, "persistentmemory.delta.1.xml").exists());
+        assertLoadedState(expected);
+    }
+
+    /**
+     * Test that a checkpoint is written as an incremental snapshot in the
+     * background and can be loaded once it has been written.
+     */
+    public void testCheckpoint() throws Exception {
+        System.out.println("test checkpoint");
+        SimulatorSystem.checkpointToPersistentStorage(basePath);
+        SimulatorSystem.waitForCheckpoints();
+        assertTrue(new File(basePath, "persistentmemory.xml").exists());
+        assertTrue(new File(basePath, "transientmemory.xml").exists());
+
+        transceive(INS_WRITE, 2, 7);
+        byte[] expected = transceive(INS_READ, 2, 0);
+        SimulatorSystem.checkpointToPersistentStorage(basePath);
+        SimulatorSystem.waitForCheckpoints();
+        assertTrue(new File(basePath, "persistentmemory.delta.1.xml").exists());
+
+        transceive(INS_WRITE, 2, 8);
+        assertLoadedState(expected);
+    }
+
+    /**
+     * Test checkpoints triggered by the number of processed APDUs.
+     */
+    public void testPeriodicCheckpointsByAPDUs() throws Exception {
+        System.out.println("test periodic checkpoints by APDUs");
+        SimulatorSystem.saveIncrementalToPersistentStorage(basePath);
+        SimulatorSystem.setPeriodicCheckpoints(basePath, 2, 0);
+
+        transceive(INS_WRITE, 2, 7);
+        SimulatorSystem.waitForCheckpoints();
+        assertFalse(new File(basePath, "persistentmemory.delta.1.xml").exists());
+        byte[] expected = transceive(INS_READ, 2, 0);
+        SimulatorSystem.waitForCheckpoints();
+        assertTrue(new File(basePath, "persistentmemory.delta.1.xml").exists());
+
+        SimulatorSystem.setPeriodicCheckpoints(null, 0, 0);
+        transceive(INS_WRITE, 2, 8);
+        transceive(INS_WRITE, 2, 9);
+        SimulatorSystem.waitForCheckpoints();
+        assertFalse(new File(basePath, "persistentmemory.delta.2.xml").exists());
+        assertLoadedState(expected);
+    }
+
+    /**
+     * Test checkpoints triggered by a timer, which only fires if APDUs have
+     * been processed since the last checkpoint.
+     */
+    public void testPeriodicCheckpointsByTime() throws Exception {
+        System.out.println("test periodic checkpoints by time");
+        SimulatorSystem.saveIncrementalToPersistentStorage(basePath);
+        SimulatorSystem.setPeriodicCheckpoints(basePath, 0, 1);
+
+        transceive(INS_WRITE, 2, 7);
+        byte[] expected = transceive(INS_READ, 2, 0);
+        File delta = new File(basePath, "persistentmemory.delta.1.xml");
+        for (int i = 0; (i < 100) && !delta.exists(); ++i) {
+            Thread.sleep(50);
+        }
+        SimulatorSystem.waitForCheckpoints();
+        assertTrue(delta.exists());
+
+        // no APDUs have been processed since the checkpoint
+        Thread.sleep(1500);
+        SimulatorSystem.waitForCheckpoints();
+        assertFalse(new File(basePath, "persistentmemory.delta.2.xml").exists());
+
+        SimulatorSystem.setPeriodicCheckpoints(null, 0, 0);
+        assertLoadedState(expected);
+    }
+
+    /**
+     * Test that a snapshot image restores the captured state when loaded
+     * directly and when written to persistent storage.
+     */
+    public void testSnapshotImage() throws Exception {
+        System.out.println("test snapshot image");
+        transceive(INS_WRITE, 2, 7);
+        byte[] expected = transceive(INS_READ, 2, 0);
+        SnapshotImage image = SimulatorSystem.captureSnapshotImage();
+        assertTrue(image.size() > 0);
+
+        transceive(INS_WRITE, 2, 8);
+        SimulatorSystem.loadSnapshotImage(image);
+        select();
+        byte[] actual = transceive(INS_READ, 2, 0);
+        assertEquals(0, Util.arrayCompare(expected, (short) 0, actual, (short) 0, (short) expected.length));
+
+        transceive(INS_WRITE, 2, 9);
+        SimulatorSystem.saveSnapshotImage(image, basePath);
+        assertLoadedState(expected);
+    }
+}
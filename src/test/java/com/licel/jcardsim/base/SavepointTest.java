@@ -0,0 +1,212 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import at.mroland.objectstaterecovery.Savepoint;
+import javacard.framework.APDU;
+import javacard.framework.Applet;
+import javacard.framework.ISO7816;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+import javacard.framework.__AIDWrapper;
+import junit.framework.TestCase;
+
+/**
+ * Test for savepoints (<code>SimulatorSystem.savepoint()</code>)
+ */
+public class SavepointTest extends TestCase {
+    private static final String PACKAGE_AID = "F0000000480100";
+    private static final String APPLET_AID = "F000000048010101";
+    private static final String SECOND_PACKAGE_AID = "F0000000480200";
+    private static final String SECOND_APPLET_AID = "F000000048020101";
+
+    private static final byte INS_UPDATE = 0x20;
+    private static final byte INS_INFO = 0x30;
+
+    /**
+     * Applet that changes a counter, a log array, a chain of new objects
+     * and a transient array upon each update.
+     */
+    public static class StateApplet extends Applet {
+        private short counter;
+        private final byte[] log = new byte[64];
+        private Object[] chain = new Object[1];
+        private final byte[] scratch = JCSystem.makeTransientByteArray((short) 4, JCSystem.CLEAR_ON_RESET);
+
+        public static void install(byte[] bArray, short bOffset, byte bLength) {
+            new StateApplet().register();
+        }
+
+        public void process(APDU apdu) {
+            if (selectingApplet()) {
+                return;
+            }
+            byte[] buffer = apdu.getBuffer();
+            if (buffer[ISO7816.OFFSET_INS] == INS_INFO) {
+                short sum = 0;
+                for (short i = 0; i < log.length; ++i) {
+                    sum += log[i];
+                }
+                short depth = 0;
+                for (Object[] c = chain; c[0] != null; c = (Object[]) c[0]) {
+                    ++depth;
+                }
+                Util.setShort(buffer, (short) 0, counter);
+                Util.setShort(buffer, (short) 2, sum);
+                Util.setShort(buffer, (short) 4, depth);
+                buffer[6] = scratch[0];
+                apdu.setOutgoingAndSend((short) 0, (short) 7);
+                return;
+            }
+            log[counter & 63] = (byte) (counter + 1);
+            ++counter;
+            ++scratch[0];
+            Object[] link = new Object[1];
+            link[0] = chain;
+            chain = link;
+        }
+    }
+
+    public SavepointTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        SimulatorSystem.resetRuntime();
+        install(PACKAGE_AID, APPLET_AID);
+        select(APPLET_AID);
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        SimulatorSystem.resetRuntime();
+    }
+
+    private static byte[] hex(String s) {
+        return at.mroland.utils.StringUtils.convertHexStringToByteArray(s);
+    }
+
+    private static void install(String packageAid, String appletAid) {
+        PackageDefinition pkg = new PackageDefinition(packageAid, new AppletDefinition[] {
+            new AppletDefinition(appletAid, StateApplet.class) }, new Class[0]);
+        SimulatorSystem.installForLoad(pkg);
+        SimulatorSystem.installForInstall(pkg.APPLETS[0].APPLET_AID, hex(appletAid), null, null);
+        SimulatorSystem.installForMakeSelectable(__AIDWrapper.getAIDInstance(appletAid), true);
+    }
+
+    private static short select(String appletAid) {
+        byte[] aid = hex(appletAid);
+        byte[] select = new byte[5 + aid.length];
+        select[ISO7816.OFFSET_INS] = ISO7816.INS_SELECT;
+        select[ISO7816.OFFSET_P1] = 0x04;
+        select[ISO7816.OFFSET_LC] = (byte) aid.length;
+        System.arraycopy(aid, 0, select, 5, aid.length);
+        byte[] response = SimulatorSystem.transceiveAPDU(SimulatorConfig.INTERFACE_INTERNAL_NAME, select);
+        return Util.getShort(response, (short) (response.length - 2));
+    }
+
+    private static void update(int count) {
+        for (int i = 0; i < count; ++i) {
+            byte[] response = SimulatorSystem.transceiveAPDU(SimulatorConfig.INTERFACE_INTERNAL_NAME,
+                    new byte[] { (byte) 0x80, INS_UPDATE, 0, 0, 0 });
+            assertEquals(ISO7816.SW_NO_ERROR, Util.getShort(response, (short) (response.length - 2)));
+        }
+    }
+
+    /**
+     * Get counter, log checksum, chain length and transient counter of the
+     * selected applet.
+     */
+    private static String info() {
+        byte[] response = SimulatorSystem.transceiveAPDU(SimulatorConfig.INTERFACE_INTERNAL_NAME,
+                new byte[] { (byte) 0x80, INS_INFO, 0, 0, 7 });
+        assertEquals(ISO7816.SW_NO_ERROR, Util.getShort(response, (short) (response.length - 2)));
+        return Util.getShort(response, (short) 0) + "/" + Util.getShort(response, (short) 2) + "/"
+                + Util.getShort(response, (short) 4) + "/" + response[6];
+    }
+
+    /**
+     * Test that rolling back restores the state of the savepoint after
+     * changes across several APDUs.
+     */
+    public void testRollbackRestoresState() {
+        System.out.println("test rollback restores state");
+        update(3);
+        String expected = info();
+        Savepoint savepoint = SimulatorSystem.savepoint();
+        update(5);
+        install(SECOND_PACKAGE_AID, SECOND_APPLET_AID);
+        assertEquals(ISO7816.SW_NO_ERROR, select(SECOND_APPLET_AID));
+        update(2);
+
+        assertTrue(SimulatorSystem.rollbackTo(savepoint));
+        assertFalse(ISO7816.SW_NO_ERROR == select(SECOND_APPLET_AID));
+        assertEquals(ISO7816.SW_NO_ERROR, select(APPLET_AID));
+        // transient memory is cleared by the card reset
+        assertEquals(expected.substring(0, expected.lastIndexOf('/')) + "/0", info());
+    }
+
+    /**
+     * Test that a savepoint can be rolled back to repeatedly.
+     */
+    public void testSavepointReusedAfterRollback() {
+        System.out.println("test savepoint reused after rollback");
+        update(2);
+        Savepoint savepoint = SimulatorSystem.savepoint();
+        update(4);
+        assertTrue(SimulatorSystem.rollbackTo(savepoint));
+        assertEquals(ISO7816.SW_NO_ERROR, select(APPLET_AID));
+        String expected = info();
+        assertTrue(expected.startsWith("2/"));
+
+        for (int i = 1; i <= 3; ++i) {
+            update(i);
+            assertTrue(savepoint.isValid());
+            assertTrue(SimulatorSystem.rollbackTo(savepoint));
+            assertEquals(ISO7816.SW_NO_ERROR, select(APPLET_AID));
+            assertEquals(expected, info());
+        }
+    }
+
+    /**
+     * Test that rolling back invalidates newer savepoints, and that rolling
+     * back to an invalid savepoint fails without resetting the card.
+     */
+    public void testNewerSavepointsInvalidated() {
+        System.out.println("test newer savepoints invalidated");
+        Savepoint older = SimulatorSystem.savepoint();
+        update(2);
+        Savepoint newer = SimulatorSystem.savepoint();
+        update(2);
+
+        assertTrue(SimulatorSystem.rollbackTo(older));
+        assertTrue(older.isValid());
+        assertFalse(newer.isValid());
+
+        assertEquals(ISO7816.SW_NO_ERROR, select(APPLET_AID));
+        update(1);
+        String expected = info();
+        assertFalse(SimulatorSystem.rollbackTo(newer));
+        // the applet is still selected and its state (including transient memory) is unchanged
+        assertEquals(expected, info());
+
+        SimulatorSystem.releaseSavepoint(older);
+        assertFalse(older.isValid());
+        assertFalse(SimulatorSystem.rollbackTo(older));
+        assertEquals(expected, info());
+    }
+}
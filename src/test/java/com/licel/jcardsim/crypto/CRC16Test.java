@@ -15,6 +15,7 @@
  */
 package com.licel.jcardsim.crypto;
 
+import java.util.Random;
 import javacard.framework.JCSystem;
 import javacard.security.Checksum;
 import junit.framework.TestCase;
@@ -55,4 +56,45 @@ public class CRC16Test extends TestCase {
         crcEngine.doFinal(msg, (short) 0, (short) msg.length, crc, (short) 0);
         assertEquals(true, Arrays.areEqual(Hex.decode(CRC), crc));
     }
+
+    /**
+     * Bit-by-bit reference implementation (polynomial 0x1021, MSB first).
+     */
+    private static short crc16Bitwise(short fcs, byte[] msg, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            short d = (short) (msg[i] << 8);
+            for (int k = 0; k < 8; k++) {
+                if (((fcs ^ d) & 0x8000) != 0) {
+                    fcs = (short) ((fcs << 1) ^ 0x1021);
+                } else {
+                    fcs <<= 1;
+                }
+                d <<= 1;
+            }
+        }
+        return fcs;
+    }
+
+    /**
+     * Test table-driven CRC16 against bit-by-bit calculation, with initial
+     * value and split updates.
+     */
+    public void testCrc16Bitwise() {
+        System.out.println("test crc16 bitwise");
+        Random rnd = new Random(16);
+        Checksum crcEngine = Checksum.getInstance(Checksum.ALG_ISO3309_CRC16, false);
+        byte[] crc = new byte[2];
+        for (int len = 0; len < 300; len += 7) {
+            byte[] msg = new byte[len];
+            rnd.nextBytes(msg);
+            byte[] initial = new byte[2];
+            rnd.nextBytes(initial);
+            int split = len / 3;
+            crcEngine.init(initial, (short) 0, (short) 2);
+            crcEngine.update(msg, (short) 0, (short) split);
+            crcEngine.doFinal(msg, (short) split, (short) (len - split), crc, (short) 0);
+            short expected = (short) ~crc16Bitwise((short) (((initial[0] & 0xff) << 8) | (initial[1] & 0xff)), msg, 0, len);
+            assertEquals(expected, (short) (((crc[0] & 0xff) << 8) | (crc[1] & 0xff)));
+        }
+    }
 }
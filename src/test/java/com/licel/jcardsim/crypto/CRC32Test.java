@@ -15,6 +15,7 @@
  */
 package com.licel.jcardsim.crypto;
 
+import java.util.Random;
 import javacard.framework.JCSystem;
 import javacard.security.Checksum;
 import junit.framework.TestCase;
@@ -55,4 +56,48 @@ public class CRC32Test extends TestCase {
         crcEngine.doFinal(msg, (short) 0, (short) msg.length, crc, (short) 0);
         assertEquals(true, Arrays.areEqual(Hex.decode(CRC), crc));
     }
+
+    /**
+     * Bit-by-bit reference implementation (polynomial 0x04C11DB7, MSB first).
+     */
+    private static int crc32Bitwise(int fcs, byte[] msg, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            int d = msg[i] << 24;
+            for (int k = 0; k < 8; k++) {
+                if (((fcs ^ d) & 0x80000000) != 0) {
+                    fcs = (fcs << 1) ^ 0x04C11DB7;
+                } else {
+                    fcs <<= 1;
+                }
+                d <<= 1;
+            }
+        }
+        return fcs;
+    }
+
+    /**
+     * Test slicing-by-8 CRC32 against bit-by-bit calculation, with initial
+     * value and split updates at unaligned offsets.
+     */
+    public void testCrc32Bitwise() {
+        System.out.println("test crc32 bitwise");
+        Random rnd = new Random(32);
+        Checksum crcEngine = Checksum.getInstance(Checksum.ALG_ISO3309_CRC32, false);
+        byte[] crc = new byte[4];
+        for (int len = 0; len < 300; len += 7) {
+            byte[] msg = new byte[len + 3];
+            rnd.nextBytes(msg);
+            byte[] initial = new byte[4];
+            rnd.nextBytes(initial);
+            int split = 3 + len / 3;
+            crcEngine.init(initial, (short) 0, (short) 4);
+            crcEngine.update(msg, (short) 3, (short) (split - 3));
+            crcEngine.doFinal(msg, (short) split, (short) (len + 3 - split), crc, (short) 0);
+            int fcs = ((initial[0] & 0xff) << 24) | ((initial[1] & 0xff) << 16) |
+                      ((initial[2] & 0xff) << 8) | (initial[3] & 0xff);
+            int expected = ~crc32Bitwise(fcs, msg, 3, len);
+            assertEquals(expected, ((crc[0] & 0xff) << 24) | ((crc[1] & 0xff) << 16) |
+                                   ((crc[2] & 0xff) << 8) | (crc[3] & 0xff));
+        }
+    }
 }
@@ -18,6 +18,7 @@ package com.licel.jcardsim.crypto;
 import java.security.SecureRandom;
 import javacard.security.KeyBuilder;
 import junit.framework.TestCase;
+import org.bouncycastle.crypto.params.ECDomainParameters;
 import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
 import org.bouncycastle.math.ec.ECCurve;
 
@@ -61,4 +62,27 @@ public class ECKeyImplTest extends TestCase {
         assertEquals(result.getDomainParameters().getCurve()instanceof ECCurve.Fp, true);
     }
 
+    /**
+     * Test of getDomainParameters method, of class ECKeyImpl.
+     */
+    public void testGetDomainParametersShared() {
+        System.out.println("getDomainParameters");
+        ECKeyImpl publicKey = new ECPublicKeyImpl(KeyBuilder.TYPE_EC_FP_PUBLIC, KeyBuilder.LENGTH_EC_FP_192);
+        ECKeyImpl privateKey = new ECPrivateKeyImpl(KeyBuilder.TYPE_EC_FP_PRIVATE, KeyBuilder.LENGTH_EC_FP_192);
+        ECDomainParameters params = publicKey.getDomainParameters();
+        assertSame(params, publicKey.getDomainParameters());
+        assertSame(params, privateKey.getDomainParameters());
+        // a different curve must not share the parameters
+        ECKeyImpl otherKey = new ECPublicKeyImpl(KeyBuilder.TYPE_EC_FP_PUBLIC, KeyBuilder.LENGTH_EC_FP_160);
+        assertNotSame(params, otherKey.getDomainParameters());
+        assertEquals(false, params.getG().equals(otherKey.getDomainParameters().getG()));
+        // changed parameters must not hit the cached curve
+        byte[] rBytes = new byte[24];
+        short rLength = privateKey.getR(rBytes, (short) 0);
+        rBytes[rLength - 1] ^= 0x02;
+        privateKey.setR(rBytes, (short) 0, rLength);
+        assertNotSame(params, privateKey.getDomainParameters());
+        assertEquals(false, params.getN().equals(privateKey.getDomainParameters().getN()));
+    }
+
 }
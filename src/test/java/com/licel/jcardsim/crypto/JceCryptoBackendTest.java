@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.crypto;
+
+import com.licel.jcardsim.base.SimulatorSystem;
+import java.util.Arrays;
+import javacard.security.AESKey;
+import javacard.security.KeyBuilder;
+import javacard.security.MessageDigest;
+import javacardx.crypto.Cipher;
+import junit.framework.TestCase;
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Test for <code>JceCryptoBackend</code>
+ */
+public class JceCryptoBackendTest extends TestCase {
+
+    String KEY_3DES = "0123456789ABCDEFFEDCBA9876543210";
+    String KEY_AES256 = "000102030405060708090A0B0C0D0E0F101112131415161718191A1B1C1D1E1F";
+    String MESSAGE = "00112233445566778899AABBCCDDEEFF0123456789ABCDEFFEDCBA9876543210";
+
+    public JceCryptoBackendTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+    }
+
+    protected void tearDown() throws Exception {
+        SimulatorSystem.setCryptoBackend(BouncyCastleCryptoBackend.INSTANCE);
+        super.tearDown();
+    }
+
+    /**
+     * Process a message block by block with a block cipher.
+     */
+    private byte[] process(BlockCipher cipher, boolean forEncryption, byte[] key, byte[] msg) {
+        byte[] out = new byte[msg.length];
+        cipher.init(forEncryption, new KeyParameter(key));
+        for (int i = 0; i < msg.length; i += cipher.getBlockSize()) {
+            cipher.processBlock(msg, i, out, i);
+        }
+        return out;
+    }
+
+    /**
+     * Test that JCA block ciphers produce the same results as the BouncyCastle engines.
+     */
+    public void testCreateBlockCipher() {
+        System.out.println("test createBlockCipher");
+        String[][] vectors = {{"AES", KEY_AES256}, {"DESede", KEY_3DES}, {"DES", KEY_3DES.substring(0, 16)}};
+        byte[] msg = Hex.decode(MESSAGE);
+        for (int i = 0; i < vectors.length; ++i) {
+            byte[] key = Hex.decode(vectors[i][1]);
+            BlockCipher jce = JceCryptoBackend.INSTANCE.createBlockCipher(vectors[i][0]);
+            BlockCipher bc = BouncyCastleCryptoBackend.INSTANCE.createBlockCipher(vectors[i][0]);
+            assertEquals(bc.getAlgorithmName(), jce.getAlgorithmName());
+            assertEquals(bc.getBlockSize(), jce.getBlockSize());
+            byte[] cipherText = process(bc, true, key, msg);
+            assertTrue(Arrays.equals(cipherText, process(jce, true, key, msg)));
+            assertTrue(Arrays.equals(msg, process(jce, false, key, cipherText)));
+        }
+        assertNull(JceCryptoBackend.INSTANCE.createBlockCipher("Blowfish"));
+    }
+
+    /**
+     * Test that JCA message digests produce the same results as the BouncyCastle digests.
+     */
+    public void testCreateDigest() {
+        System.out.println("test createDigest");
+        byte[] algorithms = {MessageDigest.ALG_SHA, MessageDigest.ALG_MD5, MessageDigest.ALG_RIPEMD160,
+                             MessageDigest.ALG_SHA_256, MessageDigest.ALG_SHA_384, MessageDigest.ALG_SHA_512};
+        byte[] msg = Hex.decode(MESSAGE);
+        for (int i = 0; i < algorithms.length; ++i) {
+            Digest jce = JceCryptoBackend.INSTANCE.createDigest(algorithms[i]);
+            Digest bc = BouncyCastleCryptoBackend.INSTANCE.createDigest(algorithms[i]);
+            assertEquals(bc.getAlgorithmName(), jce.getAlgorithmName());
+            assertEquals(bc.getDigestSize(), jce.getDigestSize());
+            byte[] expected = new byte[bc.getDigestSize()];
+            byte[] result = new byte[jce.getDigestSize()];
+            bc.update(msg, 0, msg.length);
+            bc.doFinal(expected, 0);
+            jce.update(msg, 0, msg.length);
+            jce.doFinal(result, 0);
+            assertTrue(Arrays.equals(expected, result));
+        }
+    }
+
+    /**
+     * Test Java Card objects that are created while the JCA backend is selected.
+     */
+    public void testSelectBackend() {
+        System.out.println("test select backend");
+        byte[] msg = Hex.decode(MESSAGE);
+
+        AESKey aesKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_256, false);
+        aesKey.setKey(Hex.decode(KEY_AES256), (short) 0);
+        byte[] expected = new byte[msg.length];
+        Cipher bcCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+        bcCipher.init(aesKey, Cipher.MODE_ENCRYPT);
+        bcCipher.doFinal(msg, (short) 0, (short) msg.length, expected, (short) 0);
+        MessageDigest bcDigest = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+        byte[] expectedHash = new byte[bcDigest.getLength()];
+        bcDigest.doFinal(msg, (short) 0, (short) msg.length, expectedHash, (short) 0);
+
+        SimulatorSystem.setCryptoBackend(JceCryptoBackend.INSTANCE);
+        assertSame(JceCryptoBackend.INSTANCE, SimulatorSystem.getCryptoBackend());
+        byte[] result = new byte[msg.length];
+        Cipher jceCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+        jceCipher.init(aesKey, Cipher.MODE_ENCRYPT);
+        jceCipher.doFinal(msg, (short) 0, (short) msg.length, result, (short) 0);
+        assertTrue(Arrays.equals(expected, result));
+        MessageDigest jceDigest = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+        byte[] hash = new byte[jceDigest.getLength()];
+        jceDigest.doFinal(msg, (short) 0, (short) msg.length, hash, (short) 0);
+        assertTrue(Arrays.equals(expectedHash, hash));
+    }
+}
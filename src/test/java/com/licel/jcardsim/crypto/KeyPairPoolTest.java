@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.crypto;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import javacard.security.KeyBuilder;
+import javacard.security.KeyPair;
+import junit.framework.TestCase;
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.KeyGenerationParameters;
+import org.bouncycastle.crypto.params.DSAKeyGenerationParameters;
+import org.bouncycastle.crypto.params.DSAParameters;
+import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
+import org.bouncycastle.crypto.params.RSAKeyParameters;
+
+/**
+ * Test for <code>KeyPairPool</code>
+ */
+public class KeyPairPoolTest extends TestCase {
+
+    public KeyPairPoolTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    /**
+     * Take key pairs from the pool until a pre-generated one is available.
+     */
+    private AsymmetricCipherKeyPair takePregenerated(KeyGenerationParameters parameters) throws InterruptedException {
+        for (int i = 0; i < 600; ++i) {
+            AsymmetricCipherKeyPair kp = KeyPairPool.take(parameters);
+            if (kp != null) {
+                return kp;
+            }
+            Thread.sleep(50);
+        }
+        return null;
+    }
+
+    /**
+     * Test pre-generation of EC key pairs.
+     */
+    public void testTakeEC() throws InterruptedException {
+        System.out.println("test take EC");
+        ECKeyGenerationParameters parameters = (ECKeyGenerationParameters) ECKeyImpl.getDefaultKeyGenerationParameters(
+                KeyPair.ALG_EC_FP, KeyBuilder.LENGTH_EC_FP_192, new SecureRandom());
+        AsymmetricCipherKeyPair kp = takePregenerated(parameters);
+        assertNotNull(kp);
+        ECPublicKeyParameters publicKey = (ECPublicKeyParameters) kp.getPublic();
+        assertEquals(parameters.getDomainParameters().getG(), publicKey.getParameters().getG());
+        assertEquals(parameters.getDomainParameters().getN(), publicKey.getParameters().getN());
+    }
+
+    /**
+     * Test that RSA key pairs are pooled per public exponent.
+     */
+    public void testTakeRSA() throws InterruptedException {
+        System.out.println("test take RSA");
+        BigInteger exponent = BigInteger.valueOf(3);
+        RSAKeyGenerationParameters parameters = new RSAKeyGenerationParameters(exponent, new SecureRandom(), 512, 80);
+        AsymmetricCipherKeyPair kp = takePregenerated(parameters);
+        assertNotNull(kp);
+        RSAKeyParameters publicKey = (RSAKeyParameters) kp.getPublic();
+        assertEquals(exponent, publicKey.getExponent());
+        assertEquals(512, publicKey.getModulus().bitLength());
+    }
+
+    /**
+     * Test that a failed generation is not retried upon every take, but only
+     * once the retry delay has passed.
+     */
+    public void testFailedGenerationBacksOff() throws InterruptedException {
+        System.out.println("test failed generation backs off");
+        // a modulus of 0 lets every generation fail
+        DSAKeyGenerationParameters parameters = new DSAKeyGenerationParameters(new SecureRandom(),
+                new DSAParameters(BigInteger.ZERO, BigInteger.valueOf(1019), BigInteger.valueOf(2)));
+        assertNull(KeyPairPool.take(parameters));
+        for (int i = 0; (i < 100) && (KeyPairPool.getFailures(parameters) == 0); ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, KeyPairPool.getFailures(parameters));
+
+        for (int i = 0; i < 100; ++i) {
+            assertNull(KeyPairPool.take(parameters));
+        }
+        Thread.sleep(100);
+        assertEquals(1, KeyPairPool.getFailures(parameters));
+
+        // a single retry once the delay has passed
+        Thread.sleep(1000);
+        assertNull(KeyPairPool.take(parameters));
+        for (int i = 0; (i < 100) && (KeyPairPool.getFailures(parameters) == 1); ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, KeyPairPool.getFailures(parameters));
+    }
+}
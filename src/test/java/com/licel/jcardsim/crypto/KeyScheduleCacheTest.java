@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.crypto;
+
+import at.mroland.objectstaterecovery.PersistentMemory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import javacard.security.KeyBuilder;
+import junit.framework.TestCase;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+import org.xmlpull.v1.XmlSerializer;
+
+/**
+ * Test for <code>KeyScheduleCache</code>
+ */
+public class KeyScheduleCacheTest extends TestCase {
+
+    public KeyScheduleCacheTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    /**
+     * Test that the copy of the key bytes is not persisted and that the
+     * cache is rebuilt after a restore.
+     */
+    public void testKeyBytesNotPersisted() throws Exception {
+        System.out.println("test key bytes not persisted");
+        SymmetricKeyImpl key = new SymmetricKeyImpl(KeyBuilder.TYPE_DES, KeyBuilder.LENGTH_DES);
+        key.setKey(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }, (short) 0);
+        KeyScheduleCache cache = new KeyScheduleCache();
+        cache.update(key, true);
+        assertTrue(cache.isCurrent(key, true));
+
+        PersistentMemory memory = new PersistentMemory();
+        memory.updateStoredNamedInstance(new Object[] { cache, key }, null, "cache", false);
+        memory.memoryBarrier(false);
+        ByteArrayOutputStream ostr = new ByteArrayOutputStream();
+        XmlSerializer serializer = XmlPullParserFactory.newInstance().newSerializer();
+        serializer.setOutput(ostr, "UTF-8");
+        memory.serializeToXml(serializer);
+        serializer.flush();
+        assertEquals(-1, ostr.toString("UTF-8").indexOf(KeyScheduleCache.class.getName() + "#keyBytes"));
+
+        XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+        parser.setInput(new ByteArrayInputStream(ostr.toByteArray()), "UTF-8");
+        PersistentMemory restoredMemory = new PersistentMemory();
+        restoredMemory.deserializeFromXml(parser);
+        Object[] restored = (Object[]) restoredMemory.getNamedInstance("cache");
+        KeyScheduleCache restoredCache = (KeyScheduleCache) restored[0];
+        SymmetricKeyImpl restoredKey = (SymmetricKeyImpl) restored[1];
+        assertFalse(restoredCache.isCurrent(restoredKey, true));
+        restoredCache.update(restoredKey, true);
+        assertTrue(restoredCache.isCurrent(restoredKey, true));
+    }
+
+    /**
+     * Serialize and restore objects through persistent memory.
+     */
+    static Object[] restore(Object[] objects, String absentField) throws Exception {
+        PersistentMemory memory = new PersistentMemory();
+        memory.updateStoredNamedInstance(objects, null, "objects", false);
+        memory.memoryBarrier(false);
+        ByteArrayOutputStream ostr = new ByteArrayOutputStream();
+        XmlSerializer serializer = XmlPullParserFactory.newInstance().newSerializer();
+        serializer.setOutput(ostr, "UTF-8");
+        memory.serializeToXml(serializer);
+        serializer.flush();
+        assertEquals(-1, ostr.toString("UTF-8").indexOf(absentField));
+
+        XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+        parser.setInput(new ByteArrayInputStream(ostr.toByteArray()), "UTF-8");
+        PersistentMemory restoredMemory = new PersistentMemory();
+        restoredMemory.deserializeFromXml(parser);
+        return (Object[]) restoredMemory.getNamedInstance("objects");
+    }
+
+    /**
+     * Test that the key of a JCA block cipher is not persisted and that the
+     * cipher is keyed again from the recorded key after a restore.
+     */
+    public void testJceBlockCipherRekeyedAfterRestore() throws Exception {
+        System.out.println("test JCA block cipher re-keyed after restore");
+        SymmetricKeyImpl key = new SymmetricKeyImpl(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128);
+        key.setKey(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 }, (short) 0);
+        ReusableBlockCipher cipher = new ReusableBlockCipher(new JceBlockCipher("AES", 16));
+        KeyScheduleCache cache = new KeyScheduleCache();
+        cipher.init(true, key.getParameters());
+        cache.update(key, true);
+        byte[] plaintext = new byte[16];
+        byte[] expected = new byte[16];
+        cipher.processBlock(plaintext, 0, expected, 0);
+
+        Object[] restored = restore(new Object[] { cache, key, cipher }, JceBlockCipher.class.getName() + "#keyBytes");
+        KeyScheduleCache restoredCache = (KeyScheduleCache) restored[0];
+        ReusableBlockCipher restoredCipher = (ReusableBlockCipher) restored[2];
+        try {
+            restoredCipher.processBlock(plaintext, 0, new byte[16], 0);
+            fail("cipher must not be keyed after restore");
+        } catch (IllegalStateException e) {
+        }
+        restoredCache.restoreKey(restoredCipher);
+        byte[] actual = new byte[16];
+        restoredCipher.processBlock(plaintext, 0, actual, 0);
+        assertTrue(Arrays.equals(expected, actual));
+        assertTrue(restoredCache.isCurrent((SymmetricKeyImpl) restored[1], true));
+    }
+
+    /**
+     * Test that a cipher is not keyed again after a restore if the key has
+     * been changed since the cipher was keyed.
+     */
+    public void testChangedKeyNotRestored() throws Exception {
+        System.out.println("test changed key not restored");
+        SymmetricKeyImpl key = new SymmetricKeyImpl(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128);
+        key.setKey(new byte[16], (short) 0);
+        ReusableBlockCipher cipher = new ReusableBlockCipher(new JceBlockCipher("AES", 16));
+        KeyScheduleCache cache = new KeyScheduleCache();
+        cipher.init(true, new KeyParameter(new byte[16]));
+        cache.update(key, true);
+        key.setKey(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 }, (short) 0);
+
+        Object[] restored = restore(new Object[] { cache, key, cipher }, JceBlockCipher.class.getName() + "#keyBytes");
+        KeyScheduleCache restoredCache = (KeyScheduleCache) restored[0];
+        ReusableBlockCipher restoredCipher = (ReusableBlockCipher) restored[2];
+        restoredCache.restoreKey(restoredCipher);
+        assertFalse(restoredCache.isCurrent((SymmetricKeyImpl) restored[1], true));
+        try {
+            restoredCipher.processBlock(new byte[16], 0, new byte[16], 0);
+            fail("cipher must not be keyed with a changed key");
+        } catch (IllegalStateException e) {
+        }
+    }
+}
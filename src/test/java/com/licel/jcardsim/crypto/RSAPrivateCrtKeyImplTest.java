@@ -15,7 +15,9 @@
  */
 package com.licel.jcardsim.crypto;
 
+import java.math.BigInteger;
 import junit.framework.TestCase;
+import org.bouncycastle.crypto.params.RSAPrivateCrtKeyParameters;
 import org.bouncycastle.util.encoders.Hex;
 
 /**
@@ -59,4 +61,28 @@ public class RSAPrivateCrtKeyImplTest extends TestCase {
         key.setPQ(Hex.decode(PQ), (short)0, compLen);
         assertEquals(true, key.isInitialized());
     }
+
+    /**
+     * Test of getParameters method, of class RSAPrivateCrtKeyImpl.
+     */
+    public void testGetParameters() {
+        System.out.println("getParameters");
+        RSAPrivateCrtKeyImpl key = new RSAPrivateCrtKeyImpl((short)2048);
+        short compLen = (short) Hex.decode(P).length;
+        key.setP(Hex.decode(P), (short)0, compLen);
+        key.setQ(Hex.decode(Q), (short)0, compLen);
+        key.setDP1(Hex.decode(DP), (short)0, compLen);
+        key.setDQ1(Hex.decode(DQ), (short)0, compLen);
+        key.setPQ(Hex.decode(PQ), (short)0, compLen);
+        RSAPrivateCrtKeyParameters params = (RSAPrivateCrtKeyParameters) key.getParameters();
+        assertEquals(new BigInteger(P, 16).multiply(new BigInteger(Q, 16)), params.getModulus());
+        // unchanged key returns the cached parameters
+        assertSame(params, key.getParameters());
+        // changed component invalidates the cached parameters
+        key.setDP1(Hex.decode(DQ), (short)0, compLen);
+        RSAPrivateCrtKeyParameters newParams = (RSAPrivateCrtKeyParameters) key.getParameters();
+        assertNotSame(params, newParams);
+        assertEquals(new BigInteger(DQ, 16), newParams.getDP());
+        assertSame(params.getP(), newParams.getP());
+    }
 }
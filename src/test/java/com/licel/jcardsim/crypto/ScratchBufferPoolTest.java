@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.crypto;
+
+import com.licel.jcardsim.base.SimulatorSystem;
+import junit.framework.TestCase;
+
+/**
+ * Test for <code>ScratchBufferPool</code>
+ */
+public class ScratchBufferPoolTest extends TestCase {
+
+    public ScratchBufferPoolTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    /**
+     * Test that released buffers are cleared and reused for the same size.
+     */
+    public void testReuse() {
+        System.out.println("test reuse");
+        byte[] buffer = ScratchBufferPool.acquire(24);
+        assertEquals(24, buffer.length);
+        buffer[0] = (byte) 0x55;
+        buffer[23] = (byte) 0xAA;
+        ScratchBufferPool.release(buffer);
+        assertEquals(0, buffer[0]);
+        assertEquals(0, buffer[23]);
+        assertSame(buffer, ScratchBufferPool.acquire(24));
+        byte[] other = ScratchBufferPool.acquire(25);
+        assertEquals(25, other.length);
+        assertNotSame(buffer, other);
+    }
+
+    /**
+     * Test that scratch buffers are not tracked as transient memory.
+     */
+    public void testNotTransient() {
+        System.out.println("test not transient");
+        byte[] buffer = ScratchBufferPool.acquire(16);
+        assertEquals(0, SimulatorSystem.isTransient(buffer));
+        ScratchBufferPool.release(buffer);
+    }
+}
@@ -183,6 +183,34 @@ public class SymmetricCipherImplTest extends TestCase {
 
     }
 
+    /**
+     * Test re-initialization of the same cipher instance with an IV, without
+     * an IV, with another key and with changed key data
+     */
+    public void testReinit() {
+        SymmetricKeyImpl desKey = new SymmetricKeyImpl(KeyBuilder.TYPE_DES, KeyBuilder.LENGTH_DES);
+        desKey.setKey(Hex.decode(DES_KEY), (short) 0);
+        SymmetricKeyImpl des3Key = new SymmetricKeyImpl(KeyBuilder.TYPE_DES, KeyBuilder.LENGTH_DES3_3KEY);
+        des3Key.setKey(Hex.decode(DES3_KEY), (short) 0);
+        byte[] iv = Hex.decode(IV);
+        byte[] msg15 = Hex.decode(MESSAGE_15);
+
+        Cipher engine = Cipher.getInstance(Cipher.ALG_DES_CBC_ISO9797_M1, false);
+        testEngineDoFinal(engine, desKey, iv, msg15, Hex.decode(DES_ENCRYPTED_15_IV[0]));
+        testEngineDoFinal(engine, desKey, null, msg15, Hex.decode(DES_ENCRYPTED_15[0]));
+        testEngineDoFinal(engine, des3Key, iv, msg15, Hex.decode(DES3_ENCRYPTED_15_IV[0]));
+        testEngineDoFinal(engine, desKey, null, msg15, Hex.decode(DES_ENCRYPTED_15[0]));
+
+        // change key data of a key that the engine has been keyed with before
+        desKey.setKey(Hex.decode(DES3_KEY), (short) 8);
+        Cipher freshEngine = Cipher.getInstance(Cipher.ALG_DES_CBC_ISO9797_M1, false);
+        freshEngine.init(desKey, Cipher.MODE_ENCRYPT);
+        byte[] expected = new byte[16];
+        freshEngine.doFinal(msg15, (short) 0, (short) msg15.length, expected, (short) 0);
+        assertEquals(false, Arrays.areEqual(expected, Hex.decode(DES_ENCRYPTED_15[0])));
+        testEngineDoFinal(engine, desKey, null, msg15, expected);
+    }
+
     public void testAes() {
         testAESMode(KeyBuilder.LENGTH_AES_128, Cipher.ALG_AES_BLOCK_128_ECB_NOPAD, AES_ECB_128_TEST);
         testAESMode(KeyBuilder.LENGTH_AES_192, Cipher.ALG_AES_BLOCK_128_ECB_NOPAD, AES_ECB_192_TEST);
@@ -363,6 +363,42 @@ public class SymmetricSignatureImplTest extends TestCase {
         }
     }
 
+    /**
+     * Test re-initialization of the same signature instance with an IV, without
+     * an IV and with other keys
+     */
+    public void testReinit() {
+        SymmetricKeyImpl desKey = new SymmetricKeyImpl(KeyBuilder.TYPE_DES, KeyBuilder.LENGTH_DES);
+        desKey.setKey(Hex.decode(DES_KEY), (short) 0);
+        SymmetricKeyImpl des3Key = new SymmetricKeyImpl(KeyBuilder.TYPE_DES, KeyBuilder.LENGTH_DES3_3KEY);
+        des3Key.setKey(Hex.decode(DES3_KEY), (short) 0);
+        byte[] iv = Hex.decode(IV);
+        byte[] msg15 = Hex.decode(MESSAGE_15);
+
+        Signature engine = Signature.getInstance(Signature.ALG_DES_MAC8_ISO9797_M2, false);
+        testEngineSignVerify(engine, desKey, iv, msg15, Hex.decode(DES_MAC_15_IV[1]));
+        testEngineSignVerify(engine, desKey, null, msg15, Hex.decode(DES_MAC_15[1]));
+        testEngineSignVerify(engine, des3Key, null, msg15, Hex.decode(DES3_MAC_15[1]));
+        testEngineSignVerify(engine, des3Key, iv, msg15, Hex.decode(DES3_MAC_15_IV[1]));
+        testEngineSignVerify(engine, desKey, null, msg15, Hex.decode(DES_MAC_15[1]));
+
+        // the same HMAC engine with changing key data
+        Signature hmacEngine = null;
+        for (int i = 0; i < HMAC_IDS.length; i++) {
+            if (HMAC_IDS[i] != Signature.ALG_HMAC_MD5) {
+                continue;
+            }
+            byte[] hmacKeyBytes = Hex.decode(HMAC_TESTS[i][0]);
+            HMACKey hmacKey = (HMACKey)KeyBuilder.buildKey(KeyBuilder.TYPE_HMAC, (short)hmacKeyBytes.length, false);
+            hmacKey.setKey(hmacKeyBytes, (short) 0, (short)hmacKeyBytes.length);
+            if (hmacEngine == null) {
+                hmacEngine = Signature.getInstance(HMAC_IDS[i], false);
+            }
+            testEngineSignVerify(hmacEngine, hmacKey, null, Hex.decode(HMAC_TESTS[i][1]), Hex.decode(HMAC_TESTS[i][2]));
+            testEngineSignVerify(hmacEngine, hmacKey, null, Hex.decode(HMAC_TESTS[i][1]), Hex.decode(HMAC_TESTS[i][2]));
+        }
+    }
+
     /**
      * Test of sign/verify methods, of class SymmetricSignatureImpl with specified key
      * and etalon data
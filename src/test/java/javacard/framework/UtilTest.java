@@ -41,4 +41,67 @@ public class UtilTest extends TestCase {
         byte res = Util.arrayCompare(bArray, (short) 0, etalonArray, (short) 0, (short) 16);
         assertEquals(0, res);
     }
+
+    /**
+     * Test of arrayCompare method with equal ranges and invalid bounds, of class Util.
+     */
+    public void testArrayCompare3() {
+        System.out.println("arrayCompare");
+        byte[] src = new byte[]{0x00, 0x01, 0x02, (byte) 0x80};
+        byte[] dest = new byte[]{0x01, 0x02, 0x7F};
+        assertEquals(0, Util.arrayCompare(src, (short) 1, dest, (short) 0, (short) 2));
+        assertEquals(1, Util.arrayCompare(src, (short) 1, dest, (short) 0, (short) 3));
+        assertEquals(0, Util.arrayCompare(src, (short) 4, dest, (short) 3, (short) 0));
+        try {
+            Util.arrayCompare(src, (short) 2, dest, (short) 0, (short) 3);
+            fail("ArrayIndexOutOfBoundsException expected");
+        } catch (ArrayIndexOutOfBoundsException e) {
+        }
+    }
+
+    /**
+     * Test of arrayCopy and setShort methods within an aborted transaction, of class Util.
+     */
+    public void testArrayCopyTransaction() {
+        System.out.println("arrayCopy transaction");
+        byte[] src = new byte[]{1, 2, 3, 4};
+        byte[] dest = new byte[]{9, 9, 9, 9, 9, 9};
+        byte[] etalonArray = new byte[]{9, 1, 2, 3, 0x12, 0x34};
+        JCSystem.beginTransaction();
+        Util.arrayCopy(src, (short) 0, dest, (short) 1, (short) 3);
+        Util.setShort(dest, (short) 4, (short) 0x1234);
+        assertEquals(0, Util.arrayCompare(dest, (short) 0, etalonArray, (short) 0, (short) 6));
+        JCSystem.abortTransaction();
+        assertEquals(0, Util.arrayCompare(dest, (short) 0, new byte[]{9, 9, 9, 9, 9, 9}, (short) 0, (short) 6));
+
+        JCSystem.beginTransaction();
+        Util.arrayCopy(src, (short) 0, dest, (short) 1, (short) 3);
+        Util.setShort(dest, (short) 4, (short) 0x1234);
+        JCSystem.commitTransaction();
+        assertEquals(0, Util.arrayCompare(dest, (short) 0, etalonArray, (short) 0, (short) 6));
+        assertEquals((short) 0x1234, Util.getShort(dest, (short) 4));
+    }
+
+    /**
+     * Test that logged ranges are restored in reverse order when the log
+     * entries of a previous transaction are reused for longer ranges.
+     */
+    public void testArrayCopyTransactionReusesLog() {
+        System.out.println("arrayCopy transaction reuses log");
+        byte[] src = new byte[]{1, 2, 3, 4, 5, 6, 7, 8};
+        byte[] dest = new byte[]{9, 9, 9, 9, 9, 9, 9, 9};
+        JCSystem.beginTransaction();
+        Util.setShort(dest, (short) 0, (short) 0x1234);
+        Util.setShort(dest, (short) 2, (short) 0x5678);
+        JCSystem.abortTransaction();
+        assertEquals(0, Util.arrayCompare(dest, (short) 0, new byte[]{9, 9, 9, 9, 9, 9, 9, 9}, (short) 0, (short) 8));
+
+        JCSystem.beginTransaction();
+        Util.arrayCopy(src, (short) 0, dest, (short) 0, (short) 8);
+        Util.setShort(dest, (short) 1, (short) 0x1234);
+        Util.arrayCopy(src, (short) 4, dest, (short) 0, (short) 4);
+        assertEquals(0, Util.arrayCompare(dest, (short) 0, new byte[]{5, 6, 7, 8, 5, 6, 7, 8}, (short) 0, (short) 8));
+        JCSystem.abortTransaction();
+        assertEquals(0, Util.arrayCompare(dest, (short) 0, new byte[]{9, 9, 9, 9, 9, 9, 9, 9}, (short) 0, (short) 8));
+    }
 }
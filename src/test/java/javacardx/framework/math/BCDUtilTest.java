@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package javacardx.framework.math;
+
+import java.math.BigInteger;
+import java.util.Random;
+import junit.framework.TestCase;
+import org.bouncycastle.util.Arrays;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Test for <code>BCDUtil</code>
+ */
+public class BCDUtilTest extends TestCase {
+
+    public BCDUtilTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Test of convertToHex method, of class BCDUtil.
+     */
+    public void testConvertToHex() {
+        System.out.println("convertToHex");
+        byte[] bcd = Hex.decode("00001234567890");
+        byte[] hex = new byte[8];
+        short len = BCDUtil.convertToHex(bcd, (short) 0, (short) bcd.length, hex, (short) 1);
+        assertEquals(4, len);
+        assertTrue(Arrays.areEqual(Hex.decode("00499602D2000000"), hex));
+        // overlapping input and output
+        len = BCDUtil.convertToHex(bcd, (short) 2, (short) 5, bcd, (short) 3);
+        assertEquals(4, len);
+        assertTrue(Arrays.areEqual(Hex.decode("000012499602D2"), bcd));
+        try {
+            BCDUtil.convertToHex(Hex.decode("1A"), (short) 0, (short) 1, hex, (short) 0);
+            fail("ArithmeticException expected for invalid BCD");
+        } catch (ArithmeticException e) {
+        }
+        try {
+            BCDUtil.convertToHex(Hex.decode("99999999999999999999"), (short) 0, (short) 10, hex, (short) 0);
+            fail("ArithmeticException expected for value exceeding 8 bytes");
+        } catch (ArithmeticException e) {
+        }
+    }
+
+    /**
+     * Test of convertToBCD method, of class BCDUtil.
+     */
+    public void testConvertToBCD() {
+        System.out.println("convertToBCD");
+        Random rnd = new Random(10);
+        byte[] bcd = new byte[12];
+        for (int i = 0; i < 100; ++i) {
+            byte[] hex = new byte[1 + rnd.nextInt(8)];
+            rnd.nextBytes(hex);
+            short len = BCDUtil.convertToBCD(hex, (short) 0, (short) hex.length, bcd, (short) 2);
+            String digits = new BigInteger(1, hex).toString();
+            if ((digits.length() % 2) != 0) {
+                digits = "0" + digits;
+            }
+            assertEquals(digits, new String(Hex.encode(bcd, 2, len)));
+            byte[] back = new byte[8];
+            short hexLen = BCDUtil.convertToHex(bcd, (short) 2, len, back, (short) 0);
+            BigInteger value = new BigInteger(1, hex);
+            assertEquals(Math.max(1, (value.bitLength() + 7) / 8), hexLen);
+            assertEquals(value, new BigInteger(1, back).shiftRight(8 * (8 - hexLen)));
+        }
+    }
+
+    /**
+     * Test of isBCDFormat method, of class BCDUtil.
+     */
+    public void testIsBCDFormat() {
+        System.out.println("isBCDFormat");
+        byte[] data = Hex.decode("0123456789A0");
+        assertTrue(BCDUtil.isBCDFormat(data, (short) 0, (short) 5));
+        assertFalse(BCDUtil.isBCDFormat(data, (short) 0, (short) 6));
+        try {
+            BCDUtil.isBCDFormat(data, (short) 0, (short) 0);
+            fail("ArithmeticException expected for zero length");
+        } catch (ArithmeticException e) {
+        }
+    }
+}
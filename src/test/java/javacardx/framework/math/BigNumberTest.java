@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 FH OOe Forschungs & Entwicklungs GmbH, Michael Roland.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package javacardx.framework.math;
+
+import java.math.BigInteger;
+import java.util.Random;
+import junit.framework.TestCase;
+import org.bouncycastle.util.Arrays;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Test for <code>BigNumber</code>
+ */
+public class BigNumberTest extends TestCase {
+
+    public BigNumberTest(String testName) {
+        super(testName);
+    }
+
+    private static BigInteger toBigInteger(BigNumber number) {
+        byte[] hex = new byte[8];
+        number.toBytes(hex, (short) 0, (short) hex.length, BigNumber.FORMAT_HEX);
+        return new BigInteger(1, hex);
+    }
+
+    private static byte[] toHex(BigInteger value) {
+        byte[] hex = value.toByteArray();
+        if ((hex.length > 1) && (hex[0] == 0)) {
+            byte[] stripped = new byte[hex.length - 1];
+            System.arraycopy(hex, 1, stripped, 0, stripped.length);
+            return stripped;
+        }
+        return hex;
+    }
+
+    /**
+     * Test of arithmetic methods against <code>BigInteger</code>.
+     */
+    public void testArithmetic() {
+        System.out.println("arithmetic");
+        Random rnd = new Random(8);
+        BigInteger max = BigInteger.ONE.shiftLeft(64);
+        BigNumber number = new BigNumber((short) 8);
+        BigInteger expected = BigInteger.ZERO;
+        for (int i = 0; i < 1000; ++i) {
+            BigInteger operand = new BigInteger(rnd.nextInt(64) + 1, rnd);
+            byte[] hex = toHex(operand);
+            BigInteger value;
+            switch (rnd.nextInt(3)) {
+                case 0:
+                    value = expected.add(operand);
+                    try {
+                        number.add(hex, (short) 0, (short) hex.length, BigNumber.FORMAT_HEX);
+                        expected = value;
+                    } catch (ArithmeticException e) {
+                        assertTrue(value.compareTo(max) >= 0);
+                    }
+                    break;
+                case 1:
+                    value = expected.subtract(operand);
+                    try {
+                        number.subtract(hex, (short) 0, (short) hex.length, BigNumber.FORMAT_HEX);
+                        expected = value;
+                    } catch (ArithmeticException e) {
+                        assertTrue(value.signum() < 0);
+                    }
+                    break;
+                default:
+                    value = expected.multiply(operand);
+                    try {
+                        number.multiply(hex, (short) 0, (short) hex.length, BigNumber.FORMAT_HEX);
+                        expected = value;
+                    } catch (ArithmeticException e) {
+                        assertTrue(value.compareTo(max) >= 0);
+                    }
+                    break;
+            }
+            assertEquals(expected, toBigInteger(number));
+            assertEquals(expected.compareTo(operand), number.compareTo(hex, (short) 0, (short) hex.length, BigNumber.FORMAT_HEX));
+        }
+    }
+
+    /**
+     * Test of BCD input and output and of the maximum value.
+     */
+    public void testBCD() {
+        System.out.println("BCD");
+        BigNumber number = new BigNumber((short) 4);
+        byte[] max = Hex.decode("010000");
+        number.setMaximum(max, (short) 0, (short) max.length, BigNumber.FORMAT_BCD);
+        byte[] amount = Hex.decode("009999");
+        number.init(amount, (short) 0, (short) amount.length, BigNumber.FORMAT_BCD);
+        assertEquals(2, number.getByteLength(BigNumber.FORMAT_BCD));
+        assertEquals(2, number.getByteLength(BigNumber.FORMAT_HEX));
+        byte[] one = Hex.decode("01");
+        number.add(one, (short) 0, (short) 1, BigNumber.FORMAT_BCD);
+        try {
+            number.add(one, (short) 0, (short) 1, BigNumber.FORMAT_BCD);
+            fail("ArithmeticException expected for exceeding the maximum");
+        } catch (ArithmeticException e) {
+        }
+        assertEquals(0, number.compareTo(max, (short) 0, (short) max.length, BigNumber.FORMAT_BCD));
+        byte[] out = new byte[4];
+        number.toBytes(out, (short) 0, (short) 4, BigNumber.FORMAT_BCD);
+        assertTrue(Arrays.areEqual(Hex.decode("00010000"), out));
+        try {
+            number.toBytes(out, (short) 0, (short) 2, BigNumber.FORMAT_BCD);
+            fail("ArrayIndexOutOfBoundsException expected for short output");
+        } catch (ArrayIndexOutOfBoundsException e) {
+        }
+        number.reset();
+        assertEquals(1, number.getByteLength(BigNumber.FORMAT_BCD));
+        BigNumber other = new BigNumber((short) 8);
+        other.init(one, (short) 0, (short) 1, BigNumber.FORMAT_HEX);
+        assertEquals(-1, number.compareTo(other));
+        assertEquals(1, other.compareTo(number));
+    }
+}